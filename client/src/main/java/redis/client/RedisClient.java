@@ -2703,7 +2703,117 @@ public class RedisClient extends RedisClientBase {
     if (version < ZUNIONSTORE_VERSION) throw new RedisException("Server does not support ZUNIONSTORE");
     return (IntegerReply) execute(ZUNIONSTORE, new Command(ZUNIONSTORE_BYTES, arguments));
   }
+  
+  private static final String SCAN = "SCAN";
+  private static final byte[] SCAN_BYTES = SCAN.getBytes(Charsets.US_ASCII);
+  private static final int SCAN_VERSION = parseVersion("2.8.0");
+
+  /**
+   * Incrementally iterate the keys space
+   * Generic
+   *
+   * @param cursor0
+   * @param pattern_count_type1
+   * @return MultiBulkReply
+   */
+  public MultiBulkReply scan(Object cursor0, Object... pattern_count_type1) throws RedisException {
+    if (version < SCAN_VERSION) throw new RedisException("Server does not support SCAN");
+    List list = new ArrayList();
+    list.add(cursor0);
+    Collections.addAll(list, pattern_count_type1);
+    return (MultiBulkReply) execute(SCAN, new Command(SCAN_BYTES, list.toArray(new Object[list.size()])));
+  }
+
+  // Varargs version to simplify commands with optional or multiple arguments
+  public MultiBulkReply scan_(Object... arguments) throws RedisException {
+    if (version < SCAN_VERSION) throw new RedisException("Server does not support SCAN");
+    return (MultiBulkReply) execute(SCAN, new Command(SCAN_BYTES, arguments));
+  }
+  
+  private static final String HSCAN = "HSCAN";
+  private static final byte[] HSCAN_BYTES = HSCAN.getBytes(Charsets.US_ASCII);
+  private static final int HSCAN_VERSION = parseVersion("2.8.0");
+
+  /**
+   * Incrementally iterate hash fields and associated values
+   * Hash
+   *
+   * @param key0
+   * @param cursor1
+   * @param pattern_count2
+   * @return MultiBulkReply
+   */
+  public MultiBulkReply hscan(Object key0, Object cursor1, Object... pattern_count2) throws RedisException {
+    if (version < HSCAN_VERSION) throw new RedisException("Server does not support HSCAN");
+    List list = new ArrayList();
+    list.add(key0);
+    list.add(cursor1);
+    Collections.addAll(list, pattern_count2);
+    return (MultiBulkReply) execute(HSCAN, new Command(HSCAN_BYTES, list.toArray(new Object[list.size()])));
+  }
+
+  // Varargs version to simplify commands with optional or multiple arguments
+  public MultiBulkReply hscan_(Object... arguments) throws RedisException {
+    if (version < HSCAN_VERSION) throw new RedisException("Server does not support HSCAN");
+    return (MultiBulkReply) execute(HSCAN, new Command(HSCAN_BYTES, arguments));
+  }
+  
+  private static final String SSCAN = "SSCAN";
+  private static final byte[] SSCAN_BYTES = SSCAN.getBytes(Charsets.US_ASCII);
+  private static final int SSCAN_VERSION = parseVersion("2.8.0");
+
+  /**
+   * Incrementally iterate Set elements
+   * Set
+   *
+   * @param key0
+   * @param cursor1
+   * @param pattern_count2
+   * @return MultiBulkReply
+   */
+  public MultiBulkReply sscan(Object key0, Object cursor1, Object... pattern_count2) throws RedisException {
+    if (version < SSCAN_VERSION) throw new RedisException("Server does not support SSCAN");
+    List list = new ArrayList();
+    list.add(key0);
+    list.add(cursor1);
+    Collections.addAll(list, pattern_count2);
+    return (MultiBulkReply) execute(SSCAN, new Command(SSCAN_BYTES, list.toArray(new Object[list.size()])));
+  }
+
+  // Varargs version to simplify commands with optional or multiple arguments
+  public MultiBulkReply sscan_(Object... arguments) throws RedisException {
+    if (version < SSCAN_VERSION) throw new RedisException("Server does not support SSCAN");
+    return (MultiBulkReply) execute(SSCAN, new Command(SSCAN_BYTES, arguments));
+  }
+  
+  private static final String ZSCAN = "ZSCAN";
+  private static final byte[] ZSCAN_BYTES = ZSCAN.getBytes(Charsets.US_ASCII);
+  private static final int ZSCAN_VERSION = parseVersion("2.8.0");
 
+  /**
+   * Incrementally iterate sorted sets elements and associated scores
+   * Sorted_set
+   *
+   * @param key0
+   * @param cursor1
+   * @param pattern_count2
+   * @return MultiBulkReply
+   */
+  public MultiBulkReply zscan(Object key0, Object cursor1, Object... pattern_count2) throws RedisException {
+    if (version < ZSCAN_VERSION) throw new RedisException("Server does not support ZSCAN");
+    List list = new ArrayList();
+    list.add(key0);
+    list.add(cursor1);
+    Collections.addAll(list, pattern_count2);
+    return (MultiBulkReply) execute(ZSCAN, new Command(ZSCAN_BYTES, list.toArray(new Object[list.size()])));
+  }
+
+  // Varargs version to simplify commands with optional or multiple arguments
+  public MultiBulkReply zscan_(Object... arguments) throws RedisException {
+    if (version < ZSCAN_VERSION) throw new RedisException("Server does not support ZSCAN");
+    return (MultiBulkReply) execute(ZSCAN, new Command(ZSCAN_BYTES, arguments));
+  }
+  
   public class Pipeline {
 
   /**
@@ -4811,5 +4921,99 @@ public class RedisClient extends RedisClientBase {
     if (version < ZUNIONSTORE_VERSION) throw new RedisException("Server does not support ZUNIONSTORE");
     return (CompletableFuture<IntegerReply>) pipeline(ZUNIONSTORE, new Command(ZUNIONSTORE_BYTES, arguments));
   }
+
+  /**
+   * Incrementally iterate the keys space
+   * Generic
+   *
+   * @param cursor0
+   * @param pattern_count_type1
+   * @return MultiBulkReply
+   */
+  public CompletableFuture<MultiBulkReply> scan(Object cursor0, Object... pattern_count_type1) throws RedisException {
+    if (version < SCAN_VERSION) throw new RedisException("Server does not support SCAN");
+    List list = new ArrayList();
+    list.add(cursor0);
+    Collections.addAll(list, pattern_count_type1);
+    return (CompletableFuture<MultiBulkReply>) pipeline(SCAN, new Command(SCAN_BYTES, list.toArray(new Object[list.size()])));
+  }
+
+  // Varargs version to simplify commands with optional or multiple arguments
+  public CompletableFuture<MultiBulkReply> scan_(Object... arguments) throws RedisException {
+    if (version < SCAN_VERSION) throw new RedisException("Server does not support SCAN");
+    return (CompletableFuture<MultiBulkReply>) pipeline(SCAN, new Command(SCAN_BYTES, arguments));
+  }
+
+  /**
+   * Incrementally iterate hash fields and associated values
+   * Hash
+   *
+   * @param key0
+   * @param cursor1
+   * @param pattern_count2
+   * @return MultiBulkReply
+   */
+  public CompletableFuture<MultiBulkReply> hscan(Object key0, Object cursor1, Object... pattern_count2) throws RedisException {
+    if (version < HSCAN_VERSION) throw new RedisException("Server does not support HSCAN");
+    List list = new ArrayList();
+    list.add(key0);
+    list.add(cursor1);
+    Collections.addAll(list, pattern_count2);
+    return (CompletableFuture<MultiBulkReply>) pipeline(HSCAN, new Command(HSCAN_BYTES, list.toArray(new Object[list.size()])));
+  }
+
+  // Varargs version to simplify commands with optional or multiple arguments
+  public CompletableFuture<MultiBulkReply> hscan_(Object... arguments) throws RedisException {
+    if (version < HSCAN_VERSION) throw new RedisException("Server does not support HSCAN");
+    return (CompletableFuture<MultiBulkReply>) pipeline(HSCAN, new Command(HSCAN_BYTES, arguments));
+  }
+
+  /**
+   * Incrementally iterate Set elements
+   * Set
+   *
+   * @param key0
+   * @param cursor1
+   * @param pattern_count2
+   * @return MultiBulkReply
+   */
+  public CompletableFuture<MultiBulkReply> sscan(Object key0, Object cursor1, Object... pattern_count2) throws RedisException {
+    if (version < SSCAN_VERSION) throw new RedisException("Server does not support SSCAN");
+    List list = new ArrayList();
+    list.add(key0);
+    list.add(cursor1);
+    Collections.addAll(list, pattern_count2);
+    return (CompletableFuture<MultiBulkReply>) pipeline(SSCAN, new Command(SSCAN_BYTES, list.toArray(new Object[list.size()])));
+  }
+
+  // Varargs version to simplify commands with optional or multiple arguments
+  public CompletableFuture<MultiBulkReply> sscan_(Object... arguments) throws RedisException {
+    if (version < SSCAN_VERSION) throw new RedisException("Server does not support SSCAN");
+    return (CompletableFuture<MultiBulkReply>) pipeline(SSCAN, new Command(SSCAN_BYTES, arguments));
+  }
+
+  /**
+   * Incrementally iterate sorted sets elements and associated scores
+   * Sorted_set
+   *
+   * @param key0
+   * @param cursor1
+   * @param pattern_count2
+   * @return MultiBulkReply
+   */
+  public CompletableFuture<MultiBulkReply> zscan(Object key0, Object cursor1, Object... pattern_count2) throws RedisException {
+    if (version < ZSCAN_VERSION) throw new RedisException("Server does not support ZSCAN");
+    List list = new ArrayList();
+    list.add(key0);
+    list.add(cursor1);
+    Collections.addAll(list, pattern_count2);
+    return (CompletableFuture<MultiBulkReply>) pipeline(ZSCAN, new Command(ZSCAN_BYTES, list.toArray(new Object[list.size()])));
+  }
+
+  // Varargs version to simplify commands with optional or multiple arguments
+  public CompletableFuture<MultiBulkReply> zscan_(Object... arguments) throws RedisException {
+    if (version < ZSCAN_VERSION) throw new RedisException("Server does not support ZSCAN");
+    return (CompletableFuture<MultiBulkReply>) pipeline(ZSCAN, new Command(ZSCAN_BYTES, arguments));
+  }
   }
 }
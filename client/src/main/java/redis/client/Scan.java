@@ -0,0 +1,155 @@
+package redis.client;
+
+import redis.reply.BulkReply;
+import redis.reply.MultiBulkReply;
+import redis.reply.Reply;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * What a SCAN, HSCAN, SSCAN or ZSCAN walks, fetched a batch at a time as it
+ * is iterated. The next batch is only asked for once the last one has been
+ * used up, so a keyspace or collection of any size streams through without
+ * either side holding all of it. Like the commands themselves, an element
+ * may come up more than once and elements added or removed along the way
+ * may or may not come up.
+ * <p/>
+ * Options are passed on to every command, e.g. "MATCH", "user:*", "COUNT",
+ * 100. Each iterator starts a scan of its own.
+ */
+public abstract class Scan<T> implements Iterable<T> {
+  private static final byte[] START = "0".getBytes();
+
+  private final int width;
+
+  private Scan(int width) {
+    this.width = width;
+  }
+
+  /**
+   * The keys, with SCAN.
+   */
+  public static Scan<byte[]> keys(final RedisClient client, final Object... options) {
+    return new Scan<byte[]>(1) {
+      @Override
+      MultiBulkReply fetch(byte[] cursor) {
+        return client.scan(cursor, options);
+      }
+
+      @Override
+      byte[] element(Reply[] batch, int position) {
+        return bytes(batch[position]);
+      }
+    };
+  }
+
+  /**
+   * The members of a set, with SSCAN.
+   */
+  public static Scan<byte[]> members(final RedisClient client, final Object key, final Object... options) {
+    return new Scan<byte[]>(1) {
+      @Override
+      MultiBulkReply fetch(byte[] cursor) {
+        return client.sscan(key, cursor, options);
+      }
+
+      @Override
+      byte[] element(Reply[] batch, int position) {
+        return bytes(batch[position]);
+      }
+    };
+  }
+
+  /**
+   * The fields of a hash and their values, with HSCAN.
+   */
+  public static Scan<Map.Entry<byte[], byte[]>> fields(final RedisClient client, final Object key, final Object... options) {
+    return new Scan<Map.Entry<byte[], byte[]>>(2) {
+      @Override
+      MultiBulkReply fetch(byte[] cursor) {
+        return client.hscan(key, cursor, options);
+      }
+
+      @Override
+      Map.Entry<byte[], byte[]> element(Reply[] batch, int position) {
+        return new AbstractMap.SimpleImmutableEntry<byte[], byte[]>(bytes(batch[position]), bytes(batch[position + 1]));
+      }
+    };
+  }
+
+  /**
+   * The members of a sorted set and their scores, with ZSCAN.
+   */
+  public static Scan<Map.Entry<byte[], Double>> scores(final RedisClient client, final Object key, final Object... options) {
+    return new Scan<Map.Entry<byte[], Double>>(2) {
+      @Override
+      MultiBulkReply fetch(byte[] cursor) {
+        return client.zscan(key, cursor, options);
+      }
+
+      @Override
+      Map.Entry<byte[], Double> element(Reply[] batch, int position) {
+        double score = Double.parseDouble(((BulkReply) batch[position + 1]).asAsciiString());
+        return new AbstractMap.SimpleImmutableEntry<byte[], Double>(bytes(batch[position]), score);
+      }
+    };
+  }
+
+  private static byte[] bytes(Reply reply) {
+    return ((BulkReply) reply).data();
+  }
+
+  /**
+   * The reply to the command at a cursor.
+   */
+  abstract MultiBulkReply fetch(byte[] cursor);
+
+  /**
+   * The element that starts at a position in a batch.
+   */
+  abstract T element(Reply[] batch, int position);
+
+  @Override
+  public Iterator<T> iterator() {
+    return new Iterator<T>() {
+      private byte[] cursor = START;
+      private Reply[] batch = new Reply[0];
+      private int position;
+      private boolean done;
+
+      @Override
+      public boolean hasNext() {
+        // A batch can come back empty when nothing in it matched
+        while (position == batch.length) {
+          if (done) {
+            return false;
+          }
+          Reply[] reply = fetch(cursor).data();
+          cursor = bytes(reply[0]);
+          done = cursor.length == 1 && cursor[0] == '0';
+          batch = ((MultiBulkReply) reply[1]).data();
+          position = 0;
+        }
+        return true;
+      }
+
+      @Override
+      public T next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        T element = element(batch, position);
+        position += width;
+        return element;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+}
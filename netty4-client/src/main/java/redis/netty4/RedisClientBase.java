@@ -6,9 +6,13 @@ import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioSocketChannel;
 import spullara.util.concurrent.Promise;
+import spullara.util.functions.Block;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
 
 /**
@@ -57,4 +61,58 @@ public class RedisClientBase {
     }
     return reply;
   }
+
+  /**
+   * Walk a SCAN, HSCAN, SSCAN or ZSCAN from the start, handing the elements
+   * of each batch to a block as they arrive, or pairs of them for HSCAN and
+   * ZSCAN. The next batch is only asked for once the block returns, so a
+   * large keyspace streams through instead of piling up. The promise is set
+   * once the scan is done, or fails with the first error.
+   *
+   * @param name    the command
+   * @param key     the key of the collection, or null for SCAN
+   * @param batches gets each batch of elements
+   * @param options passed on to every command, e.g. "MATCH", "user:*"
+   */
+  public Promise<Void> scan(String name, Object key, Block<Reply[]> batches, Object... options) {
+    Promise<Void> done = new Promise<>();
+    scan(name, key, batches, options, "0", done);
+    return done;
+  }
+
+  private void scan(final String name, final Object key, final Block<Reply[]> batches, final Object[] options,
+                    Object cursor, final Promise<Void> done) {
+    List<Object> arguments = new ArrayList<>();
+    if (key != null) {
+      arguments.add(key);
+    }
+    arguments.add(cursor);
+    Collections.addAll(arguments, options);
+    send(new Command(name, arguments.toArray())).onSuccess(new Block<Reply>() {
+      @Override
+      public void apply(Reply reply) {
+        if (reply instanceof ErrorReply) {
+          done.setException(new IllegalStateException(((ErrorReply) reply).data()));
+          return;
+        }
+        try {
+          Reply[] data = ((MultiBulkReply) reply).data();
+          String next = ((BulkReply) data[0]).asAsciiString();
+          batches.apply(((MultiBulkReply) data[1]).data());
+          if (next.equals("0")) {
+            done.set(null);
+          } else {
+            scan(name, key, batches, options, next, done);
+          }
+        } catch (RuntimeException e) {
+          done.setException(e);
+        }
+      }
+    }).onFailure(new Block<Throwable>() {
+      @Override
+      public void apply(Throwable throwable) {
+        done.setException(throwable);
+      }
+    });
+  }
 }
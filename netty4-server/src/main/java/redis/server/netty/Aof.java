@@ -0,0 +1,537 @@
+package redis.server.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import redis.netty4.Command;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The append only file. Shards append the write commands they execute, as
+ * RESP multibulks, to a shared buffer and a single writer thread writes the
+ * buffer out and syncs it as often as appendfsync says, so nothing executing
+ * commands ever waits on the disk. Whatever was appended while the writer was
+ * busy goes out in its next write and is covered by the same fsync. With
+ * appendfsync always it is the replies that wait for that fsync, see sync(),
+ * rather than the shards.
+ * <p/>
+ * Commands are logged as they are propagated, see Propagation, so that
+ * replaying the file later gives the same keyspace.
+ * <p/>
+ * A rewrite replaces the file with a snapshot of the keyspace, written as an
+ * RDB preamble the way redis does with aof-use-rdb-preamble, followed by the
+ * commands appended while the snapshot was being written.
+ */
+class Aof {
+  private static final int INITIAL = 1 << 16;
+  // Buffers that grew past this aren't kept for reuse
+  private static final int RETAINED = 1 << 22;
+  // How long the writer waits before trying again after a failed write
+  private static final long RETRY = 1000;
+  private static final long EVERYSEC = 1000;
+  // How often the writer looks for a finished rewrite snapshot
+  private static final long REWRITE_POLL = 10;
+
+  private final Config config;
+  private final File file;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition wake = lock.newCondition();
+
+  // Guarded by lock
+  private ByteBuf buffer = Unpooled.buffer(INITIAL);
+  private long appended;
+  private long acknowledged;
+  private final ArrayDeque<Waiter> waiters = new ArrayDeque<Waiter>();
+  private Snapshot rewrite;
+  private File rewriteFile;
+  private ByteBuf rewriteBuffer;
+  private boolean closed;
+
+  // Only touched by the writer thread
+  private FileChannel channel;
+  private ByteBuf batch = Unpooled.buffer(INITIAL);
+  private long batchEnd;
+  private long written;
+  private long fsynced;
+  private long lastFsync = System.currentTimeMillis();
+
+  private volatile long size;
+  private volatile String error;
+  private volatile boolean rewriting;
+  private volatile boolean rewriteFailed;
+  private final Thread writer;
+
+  /**
+   * Open the file for appending and start the writer.
+   */
+  Aof(Config config) throws IOException {
+    this.config = config;
+    file = config.aof();
+    channel = new FileOutputStream(file, true).getChannel();
+    size = channel.size();
+    writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        write();
+      }
+    }, "aof-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Log a command, see Propagation.
+   */
+  void append(Object[] objects) {
+    lock.lock();
+    try {
+      boolean empty = !buffer.isReadable();
+      int start = buffer.writerIndex();
+      try {
+        Command.writeDirect(buffer, null, null, null, null, objects);
+      } catch (IOException e) {
+        // Writing to a ByteBuf doesn't do any I/O
+        throw new IllegalStateException(e);
+      }
+      int length = buffer.writerIndex() - start;
+      if (rewriteBuffer != null) {
+        rewriteBuffer.writeBytes(buffer, start, length);
+      }
+      appended += length;
+      if (empty) {
+        wake.signal();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Run the callback once everything appended so far is as durable as
+   * appendfsync asks for. With always that is after the fsync covering it,
+   * which is how replies wait for the disk without holding up a shard.
+   * Otherwise it runs right away.
+   */
+  void sync(Runnable callback) {
+    if (config.appendfsync() == Config.Fsync.ALWAYS) {
+      lock.lock();
+      try {
+        if (acknowledged < appended && !closed) {
+          waiters.add(new Waiter(appended, callback));
+          return;
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+    callback.run();
+  }
+
+  /**
+   * Why the last write or fsync failed, or null if it didn't. Writes are
+   * refused until the writer succeeds again, like redis.
+   */
+  String error() {
+    return error;
+  }
+
+  /**
+   * Called while every shard is parked and the snapshot the rewrite is based
+   * on begins. Everything appended from here on is also kept for the end of
+   * the new file.
+   */
+  void beginRewrite(Snapshot snapshot, File temp) {
+    lock.lock();
+    try {
+      rewrite = snapshot;
+      rewriteFile = temp;
+      rewriteBuffer = Unpooled.buffer(INITIAL);
+      rewriting = true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  boolean isRewriting() {
+    return rewriting;
+  }
+
+  void info(StringBuilder sb) {
+    sb.append("aof_enabled:1\n");
+    sb.append("aof_rewrite_in_progress:").append(rewriting ? 1 : 0).append("\n");
+    sb.append("aof_last_bgrewrite_status:").append(rewriteFailed ? "err" : "ok").append("\n");
+    sb.append("aof_last_write_status:").append(error == null ? "ok" : "err").append("\n");
+    sb.append("aof_current_size:").append(size).append("\n");
+  }
+
+  /**
+   * Write out and sync everything appended so far and stop the writer.
+   */
+  void close() throws InterruptedException {
+    lock.lock();
+    try {
+      closed = true;
+      wake.signal();
+    } finally {
+      lock.unlock();
+    }
+    writer.join();
+  }
+
+  private void write() {
+    while (true) {
+      boolean last;
+      lock.lock();
+      try {
+        while (!closed && !batch.isReadable() && !buffer.isReadable() && !rewriteDone() && !syncDue()) {
+          try {
+            wake.await(rewrite == null ? EVERYSEC : REWRITE_POLL, TimeUnit.MILLISECONDS);
+          } catch (InterruptedException e) {
+            closed = true;
+          }
+        }
+        if (!batch.isReadable()) {
+          ByteBuf swap = batch;
+          batch = buffer;
+          buffer = swap;
+          batchEnd = appended;
+        }
+        last = closed && !buffer.isReadable();
+      } finally {
+        lock.unlock();
+      }
+      try {
+        if (batch.isReadable()) {
+          write(channel, batch);
+          written = batchEnd;
+          batch.clear();
+          if (batch.capacity() > RETAINED) {
+            batch.release();
+            batch = Unpooled.buffer(INITIAL);
+          }
+        }
+        Config.Fsync fsync = config.appendfsync();
+        long now = System.currentTimeMillis();
+        if (written > fsynced && (fsync == Config.Fsync.ALWAYS || last ||
+            (fsync == Config.Fsync.EVERYSEC && now - lastFsync >= EVERYSEC))) {
+          channel.force(false);
+          fsynced = written;
+          lastFsync = now;
+        }
+        size = channel.size();
+        error = null;
+        acknowledge(fsync == Config.Fsync.ALWAYS ? fsynced : written);
+        if (rewriteDone()) {
+          finishRewrite();
+        }
+      } catch (IOException e) {
+        error = e.getMessage() == null ? e.toString() : e.getMessage();
+        if (last) {
+          System.err.println("Failed writing the append only file: " + error);
+          break;
+        }
+        sleep(RETRY);
+        continue;
+      }
+      if (last) {
+        break;
+      }
+    }
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // Everything that could be written was
+    }
+    acknowledge(Long.MAX_VALUE);
+  }
+
+  private boolean syncDue() {
+    return written > fsynced && config.appendfsync() == Config.Fsync.EVERYSEC &&
+        System.currentTimeMillis() - lastFsync >= EVERYSEC;
+  }
+
+  private boolean rewriteDone() {
+    lock.lock();
+    try {
+      return rewrite != null && rewrite.isDone();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Release the replies waiting for what has been appended up to position.
+   */
+  private void acknowledge(long position) {
+    List<Runnable> callbacks = null;
+    lock.lock();
+    try {
+      acknowledged = Math.max(acknowledged, position);
+      while (!waiters.isEmpty() && waiters.peek().position <= acknowledged) {
+        if (callbacks == null) {
+          callbacks = new ArrayList<Runnable>();
+        }
+        callbacks.add(waiters.poll().callback);
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (callbacks != null) {
+      for (Runnable callback : callbacks) {
+        callback.run();
+      }
+    }
+  }
+
+  /**
+   * Append what was logged during the rewrite to its snapshot and switch to
+   * it. Most of that is written without holding up the shards, the rest while
+   * they wait to append, so nothing is logged to the old file alone.
+   */
+  private void finishRewrite() throws IOException {
+    File temp;
+    lock.lock();
+    try {
+      temp = rewriteFile;
+      try {
+        rewrite.get();
+      } catch (Exception e) {
+        System.err.println("Background append only file rewrite failed: " + e.getMessage());
+        abandonRewrite();
+        return;
+      }
+    } finally {
+      lock.unlock();
+    }
+    FileChannel next = null;
+    lock.lock();
+    try {
+      next = new FileOutputStream(temp, true).getChannel();
+      while (rewriteBuffer.readableBytes() >= INITIAL) {
+        ByteBuf tail = rewriteBuffer;
+        rewriteBuffer = Unpooled.buffer(INITIAL);
+        lock.unlock();
+        try {
+          write(next, tail);
+        } finally {
+          tail.release();
+          lock.lock();
+        }
+      }
+      write(next, rewriteBuffer);
+      next.force(false);
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      FileChannel old = channel;
+      channel = next;
+      next = null;
+      old.close();
+      // Everything still waiting for the old file is already in the new one
+      buffer.clear();
+      batch.clear();
+      written = fsynced = appended;
+      size = channel.size();
+      rewriteBuffer.release();
+      rewriteBuffer = null;
+      rewrite = null;
+      rewriting = false;
+      rewriteFailed = false;
+    } catch (IOException e) {
+      System.err.println("Background append only file rewrite failed: " + e.getMessage());
+      if (next != null) {
+        next.close();
+      }
+      temp.delete();
+      abandonRewrite();
+    } finally {
+      lock.unlock();
+    }
+    acknowledge(written);
+  }
+
+  // Called holding the lock
+  private void abandonRewrite() {
+    rewriteBuffer.release();
+    rewriteBuffer = null;
+    rewrite = null;
+    rewriting = false;
+    rewriteFailed = true;
+  }
+
+  private static void write(FileChannel channel, ByteBuf bytes) throws IOException {
+    ByteBuffer nio = bytes.nioBuffer();
+    int start = nio.position();
+    try {
+      while (nio.hasRemaining()) {
+        channel.write(nio);
+      }
+    } finally {
+      // A failed write is retried from where it stopped
+      bytes.skipBytes(nio.position() - start);
+    }
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static class Waiter {
+    final long position;
+    final Runnable callback;
+
+    Waiter(long position, Runnable callback) {
+      this.position = position;
+      this.callback = callback;
+    }
+  }
+
+  /**
+   * Reads the commands of an append only file back, starting after its RDB
+   * preamble if it has one. A command cut short at the end of the file, by a
+   * crash part way through a write, ends the file rather than failing it.
+   */
+  static class Reader implements Closeable {
+    private final InputStream in;
+    private long position;
+    // The end of the last complete command
+    private long valid;
+    private boolean truncated;
+
+    Reader(File file, long offset) throws IOException {
+      FileInputStream fis = new FileInputStream(file);
+      fis.getChannel().position(offset);
+      in = new BufferedInputStream(fis, INITIAL);
+      position = valid = offset;
+    }
+
+    /**
+     * The next command in the file, or null at the end of it.
+     */
+    Command next() throws IOException {
+      int first = in.read();
+      if (first == -1) {
+        return null;
+      }
+      position++;
+      try {
+        if (first != '*') {
+          throw badFormat();
+        }
+        long count = readNumber();
+        if (count < 1) {
+          throw badFormat();
+        }
+        Object[] objects = new Object[(int) count];
+        for (int i = 0; i < objects.length; i++) {
+          if (read() != '$') {
+            throw badFormat();
+          }
+          long length = readNumber();
+          if (length < 0) {
+            throw badFormat();
+          }
+          byte[] bytes = new byte[(int) length];
+          int read = 0;
+          while (read < bytes.length) {
+            int n = in.read(bytes, read, bytes.length - read);
+            if (n == -1) {
+              throw new EOFException();
+            }
+            read += n;
+          }
+          position += read;
+          if (read() != '\r' || read() != '\n') {
+            throw badFormat();
+          }
+          objects[i] = bytes;
+        }
+        valid = position;
+        return new Command(objects);
+      } catch (EOFException e) {
+        truncated = true;
+        return null;
+      }
+    }
+
+    /**
+     * Whether the file ended part way through a command.
+     */
+    boolean isTruncated() {
+      return truncated;
+    }
+
+    /**
+     * Where the last complete command ends.
+     */
+    long valid() {
+      return valid;
+    }
+
+    private long readNumber() throws IOException {
+      long number = 0;
+      int b;
+      while ((b = read()) != '\r') {
+        if (b < '0' || b > '9') {
+          throw badFormat();
+        }
+        number = number * 10 + b - '0';
+      }
+      if (read() != '\n') {
+        throw badFormat();
+      }
+      return number;
+    }
+
+    private int read() throws IOException {
+      int b = in.read();
+      if (b == -1) {
+        throw new EOFException();
+      }
+      position++;
+      return b;
+    }
+
+    private static IOException badFormat() {
+      return new IOException("Bad file format reading the append only file");
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  /**
+   * Cut a truncated file back to the end of its last complete command so
+   * that appending can continue from there.
+   */
+  static void truncate(File file, long length) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(length);
+    } finally {
+      raf.close();
+    }
+  }
+}
@@ -0,0 +1,210 @@
+package redis.server.netty;
+
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.util.concurrent.Promise;
+import redis.netty4.BulkReply;
+import redis.netty4.Command;
+import redis.netty4.ErrorReply;
+import redis.netty4.MultiBulkReply;
+import redis.netty4.Reply;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Clients waiting in BLPOP, BRPOP or BRPOPLPUSH for a list to get an element.
+ * A waiting client is a Waiter queued on each of its keys in the keyspace that
+ * owns the key, see SimpleRedisServer._serve(), and a timeout on a hashed
+ * wheel timer shared by every waiting client. Nothing else is kept for it and
+ * no thread waits on its behalf. Whichever comes first, an element pushed to
+ * one of its keys or the timeout, claims the waiter and completes its reply,
+ * which the command handler then writes to the client.
+ */
+class Blocking {
+  // Resolution of the timeouts
+  private static final long TICK = 10;
+  private static final byte[] LPUSH = "LPUSH".getBytes();
+  private static final byte[] RPUSH = "RPUSH".getBytes();
+
+  private final ShardedEngine engine;
+  private final HashedWheelTimer timer = new HashedWheelTimer(
+      new DefaultThreadFactory("blocking-timer", true), TICK, TimeUnit.MILLISECONDS);
+
+  Blocking(ShardedEngine engine) {
+    this.engine = engine;
+  }
+
+  /**
+   * Whether a blocking command found nothing to pop.
+   */
+  static boolean isEmpty(Reply reply) {
+    return reply == MultiBulkReply.NIL_REPLY || reply == BulkReply.NIL_REPLY;
+  }
+
+  /**
+   * Block the client that sent a blocking command after finding nothing to
+   * pop. Must be called on the thread that executed the command, while every
+   * shard owning one of its keys is either that thread or parked, so that
+   * nothing can be pushed between the failed pop and the waiter being queued.
+   */
+  Waiter block(int id, Command command) {
+    Object[] objects = command.getObjects();
+    Waiter waiter;
+    long timeout;
+    try {
+      if (id == RedisServerDispatcher.BRPOPLPUSH) {
+        waiter = new Waiter(id, new byte[][]{(byte[]) objects[1]}, (byte[]) objects[2]);
+        timeout = SimpleRedisServer._timeout((byte[]) objects[3]);
+      } else {
+        byte[][] keys = new byte[objects.length - 2][];
+        for (int i = 0; i < keys.length; i++) {
+          keys[i] = (byte[]) objects[i + 1];
+        }
+        waiter = new Waiter(id, keys, null);
+        timeout = SimpleRedisServer._timeout((byte[]) objects[objects.length - 1]);
+      }
+    } catch (RedisException e) {
+      // The command already checked its timeout
+      throw new IllegalArgumentException(e);
+    }
+    for (byte[] key : waiter.keys) {
+      engine.owner(key)._block(key, waiter);
+    }
+    if (timeout > 0) {
+      final Waiter timed = waiter;
+      waiter.timeout = timer.newTimeout(new TimerTask() {
+        @Override
+        public void run(Timeout timeout) throws Exception {
+          if (timed.claim()) {
+            release(timed);
+            timed.promise.setSuccess(MultiBulkReply.NIL_REPLY);
+          }
+        }
+      }, timeout, TimeUnit.MILLISECONDS);
+    }
+    return waiter;
+  }
+
+  /**
+   * Hand an element popped from key to a waiter that has been claimed by
+   * the keyspace that popped it.
+   */
+  void serve(final Waiter waiter, SimpleRedisServer server, final byte[] key, final byte[] value) {
+    release(waiter);
+    if (waiter.destination == null) {
+      waiter.promise.setSuccess(new MultiBulkReply(new Reply[]{new BulkReply(key), new BulkReply(value)}));
+      return;
+    }
+    // The push is an ordinary command on the shard that owns the destination
+    // so it is logged, and can serve other waiters, like any other
+    final Shard target = engine.shard(engine.shardOf(waiter.destination));
+    Command push = new Command(new Object[]{LPUSH, waiter.destination, value});
+    if (target.simple == server) {
+      pushed(waiter, key, value, target.execute(push));
+    } else {
+      target.submit(push).addListener(new GenericFutureListener<Future<Reply>>() {
+        @Override
+        public void operationComplete(Future<Reply> future) throws Exception {
+          pushed(waiter, key, value, future.isSuccess() ? future.getNow() : new ErrorReply("ERR " + future.cause()));
+        }
+      });
+    }
+  }
+
+  private void pushed(Waiter waiter, byte[] source, byte[] value, Reply reply) {
+    if (reply instanceof ErrorReply) {
+      // The destination isn't a list, so the element goes back where it was
+      Shard shard = engine.shard(engine.shardOf(source));
+      shard.submit(new Command(new Object[]{RPUSH, source, value}));
+      waiter.promise.setSuccess(reply);
+    } else {
+      waiter.promise.setSuccess(new BulkReply(value));
+    }
+  }
+
+  /**
+   * Stop waiting for a client that has gone away.
+   */
+  void cancel(Waiter waiter) {
+    if (waiter.claim()) {
+      release(waiter);
+    }
+  }
+
+  /**
+   * Remove a claimed waiter from the queues of its keys.
+   */
+  private void release(final Waiter waiter) {
+    if (waiter.timeout != null) {
+      waiter.timeout.cancel();
+    }
+    for (final byte[] key : waiter.keys) {
+      final Shard shard = engine.shard(engine.shardOf(key));
+      shard.executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          shard.simple._unblock(key, waiter);
+        }
+      });
+    }
+  }
+
+  void shutdown() {
+    timer.stop();
+  }
+
+  /**
+   * A client blocked on some keys. It stands in for the reply of its command
+   * until the reply is known.
+   */
+  static class Waiter implements Reply<Future<Reply>> {
+    final int id;
+    // The keys it waits on, in the order they are tried
+    final byte[][] keys;
+    // Where BRPOPLPUSH pushes the element it pops
+    final byte[] destination;
+    private final Promise<Reply> promise = ImmediateEventExecutor.INSTANCE.newPromise();
+    private final AtomicBoolean claimed = new AtomicBoolean();
+    private volatile Timeout timeout;
+
+    Waiter(int id, byte[][] keys, byte[] destination) {
+      this.id = id;
+      this.keys = keys;
+      this.destination = destination;
+    }
+
+    /**
+     * Whether elements are popped from the head of the list.
+     */
+    boolean left() {
+      return id == RedisServerDispatcher.BLPOP;
+    }
+
+    /**
+     * Only the first of its keys to get an element, its timeout or its
+     * client going away gets to claim it.
+     */
+    boolean claim() {
+      return claimed.compareAndSet(false, true);
+    }
+
+    /**
+     * Completes with the reply once the client is served or times out.
+     */
+    @Override
+    public Future<Reply> data() {
+      return promise;
+    }
+
+    @Override
+    public void write(io.netty.buffer.ByteBuf os) {
+      throw new UnsupportedOperationException("A blocked client has no reply yet");
+    }
+  }
+}
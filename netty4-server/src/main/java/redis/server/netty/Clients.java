@@ -0,0 +1,61 @@
+package redis.server.netty;
+
+import io.netty.channel.Channel;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Every connection to the server, for CLIENT LIST and CLIENT KILL. A
+ * connection is only added and removed here as it comes and goes, everything
+ * it counts while it is open is kept in fields of its own, see Connection.
+ */
+class Clients {
+  private final AtomicLong ids = new AtomicLong();
+  private final ConcurrentMap<Long, Connection> connections = new ConcurrentHashMap<Long, Connection>();
+
+  /**
+   * A new connection with the next id.
+   */
+  Connection connect(Channel channel, int home) {
+    Connection connection = new Connection(ids.incrementAndGet(), channel, home);
+    connections.put(connection.id, connection);
+    return connection;
+  }
+
+  void disconnect(Connection connection) {
+    connections.remove(connection.id);
+  }
+
+  /**
+   * The connections that are open, oldest first.
+   */
+  List<Connection> list() {
+    List<Connection> list = new ArrayList<Connection>(connections.values());
+    Collections.sort(list, new Comparator<Connection>() {
+      @Override
+      public int compare(Connection o1, Connection o2) {
+        return o1.id < o2.id ? -1 : o1.id == o2.id ? 0 : 1;
+      }
+    });
+    return list;
+  }
+
+  /**
+   * An address as CLIENT LIST shows it, ip:port.
+   */
+  static String address(SocketAddress address) {
+    if (address instanceof InetSocketAddress) {
+      InetSocketAddress inet = (InetSocketAddress) address;
+      return (inet.getAddress() == null ? inet.getHostString() : inet.getAddress().getHostAddress()) + ":" + inet.getPort();
+    }
+    return address == null ? "" : address.toString();
+  }
+}
@@ -0,0 +1,194 @@
+package redis.server.netty;
+
+import redis.netty4.Command;
+
+import static redis.util.Encoding.bytesToNum;
+
+/**
+ * Where the keys of a command live in its arguments and how the command has
+ * to be scheduled across keyspace shards. Positions count the command name as
+ * argument 0, the same way the command arrives on the wire.
+ */
+class CommandSpec {
+  // Modifies the keyspace
+  static final int WRITE = 1;
+  // Has to see every shard, e.g. KEYS or DBSIZE
+  static final int BROADCAST = 2;
+  // The argument at 'first' is the number of keys that follow it
+  static final int NUMKEYS = 4;
+  // May grow the keyspace, so it is refused when memory can't be freed
+  static final int DENYOOM = 8;
+  // Run by the engine for every shard at once rather than by a keyspace
+  static final int ENGINE = 16;
+  // May leave the client waiting for its reply until a key gets an element
+  static final int BLOCKING = 32;
+  // Goes to the shard named by the SCAN cursor that is its first argument
+  static final int CURSOR = 64;
+
+  private static final byte[][] NO_KEYS = new byte[0][];
+  // Indexed by RedisServerDispatcher command
+  private static final CommandSpec[] specs = new CommandSpec[RedisServerDispatcher.COMMANDS];
+
+  // Anything not in the table is treated as a single key command whose key,
+  // if it has one, is the first argument.
+  static final CommandSpec DEFAULT = new CommandSpec(0, 1, 1, 1);
+  // Commands the dispatcher doesn't know have no keys
+  static final CommandSpec KEYLESS = new CommandSpec(0, 0, 0, 0);
+
+  static {
+    keyless("ping", "echo", "quit", "select", "time", "publish", "config", "client",
+            "slowlog", "monitor", "sync", "shutdown", "script",
+            "unwatch");
+    spec(ENGINE, 0, 0, 0, "save", "bgsave", "lastsave", "bgrewriteaof", "slaveof");
+    spec(BROADCAST, 0, 0, 0, "dbsize", "keys", "randomkey", "info");
+    spec(CURSOR, 0, 0, 0, "scan");
+    spec(BROADCAST | WRITE, 0, 0, 0, "flushall", "flushdb");
+
+    spec(WRITE, 1, 1, 1, "append", "decr", "decrby", "getset", "incr", "incrby", "incrbyfloat",
+            "psetex", "set", "setbit", "setex", "setnx", "setrange", "linsert", "lpop", "lpush",
+            "lpushx", "lrem", "lset", "ltrim", "rpop", "rpush", "rpushx", "expire", "expireat",
+            "move", "persist", "pexpire", "pexpireat", "restore", "sort", "hdel", "hincrby",
+            "hincrbyfloat", "hmset", "hset", "hsetnx", "sadd", "spop", "srem", "zadd", "zincrby",
+            "zrem", "zremrangebyrank", "zremrangebyscore");
+
+    // Multiple key commands
+    spec(0, 1, -1, 1, "mget", "exists", "sdiff", "sinter", "sunion", "watch");
+    spec(WRITE, 1, -1, 1, "del", "sdiffstore", "sinterstore", "sunionstore");
+    spec(WRITE, 1, -1, 2, "mset", "msetnx");
+    spec(WRITE, 1, 2, 1, "rename", "renamenx", "rpoplpush", "smove", "brpoplpush");
+    spec(WRITE, 1, -2, 1, "blpop", "brpop");
+    spec(WRITE, 2, -1, 1, "bitop");
+    spec(0, 2, 2, 1, "object", "debug");
+    spec(WRITE, 3, 3, 1, "migrate");
+    spec(WRITE | NUMKEYS, 2, 1, 1, "zunionstore", "zinterstore");
+    spec(NUMKEYS, 2, 0, 1, "eval", "evalsha");
+
+    flag(DENYOOM, "append", "bitop", "brpoplpush", "decr", "decrby", "getset", "hincrby",
+            "hincrbyfloat", "hmset", "hset", "hsetnx", "incr", "incrby", "incrbyfloat",
+            "linsert", "lpush", "lpushx", "lset", "mset", "msetnx", "psetex", "restore",
+            "rpoplpush", "rpush", "rpushx", "sadd", "sdiffstore", "set", "setbit", "setex",
+            "setnx", "setrange", "sinterstore", "sort", "sunionstore", "zadd", "zincrby",
+            "zinterstore", "zunionstore");
+    flag(BLOCKING, "blpop", "brpop", "brpoplpush");
+  }
+
+  private static void keyless(String... names) {
+    register(KEYLESS, names);
+  }
+
+  private static void spec(int flags, int first, int last, int step, String... names) {
+    register(new CommandSpec(flags, first, last, step), names);
+  }
+
+  private static void flag(int flag, String... names) {
+    for (String name : names) {
+      for (int command = 0; command < specs.length; command++) {
+        CommandSpec spec = specs[command];
+        if (spec != null && new String(RedisServerDispatcher.name(command)).equalsIgnoreCase(name)) {
+          specs[command] = new CommandSpec(spec.flags | flag, spec.first, spec.last, spec.step);
+        }
+      }
+    }
+  }
+
+  /**
+   * Names without a subcommand so that, for example, "config" covers both
+   * CONFIG GET and CONFIG SET.
+   */
+  private static void register(CommandSpec spec, String... names) {
+    for (String name : names) {
+      for (int command = 0; command < specs.length; command++) {
+        if (new String(RedisServerDispatcher.name(command)).equalsIgnoreCase(name)) {
+          specs[command] = spec;
+        }
+      }
+    }
+  }
+
+  /**
+   * Finds the spec for a RedisServerDispatcher command.
+   */
+  static CommandSpec lookup(int command) {
+    if (command == RedisServerDispatcher.UNKNOWN) {
+      return KEYLESS;
+    }
+    CommandSpec spec = specs[command];
+    return spec == null ? DEFAULT : spec;
+  }
+
+  final int flags;
+  // First key position, 0 if there are no keys
+  final int first;
+  // Last key position, negative values count back from the end. For NUMKEYS
+  // commands this is the fixed number of keys that precede the numkeys argument.
+  final int last;
+  final int step;
+
+  CommandSpec(int flags, int first, int last, int step) {
+    this.flags = flags;
+    this.first = first;
+    this.last = last;
+    this.step = step;
+  }
+
+  boolean isWrite() {
+    return (flags & WRITE) != 0;
+  }
+
+  boolean isBroadcast() {
+    return (flags & BROADCAST) != 0;
+  }
+
+  boolean isEngine() {
+    return (flags & ENGINE) != 0;
+  }
+
+  boolean isDenyOom() {
+    return (flags & DENYOOM) != 0;
+  }
+
+  boolean isBlocking() {
+    return (flags & BLOCKING) != 0;
+  }
+
+  boolean isCursor() {
+    return (flags & CURSOR) != 0;
+  }
+
+  /**
+   * Extract the keys of a command.
+   */
+  byte[][] keys(Command command) {
+    Object[] objects = command.getObjects();
+    if (first == 0 || objects == null || objects.length <= first) {
+      return NO_KEYS;
+    }
+    int length = objects.length;
+    if ((flags & NUMKEYS) != 0) {
+      int numkeys;
+      try {
+        numkeys = (int) bytesToNum((byte[]) objects[first]);
+      } catch (IllegalArgumentException e) {
+        numkeys = 0;
+      }
+      numkeys = Math.max(0, Math.min(numkeys, length - first - 1));
+      byte[][] keys = new byte[last + numkeys][];
+      for (int i = 0; i < last; i++) {
+        keys[i] = (byte[]) objects[first - last + i];
+      }
+      for (int i = 0; i < numkeys; i++) {
+        keys[last + i] = (byte[]) objects[first + 1 + i];
+      }
+      return keys;
+    }
+    int end = last < 0 ? length + last : Math.min(last, length - 1);
+    if (end < first) {
+      return NO_KEYS;
+    }
+    byte[][] keys = new byte[(end - first) / step + 1][];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = (byte[]) objects[first + i * step];
+    }
+    return keys;
+  }
+}
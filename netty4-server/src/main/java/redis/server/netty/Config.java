@@ -0,0 +1,552 @@
+package redis.server.netty;
+
+import redis.netty4.BulkReply;
+import redis.netty4.MultiBulkReply;
+import redis.netty4.Reply;
+import redis.util.Glob;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Settings shared by every shard of a server. CONFIG GET and CONFIG SET read
+ * and change them while the server runs, from whichever shard the command
+ * happens to execute on, so every field is volatile.
+ */
+public class Config {
+
+  /**
+   * What to do when a write would take the keyspace over maxmemory.
+   */
+  public enum Policy {
+    NOEVICTION, ALLKEYS_LRU, ALLKEYS_LFU, VOLATILE_TTL;
+
+    @Override
+    public String toString() {
+      return name().toLowerCase().replace('_', '-');
+    }
+
+    static Policy parse(String value) throws RedisException {
+      for (Policy policy : values()) {
+        if (policy.toString().equalsIgnoreCase(value)) {
+          return policy;
+        }
+      }
+      throw new RedisException("Invalid argument '" + value + "' for CONFIG SET 'maxmemory-policy'");
+    }
+  }
+
+  /**
+   * How often the append only file is synced to disk.
+   */
+  public enum Fsync {
+    ALWAYS, EVERYSEC, NO;
+
+    @Override
+    public String toString() {
+      return name().toLowerCase();
+    }
+
+    static Fsync parse(String value) throws RedisException {
+      for (Fsync fsync : values()) {
+        if (fsync.toString().equalsIgnoreCase(value)) {
+          return fsync;
+        }
+      }
+      throw new RedisException("Invalid argument '" + value + "' for CONFIG SET 'appendfsync'");
+    }
+  }
+
+  /**
+   * Kinds of client that each get their own output buffer limit.
+   */
+  public enum ClientClass {
+    NORMAL, REPLICA, PUBSUB;
+
+    @Override
+    public String toString() {
+      // What CONFIG GET calls them, like redis
+      return this == REPLICA ? "slave" : name().toLowerCase();
+    }
+
+    static ClientClass parse(String value) throws RedisException {
+      if (value.equalsIgnoreCase("replica")) {
+        return REPLICA;
+      }
+      for (ClientClass clientClass : values()) {
+        if (clientClass.toString().equalsIgnoreCase(value)) {
+          return clientClass;
+        }
+      }
+      throw new RedisException("Invalid client class specified in buffer limit configuration.");
+    }
+  }
+
+  /**
+   * How much output may be queued for a client. Past the hard limit it is
+   * disconnected straight away, and past the soft limit for longer than the
+   * soft seconds too. A limit of 0 is no limit.
+   */
+  public static final class OutputLimit {
+    final long hard;
+    final long soft;
+    final long seconds;
+
+    OutputLimit(long hard, long soft, long seconds) {
+      this.hard = hard;
+      this.soft = soft;
+      this.seconds = seconds;
+    }
+
+    /**
+     * Whether a client with this many bytes waiting to be sent has to be
+     * disconnected. The Overage is the client's own and remembers when it
+     * went over the soft limit.
+     */
+    boolean exceeded(long total, Overage overage) {
+      if (hard > 0 && total > hard) {
+        return true;
+      }
+      if (soft > 0 && total > soft) {
+        long now = System.currentTimeMillis();
+        if (overage.since == 0) {
+          overage.since = now;
+        }
+        return now - overage.since > seconds * 1000;
+      }
+      overage.since = 0;
+      return false;
+    }
+
+    @Override
+    public String toString() {
+      return hard + " " + soft + " " + seconds;
+    }
+  }
+
+  /**
+   * When a client went over the soft limit of its output buffer, or 0 while
+   * it is under it. Only touched by whatever writes to the client.
+   */
+  static final class Overage {
+    long since;
+  }
+
+  private static final String[] NAMES = {
+      "maxmemory", "maxmemory-policy", "maxmemory-samples", "lfu-log-factor", "lfu-decay-time",
+      "dir", "dbfilename", "appendonly", "appendfsync", "appendfilename",
+      "hash-max-listpack-entries", "hash-max-listpack-value", "set-max-intset-entries",
+      "set-max-listpack-entries", "set-max-listpack-value", "zset-max-listpack-entries",
+      "zset-max-listpack-value", "client-output-buffer-limit", "repl-backlog-size", "replica-read-only", "port",
+      "tcp-backlog", "slowlog-log-slower-than", "slowlog-max-len", "latency-tracking-info-percentiles"
+  };
+
+  private volatile long maxmemory;
+  private volatile Policy policy = Policy.NOEVICTION;
+  private volatile int samples = 5;
+  private volatile int lfuLogFactor = 10;
+  private volatile int lfuDecayTime = 1;
+  private volatile File dir = new File(System.getProperty("user.dir"));
+  private volatile String dbfilename = "dump.rdb";
+  private volatile boolean appendonly;
+  private volatile Fsync appendfsync = Fsync.EVERYSEC;
+  private volatile String appendfilename = "appendonly.aof";
+  // Collections past these stop being packed. Changes apply to collections
+  // created afterwards.
+  private volatile int hashMaxListpackEntries = 128;
+  private volatile int hashMaxListpackValue = 64;
+  private volatile int setMaxIntsetEntries = 512;
+  private volatile int setMaxListpackEntries = 128;
+  private volatile int setMaxListpackValue = 64;
+  private volatile int zsetMaxListpackEntries = 128;
+  private volatile int zsetMaxListpackValue = 64;
+  // Indexed by ClientClass
+  private volatile OutputLimit[] outputLimits = {
+      new OutputLimit(0, 0, 0), new OutputLimit(256 << 20, 64 << 20, 60), new OutputLimit(32 << 20, 8 << 20, 60)
+  };
+  private volatile long replBacklogSize = 1 << 20;
+  private volatile boolean replicaReadOnly = true;
+  // In microseconds, negative to log nothing
+  private volatile long slowlogLogSlowerThan = 10000;
+  private volatile int slowlogMaxLen = 128;
+  private volatile double[] latencyTrackingInfoPercentiles = {50, 99, 99.9};
+  // Set by Main, for replicas to tell their master where they listen
+  private volatile int port = 6379;
+  // Set by Main, how many connections may wait to be accepted
+  private volatile int tcpBacklog = 511;
+  // Each shard gets an equal part of maxmemory
+  private volatile int shards = 1;
+
+  void setShards(int shards) {
+    this.shards = shards;
+  }
+
+  /**
+   * The most memory one shard may use, 0 for no limit.
+   */
+  long limit() {
+    long maxmemory = this.maxmemory;
+    return maxmemory == 0 ? 0 : Math.max(1, maxmemory / shards);
+  }
+
+  long maxmemory() {
+    return maxmemory;
+  }
+
+  Policy policy() {
+    return policy;
+  }
+
+  int samples() {
+    return samples;
+  }
+
+  int lfuLogFactor() {
+    return lfuLogFactor;
+  }
+
+  int lfuDecayTime() {
+    return lfuDecayTime;
+  }
+
+  /**
+   * Where snapshots are saved and loaded from.
+   */
+  File rdb() {
+    return new File(dir, dbfilename);
+  }
+
+  /**
+   * Whether writes are logged to the append only file. Only read when the
+   * server starts.
+   */
+  boolean appendonly() {
+    return appendonly;
+  }
+
+  void appendonly(boolean appendonly) {
+    this.appendonly = appendonly;
+  }
+
+  Fsync appendfsync() {
+    return appendfsync;
+  }
+
+  /**
+   * Where writes are logged and the log is replayed from.
+   */
+  File aof() {
+    return new File(dir, appendfilename);
+  }
+
+  int hashMaxListpackEntries() {
+    return hashMaxListpackEntries;
+  }
+
+  int hashMaxListpackValue() {
+    return hashMaxListpackValue;
+  }
+
+  int setMaxIntsetEntries() {
+    return setMaxIntsetEntries;
+  }
+
+  int setMaxListpackEntries() {
+    return setMaxListpackEntries;
+  }
+
+  int setMaxListpackValue() {
+    return setMaxListpackValue;
+  }
+
+  int zsetMaxListpackEntries() {
+    return zsetMaxListpackEntries;
+  }
+
+  int zsetMaxListpackValue() {
+    return zsetMaxListpackValue;
+  }
+
+  OutputLimit outputLimit(ClientClass clientClass) {
+    return outputLimits[clientClass.ordinal()];
+  }
+
+  /**
+   * How much of the replication stream is kept for replicas that reconnect.
+   * Changes apply once the backlog is next created.
+   */
+  long replBacklogSize() {
+    return replBacklogSize;
+  }
+
+  /**
+   * Whether a replica refuses writes from its clients.
+   */
+  boolean replicaReadOnly() {
+    return replicaReadOnly;
+  }
+
+  /**
+   * Commands that take at least this many microseconds go in the slow log.
+   */
+  long slowlogLogSlowerThan() {
+    return slowlogLogSlowerThan;
+  }
+
+  int slowlogMaxLen() {
+    return slowlogMaxLen;
+  }
+
+  /**
+   * The percentiles INFO latencystats reports for each command.
+   */
+  double[] latencyTrackingInfoPercentiles() {
+    return latencyTrackingInfoPercentiles;
+  }
+
+  int port() {
+    return port;
+  }
+
+  void port(int port) {
+    this.port = port;
+  }
+
+  int tcpBacklog() {
+    return tcpBacklog;
+  }
+
+  void tcpBacklog(int tcpBacklog) {
+    this.tcpBacklog = tcpBacklog;
+  }
+
+  /**
+   * The parameters matching a glob pattern and their values, as CONFIG GET
+   * returns them.
+   */
+  public MultiBulkReply get(byte[] pattern) {
+    List<Reply> replies = new ArrayList<Reply>();
+    Glob glob = Glob.compile(pattern);
+    for (String name : NAMES) {
+      if (glob.matches(name.getBytes())) {
+        replies.add(new BulkReply(name.getBytes()));
+        replies.add(new BulkReply(value(name).getBytes()));
+      }
+    }
+    return new MultiBulkReply(replies.toArray(new Reply[replies.size()]));
+  }
+
+  private String value(String name) {
+    if (name.equals("maxmemory")) return String.valueOf(maxmemory);
+    if (name.equals("maxmemory-policy")) return policy.toString();
+    if (name.equals("maxmemory-samples")) return String.valueOf(samples);
+    if (name.equals("lfu-log-factor")) return String.valueOf(lfuLogFactor);
+    if (name.equals("dir")) return dir.getPath();
+    if (name.equals("dbfilename")) return dbfilename;
+    if (name.equals("appendonly")) return appendonly ? "yes" : "no";
+    if (name.equals("appendfsync")) return appendfsync.toString();
+    if (name.equals("appendfilename")) return appendfilename;
+    if (name.equals("hash-max-listpack-entries")) return String.valueOf(hashMaxListpackEntries);
+    if (name.equals("hash-max-listpack-value")) return String.valueOf(hashMaxListpackValue);
+    if (name.equals("set-max-intset-entries")) return String.valueOf(setMaxIntsetEntries);
+    if (name.equals("set-max-listpack-entries")) return String.valueOf(setMaxListpackEntries);
+    if (name.equals("set-max-listpack-value")) return String.valueOf(setMaxListpackValue);
+    if (name.equals("zset-max-listpack-entries")) return String.valueOf(zsetMaxListpackEntries);
+    if (name.equals("zset-max-listpack-value")) return String.valueOf(zsetMaxListpackValue);
+    if (name.equals("repl-backlog-size")) return String.valueOf(replBacklogSize);
+    if (name.equals("replica-read-only")) return replicaReadOnly ? "yes" : "no";
+    if (name.equals("port")) return String.valueOf(port);
+    if (name.equals("tcp-backlog")) return String.valueOf(tcpBacklog);
+    if (name.equals("slowlog-log-slower-than")) return String.valueOf(slowlogLogSlowerThan);
+    if (name.equals("slowlog-max-len")) return String.valueOf(slowlogMaxLen);
+    if (name.equals("latency-tracking-info-percentiles")) {
+      StringBuilder sb = new StringBuilder();
+      for (double percentile : latencyTrackingInfoPercentiles) {
+        sb.append(sb.length() == 0 ? "" : " ").append(format(percentile));
+      }
+      return sb.toString();
+    }
+    if (name.equals("client-output-buffer-limit")) {
+      StringBuilder sb = new StringBuilder();
+      for (ClientClass clientClass : ClientClass.values()) {
+        sb.append(sb.length() == 0 ? "" : " ").append(clientClass).append(" ").append(outputLimit(clientClass));
+      }
+      return sb.toString();
+    }
+    return String.valueOf(lfuDecayTime);
+  }
+
+  public void set(String name, String value) throws RedisException {
+    name = name.toLowerCase();
+    if (name.equals("maxmemory")) {
+      maxmemory = parseMemory(value);
+    } else if (name.equals("maxmemory-policy")) {
+      policy = Policy.parse(value);
+    } else if (name.equals("maxmemory-samples")) {
+      samples = parseInt(name, value, 1);
+    } else if (name.equals("lfu-log-factor")) {
+      lfuLogFactor = parseInt(name, value, 0);
+    } else if (name.equals("lfu-decay-time")) {
+      lfuDecayTime = parseInt(name, value, 0);
+    } else if (name.equals("dir")) {
+      File file = new File(value).getAbsoluteFile();
+      if (!file.isDirectory()) {
+        throw new RedisException("Invalid argument '" + value + "' for CONFIG SET 'dir'");
+      }
+      dir = file;
+    } else if (name.equals("dbfilename")) {
+      dbfilename = parseFilename(name, value);
+    } else if (name.equals("appendfsync")) {
+      appendfsync = Fsync.parse(value);
+    } else if (name.equals("appendfilename")) {
+      appendfilename = parseFilename(name, value);
+    } else if (name.equals("hash-max-listpack-entries")) {
+      hashMaxListpackEntries = parseInt(name, value, 0);
+    } else if (name.equals("hash-max-listpack-value")) {
+      hashMaxListpackValue = parseInt(name, value, 0);
+    } else if (name.equals("set-max-intset-entries")) {
+      setMaxIntsetEntries = parseInt(name, value, 0);
+    } else if (name.equals("set-max-listpack-entries")) {
+      setMaxListpackEntries = parseInt(name, value, 0);
+    } else if (name.equals("set-max-listpack-value")) {
+      setMaxListpackValue = parseInt(name, value, 0);
+    } else if (name.equals("zset-max-listpack-entries")) {
+      zsetMaxListpackEntries = parseInt(name, value, 0);
+    } else if (name.equals("zset-max-listpack-value")) {
+      zsetMaxListpackValue = parseInt(name, value, 0);
+    } else if (name.equals("client-output-buffer-limit")) {
+      outputLimits = parseOutputLimits(value);
+    } else if (name.equals("repl-backlog-size")) {
+      long size = parseMemory(value);
+      if (size < 1 || size > Integer.MAX_VALUE) {
+        throw new RedisException("Invalid argument '" + value + "' for CONFIG SET 'repl-backlog-size'");
+      }
+      replBacklogSize = size;
+    } else if (name.equals("replica-read-only") || name.equals("slave-read-only")) {
+      if (!value.equalsIgnoreCase("yes") && !value.equalsIgnoreCase("no")) {
+        throw new RedisException("Invalid argument '" + value + "' for CONFIG SET '" + name + "'");
+      }
+      replicaReadOnly = value.equalsIgnoreCase("yes");
+    } else if (name.equals("slowlog-log-slower-than")) {
+      try {
+        slowlogLogSlowerThan = Long.parseLong(value);
+      } catch (NumberFormatException e) {
+        throw new RedisException("Invalid argument '" + value + "' for CONFIG SET '" + name + "'");
+      }
+    } else if (name.equals("slowlog-max-len")) {
+      slowlogMaxLen = parseInt(name, value, 0);
+    } else if (name.equals("latency-tracking-info-percentiles")) {
+      latencyTrackingInfoPercentiles = parsePercentiles(name, value);
+    } else if (name.equals("port")) {
+      throw new RedisException("CONFIG SET 'port' is only supported at startup");
+    } else if (name.equals("tcp-backlog")) {
+      throw new RedisException("CONFIG SET 'tcp-backlog' is only supported at startup");
+    } else if (name.equals("appendonly")) {
+      // The log has to be opened, or rewritten, by the engine
+      throw new RedisException("CONFIG SET 'appendonly' is only supported at startup");
+    } else {
+      throw new RedisException("Unsupported CONFIG parameter: " + name);
+    }
+  }
+
+  /**
+   * Limits for one or more client classes, each as its class, hard limit,
+   * soft limit and soft seconds. Classes that aren't mentioned keep theirs.
+   */
+  private OutputLimit[] parseOutputLimits(String value) throws RedisException {
+    String[] parts = value.trim().split("\\s+");
+    if (parts.length % 4 != 0) {
+      throw new RedisException("Wrong number of arguments in buffer limit configuration.");
+    }
+    OutputLimit[] limits = outputLimits.clone();
+    for (int i = 0; i < parts.length; i += 4) {
+      ClientClass clientClass = ClientClass.parse(parts[i]);
+      try {
+        long seconds = Long.parseLong(parts[i + 3]);
+        if (seconds >= 0) {
+          limits[clientClass.ordinal()] = new OutputLimit(parseMemory(parts[i + 1]), parseMemory(parts[i + 2]), seconds);
+          continue;
+        }
+      } catch (NumberFormatException e) {
+        // Fall through
+      } catch (RedisException e) {
+        // Fall through
+      }
+      throw new RedisException("Invalid argument '" + value + "' for CONFIG SET 'client-output-buffer-limit'");
+    }
+    return limits;
+  }
+
+  private static double[] parsePercentiles(String name, String value) throws RedisException {
+    String trimmed = value.trim();
+    String[] parts = trimmed.isEmpty() ? new String[0] : trimmed.split("\\s+");
+    double[] percentiles = new double[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      try {
+        percentiles[i] = Double.parseDouble(parts[i]);
+        if (percentiles[i] >= 0 && percentiles[i] <= 100) {
+          continue;
+        }
+      } catch (NumberFormatException e) {
+        // Fall through
+      }
+      throw new RedisException("Invalid argument '" + value + "' for CONFIG SET '" + name + "'");
+    }
+    return percentiles;
+  }
+
+  /**
+   * A percentile the way it was written, 50 rather than 50.0.
+   */
+  static String format(double percentile) {
+    return BigDecimal.valueOf(percentile).stripTrailingZeros().toPlainString();
+  }
+
+  private static String parseFilename(String name, String value) throws RedisException {
+    if (value.isEmpty() || value.indexOf('/') != -1 || value.indexOf(File.separatorChar) != -1) {
+      throw new RedisException("Invalid argument '" + value + "' for CONFIG SET '" + name + "'");
+    }
+    return value;
+  }
+
+  private static int parseInt(String name, String value, int min) throws RedisException {
+    try {
+      int i = Integer.parseInt(value);
+      if (i >= min) {
+        return i;
+      }
+    } catch (NumberFormatException e) {
+      // Fall through
+    }
+    throw new RedisException("Invalid argument '" + value + "' for CONFIG SET '" + name + "'");
+  }
+
+  /**
+   * Parse a number of bytes with an optional unit the way redis does, where
+   * k, m and g are powers of 1000 and kb, mb and gb are powers of 1024.
+   */
+  static long parseMemory(String value) throws RedisException {
+    String lower = value.trim().toLowerCase();
+    long multiple = 1;
+    String[] units = {"kb", "mb", "gb", "k", "m", "g", "b"};
+    long[] multiples = {1L << 10, 1L << 20, 1L << 30, 1000, 1000 * 1000, 1000 * 1000 * 1000, 1};
+    for (int i = 0; i < units.length; i++) {
+      if (lower.endsWith(units[i])) {
+        multiple = multiples[i];
+        lower = lower.substring(0, lower.length() - units[i].length());
+        break;
+      }
+    }
+    try {
+      long number = Long.parseLong(lower);
+      if (number >= 0) {
+        return number * multiple;
+      }
+    } catch (NumberFormatException e) {
+      // Fall through
+    }
+    throw new RedisException("Invalid argument '" + value + "' for CONFIG SET 'maxmemory'");
+  }
+}
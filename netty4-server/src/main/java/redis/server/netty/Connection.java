@@ -0,0 +1,94 @@
+package redis.server.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.util.AttributeKey;
+import redis.netty4.Command;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per connection state. Only ever touched from the executor that runs the
+ * command handler for the channel, except by CLIENT LIST and CLIENT KILL on
+ * other connections, which may see it a little out of date.
+ */
+class Connection {
+  static final AttributeKey<Connection> KEY = new AttributeKey<Connection>("redis.connection");
+  private static final ThrottledLog LIMITS = new ThrottledLog(1, TimeUnit.SECONDS);
+
+  final long id;
+  final Channel channel;
+  final long created = System.currentTimeMillis();
+  // Set by CLIENT SETNAME
+  volatile String name;
+  // Commands that have run and the last of them, only written on the
+  // connection's executor
+  volatile long commands;
+  volatile byte[] command;
+  // When it last sent anything
+  volatile long interacted = created;
+
+  // Commands that have been decoded but not yet executed
+  final ArrayDeque<Command> pending = new ArrayDeque<Command>();
+  // Shard used for commands without keys so they batch with their neighbours
+  final int home;
+  // True while a batch of commands is running on a shard
+  boolean busy;
+  // The command it is waiting on in BLPOP, BRPOP or BRPOPLPUSH
+  Blocking.Waiter blocked;
+  // Set once it subscribes to a channel or pattern
+  PubSub.Subscriber subscriber;
+  // Set once it sends MULTI or WATCH
+  Transaction transaction;
+  // Set once it is a replica of this server, by REPLCONF, SYNC or PSYNC
+  Replication.Replica replica;
+  // Bytes of replies and pub/sub messages written to the channel but not
+  // yet sent
+  long queued;
+  private final Config.Overage overage = new Config.Overage();
+
+  Connection(long id, Channel channel, int home) {
+    this.id = id;
+    this.channel = channel;
+    this.home = home;
+  }
+
+  /**
+   * The output buffer limit it is held to, the pubsub one while it is
+   * subscribed to anything.
+   */
+  Config.ClientClass clientClass() {
+    if (replica != null) {
+      return Config.ClientClass.REPLICA;
+    }
+    return subscriber != null && subscriber.count() > 0 ? Config.ClientClass.PUBSUB : Config.ClientClass.NORMAL;
+  }
+
+  /**
+   * Write and flush bytes to the client, counting them until they are sent.
+   * Returns false, having released them and closed the connection instead,
+   * if they would put it over its output buffer limit.
+   */
+  boolean send(ByteBuf bytes, Config.OutputLimit limit) {
+    final int size = bytes.readableBytes();
+    if (limit.exceeded(queued + size, overage)) {
+      bytes.release();
+      LIMITS.println("Closing client id=" + id + " addr=" + Clients.address(channel.remoteAddress())
+          + " that is over its " + clientClass() + " output buffer limit");
+      pending.clear();
+      channel.close();
+      return false;
+    }
+    queued += size;
+    channel.writeAndFlush(bytes).addListener(new ChannelFutureListener() {
+      @Override
+      public void operationComplete(ChannelFuture future) throws Exception {
+        queued -= size;
+      }
+    });
+    return true;
+  }
+}
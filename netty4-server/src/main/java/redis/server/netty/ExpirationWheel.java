@@ -0,0 +1,181 @@
+package redis.server.netty;
+
+import redis.util.BytesMap;
+
+import java.util.Arrays;
+
+/**
+ * Index of key expirations for expiring keys that are never read again. Keys
+ * are hashed into a wheel of one second slots by their expiration time. Each
+ * second the slot that has just gone by is swept and the keys in it that are
+ * due are expired. Keys due on a later turn of the wheel stay in their slot.
+ * <p/>
+ * Entries are never removed when a key is deleted or its expiration changes.
+ * Instead an entry is dropped when it is swept and no longer matches the
+ * expiration in the expires map, so a stale entry lives for at most one turn
+ * of the wheel. Every expiration in the map has a matching entry as long as
+ * add() is called whenever one is set to a new value.
+ */
+abstract class ExpirationWheel {
+  static final long TICK = 1000;
+  // Slots in the wheel, one turn is about 17 minutes
+  private static final int SLOTS = 1024;
+  // How often the clock is checked while sweeping
+  private static final int CHECK_EVERY = 64;
+
+  private final BytesMap<Long> expires;
+  private final byte[][][] keys = new byte[SLOTS][][];
+  private final long[][] deadlines = new long[SLOTS][];
+  private final int[] counts = new int[SLOTS];
+  // The tick being swept, everything before it has been
+  private long cursor;
+  // Where a sweep that ran out of time stopped in the cursor's slot
+  private int position;
+  private int entries;
+
+  ExpirationWheel(BytesMap<Long> expires, long now) {
+    this.expires = expires;
+    cursor = now / TICK;
+  }
+
+  /**
+   * Remove a key that is past its expiration.
+   */
+  abstract void expire(byte[] key);
+
+  /**
+   * Index an expiration. Ones that are already past go in the slot being
+   * swept so they are found on the next sweep.
+   */
+  void add(byte[] key, long deadline) {
+    int slot = (int) (Math.max(deadline / TICK, cursor) % SLOTS);
+    int count = counts[slot];
+    if (keys[slot] == null) {
+      keys[slot] = new byte[4][];
+      deadlines[slot] = new long[4];
+    } else if (count == keys[slot].length) {
+      byte[][] grownKeys = new byte[count * 2][];
+      long[] grownDeadlines = new long[count * 2];
+      System.arraycopy(keys[slot], 0, grownKeys, 0, count);
+      System.arraycopy(deadlines[slot], 0, grownDeadlines, 0, count);
+      keys[slot] = grownKeys;
+      deadlines[slot] = grownDeadlines;
+    }
+    keys[slot][count] = key;
+    deadlines[slot][count] = deadline;
+    counts[slot] = count + 1;
+    entries++;
+  }
+
+  /**
+   * Sweep every slot whose second has passed, stopping early once the budget
+   * is spent. Returns the number of keys expired.
+   */
+  int sweep(long now, long budgetNanos) {
+    long start = System.nanoTime();
+    long nowTick = now / TICK;
+    if (nowTick - cursor > SLOTS) {
+      // Visiting a slot more than once in a sweep gains nothing
+      cursor = nowTick - SLOTS;
+      position = 0;
+    }
+    int expired = 0;
+    int checked = 0;
+    while (cursor < nowTick) {
+      int slot = (int) (cursor % SLOTS);
+      int count = counts[slot];
+      if (count > 0) {
+        long end = (cursor + 1) * TICK;
+        byte[][] slotKeys = keys[slot];
+        long[] slotDeadlines = deadlines[slot];
+        boolean done = true;
+        // Entries that stay are packed down to kept
+        int kept = position;
+        int i = position;
+        for (; i < count; i++) {
+          if (++checked % CHECK_EVERY == 0 && System.nanoTime() - start > budgetNanos) {
+            done = false;
+            break;
+          }
+          byte[] key = slotKeys[i];
+          long deadline = slotDeadlines[i];
+          Long current = expires.get(key);
+          if (current == null || current != deadline) {
+            // Deleted, persisted or indexed again under its new expiration
+            continue;
+          }
+          if (deadline < end) {
+            expire(key);
+            expired++;
+          } else {
+            slotKeys[kept] = key;
+            slotDeadlines[kept++] = deadline;
+          }
+        }
+        int remaining = count - i;
+        System.arraycopy(slotKeys, i, slotKeys, kept, remaining);
+        System.arraycopy(slotDeadlines, i, slotDeadlines, kept, remaining);
+        Arrays.fill(slotKeys, kept + remaining, count, null);
+        counts[slot] = kept + remaining;
+        entries -= count - counts[slot];
+        if (!done) {
+          position = kept;
+          return expired;
+        }
+        shrink(slot);
+      }
+      position = 0;
+      cursor++;
+    }
+    return expired;
+  }
+
+  /**
+   * Keys that are past their expiration and haven't been swept yet.
+   */
+  int stale(long now) {
+    int stale = 0;
+    long nowTick = now / TICK;
+    for (long tick = cursor; tick <= nowTick && tick < cursor + SLOTS; tick++) {
+      int slot = (int) (tick % SLOTS);
+      for (int i = 0; i < counts[slot]; i++) {
+        long deadline = deadlines[slot][i];
+        Long current = expires.get(keys[slot][i]);
+        if (deadline < now && current != null && current == deadline) stale++;
+      }
+    }
+    return stale;
+  }
+
+  int size() {
+    return entries;
+  }
+
+  void clear() {
+    for (int i = 0; i < SLOTS; i++) {
+      keys[i] = null;
+      deadlines[i] = null;
+      counts[i] = 0;
+    }
+    position = 0;
+    entries = 0;
+  }
+
+  /**
+   * Give back the memory of a slot that has emptied after a burst.
+   */
+  private void shrink(int slot) {
+    int count = counts[slot];
+    if (count == 0) {
+      keys[slot] = null;
+      deadlines[slot] = null;
+    } else if (keys[slot].length > 64 && count < keys[slot].length / 4) {
+      byte[][] shrunkKeys = new byte[count * 2][];
+      long[] shrunkDeadlines = new long[count * 2];
+      System.arraycopy(keys[slot], 0, shrunkKeys, 0, count);
+      System.arraycopy(deadlines[slot], 0, shrunkDeadlines, 0, count);
+      keys[slot] = shrunkKeys;
+      deadlines[slot] = shrunkDeadlines;
+    }
+  }
+}
@@ -3,6 +3,7 @@ package redis.server.netty;
 import com.sampullara.cli.Args;
 import com.sampullara.cli.Argument;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
@@ -10,7 +11,8 @@ import io.netty.channel.ChannelPipeline;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.util.concurrent.DefaultEventExecutorGroup;
+
+import java.io.IOException;
 
 /**
  * Redis server
@@ -19,26 +21,103 @@ public class Main {
   @Argument(alias = "p")
   private static Integer port = 6380;
 
+  @Argument(alias = "s", description = "Number of keyspace shards, each with its own thread")
+  private static Integer shards = Runtime.getRuntime().availableProcessors();
+
+  @Argument(alias = "o", description = "String values of at least this many bytes are kept in pooled direct memory, -1 keeps them all on the heap")
+  private static Integer offheap = 64;
+
+  @Argument(alias = "m", description = "Most memory the keyspace may use, e.g. 100mb, 0 for no limit")
+  private static String maxmemory = "0";
+
+  @Argument(description = "What to evict at maxmemory: noeviction, allkeys-lru, allkeys-lfu or volatile-ttl")
+  private static String policy = "noeviction";
+
+  @Argument(alias = "d", description = "Directory dump.rdb is loaded from at startup and saved to")
+  private static String dir = ".";
+
+  @Argument(description = "Log every write to the append only file and replay it at startup: yes or no")
+  private static String appendonly = "no";
+
+  @Argument(description = "How often the append only file is synced: always, everysec or no")
+  private static String appendfsync = "everysec";
+
+  @Argument(description = "Threads accepting connections, each on a socket of its own bound with SO_REUSEPORT if there is more than one")
+  private static Integer acceptors = 1;
+
+  @Argument(description = "Threads reading commands and writing replies, 0 for two per core")
+  private static Integer workers = 0;
+
+  @Argument(description = "How many connections may wait to be accepted")
+  private static Integer backlog = 511;
+
+  @Argument(description = "Percentage of each thread's time spent on I/O rather than on queued tasks, 1 to 100")
+  private static Integer ioratio = 50;
+
   public static void main(String[] args) throws InterruptedException {
+    Config config = new Config();
     try {
       Args.parse(Main.class, args);
+      config.set("maxmemory", maxmemory);
+      config.set("maxmemory-policy", policy);
+      config.set("dir", dir);
+      config.set("appendfsync", appendfsync);
+      config.port(port);
+      config.tcpBacklog(backlog);
+      if (acceptors < 1 || workers < 0 || backlog < 0 || ioratio < 1 || ioratio > 100) {
+        throw new IllegalArgumentException("Invalid acceptors, workers, backlog or ioratio");
+      }
+      if (acceptors > 1 && !ReusePortServerSocketChannel.isSupported()) {
+        System.err.println("More than one acceptor needs SO_REUSEPORT, which isn't supported here");
+        System.exit(1);
+      }
+      if (!appendonly.equals("yes") && !appendonly.equals("no")) {
+        throw new IllegalArgumentException("appendonly is yes or no");
+      }
+      config.appendonly(appendonly.equals("yes"));
     } catch (IllegalArgumentException e) {
       Args.usage(Main.class);
       System.exit(1);
+    } catch (RedisException e) {
+      System.err.println(e.getMessage());
+      Args.usage(Main.class);
+      System.exit(1);
     }
 
-    // Only execute the command handler in a single thread
-    final RedisCommandHandler commandHandler = new RedisCommandHandler(new SimpleRedisServer());
+    // Each shard of the keyspace is only ever touched by its own thread
+    ValueStore store = offheap < 0 ? ValueStore.HEAP : new PooledValueStore(offheap);
+    final ShardedEngine engine = new ShardedEngine(shards, store, config);
+    final RedisCommandHandler commandHandler = new RedisCommandHandler(engine);
+    try {
+      long start = System.currentTimeMillis();
+      boolean replaying = config.appendonly() && config.aof().exists();
+      long read = engine.load();
+      double seconds = (System.currentTimeMillis() - start) / 1000.0;
+      if (replaying) {
+        System.out.printf("DB loaded from append only file: %.3f seconds%n", seconds);
+      } else if (read > 0) {
+        System.out.printf("DB loaded from disk: %d keys in %.3f seconds%n", read, seconds);
+      }
+    } catch (IOException e) {
+      // Like redis, refuse to start rather than run without the data
+      System.err.println("Failed loading the data from disk: " + e.getMessage());
+      System.exit(1);
+    }
 
     // Configure the server.
     ServerBootstrap b = new ServerBootstrap();
-    final DefaultEventExecutorGroup group = new DefaultEventExecutorGroup(1);
+    NioEventLoopGroup bossGroup = new NioEventLoopGroup(acceptors);
+    NioEventLoopGroup workerGroup = new NioEventLoopGroup(workers);
+    bossGroup.setIoRatio(ioratio);
+    workerGroup.setIoRatio(ioratio);
     try {
-        b.group(new NioEventLoopGroup(), new NioEventLoopGroup())
-         .channel(NioServerSocketChannel.class)
-         .option(ChannelOption.SO_BACKLOG, 100)
+        b.group(bossGroup, workerGroup)
+         .channel(acceptors > 1 ? ReusePortServerSocketChannel.class : NioServerSocketChannel.class)
+         .option(ChannelOption.SO_BACKLOG, config.tcpBacklog())
          .localAddress(port)
          .childOption(ChannelOption.TCP_NODELAY, true)
+         // Reads and each batch of replies are buffers from the pool
+         .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
          .childHandler(new ChannelInitializer<SocketChannel>() {
            @Override
            public void initChannel(SocketChannel ch) throws Exception {
@@ -46,18 +125,26 @@ public class Main {
 //             p.addLast(new ByteLoggingHandler(LogLevel.INFO));
              p.addLast(new RedisCommandDecoder());
              p.addLast(new RedisReplyEncoder());
-             p.addLast(group, commandHandler);
+             p.addLast(commandHandler);
            }
          });
 
-        // Start the server.
-        ChannelFuture f = b.bind().sync();
+        // Start the server, each acceptor's socket is registered with the
+        // next thread of the boss group
+        ChannelFuture[] futures = new ChannelFuture[acceptors];
+        for (int i = 0; i < acceptors; i++) {
+          futures[i] = b.bind().sync();
+        }
 
-        // Wait until the server socket is closed.
-        f.channel().closeFuture().sync();
+        // Wait until the server sockets are closed.
+        for (ChannelFuture f : futures) {
+          f.channel().closeFuture().sync();
+        }
     } finally {
         // Shut down all event loops to terminate all threads.
-      group.shutdownGracefully();
+      bossGroup.shutdownGracefully();
+      workerGroup.shutdownGracefully();
+      engine.shutdown();
     }
   }
 }
@@ -0,0 +1,387 @@
+package redis.server.netty;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.ScheduledFuture;
+import redis.netty4.Command;
+import redis.netty4.Reply;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The connection of a replica to its master. It asks to continue the stream
+ * it has with PSYNC, and otherwise loads the snapshot the master sends
+ * before the stream. Commands from the stream are handed to the shards that
+ * own their keys as they arrive, and since a shard executes its commands in
+ * order and commands on different shards don't touch the same keys, the
+ * shards only have to be caught up before a command that spans them.
+ * <p/>
+ * Everything happens on the link's own event loop, which is left waiting
+ * while a snapshot loads so that the stream waits in the socket meanwhile.
+ * A link that drops is reconnected until SLAVEOF points the server
+ * elsewhere.
+ */
+class MasterLink {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final long RECONNECT = 1000;
+  // How often the master is told how far the replica got
+  private static final long ACK_PERIOD = 1000;
+
+  private enum State {HANDSHAKE, LENGTH, SNAPSHOT, STREAM}
+
+  final String host;
+  final int port;
+  private final ShardedEngine engine;
+  private final Replication replication;
+  private final Config config;
+  private final NioEventLoopGroup group = new NioEventLoopGroup(1);
+  private volatile boolean closed;
+  private volatile Channel channel;
+  // How much of the master's stream has been handed to the shards
+  private volatile long offset;
+  private volatile boolean up;
+  private volatile boolean syncing;
+  private volatile long lastIo;
+  private volatile long downSince = System.currentTimeMillis();
+
+  MasterLink(ShardedEngine engine, Replication replication, Config config, String host, int port) {
+    this.engine = engine;
+    this.replication = replication;
+    this.config = config;
+    this.host = host;
+    this.port = port;
+    offset = replication.offset();
+  }
+
+  void connect() {
+    if (closed) {
+      return;
+    }
+    new Bootstrap()
+        .group(group)
+        .channel(NioSocketChannel.class)
+        .option(ChannelOption.TCP_NODELAY, true)
+        .handler(new Handler())
+        .connect(host, port).addListener(new ChannelFutureListener() {
+      @Override
+      public void operationComplete(ChannelFuture future) throws Exception {
+        if (future.isSuccess()) {
+          channel = future.channel();
+          if (closed) {
+            channel.close();
+          }
+        } else {
+          reconnect();
+        }
+      }
+    });
+  }
+
+  private void reconnect() {
+    if (!closed) {
+      try {
+        group.schedule(new Runnable() {
+          @Override
+          public void run() {
+            connect();
+          }
+        }, RECONNECT, TimeUnit.MILLISECONDS);
+      } catch (IllegalStateException e) {
+        // Closed in the meantime
+      }
+    }
+  }
+
+  /**
+   * Drop the connection for good.
+   */
+  void close() {
+    closed = true;
+    Channel channel = this.channel;
+    if (channel != null) {
+      channel.close();
+    }
+    group.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+  }
+
+  boolean isUp() {
+    return up;
+  }
+
+  long offset() {
+    return offset;
+  }
+
+  void info(StringBuilder sb) {
+    long now = System.currentTimeMillis();
+    sb.append("master_host:").append(host).append("\n");
+    sb.append("master_port:").append(port).append("\n");
+    sb.append("master_link_status:").append(up ? "up" : "down").append("\n");
+    sb.append("master_last_io_seconds_ago:").append(lastIo == 0 ? -1 : (now - lastIo) / 1000).append("\n");
+    sb.append("master_sync_in_progress:").append(syncing ? 1 : 0).append("\n");
+    sb.append("slave_repl_offset:").append(offset).append("\n");
+    if (!up) {
+      sb.append("master_link_down_since_seconds:").append((now - downSince) / 1000).append("\n");
+    }
+    sb.append("slave_read_only:").append(config.replicaReadOnly() ? 1 : 0).append("\n");
+  }
+
+  private static ByteBuf command(String... args) {
+    Object[] objects = new Object[args.length];
+    for (int i = 0; i < args.length; i++) {
+      objects[i] = args[i].getBytes();
+    }
+    ByteBuf buffer = Unpooled.buffer();
+    try {
+      Command.writeDirect(buffer, null, null, null, null, objects);
+    } catch (IOException e) {
+      // Writing to a ByteBuf doesn't do any I/O
+      throw new IllegalStateException(e);
+    }
+    return buffer;
+  }
+
+  /**
+   * The number of bytes a command took up in the stream, which is how
+   * offsets count.
+   */
+  private static long length(Command command) {
+    Object[] objects = command.getObjects();
+    long length = 1 + digits(objects.length) + 2;
+    for (Object object : objects) {
+      int size = ((byte[]) object).length;
+      length += 1 + digits(size) + 2 + size + 2;
+    }
+    return length;
+  }
+
+  private static int digits(long number) {
+    int digits = 1;
+    while (number >= 10) {
+      number /= 10;
+      digits++;
+    }
+    return digits;
+  }
+
+  private class Handler extends ByteToMessageDecoder {
+    private State state = State.HANDSHAKE;
+    // REPLCONF replies still to come before the reply to PSYNC
+    private int replies;
+    private String masterId;
+    private long masterOffset;
+    private File temp;
+    private FileChannel snapshot;
+    private long remaining;
+    private final RedisCommandDecoder decoder = new RedisCommandDecoder();
+    private final List<Object> commands = new ArrayList<Object>();
+    // The last command handed to each shard
+    private final Future<?>[] last = new Future<?>[engine.size()];
+    private ScheduledFuture<?> acks;
+
+    @Override
+    public void channelActive(final ChannelHandlerContext ctx) throws Exception {
+      lastIo = System.currentTimeMillis();
+      ctx.write(command("REPLCONF", "listening-port", String.valueOf(config.port())));
+      replies = 1;
+      ctx.writeAndFlush(command("PSYNC", replication.id(), String.valueOf(offset + 1)));
+      acks = ctx.executor().scheduleAtFixedRate(new Runnable() {
+        @Override
+        public void run() {
+          if (state == State.STREAM) {
+            ctx.writeAndFlush(command("REPLCONF", "ACK", String.valueOf(offset)));
+          }
+        }
+      }, ACK_PERIOD, ACK_PERIOD, TimeUnit.MILLISECONDS);
+      super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+      if (acks != null) {
+        acks.cancel(false);
+      }
+      if (up) {
+        System.err.println("Lost the connection to master " + host + ":" + port);
+        downSince = System.currentTimeMillis();
+      }
+      up = false;
+      syncing = false;
+      abandon();
+      reconnect();
+      super.channelInactive(ctx);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+      System.err.println("Replication from " + host + ":" + port + " failed: " + cause.getMessage());
+      ctx.close();
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+      lastIo = System.currentTimeMillis();
+      while (in.isReadable() && ctx.channel().isActive()) {
+        switch (state) {
+          case HANDSHAKE: {
+            String line = line(in);
+            if (line == null) return;
+            handshake(ctx, line);
+            break;
+          }
+          case LENGTH: {
+            String line = line(in);
+            if (line == null) return;
+            // The master sends newlines to keep the link alive while it saves
+            if (line.isEmpty()) break;
+            if (line.charAt(0) != '$') {
+              throw new IOException("Bad snapshot from master: " + line);
+            }
+            remaining = Long.parseLong(line.substring(1));
+            temp = new File(config.rdb().getAbsoluteFile().getParentFile(),
+                "temp-" + System.nanoTime() + ".rdb");
+            snapshot = new FileOutputStream(temp).getChannel();
+            state = State.SNAPSHOT;
+            break;
+          }
+          case SNAPSHOT:
+            remaining -= in.readBytes(snapshot, (int) Math.min(remaining, in.readableBytes()));
+            if (remaining == 0) {
+              load();
+              state = State.STREAM;
+              up = true;
+            }
+            break;
+          case STREAM:
+            decoder.decode(ctx, in, commands);
+            try {
+              for (Object command : commands) {
+                apply((Command) command);
+              }
+            } finally {
+              commands.clear();
+            }
+            break;
+        }
+      }
+    }
+
+    private void handshake(ChannelHandlerContext ctx, String line) throws IOException {
+      if (line.startsWith("-")) {
+        throw new IOException("Master refused to replicate: " + line.substring(1));
+      }
+      if (replies > 0) {
+        replies--;
+        return;
+      }
+      String[] parts = line.split(" ");
+      if (parts[0].equals("+FULLRESYNC") && parts.length == 3) {
+        masterId = parts[1];
+        masterOffset = Long.parseLong(parts[2]);
+        syncing = true;
+        state = State.LENGTH;
+      } else if (parts[0].equals("+CONTINUE")) {
+        if (parts.length == 2) {
+          replication.rename(parts[1]);
+        }
+        System.out.println("Continuing replication from " + host + ":" + port + " at offset " + offset);
+        state = State.STREAM;
+        up = true;
+      } else {
+        throw new IOException("Unexpected reply to PSYNC: " + line);
+      }
+    }
+
+    /**
+     * Replace the keyspace with the snapshot that was just received.
+     */
+    private void load() throws Exception {
+      snapshot.force(false);
+      snapshot.close();
+      snapshot = null;
+      File file = config.rdb();
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      temp = null;
+      long start = System.currentTimeMillis();
+      long keys = engine.resync(file, masterId, masterOffset);
+      offset = masterOffset;
+      syncing = false;
+      System.out.printf("Synchronized with master %s:%d: %d keys in %.3f seconds%n",
+          host, port, keys, (System.currentTimeMillis() - start) / 1000.0);
+    }
+
+    private void apply(Command command) throws Exception {
+      int route = engine.route(command);
+      if (route == ShardedEngine.COORDINATED) {
+        // Everything before it has to have been executed first
+        for (int i = 0; i < last.length; i++) {
+          if (last[i] != null) {
+            last[i].await();
+            last[i] = null;
+          }
+        }
+        ReferenceCountUtil.release(engine.coordinate(command).sync().getNow());
+      } else {
+        int shard = route == ShardedEngine.ANY ? 0 : route;
+        Future<Reply> future = engine.shard(shard).submit(command);
+        future.addListener(new GenericFutureListener<Future<Reply>>() {
+          @Override
+          public void operationComplete(Future<Reply> future) throws Exception {
+            ReferenceCountUtil.release(future.getNow());
+          }
+        });
+        last[shard] = future;
+      }
+      offset += length(command);
+    }
+
+    private void abandon() {
+      if (snapshot != null) {
+        try {
+          snapshot.close();
+        } catch (IOException e) {
+          // Deleted anyway
+        }
+        snapshot = null;
+      }
+      if (temp != null) {
+        temp.delete();
+        temp = null;
+      }
+    }
+
+    /**
+     * A line without its CRLF, or null if it hasn't all arrived.
+     */
+    private String line(ByteBuf in) {
+      int length = in.bytesBefore((byte) '\n');
+      if (length == -1) {
+        return null;
+      }
+      String line = in.toString(in.readerIndex(), length, UTF8);
+      in.skipBytes(length + 1);
+      return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+    }
+  }
+}
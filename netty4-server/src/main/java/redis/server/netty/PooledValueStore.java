@@ -0,0 +1,35 @@
+package redis.server.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+
+/**
+ * Keeps values of at least a threshold size in pooled direct memory so that
+ * a large keyspace doesn't fill the old generation. The heap only holds the
+ * ByteBuf handle and small values, where the handle would cost more than the
+ * value, stay byte[]s.
+ */
+public class PooledValueStore implements ValueStore {
+  private final ByteBufAllocator allocator;
+  private final int threshold;
+
+  public PooledValueStore(int threshold) {
+    this(PooledByteBufAllocator.DEFAULT, threshold);
+  }
+
+  public PooledValueStore(ByteBufAllocator allocator, int threshold) {
+    this.allocator = allocator;
+    this.threshold = threshold;
+  }
+
+  @Override
+  public Object store(byte[] value) {
+    if (value.length < threshold) {
+      return value;
+    }
+    ByteBuf buffer = allocator.directBuffer(value.length, value.length);
+    buffer.writeBytes(value);
+    return buffer;
+  }
+}
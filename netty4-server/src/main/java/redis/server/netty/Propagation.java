@@ -0,0 +1,130 @@
+package redis.server.netty;
+
+import io.netty.buffer.ByteBuf;
+import redis.netty4.BulkReply;
+import redis.netty4.Command;
+import redis.netty4.ErrorReply;
+import redis.netty4.MultiBulkReply;
+import redis.netty4.Reply;
+
+/**
+ * Where the shards send the write commands they execute, for the append only
+ * file and for replicas. Both get the same stream of RESP multibulks.
+ * <p/>
+ * Commands whose effect depends on when they run are sent as the commands
+ * redis propagates in their place, so that replaying them later, or on
+ * another server, gives the same keyspace: relative expirations become
+ * PEXPIREAT, SPOP the SREM of the member it popped, blocking pops the pop
+ * they ended up doing, and keys the server expires or evicts itself are
+ * DELeted.
+ * <p/>
+ * Never changed once it is built. The engine replaces it, while every shard
+ * is parked, when the append only file is opened or the first replica
+ * connects.
+ */
+class Propagation {
+  private static final byte[] SET = "SET".getBytes();
+  private static final byte[] DEL = "DEL".getBytes();
+  private static final byte[] SREM = "SREM".getBytes();
+  private static final byte[] PEXPIREAT = "PEXPIREAT".getBytes();
+  private static final byte[] LPOP = "LPOP".getBytes();
+  private static final byte[] RPOP = "RPOP".getBytes();
+  private static final byte[] RPOPLPUSH = "RPOPLPUSH".getBytes();
+
+  // Either may be null
+  final Aof aof;
+  final Replication replication;
+  // Set on a replica, whose master sends the DEL for every key that expires
+  // or is evicted
+  private final boolean replica;
+
+  Propagation(Aof aof, Replication replication, boolean replica) {
+    this.aof = aof;
+    this.replication = replication;
+    this.replica = replica;
+  }
+
+  /**
+   * Send on a write command that executed on the given keyspace. Must be
+   * called on the thread that executed it, before the keyspace changes again.
+   */
+  void feed(int id, Command command, Reply reply, SimpleRedisServer server) {
+    if (reply == null || reply instanceof ErrorReply) {
+      return;
+    }
+    Object[] objects = command.getObjects();
+    switch (id) {
+      case RedisServerDispatcher.SETEX:
+      case RedisServerDispatcher.PSETEX:
+        append(new Object[]{SET, objects[1], objects[3]});
+        // Fall through
+      case RedisServerDispatcher.EXPIRE:
+      case RedisServerDispatcher.PEXPIRE:
+        byte[] key = (byte[]) objects[1];
+        Long expiration = server._expiration(key);
+        if (expiration != null) {
+          append(new Object[]{PEXPIREAT, key, String.valueOf(expiration).getBytes()});
+        }
+        break;
+      case RedisServerDispatcher.SPOP:
+        if (((BulkReply) reply).data() != null) {
+          append(new Object[]{SREM, objects[1], bytes((BulkReply) reply)});
+        }
+        break;
+      case RedisServerDispatcher.BLPOP:
+      case RedisServerDispatcher.BRPOP:
+        Reply[] popped = ((MultiBulkReply) reply).data();
+        if (popped != null) {
+          append(new Object[]{id == RedisServerDispatcher.BLPOP ? LPOP : RPOP, bytes((BulkReply) popped[0])});
+        }
+        break;
+      case RedisServerDispatcher.BRPOPLPUSH:
+        if (((BulkReply) reply).data() != null) {
+          append(new Object[]{RPOPLPUSH, objects[1], objects[2]});
+        }
+        break;
+      default:
+        append(objects);
+    }
+  }
+
+  private static byte[] bytes(BulkReply reply) {
+    ByteBuf data = reply.data();
+    byte[] bytes = new byte[data.readableBytes()];
+    data.getBytes(data.readerIndex(), bytes);
+    return bytes;
+  }
+
+  /**
+   * Send on the element a keyspace popped for a client blocked on the key.
+   */
+  void pop(byte[] key, boolean left) {
+    append(new Object[]{left ? LPOP : RPOP, key});
+  }
+
+  /**
+   * Send on a key that the server removed by itself, because it expired or
+   * was evicted.
+   */
+  void delete(byte[] key) {
+    if (!replica) {
+      append(new Object[]{DEL, key});
+    }
+  }
+
+  /**
+   * Why writes are refused, or null if they aren't.
+   */
+  String error() {
+    return aof == null ? null : aof.error();
+  }
+
+  private void append(Object[] objects) {
+    if (aof != null) {
+      aof.append(objects);
+    }
+    if (replication != null) {
+      replication.append(objects);
+    }
+  }
+}
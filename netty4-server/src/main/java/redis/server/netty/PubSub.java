@@ -0,0 +1,330 @@
+package redis.server.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import redis.netty4.BulkReply;
+import redis.netty4.MultiBulkReply;
+import redis.netty4.Reply;
+import redis.util.BytesKey;
+import redis.util.Glob;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Channels and patterns that clients are subscribed to. A published message
+ * is encoded once into a single buffer and each subscriber is written a
+ * duplicate of it that shares its bytes, so fanning out to thousands of
+ * subscribers costs a reference count each rather than an encoding each.
+ * Writing to a channel from outside its event loop queues a task and wakes
+ * the loop for every write, so the subscribers are grouped by event loop and
+ * each loop is handed all of its subscribers in a single task instead.
+ * <p/>
+ * Publishing never locks. Each channel maps to its grouped subscribers,
+ * which subscribing replaces rather than changes. Patterns are indexed in a
+ * trie by the literal bytes before their first wildcard, so a message is
+ * only matched against the patterns along the path its channel spells out.
+ * The trie is rebuilt when a pattern gets its first subscriber or loses its
+ * last one.
+ */
+class PubSub {
+  private static final byte[] MESSAGE = "message".getBytes();
+  private static final byte[] PMESSAGE = "pmessage".getBytes();
+  private static final Subscribers NONE = new Subscribers(new Subscriber[0]);
+
+  private final Config config;
+  // Replaced while holding the lock on this
+  private final ConcurrentHashMap<BytesKey, Subscribers> channels = new ConcurrentHashMap<BytesKey, Subscribers>();
+  // Guarded by this
+  private final Map<BytesKey, Pattern> patterns = new HashMap<BytesKey, Pattern>();
+  private volatile Node trie = new Node();
+
+  PubSub(Config config) {
+    this.config = config;
+  }
+
+  /**
+   * Returns false if the subscriber already had the channel.
+   */
+  synchronized boolean subscribe(Subscriber subscriber, byte[] channel) {
+    BytesKey key = new BytesKey(channel);
+    if (!subscriber.channels.add(key)) {
+      return false;
+    }
+    Subscribers subscribers = channels.get(key);
+    channels.put(key, (subscribers == null ? NONE : subscribers).add(subscriber));
+    return true;
+  }
+
+  /**
+   * Returns false if the subscriber didn't have the channel.
+   */
+  synchronized boolean unsubscribe(Subscriber subscriber, byte[] channel) {
+    BytesKey key = new BytesKey(channel);
+    if (!subscriber.channels.remove(key)) {
+      return false;
+    }
+    Subscribers subscribers = channels.get(key).remove(subscriber);
+    if (subscribers.all.length == 0) {
+      channels.remove(key);
+    } else {
+      channels.put(key, subscribers);
+    }
+    return true;
+  }
+
+  synchronized boolean psubscribe(Subscriber subscriber, byte[] pattern) {
+    BytesKey key = new BytesKey(pattern);
+    if (!subscriber.patterns.add(key)) {
+      return false;
+    }
+    Pattern existing = patterns.get(key);
+    if (existing == null) {
+      existing = new Pattern(pattern);
+      patterns.put(key, existing);
+      trie = build(patterns.values());
+    }
+    existing.subscribers = existing.subscribers.add(subscriber);
+    return true;
+  }
+
+  synchronized boolean punsubscribe(Subscriber subscriber, byte[] pattern) {
+    BytesKey key = new BytesKey(pattern);
+    if (!subscriber.patterns.remove(key)) {
+      return false;
+    }
+    Pattern existing = patterns.get(key);
+    existing.subscribers = existing.subscribers.remove(subscriber);
+    if (existing.subscribers.all.length == 0) {
+      patterns.remove(key);
+      trie = build(patterns.values());
+    }
+    return true;
+  }
+
+  /**
+   * Drop every subscription of a client that has gone away.
+   */
+  synchronized void unsubscribeAll(Subscriber subscriber) {
+    for (BytesKey channel : new ArrayList<BytesKey>(subscriber.channels)) {
+      unsubscribe(subscriber, channel.getBytes());
+    }
+    for (BytesKey pattern : new ArrayList<BytesKey>(subscriber.patterns)) {
+      punsubscribe(subscriber, pattern.getBytes());
+    }
+  }
+
+  /**
+   * Send a message to the subscribers of the channel and of every pattern
+   * that matches it. Returns how many clients it was sent to, counting a
+   * client once for the channel and once for each of its matching patterns
+   * like redis does.
+   */
+  int publish(byte[] channel, byte[] message) {
+    int receivers = 0;
+    Subscribers subscribers = channels.get(new BytesKey(channel));
+    if (subscribers != null) {
+      receivers += fanout(subscribers, new MultiBulkReply(new Reply[]{
+          new BulkReply(MESSAGE), new BulkReply(channel), new BulkReply(message)}));
+    }
+    Node node = trie;
+    for (int i = 0; node != null; i++) {
+      for (Pattern pattern : node.patterns) {
+        if (pattern.matches(channel)) {
+          receivers += fanout(pattern.subscribers, new MultiBulkReply(new Reply[]{
+              new BulkReply(PMESSAGE), new BulkReply(pattern.bytes), new BulkReply(channel), new BulkReply(message)}));
+        }
+      }
+      node = i < channel.length ? node.child(channel[i]) : null;
+    }
+    return receivers;
+  }
+
+  /**
+   * Encode the message once and hand each subscriber its own view of it.
+   */
+  private int fanout(Subscribers subscribers, Reply message) {
+    final ByteBuf encoded = PooledByteBufAllocator.DEFAULT.directBuffer();
+    try {
+      message.write(encoded);
+    } catch (IOException e) {
+      // Only thrown by streams, not buffers
+      encoded.release();
+      throw new IllegalStateException(e);
+    }
+    final Config.OutputLimit limit = config.outputLimit(Config.ClientClass.PUBSUB);
+    for (int i = 0; i < subscribers.loops.length; i++) {
+      final Subscriber[] group = subscribers.groups[i];
+      encoded.retain();
+      try {
+        subscribers.loops[i].execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              for (Subscriber subscriber : group) {
+                subscriber.write(encoded, limit);
+              }
+            } finally {
+              encoded.release();
+            }
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        // The server is shutting down
+        encoded.release();
+      }
+    }
+    encoded.release();
+    return subscribers.all.length;
+  }
+
+  private static Node build(Iterable<Pattern> patterns) {
+    Node root = new Node();
+    for (Pattern pattern : patterns) {
+      Node node = root;
+      for (byte b : pattern.glob.prefix()) {
+        node = node.add(b);
+      }
+      node.patterns = Arrays.copyOf(node.patterns, node.patterns.length + 1);
+      node.patterns[node.patterns.length - 1] = pattern;
+    }
+    return root;
+  }
+
+  /**
+   * A node of the trie, holding the patterns whose literal prefix ends here.
+   * Nodes have few children so they are kept in a small array rather than a
+   * map. A trie is never changed once it has been published.
+   */
+  private static class Node {
+    private byte[] bytes = new byte[0];
+    private Node[] children = new Node[0];
+    private Pattern[] patterns = new Pattern[0];
+
+    Node child(byte b) {
+      for (int i = 0; i < bytes.length; i++) {
+        if (bytes[i] == b) {
+          return children[i];
+        }
+      }
+      return null;
+    }
+
+    Node add(byte b) {
+      Node child = child(b);
+      if (child == null) {
+        child = new Node();
+        bytes = Arrays.copyOf(bytes, bytes.length + 1);
+        bytes[bytes.length - 1] = b;
+        children = Arrays.copyOf(children, children.length + 1);
+        children[children.length - 1] = child;
+      }
+      return child;
+    }
+  }
+
+  private static class Pattern {
+    private final byte[] bytes;
+    private final Glob glob;
+    private volatile Subscribers subscribers = NONE;
+
+    Pattern(byte[] bytes) {
+      this.bytes = bytes;
+      glob = Glob.compile(bytes);
+    }
+
+    boolean matches(byte[] channel) {
+      return glob.matches(channel);
+    }
+  }
+
+  /**
+   * The subscribers of a channel or pattern, and the same subscribers grouped
+   * by the event loop of their connection. Never changed once it is built.
+   */
+  private static class Subscribers {
+    private final Subscriber[] all;
+    private final EventLoop[] loops;
+    private final Subscriber[][] groups;
+
+    Subscribers(Subscriber[] all) {
+      this.all = all;
+      Map<EventLoop, List<Subscriber>> grouped = new LinkedHashMap<EventLoop, List<Subscriber>>();
+      for (Subscriber subscriber : all) {
+        EventLoop loop = subscriber.channel.eventLoop();
+        List<Subscriber> group = grouped.get(loop);
+        if (group == null) {
+          grouped.put(loop, group = new ArrayList<Subscriber>());
+        }
+        group.add(subscriber);
+      }
+      loops = grouped.keySet().toArray(new EventLoop[grouped.size()]);
+      groups = new Subscriber[loops.length][];
+      for (int i = 0; i < loops.length; i++) {
+        List<Subscriber> group = grouped.get(loops[i]);
+        groups[i] = group.toArray(new Subscriber[group.size()]);
+      }
+    }
+
+    Subscribers add(Subscriber subscriber) {
+      Subscriber[] added = Arrays.copyOf(all, all.length + 1);
+      added[all.length] = subscriber;
+      return new Subscribers(added);
+    }
+
+    Subscribers remove(Subscriber subscriber) {
+      for (int i = 0; i < all.length; i++) {
+        if (all[i] == subscriber) {
+          Subscriber[] removed = new Subscriber[all.length - 1];
+          System.arraycopy(all, 0, removed, 0, i);
+          System.arraycopy(all, i + 1, removed, i, removed.length - i);
+          return new Subscribers(removed);
+        }
+      }
+      return this;
+    }
+  }
+
+  /**
+   * A client in subscribed mode. Everything about it is only touched from
+   * the event loop of its connection, and its sets of channels and patterns
+   * are only changed while holding the lock on the PubSub too. The bytes
+   * written to it but not yet sent are counted with its connection's
+   * replies so that a client that can't keep up is disconnected rather than
+   * having its messages pile up in memory.
+   */
+  static class Subscriber {
+    final Connection connection;
+    final Channel channel;
+    final Set<BytesKey> channels = new LinkedHashSet<BytesKey>();
+    final Set<BytesKey> patterns = new LinkedHashSet<BytesKey>();
+
+    Subscriber(Connection connection) {
+      this.connection = connection;
+      channel = connection.channel;
+    }
+
+    int count() {
+      return channels.size() + patterns.size();
+    }
+
+    void write(ByteBuf encoded, Config.OutputLimit limit) {
+      if (!channel.isActive()) {
+        return;
+      }
+      // Counted with the connection's replies, against the one limit
+      connection.send(encoded.duplicate().retain(), limit);
+    }
+  }
+}
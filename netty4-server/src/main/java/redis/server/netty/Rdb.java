@@ -0,0 +1,498 @@
+package redis.server.netty;
+
+import io.netty.buffer.ByteBuf;
+import redis.util.BytesHash;
+import redis.util.BytesSet;
+import redis.util.Crc64;
+import redis.util.QuickList;
+import redis.util.ZSet;
+import redis.util.ZSetEntry;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The RDB file format of redis 2.6 and 2.8, version 6. Values are always
+ * written with the plain encoding of their type, so sets, hashes and sorted
+ * sets are readable by any redis since 2.0. Reading also understands integer
+ * and LZF compressed strings but not the compact ziplist and intset
+ * encodings redis uses for small collections.
+ */
+class Rdb {
+  static final int VERSION = 6;
+  private static final byte[] MAGIC = "REDIS".getBytes();
+
+  // Value types
+  static final int STRING = 0;
+  static final int LIST = 1;
+  static final int SET = 2;
+  static final int ZSET = 3;
+  static final int HASH = 4;
+
+  private static final int EXPIRETIME_MS = 0xFC;
+  private static final int EXPIRETIME = 0xFD;
+  private static final int SELECTDB = 0xFE;
+  private static final int EOF = 0xFF;
+
+  // The top two bits of the first byte of a length
+  private static final int LEN_6BIT = 0;
+  private static final int LEN_14BIT = 1;
+  private static final int LEN_32BIT = 2;
+  private static final int ENCODED = 3;
+  // Special string encodings
+  private static final int ENC_INT8 = 0;
+  private static final int ENC_INT16 = 1;
+  private static final int ENC_INT32 = 2;
+  private static final int ENC_LZF = 3;
+
+  private Rdb() {
+  }
+
+  static void writeHeader(ByteBuf out) {
+    out.writeBytes(MAGIC);
+    out.writeBytes(String.format("%04d", VERSION).getBytes());
+    out.writeByte(SELECTDB);
+    writeLength(out, 0);
+  }
+
+  /**
+   * The end of file marker. The checksum of everything before it and the
+   * marker itself follows as 8 little endian bytes.
+   */
+  static void writeEnd(ByteBuf out) {
+    out.writeByte(EOF);
+  }
+
+  /**
+   * Append a key with its value and expiration.
+   */
+  static void writeEntry(ByteBuf out, byte[] key, Object value, Long expiration) {
+    if (expiration != null) {
+      out.writeByte(EXPIRETIME_MS);
+      out.writeLong(Long.reverseBytes(expiration));
+    }
+    if (value instanceof byte[] || value instanceof ByteBuf) {
+      out.writeByte(STRING);
+      writeString(out, key);
+      writeString(out, value);
+    } else if (value instanceof QuickList) {
+      QuickList list = (QuickList) value;
+      out.writeByte(LIST);
+      writeString(out, key);
+      writeLength(out, list.size());
+      for (byte[] element : list) {
+        writeString(out, element);
+      }
+    } else if (value instanceof BytesSet) {
+      BytesSet set = (BytesSet) value;
+      out.writeByte(SET);
+      writeString(out, key);
+      writeLength(out, set.size());
+      for (byte[] member : set) {
+        writeString(out, member);
+      }
+    } else if (value instanceof ZSet) {
+      ZSet zset = (ZSet) value;
+      out.writeByte(ZSET);
+      writeString(out, key);
+      writeLength(out, zset.size());
+      for (ZSetEntry entry : zset) {
+        writeString(out, entry.getKey().getBytes());
+        writeDouble(out, entry.getScore());
+      }
+    } else if (value instanceof BytesHash) {
+      BytesHash hash = (BytesHash) value;
+      out.writeByte(HASH);
+      writeString(out, key);
+      writeLength(out, hash.size());
+      for (Map.Entry<byte[], byte[]> field : hash) {
+        writeString(out, field.getKey());
+        writeString(out, field.getValue());
+      }
+    } else {
+      throw new IllegalArgumentException("Can't save a " + value.getClass().getName());
+    }
+  }
+
+  private static void writeLength(ByteBuf out, long length) {
+    if (length < 1 << 6) {
+      out.writeByte((int) length);
+    } else if (length < 1 << 14) {
+      out.writeByte(LEN_14BIT << 6 | (int) (length >> 8));
+      out.writeByte((int) length);
+    } else {
+      out.writeByte(LEN_32BIT << 6);
+      out.writeInt((int) length);
+    }
+  }
+
+  private static void writeString(ByteBuf out, Object value) {
+    if (value instanceof ByteBuf) {
+      ByteBuf buffer = (ByteBuf) value;
+      writeLength(out, buffer.readableBytes());
+      out.writeBytes(buffer, buffer.readerIndex(), buffer.readableBytes());
+      return;
+    }
+    byte[] bytes = (byte[]) value;
+    // Small numbers are stored as integers, as redis does
+    if (bytes.length > 0 && bytes.length <= 11) {
+      Long number = parseCanonical(bytes);
+      if (number != null) {
+        long n = number;
+        if (n >= Byte.MIN_VALUE && n <= Byte.MAX_VALUE) {
+          out.writeByte(ENCODED << 6 | ENC_INT8);
+          out.writeByte((int) n);
+          return;
+        } else if (n >= Short.MIN_VALUE && n <= Short.MAX_VALUE) {
+          out.writeByte(ENCODED << 6 | ENC_INT16);
+          out.writeShort(Short.reverseBytes((short) n));
+          return;
+        } else if (n >= Integer.MIN_VALUE && n <= Integer.MAX_VALUE) {
+          out.writeByte(ENCODED << 6 | ENC_INT32);
+          out.writeInt(Integer.reverseBytes((int) n));
+          return;
+        }
+      }
+    }
+    writeLength(out, bytes.length);
+    out.writeBytes(bytes);
+  }
+
+  /**
+   * The number a string holds if it would be written back the same way.
+   */
+  private static Long parseCanonical(byte[] bytes) {
+    int i = bytes[0] == '-' ? 1 : 0;
+    if (i == bytes.length || (bytes[i] == '0' && bytes.length > 1)) {
+      return null;
+    }
+    long n = 0;
+    for (; i < bytes.length; i++) {
+      int digit = bytes[i] - '0';
+      if (digit < 0 || digit > 9) {
+        return null;
+      }
+      n = n * 10 + digit;
+    }
+    return bytes[0] == '-' ? -n : n;
+  }
+
+  private static void writeDouble(ByteBuf out, double score) {
+    if (Double.isNaN(score)) {
+      out.writeByte(253);
+    } else if (score == Double.POSITIVE_INFINITY) {
+      out.writeByte(254);
+    } else if (score == Double.NEGATIVE_INFINITY) {
+      out.writeByte(255);
+    } else {
+      byte[] bytes = String.valueOf(score).getBytes();
+      out.writeByte(bytes.length);
+      out.writeBytes(bytes);
+    }
+  }
+
+  /**
+   * A key read from a file. Strings are in value, the elements of a list or
+   * set and the fields and values of a hash, one after the other, are in
+   * elements. Sorted sets have their scores in scores.
+   */
+  static class Entry {
+    byte[] key;
+    int type;
+    byte[] value;
+    byte[][] elements;
+    double[] scores;
+    // -1 if the key doesn't expire
+    long expiration = -1;
+  }
+
+  /**
+   * Reads the entries of a file one at a time through a buffered channel,
+   * checking the checksum at the end.
+   */
+  static class Reader implements Closeable {
+    private static final int BUFFER = 1 << 16;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER);
+    private final int version;
+    private long crc;
+    // Everything in the buffer before this has been added to crc
+    private int checked;
+
+    Reader(File file) throws IOException {
+      channel = new FileInputStream(file).getChannel();
+      buffer.flip();
+      byte[] magic = new byte[9];
+      readFully(magic, 0, magic.length);
+      String header = new String(magic);
+      if (!header.startsWith("REDIS")) {
+        throw new IOException("Not an RDB file: " + file);
+      }
+      try {
+        version = Integer.parseInt(header.substring(5));
+      } catch (NumberFormatException e) {
+        throw new IOException("Bad RDB version: " + header);
+      }
+      if (version < 1 || version > VERSION) {
+        throw new IOException("Can't handle RDB format version " + version);
+      }
+    }
+
+    /**
+     * The next key in the file, or null at the end of it.
+     */
+    Entry next() throws IOException {
+      Entry entry = new Entry();
+      while (true) {
+        int type = readByte();
+        if (type == EXPIRETIME_MS) {
+          entry.expiration = readLittleEndian(8);
+        } else if (type == EXPIRETIME) {
+          entry.expiration = readLittleEndian(4) * 1000;
+        } else if (type == SELECTDB) {
+          if (readLength() != 0) {
+            throw new IOException("Only database 0 is supported");
+          }
+        } else if (type == EOF) {
+          verify();
+          return null;
+        } else {
+          entry.type = type;
+          break;
+        }
+      }
+      entry.key = readString();
+      switch (entry.type) {
+        case STRING:
+          entry.value = readString();
+          break;
+        case LIST:
+        case SET:
+          entry.elements = new byte[readLength()][];
+          for (int i = 0; i < entry.elements.length; i++) {
+            entry.elements[i] = readString();
+          }
+          break;
+        case ZSET:
+          int size = readLength();
+          entry.elements = new byte[size][];
+          entry.scores = new double[size];
+          for (int i = 0; i < size; i++) {
+            entry.elements[i] = readString();
+            entry.scores[i] = readDouble();
+          }
+          break;
+        case HASH:
+          entry.elements = new byte[readLength() * 2][];
+          for (int i = 0; i < entry.elements.length; i++) {
+            entry.elements[i] = readString();
+          }
+          break;
+        default:
+          throw new IOException("Unsupported RDB value type " + entry.type);
+      }
+      return entry;
+    }
+
+    private void verify() throws IOException {
+      if (version < 5) {
+        return;
+      }
+      crc = Crc64.update(crc, buffer.array(), checked, buffer.position() - checked);
+      long expected = crc;
+      long checksum = readLittleEndian(8);
+      // Saving with checksums turned off leaves it 0
+      if (checksum != 0 && checksum != expected) {
+        throw new IOException("Wrong RDB checksum");
+      }
+    }
+
+    private int readLength() throws IOException {
+      int first = readByte();
+      switch (first >> 6) {
+        case LEN_6BIT:
+          return first & 0x3F;
+        case LEN_14BIT:
+          return (first & 0x3F) << 8 | readByte();
+        case LEN_32BIT:
+          ensure(4);
+          return buffer.getInt();
+        default:
+          throw new IOException("Unexpected encoded length");
+      }
+    }
+
+    private byte[] readString() throws IOException {
+      int first = readByte();
+      if (first >> 6 != ENCODED) {
+        buffer.position(buffer.position() - 1);
+        byte[] bytes = new byte[readLength()];
+        readFully(bytes, 0, bytes.length);
+        return bytes;
+      }
+      switch (first & 0x3F) {
+        case ENC_INT8:
+          return String.valueOf((byte) readByte()).getBytes();
+        case ENC_INT16:
+          return String.valueOf((short) readLittleEndian(2)).getBytes();
+        case ENC_INT32:
+          return String.valueOf((int) readLittleEndian(4)).getBytes();
+        case ENC_LZF:
+          byte[] compressed = new byte[readLength()];
+          int length = readLength();
+          readFully(compressed, 0, compressed.length);
+          return decompress(compressed, length);
+        default:
+          throw new IOException("Unknown string encoding " + (first & 0x3F));
+      }
+    }
+
+    private double readDouble() throws IOException {
+      int length = readByte();
+      switch (length) {
+        case 253:
+          return Double.NaN;
+        case 254:
+          return Double.POSITIVE_INFINITY;
+        case 255:
+          return Double.NEGATIVE_INFINITY;
+        default:
+          byte[] bytes = new byte[length];
+          readFully(bytes, 0, length);
+          return Double.parseDouble(new String(bytes));
+      }
+    }
+
+    private int readByte() throws IOException {
+      ensure(1);
+      return buffer.get() & 0xFF;
+    }
+
+    private long readLittleEndian(int bytes) throws IOException {
+      ensure(bytes);
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+      long value;
+      if (bytes == 8) {
+        value = buffer.getLong();
+      } else if (bytes == 4) {
+        value = buffer.getInt();
+      } else {
+        value = buffer.getShort();
+      }
+      buffer.order(ByteOrder.BIG_ENDIAN);
+      return value;
+    }
+
+    private void readFully(byte[] bytes, int offset, int length) throws IOException {
+      while (length > 0) {
+        if (!buffer.hasRemaining()) {
+          ensure(1);
+        }
+        int read = Math.min(length, buffer.remaining());
+        buffer.get(bytes, offset, read);
+        offset += read;
+        length -= read;
+      }
+    }
+
+    /**
+     * Make sure at least count bytes are buffered, reading more if needed.
+     */
+    private void ensure(int count) throws IOException {
+      if (buffer.remaining() >= count) {
+        return;
+      }
+      crc = Crc64.update(crc, buffer.array(), checked, buffer.position() - checked);
+      buffer.compact();
+      while (buffer.position() < count) {
+        if (channel.read(buffer) == -1) {
+          throw new EOFException("RDB file ends early");
+        }
+      }
+      buffer.flip();
+      checked = 0;
+    }
+
+    /**
+     * How far into the file the reader is, for files like the append only
+     * file that continue past the end of the RDB.
+     */
+    long position() throws IOException {
+      return channel.position() - buffer.remaining();
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+
+  /**
+   * Whether a file starts like an RDB file.
+   */
+  static boolean isRdb(File file) throws IOException {
+    FileInputStream in = new FileInputStream(file);
+    try {
+      byte[] magic = new byte[MAGIC.length];
+      int read = 0;
+      while (read < magic.length) {
+        int count = in.read(magic, read, magic.length - read);
+        if (count == -1) {
+          return false;
+        }
+        read += count;
+      }
+      return Arrays.equals(magic, MAGIC);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * LZF decompression, for strings that redis compressed when saving.
+   */
+  private static byte[] decompress(byte[] in, int length) throws IOException {
+    byte[] out = new byte[length];
+    int ip = 0;
+    int op = 0;
+    try {
+      while (ip < in.length) {
+        int control = in[ip++] & 0xFF;
+        if (control < 32) {
+          // A run of literal bytes
+          control++;
+          System.arraycopy(in, ip, out, op, control);
+          ip += control;
+          op += control;
+        } else {
+          // A back reference into what has been decompressed so far
+          int count = control >> 5;
+          if (count == 7) {
+            count += in[ip++] & 0xFF;
+          }
+          int ref = op - ((control & 0x1F) << 8) - (in[ip++] & 0xFF) - 1;
+          count += 2;
+          for (int i = 0; i < count; i++) {
+            out[op++] = out[ref++];
+          }
+        }
+      }
+    } catch (IndexOutOfBoundsException e) {
+      throw new IOException("Corrupt LZF string");
+    }
+    if (op != length) {
+      throw new IOException("Corrupt LZF string");
+    }
+    return out;
+  }
+}
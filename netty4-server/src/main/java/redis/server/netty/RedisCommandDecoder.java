@@ -1,73 +1,273 @@
 package redis.server.netty;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.ReplayingDecoder;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.util.ReferenceCountUtil;
 import redis.netty4.Command;
 
-import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 import static redis.netty4.RedisReplyDecoder.readLong;
 
 /**
- * Decode commands.
+ * Decode commands incrementally. Nothing is parsed twice when more data
+ * arrives and every byte passed to decode is consumed, so the buffer the
+ * arguments are sliced from is released rather than compacted underneath
+ * them. An argument split across reads is collected into a buffer of exactly
+ * its size.
+ * <p/>
+ * By default arguments are copied into byte[]s for RedisServer. Otherwise they
+ * are retained ByteBuf slices that the consumer of the Command has to release
+ * with Command.release(). Inline commands always have byte[] arguments.
  */
-public class RedisCommandDecoder extends ReplayingDecoder<Void> {
+public class RedisCommandDecoder extends ByteToMessageDecoder {
 
-  private byte[][] bytes;
-  private int arguments = 0;
+  // Same limits as redis
+  private static final int MAX_INLINE = 64 * 1024;
+  private static final int MAX_ARGUMENTS = 1024 * 1024;
+  private static final int MAX_BULK = 512 * 1024 * 1024;
+
+  private final boolean copy;
+
+  // The multibulk command being read and the next argument to fill in
+  private Object[] arguments;
+  private int index;
+  // Length of the argument being read, -1 while reading a line
+  private int bulkLength = -1;
+  // Argument that didn't arrive in one read and how much of it, CRLF included, we have
+  private Object bulk;
+  private int bulkRead;
+  // Start of a line that didn't arrive in one read
+  private ByteBuf line;
+  // Every byte read, for CLIENT LIST
+  private volatile long read;
+
+  public RedisCommandDecoder() {
+    this(true);
+  }
+
+  /**
+   * @param copy true to read arguments into byte[]s, false for retained ByteBuf slices
+   */
+  public RedisCommandDecoder(boolean copy) {
+    this.copy = copy;
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    if (msg instanceof ByteBuf) {
+      read += ((ByteBuf) msg).readableBytes();
+    }
+    super.channelRead(ctx, msg);
+  }
+
+  /**
+   * How many bytes have been read.
+   */
+  long read() {
+    return read;
+  }
+
+  /**
+   * How many bytes of the command being read have arrived but can't be
+   * decoded yet, CLIENT LIST's qbuf. Racy when asked from another thread.
+   */
+  int buffered() {
+    ByteBuf line = this.line;
+    return (line == null ? 0 : line.readableBytes()) + (bulk == null ? 0 : bulkRead);
+  }
 
   @Override
   protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
-    if (bytes != null) {
-      int numArgs = bytes.length;
-      for (int i = arguments; i < numArgs; i++) {
-        if (in.readByte() == '$') {
-          long l = readLong(in);
-          if (l > Integer.MAX_VALUE) {
-            throw new IllegalArgumentException("Java only supports arrays up to " + Integer.MAX_VALUE + " in size");
+    try {
+      while (in.isReadable()) {
+        if (bulkLength >= 0) {
+          if (!readBulk(ctx, in)) {
+            return;
           }
-          int size = (int) l;
-          bytes[i] = new byte[size];
-          in.readBytes(bytes[i]);
-          if (in.bytesBefore((byte) '\r') != 0) {
-            throw new RedisException("Argument doesn't end in CRLF");
+          if (index == arguments.length) {
+            out.add(new Command(arguments));
+            arguments = null;
           }
-          in.skipBytes(2);
-          arguments++;
-          checkpoint();
         } else {
-          throw new IOException("Unexpected character");
+          ByteBuf header = readLine(in);
+          if (header == null) {
+            return;
+          }
+          try {
+            decodeLine(header, out);
+          } finally {
+            if (header == line) {
+              line.clear();
+            }
+          }
         }
       }
-      try {
-        out.add(new Command(bytes));
-      } finally {
-        bytes = null;
-        arguments = 0;
+    } catch (Exception e) {
+      reset();
+      throw e;
+    }
+  }
+
+  /**
+   * Returns a complete line, including its LF, or saves what there is of it.
+   */
+  private ByteBuf readLine(ByteBuf in) throws RedisException {
+    int length = in.bytesBefore((byte) '\n');
+    boolean partial = line != null && line.isReadable();
+    if (length == -1) {
+      if (line == null) {
+        line = Unpooled.buffer();
+      }
+      if (line.readableBytes() + in.readableBytes() > MAX_INLINE) {
+        throw new RedisException("Protocol error: too big request");
+      }
+      line.writeBytes(in);
+      return null;
+    }
+    if ((partial ? line.readableBytes() : 0) + length > MAX_INLINE) {
+      throw new RedisException("Protocol error: too big request");
+    }
+    if (partial) {
+      line.writeBytes(in, length + 1);
+      return line;
+    }
+    return in.readSlice(length + 1);
+  }
+
+  private void decodeLine(ByteBuf header, List<Object> out) throws Exception {
+    byte type = header.readByte();
+    if (arguments != null) {
+      if (type != '$') {
+        throw new RedisException("Protocol error: expected '$', got '" + (char) type + "'");
+      }
+      long length = readLong(header);
+      if (length < 0 || length > MAX_BULK) {
+        throw new RedisException("Protocol error: invalid bulk length");
       }
-    } else if (in.readByte() == '*') {
-      long l = readLong(in);
-      if (l > Integer.MAX_VALUE) {
-        throw new IllegalArgumentException("Java only supports arrays up to " + Integer.MAX_VALUE + " in size");
+      bulkLength = (int) length;
+    } else if (type == '*') {
+      long count = readLong(header);
+      if (count > MAX_ARGUMENTS) {
+        throw new RedisException("Protocol error: invalid multibulk length");
       }
-      int numArgs = (int) l;
-      if (numArgs < 0) {
-        throw new RedisException("Invalid size: " + numArgs);
+      // Like redis, empty multibulks are ignored
+      if (count > 0) {
+        arguments = new Object[(int) count];
+        index = 0;
       }
-      bytes = new byte[numArgs][];
-      checkpoint();
-      decode(ctx, in, out);
     } else {
-      // Go backwards one
-      in.readerIndex(in.readerIndex() - 1);
-      // Read command -- can't be interupted
-      byte[][] b = new byte[1][];
-      b[0] = in.readBytes(in.bytesBefore((byte) '\r')).array();
+      header.readerIndex(header.readerIndex() - 1);
+      Object[] inline = inline(header);
+      if (inline.length > 0) {
+        out.add(new Command(inline, true));
+      }
+    }
+  }
+
+  /**
+   * Split an inline command on spaces.
+   */
+  private static Object[] inline(ByteBuf header) {
+    List<byte[]> words = new ArrayList<byte[]>();
+    int end = header.writerIndex();
+    while (end > header.readerIndex() && (header.getByte(end - 1) == '\n' || header.getByte(end - 1) == '\r')) {
+      end--;
+    }
+    int i = header.readerIndex();
+    while (i < end) {
+      while (i < end && isSpace(header.getByte(i))) i++;
+      int start = i;
+      while (i < end && !isSpace(header.getByte(i))) i++;
+      if (i > start) {
+        byte[] word = new byte[i - start];
+        header.getBytes(start, word);
+        words.add(word);
+      }
+    }
+    header.readerIndex(header.writerIndex());
+    return words.toArray();
+  }
+
+  private static boolean isSpace(byte b) {
+    return b == ' ' || b == '\t';
+  }
+
+  /**
+   * Returns true once the current argument, and its CRLF, has been read.
+   */
+  private boolean readBulk(ChannelHandlerContext ctx, ByteBuf in) throws RedisException {
+    if (bulk == null && in.readableBytes() >= bulkLength + 2) {
+      int end = in.readerIndex() + bulkLength;
+      if (in.getByte(end) != '\r' || in.getByte(end + 1) != '\n') {
+        throw new RedisException("Protocol error: argument doesn't end in CRLF");
+      }
+      if (copy) {
+        byte[] bytes = new byte[bulkLength];
+        in.readBytes(bytes);
+        arguments[index++] = bytes;
+      } else {
+        arguments[index++] = in.readSlice(bulkLength).retain();
+      }
       in.skipBytes(2);
-      out.add(new Command(b, true));
+      bulkLength = -1;
+      return true;
+    }
+    if (bulk == null) {
+      bulk = copy ? new byte[bulkLength] : ctx.alloc().buffer(bulkLength);
+      bulkRead = 0;
     }
+    int length = Math.min(in.readableBytes(), bulkLength - bulkRead);
+    if (length > 0) {
+      if (copy) {
+        in.readBytes((byte[]) bulk, bulkRead, length);
+      } else {
+        in.readBytes((ByteBuf) bulk, length);
+      }
+      bulkRead += length;
+    }
+    while (bulkRead >= bulkLength && bulkRead < bulkLength + 2 && in.isReadable()) {
+      if (in.readByte() != (bulkRead == bulkLength ? '\r' : '\n')) {
+        throw new RedisException("Protocol error: argument doesn't end in CRLF");
+      }
+      bulkRead++;
+    }
+    if (bulkRead < bulkLength + 2) {
+      return false;
+    }
+    arguments[index++] = bulk;
+    bulk = null;
+    bulkLength = -1;
+    return true;
   }
 
+  /**
+   * Drop the command being read, releasing anything it retained.
+   */
+  private void reset() {
+    if (arguments != null) {
+      for (int i = 0; i < index; i++) {
+        ReferenceCountUtil.release(arguments[i]);
+      }
+      arguments = null;
+    }
+    ReferenceCountUtil.release(bulk);
+    bulk = null;
+    bulkLength = -1;
+    if (line != null) {
+      line.clear();
+    }
+  }
+
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    try {
+      super.channelInactive(ctx);
+    } finally {
+      reset();
+    }
+  }
 }
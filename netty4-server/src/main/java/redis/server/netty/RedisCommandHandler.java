@@ -1,100 +1,875 @@
 package redis.server.netty;
 
-import com.google.common.base.Charsets;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.util.Attribute;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import redis.netty4.BulkReply;
 import redis.netty4.Command;
 import redis.netty4.ErrorReply;
 import redis.netty4.InlineReply;
+import redis.netty4.MultiBulkReply;
 import redis.netty4.Reply;
+
 import redis.util.BytesKey;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
+import static redis.netty4.BulkReply.NIL_REPLY;
 import static redis.netty4.ErrorReply.NYI_REPLY;
+import static redis.netty4.IntegerReply.integer;
+import static redis.netty4.StatusReply.OK;
+import static redis.netty4.StatusReply.QUEUED;
 import static redis.netty4.StatusReply.QUIT;
+import static redis.server.netty.ShardedEngine.ANY;
+import static redis.server.netty.ShardedEngine.COORDINATED;
 
 /**
- * Handle decoded commands
+ * Handle decoded commands. Each connection executes its commands in order,
+ * one batch at a time, where a batch is the longest run of pending commands
+ * that can all execute on the same shard. A blocking command ends its batch
+ * and, if it has to wait, leaves the connection waiting with it.
+ * <p/>
+ * Nothing is executed until everything decoded from a read is pending, so a
+ * pipeline that arrives in one read goes to its shard as one task rather
+ * than the first command on its own and the rest after it. The replies of a
+ * batch are encoded by a ReplyBuffer and written and flushed once.
+ * <p/>
+ * Subscribing and unsubscribing only change the connection, so they run on
+ * its executor as they reach the front of the pending commands. So do MULTI
+ * and DISCARD, and the commands queued in between, while EXEC runs them all
+ * as a batch of its own.
+ * <p/>
+ * Replies that haven't been sent yet are counted against the connection's
+ * client-output-buffer-limit and it is closed, like in redis, if they go over
+ * it. While its channel isn't writable no more commands are read from it or
+ * executed, so a client that pipelines faster than it reads its replies only
+ * ever has about a batch of them waiting.
+ * <p/>
+ * Every connection is in the engine's Clients from when it becomes active,
+ * and the CLIENT commands run here since they are about the connection
+ * that sent them or the others, not the keyspace.
+ * <p/>
+ * A connection that sends SYNC or PSYNC becomes a replica and is only sent
+ * the replication stream from then on, see ShardedEngine.replicate().
  */
 @ChannelHandler.Sharable
 public class RedisCommandHandler extends SimpleChannelInboundHandler<Command> {
 
-  private Map<BytesKey, Wrapper> methods = new HashMap<BytesKey, Wrapper>();
+  private static final byte[] SUBSCRIBE = "subscribe".getBytes();
+  private static final byte[] UNSUBSCRIBE = "unsubscribe".getBytes();
+  private static final byte[] PSUBSCRIBE = "psubscribe".getBytes();
+  private static final byte[] PUNSUBSCRIBE = "punsubscribe".getBytes();
+  private static final byte[] PING = "ping".getBytes();
+  private static final byte[] PONG = "pong".getBytes();
+  private static final byte[] QUIT_NAME = "quit".getBytes();
+  private static final byte[] MULTI = "multi".getBytes();
+  private static final byte[] EXEC = "exec".getBytes();
+  private static final byte[] DISCARD = "discard".getBytes();
+  private static final byte[] WATCH = "watch".getBytes();
+  private static final byte[] UNWATCH = "unwatch".getBytes();
+  private static final byte[] SYNC = "sync".getBytes();
+  private static final byte[] PSYNC = "psync".getBytes();
+  private static final byte[] REPLCONF = "replconf".getBytes();
+  private static final byte[] CLIENT = "client".getBytes();
+  private static final ErrorReply READONLY = new ErrorReply("READONLY You can't write against a read only replica.");
 
-  interface Wrapper {
-    Reply execute(Command command) throws RedisException;
-  }
+  private final ShardedEngine engine;
 
   public RedisCommandHandler(final RedisServer rs) {
-    Class<? extends RedisServer> aClass = rs.getClass();
-    for (final Method method : aClass.getMethods()) {
-      final Class<?>[] types = method.getParameterTypes();
-      methods.put(new BytesKey(method.getName().getBytes()), new Wrapper() {
+    this(new ShardedEngine(rs));
+  }
+
+  public RedisCommandHandler(ShardedEngine engine) {
+    this.engine = engine;
+  }
+
+  private Connection connection(ChannelHandlerContext ctx) {
+    Attribute<Connection> attr = ctx.channel().attr(Connection.KEY);
+    Connection connection = attr.get();
+    if (connection == null) {
+      connection = engine.clients().connect(ctx.channel(), (ctx.channel().hashCode() & Integer.MAX_VALUE) % engine.size());
+      attr.set(connection);
+    }
+    return connection;
+  }
+
+  @Override
+  public void channelActive(ChannelHandlerContext ctx) throws Exception {
+    connection(ctx);
+    super.channelActive(ctx);
+  }
+
+  @Override
+  protected void channelRead0(ChannelHandlerContext ctx, Command msg) throws Exception {
+    // Looked up once, routing and executing it read the id off the command
+    RedisServerDispatcher.lookup(msg);
+    connection(ctx).pending.add(msg);
+  }
+
+  @Override
+  public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+    Connection connection = ctx.channel().attr(Connection.KEY).get();
+    if (connection != null) {
+      connection.interacted = System.currentTimeMillis();
+      if (!connection.busy) {
+        execute(ctx, connection);
+      }
+    }
+    super.channelReadComplete(ctx);
+  }
+
+  @Override
+  public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+    Connection connection = ctx.channel().attr(Connection.KEY).get();
+    boolean writable = ctx.channel().isWritable();
+    // A replica still has to be read for its acknowledgements, its stream
+    // has a limit of its own
+    if (connection == null || connection.replica == null) {
+      ctx.channel().config().setAutoRead(writable);
+    }
+    if (writable && connection != null && !connection.busy) {
+      execute(ctx, connection);
+    }
+    super.channelWritabilityChanged(ctx);
+  }
+
+  private void execute(final ChannelHandlerContext ctx, final Connection connection) {
+    if (!ctx.channel().isActive() || !ctx.channel().isWritable()) {
+      // Once it is writable again
+      return;
+    }
+    boolean ran = false;
+    Command head;
+    while ((head = connection.pending.peek()) != null && local(ctx, connection, head)) {
+      // Whatever it cleared, the command itself is done
+      connection.pending.poll();
+      if (!queued(connection, head)) {
+        called(connection, head);
+      }
+      ran = true;
+    }
+    if (ran) {
+      ctx.flush();
+    }
+    if (connection.pending.isEmpty()) {
+      return;
+    }
+    final List<Command> batch = new ArrayList<Command>();
+    byte[] name = connection.pending.peek().getName();
+    if (equalsIgnoreCase(name, EXEC) || equalsIgnoreCase(name, WATCH)) {
+      final Command command = connection.pending.poll();
+      batch.add(command);
+      Transaction transaction = transaction(connection);
+      final Future<Reply> future;
+      final List<Command> queued;
+      final boolean exec = equalsIgnoreCase(name, EXEC);
+      if (exec) {
+        queued = transaction.queued;
+        transaction.discard();
+        future = engine.exec(transaction, queued, connection.home);
+      } else {
+        queued = batch;
+        future = engine.watch(transaction, CommandSpec.lookup(RedisServerDispatcher.WATCH).keys(command));
+      }
+      connection.busy = true;
+      future.addListener(new GenericFutureListener<Future<Reply>>() {
         @Override
-        public Reply execute(Command command) throws RedisException {
-          Object[] objects = new Object[types.length];
-          try {
-            command.toArguments(objects, types);
-            return (Reply) method.invoke(rs, objects);
-          } catch (IllegalAccessException e) {
-            throw new RedisException("Invalid server implementation");
-          } catch (InvocationTargetException e) {
-            Throwable te = e.getTargetException();
-            if (!(te instanceof RedisException)) {
-              te.printStackTrace();
+        public void operationComplete(final Future<Reply> future) throws Exception {
+          engine.sync(queued, new Runnable() {
+            @Override
+            public void run() {
+              if (exec && future.isSuccess() && future.getNow() != MultiBulkReply.NIL_REPLY) {
+                // Ahead of the reply, which counts the EXEC itself
+                ctx.executor().execute(new Runnable() {
+                  @Override
+                  public void run() {
+                    for (Command command : queued) {
+                      called(connection, command);
+                    }
+                  }
+                });
+              }
+              reply(ctx, connection, batch, future.isSuccess() ? new Reply[]{future.getNow()} : null, future.cause());
             }
-            return new ErrorReply("ERR " + te.getMessage());
-          } catch (Exception e) {
-            return new ErrorReply("ERR " + e.getMessage());
-          }
+          });
+        }
+      });
+      return;
+    }
+    int shard = engine.route(connection.pending.peek());
+    if (shard == COORDINATED) {
+      final Command command = connection.pending.poll();
+      batch.add(command);
+      connection.busy = true;
+      engine.coordinate(command).addListener(new GenericFutureListener<Future<Reply>>() {
+        @Override
+        public void operationComplete(Future<Reply> future) throws Exception {
+          complete(ctx, connection, batch, future.isSuccess() ? new Reply[]{future.getNow()} : null, future.cause());
         }
       });
+      return;
     }
+    batch.add(connection.pending.poll());
+    while (!connection.pending.isEmpty() && !blocks(batch.get(batch.size() - 1))
+        && !isSubscription(connection.pending.peek().getName()) && !isTransaction(connection.pending.peek().getName())
+        && !isReplication(connection.pending.peek().getName()) && !equalsIgnoreCase(connection.pending.peek().getName(), CLIENT)
+        && !engine.isReadOnly(connection.pending.peek())) {
+      int next = engine.route(connection.pending.peek());
+      if (next == COORDINATED || (next != ANY && shard != ANY && next != shard)) {
+        break;
+      }
+      if (shard == ANY) {
+        shard = next;
+      }
+      batch.add(connection.pending.poll());
+    }
+    if (shard == ANY) {
+      shard = connection.home;
+    }
+    connection.busy = true;
+    engine.shard(shard).submit(batch).addListener(new GenericFutureListener<Future<Reply[]>>() {
+      @Override
+      public void operationComplete(Future<Reply[]> future) throws Exception {
+        complete(ctx, connection, batch, future.getNow(), future.cause());
+      }
+    });
   }
 
-  private static final byte LOWER_DIFF = 'a' - 'A';
+  /**
+   * Called on the shard or coordinator thread once a batch is done. Hops
+   * back to the handler's executor to write the replies in order, after any
+   * writes in the batch are on disk when appendfsync is always.
+   */
+  private void complete(final ChannelHandlerContext ctx, final Connection connection,
+                        final List<Command> batch, final Reply[] replies, final Throwable cause) {
+    engine.sync(batch, new Runnable() {
+      @Override
+      public void run() {
+        reply(ctx, connection, batch, replies, cause);
+      }
+    });
+  }
 
-  @Override
-  public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+  private void reply(final ChannelHandlerContext ctx, final Connection connection,
+                     final List<Command> batch, final Reply[] replies, final Throwable cause) {
+    ctx.executor().execute(new Runnable() {
+      @Override
+      public void run() {
+        connection.busy = false;
+        connection.blocked = null;
+        if (!ctx.channel().isActive() && connection.transaction != null) {
+          // It went away while watching keys
+          engine.unwatch(connection.transaction);
+        }
+        ReplyBuffer out = new ReplyBuffer(ctx.alloc());
+        for (int i = 0; i < batch.size(); i++) {
+          Reply reply = replies == null ? new ErrorReply("ERR " + cause.getMessage()) : replies[i];
+          if (reply instanceof Blocking.Waiter) {
+            // Always the last of its batch, so everything before it can go
+            if (!write(connection, out.finish())) {
+              return;
+            }
+            block(ctx, connection, batch.get(i), (Blocking.Waiter) reply);
+            return;
+          }
+          called(connection, batch.get(i));
+          if (reply == QUIT) {
+            for (int j = i + 1; j < batch.size(); j++) {
+              ReferenceCountUtil.release(replies[j]);
+            }
+            connection.pending.clear();
+            // The replies ahead of it count against the limit like any others
+            if (write(connection, out.finish())) {
+              ctx.writeAndFlush(reply).addListener(ChannelFutureListener.CLOSE);
+            }
+            return;
+          }
+          encode(out, batch.get(i), reply);
+        }
+        if (write(connection, out.finish())) {
+          execute(ctx, connection);
+        }
+      }
+    });
+  }
+
+  /**
+   * Write and flush the replies of a batch. Returns false, having closed the
+   * connection instead, if they would put it over its output buffer limit.
+   */
+  private boolean write(Connection connection, ByteBuf replies) {
+    return connection.send(replies, engine.config().outputLimit(connection.clientClass()));
+  }
+
+  /**
+   * Count a command once it has run, like redis does in call(), for CLIENT
+   * LIST. Only ever called on the connection's executor.
+   */
+  private static void called(Connection connection, Command command) {
+    connection.command = command.getName();
+    connection.commands++;
+  }
+
+  /**
+   * Whether a command was just queued by MULTI, which only counts once EXEC
+   * runs it.
+   */
+  private static boolean queued(Connection connection, Command command) {
+    Transaction transaction = connection.transaction;
+    return transaction != null && transaction.isQueueing() && !transaction.queued.isEmpty()
+        && transaction.queued.get(transaction.queued.size() - 1) == command;
+  }
+
+  /**
+   * Nothing more is read from the connection's pending commands until the
+   * blocked command has its reply.
+   */
+  private void block(final ChannelHandlerContext ctx, final Connection connection,
+                     Command command, Blocking.Waiter waiter) {
+    connection.busy = true;
+    connection.blocked = waiter;
+    final List<Command> batch = Collections.singletonList(command);
+    waiter.data().addListener(new GenericFutureListener<Future<Reply>>() {
+      @Override
+      public void operationComplete(Future<Reply> future) throws Exception {
+        complete(ctx, connection, batch, new Reply[]{future.getNow()}, null);
+      }
+    });
+  }
+
+  /**
+   * Run a command that only changes the connection and write its reply.
+   * Returns false for any other command, which has to execute on a shard.
+   */
+  private boolean local(ChannelHandlerContext ctx, Connection connection, Command command) {
+    if (replication(ctx, connection, command)) {
+      return true;
+    }
+    boolean readonly = engine.isReadOnly(command);
+    if (connection.transaction != null && connection.transaction.isQueueing()) {
+      if (readonly) {
+        connection.transaction.failed = true;
+        ctx.write(READONLY);
+        return true;
+      }
+      return transaction(ctx, connection, command);
+    }
+    if (subscription(ctx, connection, command)) {
+      return true;
+    }
+    if (client(ctx, connection, command)) {
+      return true;
+    }
+    if (readonly) {
+      ctx.write(READONLY);
+      return true;
+    }
+    return transaction(ctx, connection, command);
+  }
+
+  /**
+   * REPLCONF, and SYNC or PSYNC, which hand the connection over to the
+   * replication stream. Whatever else a replica sends is ignored.
+   */
+  private boolean replication(ChannelHandlerContext ctx, Connection connection, Command command) {
+    byte[] name = command.getName();
+    Object[] objects = command.getObjects();
+    Replication.Replica replica = connection.replica;
+    if (equalsIgnoreCase(name, REPLCONF)) {
+      if (objects.length % 2 == 0) {
+        ctx.write(new ErrorReply("ERR wrong number of arguments for 'replconf' command"));
+        return true;
+      }
+      for (int i = 1; i < objects.length; i += 2) {
+        String option = new String((byte[]) objects[i]);
+        String value = new String((byte[]) objects[i + 1]);
+        try {
+          if (option.equalsIgnoreCase("ack")) {
+            // Never replied to
+            if (replica != null) {
+              replica.ack(Long.parseLong(value));
+            }
+            return true;
+          } else if (option.equalsIgnoreCase("listening-port")) {
+            replica(ctx, connection).port = Integer.parseInt(value);
+          }
+        } catch (NumberFormatException e) {
+          ctx.write(new ErrorReply("ERR value is not an integer or out of range"));
+          return true;
+        }
+      }
+      ctx.write(OK);
+      return true;
+    }
+    if (replica != null && replica.requested) {
+      return true;
+    }
+    boolean psync = equalsIgnoreCase(name, PSYNC);
+    if (!psync && !equalsIgnoreCase(name, SYNC)) {
+      return false;
+    }
+    if (psync && objects.length != 3) {
+      ctx.write(new ErrorReply("ERR wrong number of arguments for 'psync' command"));
+      return true;
+    }
+    if (connection.subscriber != null && connection.subscriber.count() > 0 ||
+        connection.transaction != null && connection.transaction.isQueueing()) {
+      ctx.write(new ErrorReply("ERR Replica can't be in a transaction or subscribed"));
+      return true;
+    }
+    replica = replica(ctx, connection);
+    replica.requested = true;
+    replica.psync = psync;
+    long want = -1;
+    if (psync) {
+      try {
+        want = Long.parseLong(new String((byte[]) objects[2]));
+      } catch (NumberFormatException e) {
+        // Resynchronized from scratch
+      }
+    }
+    // Replies written so far go out before the stream
     ctx.flush();
+    engine.replicate(replica, psync ? new String((byte[]) objects[1]) : "?", want);
+    return true;
   }
 
-  @Override
-  protected void channelRead0(ChannelHandlerContext ctx, Command msg) throws Exception {
-    byte[] name = msg.getName();
+  private Replication.Replica replica(ChannelHandlerContext ctx, Connection connection) {
+    if (connection.replica == null) {
+      connection.replica = new Replication.Replica(ctx.channel());
+    }
+    return connection.replica;
+  }
+
+  private Transaction transaction(Connection connection) {
+    if (connection.transaction == null) {
+      connection.transaction = new Transaction();
+    }
+    return connection.transaction;
+  }
+
+  /**
+   * MULTI, DISCARD and UNWATCH, and anything sent between MULTI and EXEC,
+   * which is queued. Returns false for EXEC and WATCH once they are ready to
+   * execute, and for commands outside of a transaction.
+   */
+  private boolean transaction(ChannelHandlerContext ctx, Connection connection, Command command) {
+    byte[] name = command.getName();
+    Transaction transaction = connection.transaction;
+    boolean queueing = transaction != null && transaction.isQueueing();
+    if (equalsIgnoreCase(name, MULTI)) {
+      if (queueing) {
+        ctx.write(new ErrorReply("ERR MULTI calls can not be nested"));
+      } else {
+        transaction(connection).queued = new ArrayList<Command>();
+        ctx.write(OK);
+      }
+    } else if (equalsIgnoreCase(name, EXEC)) {
+      if (!queueing) {
+        ctx.write(new ErrorReply("ERR EXEC without MULTI"));
+      } else if (transaction.failed) {
+        transaction.discard();
+        engine.unwatch(transaction);
+        ctx.write(new ErrorReply("EXECABORT Transaction discarded because of previous errors."));
+      } else {
+        return false;
+      }
+    } else if (equalsIgnoreCase(name, DISCARD)) {
+      if (!queueing) {
+        ctx.write(new ErrorReply("ERR DISCARD without MULTI"));
+      } else {
+        transaction.discard();
+        engine.unwatch(transaction);
+        ctx.write(OK);
+      }
+    } else if (equalsIgnoreCase(name, WATCH)) {
+      if (queueing) {
+        ctx.write(new ErrorReply("ERR WATCH inside MULTI is not allowed"));
+      } else if (command.getObjects().length < 2) {
+        ctx.write(new ErrorReply("ERR wrong number of arguments for 'watch' command"));
+      } else {
+        return false;
+      }
+    } else if (!queueing) {
+      if (!equalsIgnoreCase(name, UNWATCH)) {
+        return false;
+      }
+      if (transaction != null) {
+        engine.unwatch(transaction);
+      }
+      ctx.write(OK);
+    } else if (equalsIgnoreCase(name, QUIT_NAME)) {
+      return false;
+    } else {
+      int id = RedisServerDispatcher.lookup(command);
+      if (id == RedisServerDispatcher.UNKNOWN || isSubscription(name)) {
+        transaction.failed = true;
+        ctx.write(new ErrorReply("ERR unknown command '" + new String(name) + "'"));
+      } else if (CommandSpec.lookup(id).isEngine() || equalsIgnoreCase(name, CLIENT)) {
+        transaction.failed = true;
+        ctx.write(new ErrorReply("ERR Command not allowed inside a transaction"));
+      } else {
+        transaction.queued.add(command);
+        ctx.write(QUEUED);
+      }
+    }
+    return true;
+  }
+
+  private static boolean isReplication(byte[] name) {
+    return equalsIgnoreCase(name, SYNC) || equalsIgnoreCase(name, PSYNC) || equalsIgnoreCase(name, REPLCONF);
+  }
+
+  private static boolean isTransaction(byte[] name) {
+    return equalsIgnoreCase(name, MULTI) || equalsIgnoreCase(name, EXEC) || equalsIgnoreCase(name, DISCARD) ||
+        equalsIgnoreCase(name, WATCH) || equalsIgnoreCase(name, UNWATCH);
+  }
+
+  /**
+   * Run a command that changes subscriptions, or that a subscribed
+   * connection sent, and write its replies. Returns false for any other
+   * command, which has to execute on a shard.
+   */
+  private boolean subscription(ChannelHandlerContext ctx, Connection connection, Command command) {
+    byte[] name = command.getName();
+    PubSub.Subscriber subscriber = connection.subscriber;
+    if (!isSubscription(name)) {
+      if (subscriber == null || subscriber.count() == 0 || equalsIgnoreCase(name, QUIT_NAME)) {
+        return false;
+      }
+      Object[] objects = command.getObjects();
+      if (equalsIgnoreCase(name, PING) && objects.length <= 2) {
+        ctx.write(new MultiBulkReply(new Reply[]{
+            new BulkReply(PONG), new BulkReply(objects.length == 2 ? (byte[]) objects[1] : new byte[0])}));
+      } else {
+        ctx.write(new ErrorReply("ERR Can't execute '" + new String(name).toLowerCase() +
+            "': only (P)SUBSCRIBE / (P)UNSUBSCRIBE / PING / QUIT are allowed in this context"));
+      }
+      return true;
+    }
+    Object[] objects = command.getObjects();
+    boolean subscribe = equalsIgnoreCase(name, SUBSCRIBE) || equalsIgnoreCase(name, PSUBSCRIBE);
+    boolean patterns = equalsIgnoreCase(name, PSUBSCRIBE) || equalsIgnoreCase(name, PUNSUBSCRIBE);
+    byte[] kind = patterns ? (subscribe ? PSUBSCRIBE : PUNSUBSCRIBE) : (subscribe ? SUBSCRIBE : UNSUBSCRIBE);
+    if (subscribe && objects.length < 2) {
+      ctx.write(new ErrorReply("ERR wrong number of arguments for '" + new String(kind) + "' command"));
+      return true;
+    }
+    if (subscriber == null) {
+      subscriber = connection.subscriber = new PubSub.Subscriber(connection);
+    }
+    PubSub pubsub = engine.pubsub();
+    List<byte[]> targets = new ArrayList<byte[]>();
+    for (int i = 1; i < objects.length; i++) {
+      targets.add((byte[]) objects[i]);
+    }
+    if (objects.length == 1) {
+      // Everything it is subscribed to, of that kind
+      for (BytesKey key : patterns ? subscriber.patterns : subscriber.channels) {
+        targets.add(key.getBytes());
+      }
+      if (targets.isEmpty()) {
+        ctx.write(new MultiBulkReply(new Reply[]{new BulkReply(kind), NIL_REPLY, integer(subscriber.count())}));
+        return true;
+      }
+    }
+    for (byte[] target : targets) {
+      if (patterns) {
+        if (subscribe) pubsub.psubscribe(subscriber, target);
+        else pubsub.punsubscribe(subscriber, target);
+      } else {
+        if (subscribe) pubsub.subscribe(subscriber, target);
+        else pubsub.unsubscribe(subscriber, target);
+      }
+      ctx.write(new MultiBulkReply(new Reply[]{new BulkReply(kind), new BulkReply(target), integer(subscriber.count())}));
+    }
+    return true;
+  }
+
+  private static boolean isSubscription(byte[] name) {
+    return equalsIgnoreCase(name, SUBSCRIBE) || equalsIgnoreCase(name, UNSUBSCRIBE) ||
+        equalsIgnoreCase(name, PSUBSCRIBE) || equalsIgnoreCase(name, PUNSUBSCRIBE);
+  }
+
+  private static boolean equalsIgnoreCase(byte[] name, byte[] lower) {
+    if (name.length != lower.length) {
+      return false;
+    }
     for (int i = 0; i < name.length; i++) {
-      byte b = name[i];
-      if (b >= 'A' && b <= 'Z') {
-        name[i] = (byte) (b + LOWER_DIFF);
+      if ((name[i] | 0x20) != lower[i]) {
+        return false;
       }
     }
-    Wrapper wrapper = methods.get(new BytesKey(name));
-    Reply reply;
-    if (wrapper == null) {
-      reply = new ErrorReply("unknown command '" + new String(name, Charsets.US_ASCII) + "'");
-    } else {
-      reply = wrapper.execute(msg);
+    return true;
+  }
+
+  /**
+   * CLIENT LIST, KILL, GETNAME, SETNAME and ID. Returns false for any other
+   * command.
+   */
+  private boolean client(ChannelHandlerContext ctx, Connection connection, Command command) {
+    if (!equalsIgnoreCase(command.getName(), CLIENT)) {
+      return false;
+    }
+    Object[] objects = command.getObjects();
+    String subcommand = objects.length < 2 ? "" : new String((byte[]) objects[1]).toLowerCase();
+    try {
+      if (subcommand.equals("list")) {
+        ctx.write(new BulkReply(clientList(objects).getBytes()));
+      } else if (subcommand.equals("kill")) {
+        clientKill(ctx, connection, objects);
+      } else if (subcommand.equals("getname") && objects.length == 2) {
+        String name = connection.name;
+        ctx.write(name == null ? NIL_REPLY : new BulkReply(name.getBytes()));
+      } else if (subcommand.equals("setname") && objects.length == 3) {
+        byte[] name = (byte[]) objects[2];
+        for (byte b : name) {
+          if (b < '!' || b > '~') {
+            throw new RedisException("Client names cannot contain spaces, newlines or special characters.");
+          }
+        }
+        connection.name = name.length == 0 ? null : new String(name);
+        ctx.write(OK);
+      } else if (subcommand.equals("id") && objects.length == 2) {
+        ctx.write(integer(connection.id));
+      } else if (subcommand.equals("getname") || subcommand.equals("setname") || subcommand.equals("id")) {
+        throw new RedisException("wrong number of arguments for 'client|" + subcommand + "' command");
+      } else {
+        throw new RedisException("unknown subcommand '" + subcommand + "'. Try CLIENT HELP.");
+      }
+    } catch (RedisException e) {
+      ctx.write(new ErrorReply("ERR " + e.getMessage()));
+    }
+    return true;
+  }
+
+  /**
+   * CLIENT LIST [TYPE type] [ID id ...], a line per connection.
+   */
+  private String clientList(Object[] objects) throws RedisException {
+    Config.ClientClass type = null;
+    boolean types = false;
+    List<Long> ids = null;
+    for (int i = 2; i < objects.length; i++) {
+      String option = new String((byte[]) objects[i]);
+      if (option.equalsIgnoreCase("type") && i + 1 < objects.length) {
+        type = clientType(new String((byte[]) objects[++i]));
+        types = true;
+      } else if (option.equalsIgnoreCase("id") && i + 1 < objects.length) {
+        ids = new ArrayList<Long>();
+        while (++i < objects.length) {
+          ids.add(clientId(new String((byte[]) objects[i])));
+        }
+      } else {
+        throw new RedisException("syntax error");
+      }
+    }
+    long now = System.currentTimeMillis();
+    StringBuilder sb = new StringBuilder();
+    for (Connection client : engine.clients().list()) {
+      if ((!types || type == client.clientClass()) && (ids == null || ids.contains(client.id))) {
+        clientInfo(sb, client, now);
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * CLIENT KILL ip:port, or CLIENT KILL with any of the ID, ADDR, LADDR, TYPE
+   * and SKIPME filters, which replies with how many connections it closed.
+   * Closing this connection waits for the reply to be sent.
+   */
+  private void clientKill(ChannelHandlerContext ctx, Connection connection, Object[] objects) throws RedisException {
+    if (objects.length < 3) {
+      throw new RedisException("wrong number of arguments for 'client|kill' command");
     }
-    if (reply == QUIT) {
-      ctx.close();
+    boolean old = objects.length == 3;
+    long id = 0;
+    String addr = null;
+    String laddr = null;
+    Config.ClientClass type = null;
+    boolean types = false;
+    boolean skipme = !old;
+    if (old) {
+      addr = new String((byte[]) objects[2]);
     } else {
-      if (msg.isInline()) {
-        if (reply == null) {
-          reply = new InlineReply(null);
+      if (objects.length % 2 != 0) {
+        throw new RedisException("syntax error");
+      }
+      for (int i = 2; i < objects.length; i += 2) {
+        String option = new String((byte[]) objects[i]);
+        String value = new String((byte[]) objects[i + 1]);
+        if (option.equalsIgnoreCase("id")) {
+          id = clientId(value);
+        } else if (option.equalsIgnoreCase("addr")) {
+          addr = value;
+        } else if (option.equalsIgnoreCase("laddr")) {
+          laddr = value;
+        } else if (option.equalsIgnoreCase("type")) {
+          type = clientType(value);
+          types = true;
+        } else if (option.equalsIgnoreCase("skipme") && (value.equalsIgnoreCase("yes") || value.equalsIgnoreCase("no"))) {
+          skipme = value.equalsIgnoreCase("yes");
         } else {
-          reply = new InlineReply(reply.data());
+          throw new RedisException("syntax error");
         }
       }
+    }
+    int killed = 0;
+    boolean self = false;
+    for (Connection client : engine.clients().list()) {
+      if ((id != 0 && client.id != id)
+          || (addr != null && !addr.equals(Clients.address(client.channel.remoteAddress())))
+          || (laddr != null && !laddr.equals(Clients.address(client.channel.localAddress())))
+          || (types && type != client.clientClass())
+          || (skipme && client == connection)) {
+        continue;
+      }
+      killed++;
+      if (client == connection) {
+        self = true;
+      } else {
+        client.channel.close();
+      }
+    }
+    if (old && killed == 0) {
+      throw new RedisException("No such client");
+    }
+    ChannelFuture written = ctx.write(old ? OK : integer(killed));
+    if (self) {
+      written.addListener(ChannelFutureListener.CLOSE);
+      connection.pending.clear();
+    }
+  }
+
+  /**
+   * A client type for CLIENT LIST and CLIENT KILL, null for master, which
+   * is never one of the connections here.
+   */
+  private static Config.ClientClass clientType(String type) throws RedisException {
+    if (type.equalsIgnoreCase("normal")) return Config.ClientClass.NORMAL;
+    if (type.equalsIgnoreCase("replica") || type.equalsIgnoreCase("slave")) return Config.ClientClass.REPLICA;
+    if (type.equalsIgnoreCase("pubsub")) return Config.ClientClass.PUBSUB;
+    if (type.equalsIgnoreCase("master")) return null;
+    throw new RedisException("Unknown client type '" + type + "'");
+  }
+
+  private static long clientId(String id) throws RedisException {
+    try {
+      long parsed = Long.parseLong(id);
+      if (parsed > 0) {
+        return parsed;
+      }
+    } catch (NumberFormatException e) {
+      // Same error as zero
+    }
+    throw new RedisException("client-id should be greater than 0");
+  }
+
+  /**
+   * One line of CLIENT LIST. The connection belongs to another thread, so
+   * this is a snapshot of what it had published when it was taken.
+   */
+  private static void clientInfo(StringBuilder sb, Connection client, long now) {
+    long interacted = client.interacted;
+    RedisCommandDecoder decoder = client.channel.pipeline().get(RedisCommandDecoder.class);
+    RedisReplyEncoder encoder = client.channel.pipeline().get(RedisReplyEncoder.class);
+    PubSub.Subscriber subscriber = client.subscriber;
+    Transaction transaction = client.transaction;
+    List<Command> queued = transaction == null ? null : transaction.queued;
+    String name = client.name;
+    byte[] command = client.command;
+    StringBuilder flags = new StringBuilder();
+    if (client.replica != null) flags.append('S');
+    if (subscriber != null && subscriber.count() > 0) flags.append('P');
+    if (queued != null) flags.append('x');
+    if (client.blocked != null) flags.append('b');
+    if (flags.length() == 0) flags.append('N');
+    sb.append("id=").append(client.id)
+        .append(" addr=").append(Clients.address(client.channel.remoteAddress()))
+        .append(" laddr=").append(Clients.address(client.channel.localAddress()))
+        .append(" name=").append(name == null ? "" : name)
+        .append(" age=").append((now - client.created) / 1000)
+        .append(" idle=").append(Math.max(0, now - interacted) / 1000)
+        .append(" flags=").append(flags)
+        .append(" db=0")
+        .append(" sub=").append(subscriber == null ? 0 : subscriber.channels.size())
+        .append(" psub=").append(subscriber == null ? 0 : subscriber.patterns.size())
+        .append(" multi=").append(queued == null ? -1 : queued.size())
+        .append(" qbuf=").append(decoder == null ? 0 : decoder.buffered())
+        .append(" omem=").append(client.queued)
+        .append(" tot-net-in=").append(decoder == null ? 0 : decoder.read())
+        .append(" tot-net-out=").append(encoder == null ? 0 : encoder.written())
+        .append(" tot-cmds=").append(client.commands)
+        .append(" cmd=").append(command == null ? "NULL" : new String(command).toLowerCase())
+        .append("\n");
+  }
+
+  private static boolean blocks(Command command) {
+    return CommandSpec.lookup(RedisServerDispatcher.lookup(command)).isBlocking();
+  }
+
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    Connection connection = ctx.channel().attr(Connection.KEY).get();
+    if (connection != null && connection.blocked != null) {
+      engine.cancel(connection.blocked);
+      connection.blocked = null;
+    }
+    if (connection != null && connection.subscriber != null) {
+      engine.pubsub().unsubscribeAll(connection.subscriber);
+    }
+    if (connection != null && connection.replica != null) {
+      engine.replication().remove(connection.replica);
+    }
+    if (connection != null && connection.transaction != null && !connection.busy) {
+      // Otherwise once its EXEC or WATCH is done
+      engine.unwatch(connection.transaction);
+    }
+    if (connection != null) {
+      engine.clients().disconnect(connection);
+    }
+    super.channelInactive(ctx);
+  }
+
+  /**
+   * Encode a reply after the others of its batch and release it.
+   */
+  private static void encode(ReplyBuffer out, Command msg, Reply reply) {
+    if (msg.isInline()) {
       if (reply == null) {
-        reply = NYI_REPLY;
+        reply = new InlineReply(null);
+      } else {
+        Object data = reply.data();
+        if (data instanceof ByteBuf) {
+          // The reply may only be borrowing the buffer
+          data = Unpooled.copiedBuffer((ByteBuf) data);
+        }
+        ReferenceCountUtil.release(reply);
+        reply = new InlineReply(data);
       }
-      ctx.write(reply);
+    }
+    if (reply == null) {
+      reply = NYI_REPLY;
+    }
+    try {
+      out.write(reply);
+    } catch (IOException e) {
+      // Only thrown by streams, not buffers
+      throw new IllegalStateException(e);
+    } finally {
+      ReferenceCountUtil.release(reply);
     }
   }
 }
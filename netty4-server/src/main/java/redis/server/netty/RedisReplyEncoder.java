@@ -2,15 +2,56 @@ package redis.server.netty;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.MessageToByteEncoder;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.MessageToMessageEncoder;
 import redis.netty4.Reply;
 
+import java.util.List;
+
 /**
- * Write a reply.
+ * Write a reply. A shared one is sent as its pre-encoded bytes, anything
+ * else is encoded by a ReplyBuffer of its own. Counts every byte written,
+ * including the ones that arrive already encoded, for CLIENT LIST.
  */
-public class RedisReplyEncoder extends MessageToByteEncoder<Reply> {
+public class RedisReplyEncoder extends MessageToMessageEncoder<Reply> {
+  private volatile long written;
+
+  @Override
+  public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+    if (msg instanceof ByteBuf) {
+      written += ((ByteBuf) msg).readableBytes();
+    }
+    super.write(ctx, msg, promise);
+  }
+
+  /**
+   * How many bytes have been written.
+   */
+  long written() {
+    return written;
+  }
+
   @Override
-  public void encode(ChannelHandlerContext ctx, Reply msg, ByteBuf out) throws Exception {
-    msg.write(out);
+  public void encode(ChannelHandlerContext ctx, Reply msg, List<Object> out) throws Exception {
+    ByteBuf shared = SharedReplies.get(msg);
+    if (shared != null) {
+      written += shared.readableBytes();
+      out.add(shared);
+      return;
+    }
+    ReplyBuffer buffer = new ReplyBuffer(ctx.alloc());
+    boolean encoded = false;
+    try {
+      buffer.write(msg);
+      encoded = true;
+    } finally {
+      ByteBuf finished = buffer.finish();
+      if (encoded) {
+        written += finished.readableBytes();
+        out.add(finished);
+      } else {
+        finished.release();
+      }
+    }
   }
 }
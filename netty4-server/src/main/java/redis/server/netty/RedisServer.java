@@ -6,6 +6,11 @@ import redis.netty4.MultiBulkReply;
 import redis.netty4.Reply;
 import redis.netty4.StatusReply;
 
+/**
+ * Generated by redisgen from the nettyserverinterface template. Commands that
+ * redis-doc's commands.json doesn't describe, like the SCAN family, come from
+ * redisgen's commands-extra.json.
+ */
 public interface RedisServer {
 
 
@@ -1347,4 +1352,47 @@ public interface RedisServer {
    * @return IntegerReply
    */
   public IntegerReply zunionstore(byte[] destination0, byte[] numkeys1, byte[][] key2) throws RedisException;
+
+  /**
+   * Incrementally iterate the keys space
+   * Generic
+   *
+   * @param cursor0
+   * @param pattern_count_type1
+   * @return MultiBulkReply
+   */
+  public MultiBulkReply scan(byte[] cursor0, byte[][] pattern_count_type1) throws RedisException;
+
+  /**
+   * Incrementally iterate hash fields and associated values
+   * Hash
+   *
+   * @param key0
+   * @param cursor1
+   * @param pattern_count2
+   * @return MultiBulkReply
+   */
+  public MultiBulkReply hscan(byte[] key0, byte[] cursor1, byte[][] pattern_count2) throws RedisException;
+
+  /**
+   * Incrementally iterate Set elements
+   * Set
+   *
+   * @param key0
+   * @param cursor1
+   * @param pattern_count2
+   * @return MultiBulkReply
+   */
+  public MultiBulkReply sscan(byte[] key0, byte[] cursor1, byte[][] pattern_count2) throws RedisException;
+
+  /**
+   * Incrementally iterate sorted sets elements and associated scores
+   * Sorted_set
+   *
+   * @param key0
+   * @param cursor1
+   * @param pattern_count2
+   * @return MultiBulkReply
+   */
+  public MultiBulkReply zscan(byte[] key0, byte[] cursor1, byte[][] pattern_count2) throws RedisException;
 }
@@ -0,0 +1,1254 @@
+package redis.server.netty;
+
+import redis.netty4.Command;
+import redis.netty4.ErrorReply;
+import redis.netty4.Reply;
+
+/**
+ * Calls the RedisServer method for a command directly. Command names are
+ * resolved with a switch on a case insensitive hash of the name and the
+ * arguments are passed straight through from the decoded command.
+ * Generated by redisgen from the nettyserverdispatcher template. Commands
+ * that redis-doc's commands.json doesn't describe, like the SCAN family, come
+ * from redisgen's commands-extra.json and are numbered after the rest.
+ */
+public class RedisServerDispatcher {
+
+  public static final int UNKNOWN = -1;
+  public static final int APPEND = 0;
+  public static final int BITCOUNT = 1;
+  public static final int BITOP = 2;
+  public static final int DECR = 3;
+  public static final int DECRBY = 4;
+  public static final int GET = 5;
+  public static final int GETBIT = 6;
+  public static final int GETRANGE = 7;
+  public static final int GETSET = 8;
+  public static final int INCR = 9;
+  public static final int INCRBY = 10;
+  public static final int INCRBYFLOAT = 11;
+  public static final int MGET = 12;
+  public static final int MSET = 13;
+  public static final int MSETNX = 14;
+  public static final int PSETEX = 15;
+  public static final int SET = 16;
+  public static final int SETBIT = 17;
+  public static final int SETEX = 18;
+  public static final int SETNX = 19;
+  public static final int SETRANGE = 20;
+  public static final int STRLEN = 21;
+  public static final int ECHO = 22;
+  public static final int PING = 23;
+  public static final int QUIT = 24;
+  public static final int SELECT = 25;
+  public static final int BGREWRITEAOF = 26;
+  public static final int BGSAVE = 27;
+  public static final int CLIENT_KILL = 28;
+  public static final int CLIENT_LIST = 29;
+  public static final int CLIENT_GETNAME = 30;
+  public static final int CLIENT_SETNAME = 31;
+  public static final int CONFIG_GET = 32;
+  public static final int CONFIG_SET = 33;
+  public static final int CONFIG_RESETSTAT = 34;
+  public static final int DBSIZE = 35;
+  public static final int DEBUG_OBJECT = 36;
+  public static final int DEBUG_SEGFAULT = 37;
+  public static final int FLUSHALL = 38;
+  public static final int FLUSHDB = 39;
+  public static final int INFO = 40;
+  public static final int LASTSAVE = 41;
+  public static final int MONITOR = 42;
+  public static final int SAVE = 43;
+  public static final int SHUTDOWN = 44;
+  public static final int SLAVEOF = 45;
+  public static final int SLOWLOG = 46;
+  public static final int SYNC = 47;
+  public static final int TIME = 48;
+  public static final int BLPOP = 49;
+  public static final int BRPOP = 50;
+  public static final int BRPOPLPUSH = 51;
+  public static final int LINDEX = 52;
+  public static final int LINSERT = 53;
+  public static final int LLEN = 54;
+  public static final int LPOP = 55;
+  public static final int LPUSH = 56;
+  public static final int LPUSHX = 57;
+  public static final int LRANGE = 58;
+  public static final int LREM = 59;
+  public static final int LSET = 60;
+  public static final int LTRIM = 61;
+  public static final int RPOP = 62;
+  public static final int RPOPLPUSH = 63;
+  public static final int RPUSH = 64;
+  public static final int RPUSHX = 65;
+  public static final int DEL = 66;
+  public static final int DUMP = 67;
+  public static final int EXISTS = 68;
+  public static final int EXPIRE = 69;
+  public static final int EXPIREAT = 70;
+  public static final int KEYS = 71;
+  public static final int MIGRATE = 72;
+  public static final int MOVE = 73;
+  public static final int OBJECT = 74;
+  public static final int PERSIST = 75;
+  public static final int PEXPIRE = 76;
+  public static final int PEXPIREAT = 77;
+  public static final int PTTL = 78;
+  public static final int RANDOMKEY = 79;
+  public static final int RENAME = 80;
+  public static final int RENAMENX = 81;
+  public static final int RESTORE = 82;
+  public static final int SORT = 83;
+  public static final int TTL = 84;
+  public static final int TYPE = 85;
+  public static final int UNWATCH = 86;
+  public static final int WATCH = 87;
+  public static final int EVAL = 88;
+  public static final int EVALSHA = 89;
+  public static final int SCRIPT_EXISTS = 90;
+  public static final int SCRIPT_FLUSH = 91;
+  public static final int SCRIPT_KILL = 92;
+  public static final int SCRIPT_LOAD = 93;
+  public static final int HDEL = 94;
+  public static final int HEXISTS = 95;
+  public static final int HGET = 96;
+  public static final int HGETALL = 97;
+  public static final int HINCRBY = 98;
+  public static final int HINCRBYFLOAT = 99;
+  public static final int HKEYS = 100;
+  public static final int HLEN = 101;
+  public static final int HMGET = 102;
+  public static final int HMSET = 103;
+  public static final int HSET = 104;
+  public static final int HSETNX = 105;
+  public static final int HVALS = 106;
+  public static final int PUBLISH = 107;
+  public static final int SADD = 108;
+  public static final int SCARD = 109;
+  public static final int SDIFF = 110;
+  public static final int SDIFFSTORE = 111;
+  public static final int SINTER = 112;
+  public static final int SINTERSTORE = 113;
+  public static final int SISMEMBER = 114;
+  public static final int SMEMBERS = 115;
+  public static final int SMOVE = 116;
+  public static final int SPOP = 117;
+  public static final int SRANDMEMBER = 118;
+  public static final int SREM = 119;
+  public static final int SUNION = 120;
+  public static final int SUNIONSTORE = 121;
+  public static final int ZADD = 122;
+  public static final int ZCARD = 123;
+  public static final int ZCOUNT = 124;
+  public static final int ZINCRBY = 125;
+  public static final int ZINTERSTORE = 126;
+  public static final int ZRANGE = 127;
+  public static final int ZRANGEBYSCORE = 128;
+  public static final int ZRANK = 129;
+  public static final int ZREM = 130;
+  public static final int ZREMRANGEBYRANK = 131;
+  public static final int ZREMRANGEBYSCORE = 132;
+  public static final int ZREVRANGE = 133;
+  public static final int ZREVRANGEBYSCORE = 134;
+  public static final int ZREVRANK = 135;
+  public static final int ZSCORE = 136;
+  public static final int ZUNIONSTORE = 137;
+  public static final int SCAN = 138;
+  public static final int HSCAN = 139;
+  public static final int SSCAN = 140;
+  public static final int ZSCAN = 141;
+
+  public static final int COMMANDS = 142;
+
+  private static final byte[][] NAMES = {
+    "APPEND".getBytes(),
+    "BITCOUNT".getBytes(),
+    "BITOP".getBytes(),
+    "DECR".getBytes(),
+    "DECRBY".getBytes(),
+    "GET".getBytes(),
+    "GETBIT".getBytes(),
+    "GETRANGE".getBytes(),
+    "GETSET".getBytes(),
+    "INCR".getBytes(),
+    "INCRBY".getBytes(),
+    "INCRBYFLOAT".getBytes(),
+    "MGET".getBytes(),
+    "MSET".getBytes(),
+    "MSETNX".getBytes(),
+    "PSETEX".getBytes(),
+    "SET".getBytes(),
+    "SETBIT".getBytes(),
+    "SETEX".getBytes(),
+    "SETNX".getBytes(),
+    "SETRANGE".getBytes(),
+    "STRLEN".getBytes(),
+    "ECHO".getBytes(),
+    "PING".getBytes(),
+    "QUIT".getBytes(),
+    "SELECT".getBytes(),
+    "BGREWRITEAOF".getBytes(),
+    "BGSAVE".getBytes(),
+    "CLIENT".getBytes(),
+    "CLIENT".getBytes(),
+    "CLIENT".getBytes(),
+    "CLIENT".getBytes(),
+    "CONFIG".getBytes(),
+    "CONFIG".getBytes(),
+    "CONFIG".getBytes(),
+    "DBSIZE".getBytes(),
+    "DEBUG".getBytes(),
+    "DEBUG".getBytes(),
+    "FLUSHALL".getBytes(),
+    "FLUSHDB".getBytes(),
+    "INFO".getBytes(),
+    "LASTSAVE".getBytes(),
+    "MONITOR".getBytes(),
+    "SAVE".getBytes(),
+    "SHUTDOWN".getBytes(),
+    "SLAVEOF".getBytes(),
+    "SLOWLOG".getBytes(),
+    "SYNC".getBytes(),
+    "TIME".getBytes(),
+    "BLPOP".getBytes(),
+    "BRPOP".getBytes(),
+    "BRPOPLPUSH".getBytes(),
+    "LINDEX".getBytes(),
+    "LINSERT".getBytes(),
+    "LLEN".getBytes(),
+    "LPOP".getBytes(),
+    "LPUSH".getBytes(),
+    "LPUSHX".getBytes(),
+    "LRANGE".getBytes(),
+    "LREM".getBytes(),
+    "LSET".getBytes(),
+    "LTRIM".getBytes(),
+    "RPOP".getBytes(),
+    "RPOPLPUSH".getBytes(),
+    "RPUSH".getBytes(),
+    "RPUSHX".getBytes(),
+    "DEL".getBytes(),
+    "DUMP".getBytes(),
+    "EXISTS".getBytes(),
+    "EXPIRE".getBytes(),
+    "EXPIREAT".getBytes(),
+    "KEYS".getBytes(),
+    "MIGRATE".getBytes(),
+    "MOVE".getBytes(),
+    "OBJECT".getBytes(),
+    "PERSIST".getBytes(),
+    "PEXPIRE".getBytes(),
+    "PEXPIREAT".getBytes(),
+    "PTTL".getBytes(),
+    "RANDOMKEY".getBytes(),
+    "RENAME".getBytes(),
+    "RENAMENX".getBytes(),
+    "RESTORE".getBytes(),
+    "SORT".getBytes(),
+    "TTL".getBytes(),
+    "TYPE".getBytes(),
+    "UNWATCH".getBytes(),
+    "WATCH".getBytes(),
+    "EVAL".getBytes(),
+    "EVALSHA".getBytes(),
+    "SCRIPT".getBytes(),
+    "SCRIPT".getBytes(),
+    "SCRIPT".getBytes(),
+    "SCRIPT".getBytes(),
+    "HDEL".getBytes(),
+    "HEXISTS".getBytes(),
+    "HGET".getBytes(),
+    "HGETALL".getBytes(),
+    "HINCRBY".getBytes(),
+    "HINCRBYFLOAT".getBytes(),
+    "HKEYS".getBytes(),
+    "HLEN".getBytes(),
+    "HMGET".getBytes(),
+    "HMSET".getBytes(),
+    "HSET".getBytes(),
+    "HSETNX".getBytes(),
+    "HVALS".getBytes(),
+    "PUBLISH".getBytes(),
+    "SADD".getBytes(),
+    "SCARD".getBytes(),
+    "SDIFF".getBytes(),
+    "SDIFFSTORE".getBytes(),
+    "SINTER".getBytes(),
+    "SINTERSTORE".getBytes(),
+    "SISMEMBER".getBytes(),
+    "SMEMBERS".getBytes(),
+    "SMOVE".getBytes(),
+    "SPOP".getBytes(),
+    "SRANDMEMBER".getBytes(),
+    "SREM".getBytes(),
+    "SUNION".getBytes(),
+    "SUNIONSTORE".getBytes(),
+    "ZADD".getBytes(),
+    "ZCARD".getBytes(),
+    "ZCOUNT".getBytes(),
+    "ZINCRBY".getBytes(),
+    "ZINTERSTORE".getBytes(),
+    "ZRANGE".getBytes(),
+    "ZRANGEBYSCORE".getBytes(),
+    "ZRANK".getBytes(),
+    "ZREM".getBytes(),
+    "ZREMRANGEBYRANK".getBytes(),
+    "ZREMRANGEBYSCORE".getBytes(),
+    "ZREVRANGE".getBytes(),
+    "ZREVRANGEBYSCORE".getBytes(),
+    "ZREVRANK".getBytes(),
+    "ZSCORE".getBytes(),
+    "ZUNIONSTORE".getBytes(),
+    "SCAN".getBytes(),
+    "HSCAN".getBytes(),
+    "SSCAN".getBytes(),
+    "ZSCAN".getBytes(),
+  };
+
+  private static final byte[][] SUBCOMMANDS = {
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    "KILL".getBytes(),
+    "LIST".getBytes(),
+    "GETNAME".getBytes(),
+    "SETNAME".getBytes(),
+    "GET".getBytes(),
+    "SET".getBytes(),
+    "RESETSTAT".getBytes(),
+    null,
+    "OBJECT".getBytes(),
+    "SEGFAULT".getBytes(),
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    "EXISTS".getBytes(),
+    "FLUSH".getBytes(),
+    "KILL".getBytes(),
+    "LOAD".getBytes(),
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+    null,
+  };
+
+  /**
+   * Find the command named by the first argument, and the second argument for
+   * commands like CONFIG GET, or UNKNOWN.
+   */
+  public static int lookup(Object[] objects) {
+    byte[] name = (byte[]) objects[0];
+    switch (hash(name)) {
+      case 1937228570:
+        if (matches(objects, APPEND)) return APPEND;
+        break;
+      case 1893786658:
+        if (matches(objects, BITCOUNT)) return BITCOUNT;
+        break;
+      case 63210382:
+        if (matches(objects, BITOP)) return BITOP;
+        break;
+      case 2094256:
+        if (matches(objects, DECR)) return DECR;
+        break;
+      case 2012582151:
+        if (matches(objects, DECRBY)) return DECRBY;
+        break;
+      case 70454:
+        if (matches(objects, GET)) return GET;
+        break;
+      case 2098960887:
+        if (matches(objects, GETBIT)) return GETBIT;
+        break;
+      case -1518682201:
+        if (matches(objects, GETRANGE)) return GETRANGE;
+        break;
+      case 2098977100:
+        if (matches(objects, GETSET)) return GETSET;
+        break;
+      case 2251860:
+        if (matches(objects, INCR)) return INCR;
+        break;
+      case -2130927701:
+        if (matches(objects, INCRBY)) return INCRBY;
+        break;
+      case 920231281:
+        if (matches(objects, INCRBYFLOAT)) return INCRBYFLOAT;
+        break;
+      case 2364361:
+        if (matches(objects, MGET)) return MGET;
+        break;
+      case 2375893:
+        if (matches(objects, MSET)) return MSET;
+        break;
+      case -2011731617:
+        if (matches(objects, MSETNX)) return MSETNX;
+        break;
+      case -1925844443:
+        if (matches(objects, PSETEX)) return PSETEX;
+        break;
+      case 81986:
+        if (matches(objects, SET)) return SET;
+        break;
+      case -1852456597:
+        if (matches(objects, SETBIT)) return SETBIT;
+        break;
+      case 78790773:
+        if (matches(objects, SETEX)) return SETEX;
+        break;
+      case 78791052:
+        if (matches(objects, SETNX)) return SETNX;
+        break;
+      case -2079794661:
+        if (matches(objects, SETRANGE)) return SETRANGE;
+        break;
+      case -1838653884:
+        if (matches(objects, STRLEN)) return STRLEN;
+        break;
+      case 2122277:
+        if (matches(objects, ECHO)) return ECHO;
+        break;
+      case 2455922:
+        if (matches(objects, PING)) return PING;
+        break;
+      case 2497103:
+        if (matches(objects, QUIT)) return QUIT;
+        break;
+      case -1852692228:
+        if (matches(objects, SELECT)) return SELECT;
+        break;
+      case 1036611313:
+        if (matches(objects, BGREWRITEAOF)) return BGREWRITEAOF;
+        break;
+      case 1957631810:
+        if (matches(objects, BGSAVE)) return BGSAVE;
+        break;
+      case 1990584267:
+        if (matches(objects, CLIENT_KILL)) return CLIENT_KILL;
+        if (matches(objects, CLIENT_LIST)) return CLIENT_LIST;
+        if (matches(objects, CLIENT_GETNAME)) return CLIENT_GETNAME;
+        if (matches(objects, CLIENT_SETNAME)) return CLIENT_SETNAME;
+        break;
+      case 1993504578:
+        if (matches(objects, CONFIG_GET)) return CONFIG_GET;
+        if (matches(objects, CONFIG_SET)) return CONFIG_SET;
+        if (matches(objects, CONFIG_RESETSTAT)) return CONFIG_RESETSTAT;
+        break;
+      case 2010280319:
+        if (matches(objects, DBSIZE)) return DBSIZE;
+        break;
+      case 64921139:
+        if (matches(objects, DEBUG_OBJECT)) return DEBUG_OBJECT;
+        if (matches(objects, DEBUG_SEGFAULT)) return DEBUG_SEGFAULT;
+        break;
+      case -1314185187:
+        if (matches(objects, FLUSHALL)) return FLUSHALL;
+        break;
+      case -42392990:
+        if (matches(objects, FLUSHDB)) return FLUSHDB;
+        break;
+      case 2251950:
+        if (matches(objects, INFO)) return INFO;
+        break;
+      case -675870445:
+        if (matches(objects, LASTSAVE)) return LASTSAVE;
+        break;
+      case 1954302266:
+        if (matches(objects, MONITOR)) return MONITOR;
+        break;
+      case 2537853:
+        if (matches(objects, SAVE)) return SAVE;
+        break;
+      case 613283414:
+        if (matches(objects, SHUTDOWN)) return SHUTDOWN;
+        break;
+      case -1408130610:
+        if (matches(objects, SLAVEOF)) return SLAVEOF;
+        break;
+      case -1395164797:
+        if (matches(objects, SLOWLOG)) return SLOWLOG;
+        break;
+      case 2560667:
+        if (matches(objects, SYNC)) return SYNC;
+        break;
+      case 2575053:
+        if (matches(objects, TIME)) return TIME;
+        break;
+      case 63295911:
+        if (matches(objects, BLPOP)) return BLPOP;
+        break;
+      case 63474657:
+        if (matches(objects, BRPOP)) return BRPOP;
+        break;
+      case -820159963:
+        if (matches(objects, BRPOPLPUSH)) return BRPOPLPUSH;
+        break;
+      case -2049343514:
+        if (matches(objects, LINDEX)) return LINDEX;
+        break;
+      case 895307269:
+        if (matches(objects, LINSERT)) return LINSERT;
+        break;
+      case 2339369:
+        if (matches(objects, LLEN)) return LLEN;
+        break;
+      case 2343525:
+        if (matches(objects, LPOP)) return LPOP;
+        break;
+      case 72655206:
+        if (matches(objects, LPUSH)) return LPUSH;
+        break;
+      case -2042655822:
+        if (matches(objects, LPUSHX)) return LPUSHX;
+        break;
+      case -2041409455:
+        if (matches(objects, LRANGE)) return LRANGE;
+        break;
+      case 2345134:
+        if (matches(objects, LREM)) return LREM;
+        break;
+      case 2346102:
+        if (matches(objects, LSET)) return LSET;
+        break;
+      case 72771182:
+        if (matches(objects, LTRIM)) return LTRIM;
+        break;
+      case 2522271:
+        if (matches(objects, RPOP)) return RPOP;
+        break;
+      case -735170521:
+        if (matches(objects, RPOPLPUSH)) return RPOPLPUSH;
+        break;
+      case 78196332:
+        if (matches(objects, RPUSH)) return RPUSH;
+        break;
+      case -1870880916:
+        if (matches(objects, RPUSHX)) return RPUSHX;
+        break;
+      case 67563:
+        if (matches(objects, DEL)) return DEL;
+        break;
+      case 2109940:
+        if (matches(objects, DUMP)) return DUMP;
+        break;
+      case 2058938460:
+        if (matches(objects, EXISTS)) return EXISTS;
+        break;
+      case 2059137311:
+        if (matches(objects, EXPIRE)) return EXPIRE;
+        break;
+      case -1148965486:
+        if (matches(objects, EXPIREAT)) return EXPIREAT;
+        break;
+      case 2303476:
+        if (matches(objects, KEYS)) return KEYS;
+        break;
+      case 1776312715:
+        if (matches(objects, MIGRATE)) return MIGRATE;
+        break;
+      case 2372561:
+        if (matches(objects, MOVE)) return MOVE;
+        break;
+      case -1970038977:
+        if (matches(objects, OBJECT)) return OBJECT;
+        break;
+      case 39536052:
+        if (matches(objects, PERSIST)) return PERSIST;
+        break;
+      case 44987759:
+        if (matches(objects, PEXPIRE)) return PEXPIRE;
+        break;
+      case 283565538:
+        if (matches(objects, PEXPIREAT)) return PEXPIREAT;
+        break;
+      case 2466684:
+        if (matches(objects, PTTL)) return PTTL;
+        break;
+      case 1959063196:
+        if (matches(objects, RANDOMKEY)) return RANDOMKEY;
+        break;
+      case -1881265346:
+        if (matches(objects, RENAME)) return RENAME;
+        break;
+      case 285236616:
+        if (matches(objects, RENAMENX)) return RENAMENX;
+        break;
+      case 1815502446:
+        if (matches(objects, RESTORE)) return RESTORE;
+        break;
+      case 2551198:
+        if (matches(objects, SORT)) return SORT;
+        break;
+      case 83404:
+        if (matches(objects, TTL)) return TTL;
+        break;
+      case 2590522:
+        if (matches(objects, TYPE)) return TYPE;
+        break;
+      case 443840950:
+        if (matches(objects, UNWATCH)) return UNWATCH;
+        break;
+      case 82365615:
+        if (matches(objects, WATCH)) return WATCH;
+        break;
+      case 2140316:
+        if (matches(objects, EVAL)) return EVAL;
+        break;
+      case -662273424:
+        if (matches(objects, EVALSHA)) return EVALSHA;
+        break;
+      case -1854356277:
+        if (matches(objects, SCRIPT_EXISTS)) return SCRIPT_EXISTS;
+        if (matches(objects, SCRIPT_FLUSH)) return SCRIPT_FLUSH;
+        if (matches(objects, SCRIPT_KILL)) return SCRIPT_KILL;
+        if (matches(objects, SCRIPT_LOAD)) return SCRIPT_LOAD;
+        break;
+      case 2212515:
+        if (matches(objects, HDEL)) return HDEL;
+        break;
+      case 1534694052:
+        if (matches(objects, HEXISTS)) return HEXISTS;
+        break;
+      case 2215406:
+        if (matches(objects, HGET)) return HGET;
+        break;
+      case 1574715603:
+        if (matches(objects, HGETALL)) return HGETALL;
+        break;
+      case 1639795187:
+        if (matches(objects, HINCRBY)) return HINCRBY;
+        break;
+      case 1624252457:
+        if (matches(objects, HINCRBYFLOAT)) return HINCRBYFLOAT;
+        break;
+      case 68796988:
+        if (matches(objects, HKEYS)) return HKEYS;
+        break;
+      case 2220205:
+        if (matches(objects, HLEN)) return HLEN;
+        break;
+      case 68857873:
+        if (matches(objects, HMGET)) return HMGET;
+        break;
+      case 68869405:
+        if (matches(objects, HMSET)) return HMSET;
+        break;
+      case 2226938:
+        if (matches(objects, HSET)) return HSET;
+        break;
+      case 2140089924:
+        if (matches(objects, HSETNX)) return HSETNX;
+        break;
+      case 69120442:
+        if (matches(objects, HVALS)) return HVALS;
+        break;
+      case 482617583:
+        if (matches(objects, PUBLISH)) return PUBLISH;
+        break;
+      case 2537294:
+        if (matches(objects, SADD)) return SADD;
+        break;
+      case 78713315:
+        if (matches(objects, SCARD)) return SCARD;
+        break;
+      case 78750424:
+        if (matches(objects, SDIFF)) return SDIFF;
+        break;
+      case 676553961:
+        if (matches(objects, SDIFFSTORE)) return SDIFFSTORE;
+        break;
+      case -1848924087:
+        if (matches(objects, SINTER)) return SINTER;
+        break;
+      case 76029464:
+        if (matches(objects, SINTERSTORE)) return SINTERSTORE;
+        break;
+      case 1600159127:
+        if (matches(objects, SISMEMBER)) return SISMEMBER;
+        break;
+      case 291234118:
+        if (matches(objects, SMEMBERS)) return SMEMBERS;
+        break;
+      case 79024804:
+        if (matches(objects, SMOVE)) return SMOVE;
+        break;
+      case 2552062:
+        if (matches(objects, SPOP)) return SPOP;
+        break;
+      case 1713719186:
+        if (matches(objects, SRANDMEMBER)) return SRANDMEMBER;
+        break;
+      case 2553671:
+        if (matches(objects, SREM)) return SREM;
+        break;
+      case -1837852100:
+        if (matches(objects, SUNION)) return SUNION;
+        break;
+      case 192375813:
+        if (matches(objects, SUNIONSTORE)) return SUNIONSTORE;
+        break;
+      case 2745831:
+        if (matches(objects, ZADD)) return ZADD;
+        break;
+      case 85177962:
+        if (matches(objects, ZCARD)) return ZCARD;
+        break;
+      case -1654030123:
+        if (matches(objects, ZCOUNT)) return ZCOUNT;
+        break;
+      case 434992261:
+        if (matches(objects, ZINCRBY)) return ZINCRBY;
+        break;
+      case 382271839:
+        if (matches(objects, ZINTERSTORE)) return ZINTERSTORE;
+        break;
+      case -1640601341:
+        if (matches(objects, ZRANGE)) return ZRANGE;
+        break;
+      case -335488488:
+        if (matches(objects, ZRANGEBYSCORE)) return ZRANGEBYSCORE;
+        break;
+      case 85624710:
+        if (matches(objects, ZRANK)) return ZRANK;
+        break;
+      case 2762208:
+        if (matches(objects, ZREM)) return ZREM;
+        break;
+      case -170135936:
+        if (matches(objects, ZREMRANGEBYRANK)) return ZREMRANGEBYRANK;
+        break;
+      case -978262370:
+        if (matches(objects, ZREMRANGEBYSCORE)) return ZREMRANGEBYSCORE;
+        break;
+      case 1067476180:
+        if (matches(objects, ZREVRANGE)) return ZREVRANGE;
+        break;
+      case 676077863:
+        if (matches(objects, ZREVRANGEBYSCORE)) return ZREVRANGEBYSCORE;
+        break;
+      case -242659947:
+        if (matches(objects, ZREVRANK)) return ZREVRANK;
+        break;
+      case -1639616936:
+        if (matches(objects, ZSCORE)) return ZSCORE;
+        break;
+      case 498618188:
+        if (matches(objects, ZUNIONSTORE)) return ZUNIONSTORE;
+        break;
+      case 2539133:
+        if (matches(objects, SCAN)) return SCAN;
+        break;
+      case 69032645:
+        if (matches(objects, HSCAN)) return HSCAN;
+        break;
+      case 79191376:
+        if (matches(objects, SSCAN)) return SSCAN;
+        break;
+      case 85656023:
+        if (matches(objects, ZSCAN)) return ZSCAN;
+        break;
+    }
+    return UNKNOWN;
+  }
+
+  /**
+   * The command a decoded command names, looked up the first time and then
+   * kept on the command, so the many places that ask only pay for one
+   * lookup.
+   */
+  public static int lookup(Command command) {
+    int id = command.getId();
+    if (id == Command.UNRESOLVED) {
+      id = lookup(command.getObjects());
+      command.setId(id);
+    }
+    return id;
+  }
+
+  /**
+   * The upper case name of a command without its subcommand.
+   */
+  static byte[] name(int command) {
+    return NAMES[command];
+  }
+
+  /**
+   * The upper case subcommand of a command like CONFIG GET, or null.
+   */
+  static byte[] subcommand(int command) {
+    return SUBCOMMANDS[command];
+  }
+
+  /**
+   * Execute a command. Failures are returned as error replies.
+   */
+  public static Reply execute(RedisServer rs, Command command) {
+    return execute(rs, lookup(command), command);
+  }
+
+  /**
+   * Execute a command that has already been looked up.
+   */
+  public static Reply execute(RedisServer rs, int id, Command command) {
+    Object[] objects = command.getObjects();
+    try {
+      return execute(rs, id, objects);
+    } catch (RedisException e) {
+      return new ErrorReply("ERR " + e.getMessage());
+    } catch (Exception e) {
+      e.printStackTrace();
+      return new ErrorReply("ERR " + e.getMessage());
+    }
+  }
+
+  public static Reply execute(RedisServer rs, int command, Object[] objects) throws RedisException {
+    switch (command) {
+      case APPEND:
+        return rs.append(arg(objects, 1), arg(objects, 2));
+      case BITCOUNT:
+        return rs.bitcount(arg(objects, 1), arg(objects, 2), arg(objects, 3));
+      case BITOP:
+        return rs.bitop(arg(objects, 1), arg(objects, 2), rest(objects, 3));
+      case DECR:
+        return rs.decr(arg(objects, 1));
+      case DECRBY:
+        return rs.decrby(arg(objects, 1), arg(objects, 2));
+      case GET:
+        return rs.get(arg(objects, 1));
+      case GETBIT:
+        return rs.getbit(arg(objects, 1), arg(objects, 2));
+      case GETRANGE:
+        return rs.getrange(arg(objects, 1), arg(objects, 2), arg(objects, 3));
+      case GETSET:
+        return rs.getset(arg(objects, 1), arg(objects, 2));
+      case INCR:
+        return rs.incr(arg(objects, 1));
+      case INCRBY:
+        return rs.incrby(arg(objects, 1), arg(objects, 2));
+      case INCRBYFLOAT:
+        return rs.incrbyfloat(arg(objects, 1), arg(objects, 2));
+      case MGET:
+        return rs.mget(rest(objects, 1));
+      case MSET:
+        return rs.mset(rest(objects, 1));
+      case MSETNX:
+        return rs.msetnx(rest(objects, 1));
+      case PSETEX:
+        return rs.psetex(arg(objects, 1), arg(objects, 2), arg(objects, 3));
+      case SET:
+        return rs.set(arg(objects, 1), arg(objects, 2));
+      case SETBIT:
+        return rs.setbit(arg(objects, 1), arg(objects, 2), arg(objects, 3));
+      case SETEX:
+        return rs.setex(arg(objects, 1), arg(objects, 2), arg(objects, 3));
+      case SETNX:
+        return rs.setnx(arg(objects, 1), arg(objects, 2));
+      case SETRANGE:
+        return rs.setrange(arg(objects, 1), arg(objects, 2), arg(objects, 3));
+      case STRLEN:
+        return rs.strlen(arg(objects, 1));
+      case ECHO:
+        return rs.echo(arg(objects, 1));
+      case PING:
+        return rs.ping();
+      case QUIT:
+        return rs.quit();
+      case SELECT:
+        return rs.select(arg(objects, 1));
+      case BGREWRITEAOF:
+        return rs.bgrewriteaof();
+      case BGSAVE:
+        return rs.bgsave();
+      case CLIENT_KILL:
+        return rs.client_kill(arg(objects, 2));
+      case CLIENT_LIST:
+        return rs.client_list();
+      case CLIENT_GETNAME:
+        return rs.client_getname();
+      case CLIENT_SETNAME:
+        return rs.client_setname(arg(objects, 2));
+      case CONFIG_GET:
+        return rs.config_get(arg(objects, 2));
+      case CONFIG_SET:
+        return rs.config_set(arg(objects, 2), arg(objects, 3));
+      case CONFIG_RESETSTAT:
+        return rs.config_resetstat();
+      case DBSIZE:
+        return rs.dbsize();
+      case DEBUG_OBJECT:
+        return rs.debug_object(arg(objects, 2));
+      case DEBUG_SEGFAULT:
+        return rs.debug_segfault();
+      case FLUSHALL:
+        return rs.flushall();
+      case FLUSHDB:
+        return rs.flushdb();
+      case INFO:
+        return rs.info(arg(objects, 1));
+      case LASTSAVE:
+        return rs.lastsave();
+      case MONITOR:
+        return rs.monitor();
+      case SAVE:
+        return rs.save();
+      case SHUTDOWN:
+        return rs.shutdown(arg(objects, 1), arg(objects, 2));
+      case SLAVEOF:
+        return rs.slaveof(arg(objects, 1), arg(objects, 2));
+      case SLOWLOG:
+        return rs.slowlog(arg(objects, 1), arg(objects, 2));
+      case SYNC:
+        return rs.sync();
+      case TIME:
+        return rs.time();
+      case BLPOP:
+        return rs.blpop(rest(objects, 1));
+      case BRPOP:
+        return rs.brpop(rest(objects, 1));
+      case BRPOPLPUSH:
+        return rs.brpoplpush(arg(objects, 1), arg(objects, 2), arg(objects, 3));
+      case LINDEX:
+        return rs.lindex(arg(objects, 1), arg(objects, 2));
+      case LINSERT:
+        return rs.linsert(arg(objects, 1), arg(objects, 2), arg(objects, 3), arg(objects, 4));
+      case LLEN:
+        return rs.llen(arg(objects, 1));
+      case LPOP:
+        return rs.lpop(arg(objects, 1));
+      case LPUSH:
+        return rs.lpush(arg(objects, 1), rest(objects, 2));
+      case LPUSHX:
+        return rs.lpushx(arg(objects, 1), arg(objects, 2));
+      case LRANGE:
+        return rs.lrange(arg(objects, 1), arg(objects, 2), arg(objects, 3));
+      case LREM:
+        return rs.lrem(arg(objects, 1), arg(objects, 2), arg(objects, 3));
+      case LSET:
+        return rs.lset(arg(objects, 1), arg(objects, 2), arg(objects, 3));
+      case LTRIM:
+        return rs.ltrim(arg(objects, 1), arg(objects, 2), arg(objects, 3));
+      case RPOP:
+        return rs.rpop(arg(objects, 1));
+      case RPOPLPUSH:
+        return rs.rpoplpush(arg(objects, 1), arg(objects, 2));
+      case RPUSH:
+        return rs.rpush(arg(objects, 1), rest(objects, 2));
+      case RPUSHX:
+        return rs.rpushx(arg(objects, 1), arg(objects, 2));
+      case DEL:
+        return rs.del(rest(objects, 1));
+      case DUMP:
+        return rs.dump(arg(objects, 1));
+      case EXISTS:
+        return rs.exists(arg(objects, 1));
+      case EXPIRE:
+        return rs.expire(arg(objects, 1), arg(objects, 2));
+      case EXPIREAT:
+        return rs.expireat(arg(objects, 1), arg(objects, 2));
+      case KEYS:
+        return rs.keys(arg(objects, 1));
+      case MIGRATE:
+        return rs.migrate(arg(objects, 1), arg(objects, 2), arg(objects, 3), arg(objects, 4), arg(objects, 5));
+      case MOVE:
+        return rs.move(arg(objects, 1), arg(objects, 2));
+      case OBJECT:
+        return rs.object(arg(objects, 1), rest(objects, 2));
+      case PERSIST:
+        return rs.persist(arg(objects, 1));
+      case PEXPIRE:
+        return rs.pexpire(arg(objects, 1), arg(objects, 2));
+      case PEXPIREAT:
+        return rs.pexpireat(arg(objects, 1), arg(objects, 2));
+      case PTTL:
+        return rs.pttl(arg(objects, 1));
+      case RANDOMKEY:
+        return rs.randomkey();
+      case RENAME:
+        return rs.rename(arg(objects, 1), arg(objects, 2));
+      case RENAMENX:
+        return rs.renamenx(arg(objects, 1), arg(objects, 2));
+      case RESTORE:
+        return rs.restore(arg(objects, 1), arg(objects, 2), arg(objects, 3));
+      case SORT:
+        return rs.sort(arg(objects, 1), rest(objects, 2));
+      case TTL:
+        return rs.ttl(arg(objects, 1));
+      case TYPE:
+        return rs.type(arg(objects, 1));
+      case UNWATCH:
+        return rs.unwatch();
+      case WATCH:
+        return rs.watch(rest(objects, 1));
+      case EVAL:
+        return rs.eval(arg(objects, 1), arg(objects, 2), rest(objects, 3));
+      case EVALSHA:
+        return rs.evalsha(arg(objects, 1), arg(objects, 2), rest(objects, 3));
+      case SCRIPT_EXISTS:
+        return rs.script_exists(rest(objects, 2));
+      case SCRIPT_FLUSH:
+        return rs.script_flush();
+      case SCRIPT_KILL:
+        return rs.script_kill();
+      case SCRIPT_LOAD:
+        return rs.script_load(arg(objects, 2));
+      case HDEL:
+        return rs.hdel(arg(objects, 1), rest(objects, 2));
+      case HEXISTS:
+        return rs.hexists(arg(objects, 1), arg(objects, 2));
+      case HGET:
+        return rs.hget(arg(objects, 1), arg(objects, 2));
+      case HGETALL:
+        return rs.hgetall(arg(objects, 1));
+      case HINCRBY:
+        return rs.hincrby(arg(objects, 1), arg(objects, 2), arg(objects, 3));
+      case HINCRBYFLOAT:
+        return rs.hincrbyfloat(arg(objects, 1), arg(objects, 2), arg(objects, 3));
+      case HKEYS:
+        return rs.hkeys(arg(objects, 1));
+      case HLEN:
+        return rs.hlen(arg(objects, 1));
+      case HMGET:
+        return rs.hmget(arg(objects, 1), rest(objects, 2));
+      case HMSET:
+        return rs.hmset(arg(objects, 1), rest(objects, 2));
+      case HSET:
+        return rs.hset(arg(objects, 1), arg(objects, 2), arg(objects, 3));
+      case HSETNX:
+        return rs.hsetnx(arg(objects, 1), arg(objects, 2), arg(objects, 3));
+      case HVALS:
+        return rs.hvals(arg(objects, 1));
+      case PUBLISH:
+        return rs.publish(arg(objects, 1), arg(objects, 2));
+      case SADD:
+        return rs.sadd(arg(objects, 1), rest(objects, 2));
+      case SCARD:
+        return rs.scard(arg(objects, 1));
+      case SDIFF:
+        return rs.sdiff(rest(objects, 1));
+      case SDIFFSTORE:
+        return rs.sdiffstore(arg(objects, 1), rest(objects, 2));
+      case SINTER:
+        return rs.sinter(rest(objects, 1));
+      case SINTERSTORE:
+        return rs.sinterstore(arg(objects, 1), rest(objects, 2));
+      case SISMEMBER:
+        return rs.sismember(arg(objects, 1), arg(objects, 2));
+      case SMEMBERS:
+        return rs.smembers(arg(objects, 1));
+      case SMOVE:
+        return rs.smove(arg(objects, 1), arg(objects, 2), arg(objects, 3));
+      case SPOP:
+        return rs.spop(arg(objects, 1));
+      case SRANDMEMBER:
+        return rs.srandmember(arg(objects, 1), arg(objects, 2));
+      case SREM:
+        return rs.srem(arg(objects, 1), rest(objects, 2));
+      case SUNION:
+        return rs.sunion(rest(objects, 1));
+      case SUNIONSTORE:
+        return rs.sunionstore(arg(objects, 1), rest(objects, 2));
+      case ZADD:
+        return rs.zadd(rest(objects, 1));
+      case ZCARD:
+        return rs.zcard(arg(objects, 1));
+      case ZCOUNT:
+        return rs.zcount(arg(objects, 1), arg(objects, 2), arg(objects, 3));
+      case ZINCRBY:
+        return rs.zincrby(arg(objects, 1), arg(objects, 2), arg(objects, 3));
+      case ZINTERSTORE:
+        return rs.zinterstore(arg(objects, 1), arg(objects, 2), rest(objects, 3));
+      case ZRANGE:
+        return rs.zrange(arg(objects, 1), arg(objects, 2), arg(objects, 3), arg(objects, 4));
+      case ZRANGEBYSCORE:
+        return rs.zrangebyscore(arg(objects, 1), arg(objects, 2), arg(objects, 3), rest(objects, 4));
+      case ZRANK:
+        return rs.zrank(arg(objects, 1), arg(objects, 2));
+      case ZREM:
+        return rs.zrem(arg(objects, 1), rest(objects, 2));
+      case ZREMRANGEBYRANK:
+        return rs.zremrangebyrank(arg(objects, 1), arg(objects, 2), arg(objects, 3));
+      case ZREMRANGEBYSCORE:
+        return rs.zremrangebyscore(arg(objects, 1), arg(objects, 2), arg(objects, 3));
+      case ZREVRANGE:
+        return rs.zrevrange(arg(objects, 1), arg(objects, 2), arg(objects, 3), arg(objects, 4));
+      case ZREVRANGEBYSCORE:
+        return rs.zrevrangebyscore(arg(objects, 1), arg(objects, 2), arg(objects, 3), rest(objects, 4));
+      case ZREVRANK:
+        return rs.zrevrank(arg(objects, 1), arg(objects, 2));
+      case ZSCORE:
+        return rs.zscore(arg(objects, 1), arg(objects, 2));
+      case ZUNIONSTORE:
+        return rs.zunionstore(arg(objects, 1), arg(objects, 2), rest(objects, 3));
+      case SCAN:
+        return rs.scan(arg(objects, 1), rest(objects, 2));
+      case HSCAN:
+        return rs.hscan(arg(objects, 1), arg(objects, 2), rest(objects, 3));
+      case SSCAN:
+        return rs.sscan(arg(objects, 1), arg(objects, 2), rest(objects, 3));
+      case ZSCAN:
+        return rs.zscan(arg(objects, 1), arg(objects, 2), rest(objects, 3));
+      default:
+        return new ErrorReply("unknown command '" + new String((byte[]) objects[0]).toLowerCase() + "'");
+    }
+  }
+
+  static int hash(byte[] name) {
+    int h = 0;
+    for (byte b : name) {
+      h = 31 * h + (b & 0xDF);
+    }
+    return h;
+  }
+
+  private static boolean matches(Object[] objects, int command) {
+    if (!equalsIgnoreCase((byte[]) objects[0], NAMES[command])) {
+      return false;
+    }
+    byte[] subcommand = SUBCOMMANDS[command];
+    return subcommand == null || (objects.length > 1 && equalsIgnoreCase((byte[]) objects[1], subcommand));
+  }
+
+  private static boolean equalsIgnoreCase(byte[] bytes, byte[] upper) {
+    if (bytes.length != upper.length) {
+      return false;
+    }
+    for (int i = 0; i < upper.length; i++) {
+      int b = bytes[i];
+      if (b >= 'a' && b <= 'z') {
+        b -= 'a' - 'A';
+      }
+      if (b != upper[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static byte[] arg(Object[] objects, int position) {
+    return position < objects.length ? (byte[]) objects[position] : null;
+  }
+
+  private static byte[][] rest(Object[] objects, int position) {
+    byte[][] rest = new byte[Math.max(0, objects.length - position)][];
+    System.arraycopy(objects, Math.min(position, objects.length), rest, 0, rest.length);
+    return rest;
+  }
+}
@@ -0,0 +1,454 @@
+package redis.server.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.DefaultFileRegion;
+import redis.netty4.Command;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The replication stream of a server and the replicas it is sent to. Every
+ * write the shards propagate is appended to the stream, which is identified
+ * by a random replication id and the offset of its last byte. The most recent
+ * part of it is kept in a circular backlog, so that a replica that lost its
+ * connection and comes back with the id and the offset it got to only has to
+ * be sent what it missed, instead of the whole keyspace again.
+ * <p/>
+ * A full resynchronization begins while every shard is parked for the
+ * snapshot it is sent, see ShardedEngine.fullresync(), and from that point on
+ * the replica's part of the stream is held back until the snapshot file has
+ * been sent to it. The file is sent as a FileRegion so that it goes from the
+ * page cache to the socket without being copied through the heap.
+ * <p/>
+ * On a replica the stream is the one it executes from its master, so it
+ * keeps the master's id and offsets and its own replicas can move to the
+ * master, or to it once it is promoted, without starting over.
+ */
+class Replication {
+  // The replication id used before there was a previous one, like redis
+  private static final String NONE = "0000000000000000000000000000000000000000";
+  private static final byte[] CRLF = "\r\n".getBytes();
+  private static final Random random = new SecureRandom();
+  private static final ThrottledLog LIMITS = new ThrottledLog(1, TimeUnit.SECONDS);
+
+  private final Config config;
+
+  // Guarded by this
+  private String replid = replid();
+  // The id this server's stream had before it was promoted, and up to where
+  // it can still be continued
+  private String replid2 = NONE;
+  private long secondOffset = -1;
+  private long offset;
+  // Null until there has been a replica to keep it for
+  private byte[] backlog;
+  // The offset that the first byte in the backlog follows
+  private long first;
+  private final ByteBuf encoded = Unpooled.buffer();
+  // Replicas being sent the stream, or having it held back for them until
+  // their snapshot is sent
+  private final List<Replica> replicas = new ArrayList<Replica>();
+  // Replicas waiting for the next snapshot to begin
+  private final List<Replica> waiting = new ArrayList<Replica>();
+
+  // The master this server replicates, or null
+  private volatile MasterLink link;
+
+  Replication(Config config) {
+    this.config = config;
+  }
+
+  private static String replid() {
+    StringBuilder sb = new StringBuilder(40);
+    for (int i = 0; i < 40; i++) {
+      sb.append(Character.forDigit(random.nextInt(16), 16));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Whether there is a backlog for the shards to append to.
+   */
+  synchronized boolean isActive() {
+    return backlog != null;
+  }
+
+  boolean isReplica() {
+    return link != null;
+  }
+
+  MasterLink link() {
+    return link;
+  }
+
+  synchronized String id() {
+    return replid;
+  }
+
+  synchronized long offset() {
+    return offset;
+  }
+
+  /**
+   * Append a propagated command to the stream.
+   */
+  synchronized void append(Object[] objects) {
+    if (backlog == null) {
+      return;
+    }
+    encoded.clear();
+    try {
+      Command.writeDirect(encoded, null, null, null, null, objects);
+    } catch (IOException e) {
+      // Writing to a ByteBuf doesn't do any I/O
+      throw new IllegalStateException(e);
+    }
+    int length = encoded.readableBytes();
+    int size = backlog.length;
+    int count = Math.min(length, size);
+    int index = (int) ((offset + length - count) % size);
+    int head = Math.min(count, size - index);
+    encoded.getBytes(length - count, backlog, index, head);
+    encoded.getBytes(length - count + head, backlog, 0, count - head);
+    offset += length;
+    first = Math.max(first, offset - size);
+    if (replicas.isEmpty()) {
+      return;
+    }
+    // Every replica that is being sent the stream shares one copy
+    ByteBuf shared = null;
+    Config.OutputLimit limit = config.outputLimit(Config.ClientClass.REPLICA);
+    try {
+      for (Iterator<Replica> i = replicas.iterator(); i.hasNext(); ) {
+        Replica replica = i.next();
+        boolean over;
+        if (replica.pending != null) {
+          replica.pending.writeBytes(encoded, 0, length);
+          over = limit.exceeded(replica.pending.readableBytes(), replica.overage);
+        } else {
+          if (shared == null) {
+            shared = Unpooled.copiedBuffer(encoded);
+          }
+          over = replica.write(shared.duplicate().retain(), limit);
+        }
+        if (over) {
+          i.remove();
+          replica.drop();
+        }
+      }
+    } finally {
+      if (shared != null) {
+        shared.release();
+      }
+    }
+  }
+
+  /**
+   * Continue the stream where a replica left off, if it is the same stream
+   * and the backlog still has everything after want, the offset of the first
+   * byte it is missing. Returns false if it has to be fully resynchronized.
+   */
+  synchronized boolean resume(Replica replica, String id, long want) {
+    long from = want - 1;
+    boolean known = id.equals(replid) || (id.equals(replid2) && from <= secondOffset);
+    if (backlog == null || !known || from < first || from > offset) {
+      return false;
+    }
+    int length = (int) (offset - from);
+    ByteBuf bytes = Unpooled.buffer(length + 64);
+    bytes.writeBytes(("+CONTINUE " + replid).getBytes()).writeBytes(CRLF);
+    int index = (int) (from % backlog.length);
+    int head = Math.min(length, backlog.length - index);
+    bytes.writeBytes(backlog, index, head);
+    bytes.writeBytes(backlog, 0, length - head);
+    replica.write(bytes, config.outputLimit(Config.ClientClass.REPLICA));
+    replicas.add(replica);
+    return true;
+  }
+
+  /**
+   * Queue a replica for the next snapshot.
+   */
+  synchronized void full(Replica replica) {
+    waiting.add(replica);
+  }
+
+  synchronized boolean isWaiting() {
+    return !waiting.isEmpty();
+  }
+
+  /**
+   * Called while every shard is parked and the snapshot for the waiting
+   * replicas begins. Their stream starts here and is held back until the
+   * snapshot has been sent. Returns the replicas it begins for.
+   */
+  synchronized List<Replica> begin() {
+    if (backlog == null) {
+      activate();
+    }
+    List<Replica> begun = new ArrayList<Replica>(waiting);
+    waiting.clear();
+    for (Replica replica : begun) {
+      replica.pending = Unpooled.buffer();
+      if (replica.psync) {
+        replica.channel.writeAndFlush(Unpooled.wrappedBuffer(
+            ("+FULLRESYNC " + replid + " " + offset + "\r\n").getBytes()));
+      }
+      replicas.add(replica);
+    }
+    return begun;
+  }
+
+  private void activate() {
+    backlog = new byte[(int) Math.max(1, Math.min(Integer.MAX_VALUE, config.replBacklogSize()))];
+    first = offset;
+  }
+
+  /**
+   * Send a finished snapshot to the replicas it began for, then the part of
+   * the stream held back for them, after which they are sent the stream as
+   * it is appended.
+   */
+  void transfer(List<Replica> begun, File file) {
+    for (Replica replica : begun) {
+      RandomAccessFile raf = null;
+      try {
+        raf = new RandomAccessFile(file, "r");
+        long length = raf.length();
+        synchronized (this) {
+          if (!replicas.contains(replica)) {
+            // It went away or fell behind while the snapshot was written
+            raf.close();
+            continue;
+          }
+          Channel channel = replica.channel;
+          channel.write(Unpooled.wrappedBuffer(("$" + length + "\r\n").getBytes()));
+          // Released, and the file closed, once it has been sent
+          channel.write(new DefaultFileRegion(raf.getChannel(), 0, length));
+          raf = null;
+          ByteBuf pending = replica.pending;
+          replica.pending = null;
+          if (replica.write(pending, config.outputLimit(Config.ClientClass.REPLICA))) {
+            replicas.remove(replica);
+            replica.drop();
+          }
+        }
+      } catch (IOException e) {
+        System.err.println("Failed sending the snapshot to a replica: " + e.getMessage());
+        if (raf != null) {
+          try {
+            raf.close();
+          } catch (IOException ignored) {
+            // Already failed
+          }
+        }
+        remove(replica);
+        replica.channel.close();
+      }
+    }
+  }
+
+  /**
+   * Give up on replicas whose snapshot failed, they have to try again.
+   */
+  void fail(List<Replica> begun) {
+    for (Replica replica : begun) {
+      remove(replica);
+      replica.channel.close();
+    }
+  }
+
+  /**
+   * Forget a replica whose connection closed.
+   */
+  synchronized void remove(Replica replica) {
+    replicas.remove(replica);
+    waiting.remove(replica);
+    replica.release();
+  }
+
+  /**
+   * Close the connection of every replica, so that they come back and
+   * resynchronize with whatever this server now replicates.
+   */
+  synchronized void disconnect() {
+    for (Replica replica : replicas) {
+      replica.channel.close();
+    }
+    for (Replica replica : waiting) {
+      replica.channel.close();
+    }
+  }
+
+  /**
+   * Start replicating a master, replacing the one replicated before.
+   * Returns that one so it can be closed.
+   */
+  synchronized MasterLink follow(MasterLink link) {
+    MasterLink previous = this.link;
+    this.link = link;
+    return previous;
+  }
+
+  /**
+   * Take over the stream of a master, from a snapshot of it or from where
+   * this server was. Called while every shard is parked.
+   */
+  synchronized void adopt(String id, long offset) {
+    if (!id.equals(replid) || offset != this.offset || backlog == null) {
+      replid = id;
+      this.offset = offset;
+      replid2 = NONE;
+      secondOffset = -1;
+      if (backlog == null) {
+        activate();
+      }
+      first = offset;
+    }
+  }
+
+  /**
+   * The master carries on with the stream under a new id, after it was
+   * promoted itself.
+   */
+  synchronized void rename(String id) {
+    if (!id.equals(replid)) {
+      replid2 = replid;
+      secondOffset = offset;
+      replid = id;
+    }
+  }
+
+  /**
+   * Stop replicating and become a master. The stream gets a new id, and
+   * replicas of the old one can carry on up to where it was.
+   */
+  synchronized MasterLink promote() {
+    MasterLink previous = link;
+    if (previous != null) {
+      link = null;
+      replid2 = replid;
+      secondOffset = offset;
+      replid = replid();
+    }
+    return previous;
+  }
+
+  synchronized void info(StringBuilder sb) {
+    MasterLink link = this.link;
+    if (link == null) {
+      sb.append("role:master\n");
+    } else {
+      sb.append("role:slave\n");
+      link.info(sb);
+    }
+    sb.append("connected_slaves:").append(replicas.size()).append("\n");
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < replicas.size(); i++) {
+      Replica replica = replicas.get(i);
+      sb.append("slave").append(i).append(":ip=").append(replica.host()).append(",port=").append(replica.port())
+          .append(",state=").append(replica.pending == null ? "online" : "wait_bgsave")
+          .append(",offset=").append(replica.ack)
+          .append(",lag=").append(replica.acked == 0 ? -1 : (now - replica.acked) / 1000).append("\n");
+    }
+    sb.append("master_replid:").append(replid).append("\n");
+    sb.append("master_replid2:").append(replid2).append("\n");
+    sb.append("master_repl_offset:").append(offset).append("\n");
+    sb.append("second_repl_offset:").append(secondOffset).append("\n");
+    sb.append("repl_backlog_active:").append(backlog == null ? 0 : 1).append("\n");
+    sb.append("repl_backlog_size:").append(config.replBacklogSize()).append("\n");
+    sb.append("repl_backlog_first_byte_offset:").append(backlog == null ? 0 : first + 1).append("\n");
+    sb.append("repl_backlog_histlen:").append(backlog == null ? 0 : offset - first).append("\n");
+  }
+
+  /**
+   * A connection that asked for the replication stream with SYNC or PSYNC.
+   * Written to while holding the lock on its Replication, so what it is sent
+   * stays in the order of the stream.
+   */
+  static class Replica {
+    final Channel channel;
+    // Set by the command handler once it sent SYNC or PSYNC
+    boolean requested;
+    // Whether it asked with PSYNC, which is told how its stream starts
+    volatile boolean psync;
+    // The port it says it listens on
+    volatile int port;
+    // The offset it last acknowledged and when
+    volatile long ack;
+    volatile long acked;
+    // Guarded by the Replication, set from when its snapshot begins until it
+    // has been sent
+    private ByteBuf pending;
+    private final AtomicLong queued = new AtomicLong();
+    private final Config.Overage overage = new Config.Overage();
+
+    Replica(Channel channel) {
+      this.channel = channel;
+    }
+
+    void ack(long offset) {
+      ack = offset;
+      acked = System.currentTimeMillis();
+    }
+
+    private String host() {
+      SocketAddress address = channel.remoteAddress();
+      return address instanceof InetSocketAddress ? ((InetSocketAddress) address).getAddress().getHostAddress() : "?";
+    }
+
+    private int port() {
+      SocketAddress address = channel.remoteAddress();
+      return port != 0 || !(address instanceof InetSocketAddress) ? port : ((InetSocketAddress) address).getPort();
+    }
+
+    /**
+     * Send part of the stream. Returns true, without sending it, if that
+     * would put it over its output limit.
+     */
+    private boolean write(ByteBuf bytes, Config.OutputLimit limit) {
+      final int size = bytes.readableBytes();
+      if (limit.exceeded(queued.get() + size, overage)) {
+        bytes.release();
+        return true;
+      }
+      queued.addAndGet(size);
+      channel.writeAndFlush(bytes).addListener(new ChannelFutureListener() {
+        @Override
+        public void operationComplete(ChannelFuture future) throws Exception {
+          queued.addAndGet(-size);
+        }
+      });
+      return false;
+    }
+
+    private void drop() {
+      LIMITS.println("Closing replica addr=" + Clients.address(channel.remoteAddress()) + " listening-port=" + port
+          + " that is over its output buffer limit");
+      release();
+      channel.close();
+    }
+
+    private void release() {
+      if (pending != null) {
+        pending.release();
+        pending = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,95 @@
+package redis.server.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import redis.netty4.BulkReply;
+import redis.netty4.MultiBulkReply;
+import redis.netty4.Reply;
+
+import java.io.IOException;
+
+import static redis.util.Encoding.numToBytes;
+
+/**
+ * Encodes replies into pooled direct buffers, ready to be written to a
+ * channel as they are. Shared replies are copied from their pre-encoded
+ * bytes. A big value that already lives off heap isn't copied at all, the
+ * buffer becomes a composite of what was encoded before it, a slice of the
+ * value and whatever comes after. Anything else on the heap has to be copied
+ * into direct memory to be written anyway, so that copy is the encoding.
+ */
+class ReplyBuffer {
+  // Below this a copy is cheaper than another component
+  static final int COMPOSITE_BYTES = 8192;
+
+  private final ByteBufAllocator alloc;
+  private ByteBuf current;
+  private CompositeByteBuf composite;
+
+  ReplyBuffer(ByteBufAllocator alloc) {
+    this.alloc = alloc;
+    current = alloc.directBuffer();
+  }
+
+  /**
+   * Encode a reply after the ones before it. Doesn't release the reply, a
+   * value that is added as it is has been retained for the buffer.
+   */
+  void write(Reply reply) throws IOException {
+    if (SharedReplies.write(reply, current)) {
+      return;
+    }
+    if (reply instanceof MultiBulkReply) {
+      // The nil one is shared so there are always replies
+      Reply[] replies = ((MultiBulkReply) reply).data();
+      current.writeByte(MultiBulkReply.MARKER);
+      current.writeBytes(numToBytes(replies.length, true));
+      for (Reply element : replies) {
+        write(element);
+      }
+    } else if (reply instanceof RetainedBulkReply) {
+      ByteBuf value = ((RetainedBulkReply) reply).data();
+      if (value.readableBytes() < COMPOSITE_BYTES || !value.isDirect()) {
+        reply.write(current);
+        return;
+      }
+      current.writeByte(BulkReply.MARKER);
+      current.writeBytes(numToBytes(value.readableBytes(), true));
+      if (composite == null) {
+        composite = alloc.compositeDirectBuffer(Integer.MAX_VALUE);
+      }
+      add(current);
+      add(value.retain());
+      current = alloc.directBuffer();
+      current.writeBytes(Reply.CRLF);
+    } else {
+      reply.write(current);
+    }
+  }
+
+  private void add(ByteBuf buffer) {
+    int readable = buffer.readableBytes();
+    composite.addComponent(buffer);
+    composite.writerIndex(composite.writerIndex() + readable);
+  }
+
+  /**
+   * Everything encoded so far, to be written. The buffer can't be used after
+   * this.
+   */
+  ByteBuf finish() {
+    ByteBuf finished = current;
+    current = null;
+    if (composite == null) {
+      return finished;
+    }
+    if (finished.isReadable()) {
+      add(finished);
+    } else {
+      // A composite ignores it
+      finished.release();
+    }
+    return composite;
+  }
+}
@@ -0,0 +1,45 @@
+package redis.server.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.ReferenceCounted;
+import redis.netty4.BulkReply;
+
+/**
+ * A bulk reply that shares the memory of an off heap value. It holds a
+ * reference to the value so that it can't be freed or reused while the reply
+ * is waiting to be written, and the encoder releases it once the bytes have
+ * been copied into the outbound buffer.
+ */
+class RetainedBulkReply extends BulkReply implements ReferenceCounted {
+
+  RetainedBulkReply(ByteBuf value) {
+    super(value.slice(value.readerIndex(), value.readableBytes()).retain());
+  }
+
+  @Override
+  public int refCnt() {
+    return data().refCnt();
+  }
+
+  @Override
+  public ReferenceCounted retain() {
+    data().retain();
+    return this;
+  }
+
+  @Override
+  public ReferenceCounted retain(int increment) {
+    data().retain(increment);
+    return this;
+  }
+
+  @Override
+  public boolean release() {
+    return data().release();
+  }
+
+  @Override
+  public boolean release(int decrement) {
+    return data().release(decrement);
+  }
+}
@@ -0,0 +1,55 @@
+package redis.server.netty;
+
+import io.netty.channel.ChannelException;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+
+/**
+ * A server socket that sets SO_REUSEPORT before it binds, so that several
+ * of them, each accepting on its own thread, can listen on the same port
+ * and the kernel spreads new connections between them. The option is only
+ * there on Java 9 and later, and only does that on Linux 3.9 and later.
+ */
+public class ReusePortServerSocketChannel extends NioServerSocketChannel {
+  private static final SocketOption<Boolean> SO_REUSEPORT = option();
+
+  @SuppressWarnings("unchecked")
+  private static SocketOption<Boolean> option() {
+    try {
+      return (SocketOption<Boolean>) Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  /**
+   * Whether the socket option exists on this platform.
+   */
+  public static boolean isSupported() {
+    if (SO_REUSEPORT == null) {
+      return false;
+    }
+    ReusePortServerSocketChannel channel = new ReusePortServerSocketChannel();
+    try {
+      return channel.javaChannel().supportedOptions().contains(SO_REUSEPORT);
+    } finally {
+      try {
+        channel.javaChannel().close();
+      } catch (IOException e) {
+        // Never bound
+      }
+    }
+  }
+
+  @Override
+  protected void doBind(SocketAddress localAddress) throws Exception {
+    if (SO_REUSEPORT == null || !javaChannel().supportedOptions().contains(SO_REUSEPORT)) {
+      throw new ChannelException("SO_REUSEPORT is not supported on this platform");
+    }
+    javaChannel().setOption(SO_REUSEPORT, true);
+    super.doBind(localAddress);
+  }
+}
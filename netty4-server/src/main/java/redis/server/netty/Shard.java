@@ -0,0 +1,180 @@
+package redis.server.netty;
+
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import redis.netty4.Command;
+import redis.netty4.ErrorReply;
+import redis.netty4.Reply;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One partition of the keyspace. Every command against the partition runs on
+ * its single executor thread so the server itself needs no locking.
+ */
+class Shard {
+  // Like redis, look for keys to expire ten times a second and spend at most
+  // a quarter of the time doing it
+  private static final long EXPIRE_PERIOD = 100;
+  private static final long EXPIRE_BUDGET = TimeUnit.MILLISECONDS.toNanos(EXPIRE_PERIOD / 4);
+  // Time spent writing a snapshot before letting queued commands run
+  private static final long SNAPSHOT_STEP = TimeUnit.MILLISECONDS.toNanos(1);
+  private static final long SHUTDOWN_TIMEOUT = 15;
+
+  final int index;
+  final RedisServer server;
+  // The same server when it keeps track of expirations and memory itself
+  final SimpleRedisServer simple;
+  private final DefaultEventExecutorGroup group;
+  final EventExecutor executor;
+  private final Blocking blocking;
+  // Null when nothing is counted
+  private final Stats.Recorder recorder;
+  // When the last command to be counted finished
+  private long ended;
+
+  /**
+   * A shard outside of an engine, where blocking commands never wait.
+   */
+  Shard(int index, RedisServer server) {
+    this(index, server, null, null);
+  }
+
+  Shard(int index, RedisServer server, Blocking blocking, Stats stats) {
+    this.index = index;
+    this.server = server;
+    this.blocking = blocking;
+    recorder = stats == null ? null : stats.recorder();
+    group = new DefaultEventExecutorGroup(1);
+    executor = group.next();
+    simple = server instanceof SimpleRedisServer ? (SimpleRedisServer) server : null;
+    if (simple != null) {
+      simple.blocking = blocking;
+      executor.scheduleAtFixedRate(new Runnable() {
+        @Override
+        public void run() {
+          simple._activeexpire(EXPIRE_BUDGET);
+          // Catches up after maxmemory is lowered while nothing is written
+          simple._evict();
+        }
+      }, EXPIRE_PERIOD, EXPIRE_PERIOD, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Must only be called from the shard executor or while the shard is parked.
+   */
+  Reply execute(Command command) {
+    return execute(command, true);
+  }
+
+  /**
+   * A blocking command that finds nothing to pop only waits when block is
+   * set, in a transaction it replies nil straight away.
+   */
+  Reply execute(Command command, boolean block) {
+    return execute(command, block, recorder == null ? 0 : System.nanoTime());
+  }
+
+  /**
+   * Execute a command that started at start. Commands that run back to back
+   * start when the one before them ended, which saves reading the clock
+   * twice for each of them.
+   */
+  private Reply execute(Command command, boolean block, long start) {
+    int id = RedisServerDispatcher.lookup(command);
+    Reply reply = execute(id, command, block);
+    if (recorder != null) {
+      ended = System.nanoTime();
+      recorder.record(id, command, ended - start);
+    }
+    return reply;
+  }
+
+  private Reply execute(int id, Command command, boolean block) {
+    if (simple == null) {
+      return RedisServerDispatcher.execute(server, id, command);
+    }
+    CommandSpec spec = CommandSpec.lookup(id);
+    if (spec.isWrite()) {
+      // Make room before the write, like redis, and only refuse commands
+      // that would grow the keyspace when there is none to be had
+      if (!simple._evict() && spec.isDenyOom()) {
+        return SimpleRedisServer.oom();
+      }
+      Propagation propagation = simple.propagation;
+      String error = propagation == null ? null : propagation.error();
+      if (error != null) {
+        return new ErrorReply("MISCONF Errors writing to the AOF file: " + error);
+      }
+      byte[][] keys = spec.keys(command);
+      simple._preserve(keys);
+      Reply reply = RedisServerDispatcher.execute(server, id, command);
+      simple._account(keys);
+      if (propagation != null) {
+        propagation.feed(id, command, reply, simple);
+      }
+      if (block && blocking != null && spec.isBlocking() && Blocking.isEmpty(reply)) {
+        return blocking.block(id, command);
+      }
+      // Anything pushed goes to the clients waiting for it first
+      simple._serve(keys);
+      return reply;
+    }
+    return RedisServerDispatcher.execute(server, id, command);
+  }
+
+  /**
+   * Write this shard's part of a snapshot that has begun, a step at a time
+   * between the commands queued on the executor.
+   */
+  void snapshot() {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (!simple._snapshotstep(SNAPSHOT_STEP)) {
+          if (simple._snapshotbacklogged()) {
+            executor.schedule(this, 1, TimeUnit.MILLISECONDS);
+          } else {
+            executor.execute(this);
+          }
+        }
+      }
+    });
+  }
+
+  Future<Reply[]> submit(final List<Command> commands) {
+    return executor.submit(new Callable<Reply[]>() {
+      @Override
+      public Reply[] call() throws Exception {
+        int size = commands.size();
+        Reply[] replies = new Reply[size];
+        long start = recorder == null ? 0 : System.nanoTime();
+        for (int i = 0; i < size; i++) {
+          replies[i] = execute(commands.get(i), true, start);
+          start = ended;
+        }
+        return replies;
+      }
+    });
+  }
+
+  Future<Reply> submit(final Command command) {
+    return executor.submit(new Callable<Reply>() {
+      @Override
+      public Reply call() throws Exception {
+        return execute(command);
+      }
+    });
+  }
+
+  /**
+   * Stop once the commands already queued have run.
+   */
+  Future<?> shutdown() {
+    return group.shutdownGracefully(0, SHUTDOWN_TIMEOUT, TimeUnit.SECONDS);
+  }
+}
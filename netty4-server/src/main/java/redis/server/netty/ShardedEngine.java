@@ -0,0 +1,1261 @@
+package redis.server.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.ReferenceCounted;
+import io.netty.util.concurrent.Future;
+import redis.netty4.BulkReply;
+import redis.netty4.Command;
+import redis.netty4.ErrorReply;
+import redis.netty4.IntegerReply;
+import redis.netty4.MultiBulkReply;
+import redis.netty4.Reply;
+import redis.netty4.StatusReply;
+import redis.util.BytesKey;
+import redis.util.Glob;
+import redis.util.Hashing;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+
+import static redis.netty4.BulkReply.NIL_REPLY;
+import static redis.netty4.IntegerReply.integer;
+import static redis.netty4.StatusReply.OK;
+
+/**
+ * Splits the keyspace into partitions that are each owned by a single
+ * executor. Commands whose keys all hash to one partition run directly on its
+ * executor. Commands that span partitions are run by a coordinator that parks
+ * every partition involved, in index order so coordinators can't deadlock,
+ * executes the command against a scratch keyspace holding just those keys and
+ * then moves the results back to their owners.
+ */
+public class ShardedEngine {
+  // The command has no keys and can run on any shard
+  static final int ANY = -1;
+  // The command has to be run by a coordinator
+  static final int COORDINATED = -2;
+  // INFO fields that are added up across shards
+  private static final Set<String> SUMMED = new HashSet<String>(Arrays.asList(
+      "keys", "expires", "expired_keys", "instantaneous_expired_per_sec", "expired_stale_keys",
+      "expire_cycle_cpu_milliseconds", "used_memory", "evicted_keys"));
+
+  // Entries read from an RDB file that are handed to a shard at a time
+  private static final int LOAD_BATCH = 1024;
+
+  private final Shard[] shards;
+  private final ValueStore store;
+  private final Config config;
+  // Set when every shard is a SimpleRedisServer that can be saved
+  private final boolean persistent;
+  private Snapshot saving;
+  private long lastSave = System.currentTimeMillis();
+  // Set once loading is done when appendonly is on
+  private volatile Aof aof;
+  // Where the shards send their writes, replaced while they are all parked
+  private volatile Propagation propagation;
+  private final Replication replication;
+  private final Clients clients = new Clients();
+  // Runs full resynchronizations, which wait for their snapshot
+  private final DefaultEventExecutorGroup syncer = new DefaultEventExecutorGroup(1);
+  // A rewrite of the append only file while it is off
+  private Snapshot rewriting;
+  private final DefaultEventExecutorGroup coordinators;
+  private final Blocking blocking = new Blocking(this);
+  private final PubSub pubsub;
+  private final Stats stats;
+  private final Random random = new Random();
+
+  /**
+   * Create an engine with the given number of SimpleRedisServer partitions.
+   */
+  public ShardedEngine(int count) {
+    this(count, ValueStore.HEAP);
+  }
+
+  /**
+   * Create an engine with the given number of SimpleRedisServer partitions
+   * that keep their string values in the store.
+   */
+  public ShardedEngine(int count, ValueStore store) {
+    this(count, store, new Config());
+  }
+
+  /**
+   * Create an engine with the given number of SimpleRedisServer partitions
+   * sharing a config. Each partition is held to an equal part of maxmemory.
+   */
+  public ShardedEngine(int count, ValueStore store, Config config) {
+    if (count < 1) {
+      throw new IllegalArgumentException("At least one shard is required");
+    }
+    this.store = store;
+    this.config = config;
+    config.setShards(count);
+    pubsub = new PubSub(config);
+    replication = new Replication(config);
+    stats = new Stats(config);
+    shards = new Shard[count];
+    for (int i = 0; i < count; i++) {
+      shards[i] = new Shard(i, new SimpleRedisServer(store, config), blocking, stats);
+      shards[i].simple.pubsub = pubsub;
+      shards[i].simple.replication = replication;
+      shards[i].simple.stats = stats;
+      shards[i].simple.shard = i;
+      shards[i].simple.shards = count;
+    }
+    persistent = true;
+    coordinators = new DefaultEventExecutorGroup(Math.max(1, count / 2));
+  }
+
+  /**
+   * Run every command against a single server.
+   */
+  public ShardedEngine(RedisServer server) {
+    store = ValueStore.HEAP;
+    config = new Config();
+    stats = new Stats(config);
+    shards = new Shard[]{new Shard(0, server, blocking, stats)};
+    persistent = shards[0].simple != null;
+    pubsub = new PubSub(config);
+    replication = new Replication(config);
+    if (persistent) {
+      shards[0].simple.pubsub = pubsub;
+      shards[0].simple.replication = replication;
+      shards[0].simple.stats = stats;
+    }
+    coordinators = new DefaultEventExecutorGroup(1);
+  }
+
+  int size() {
+    return shards.length;
+  }
+
+  Config config() {
+    return config;
+  }
+
+  PubSub pubsub() {
+    return pubsub;
+  }
+
+  Clients clients() {
+    return clients;
+  }
+
+  Replication replication() {
+    return replication;
+  }
+
+  Shard shard(int index) {
+    return shards[index];
+  }
+
+  /**
+   * The shard that owns a key. Like Redis Cluster, only the part of the key
+   * inside the first non-empty {...} is hashed so that related keys can be
+   * forced onto the same shard.
+   */
+  int shardOf(byte[] key) {
+    if (shards.length == 1) return 0;
+    int start = 0;
+    int end = key.length;
+    for (int i = 0; i < key.length; i++) {
+      if (key[i] == '{') {
+        for (int j = i + 1; j < key.length; j++) {
+          if (key[j] == '}') {
+            if (j > i + 1) {
+              start = i + 1;
+              end = j;
+            }
+            break;
+          }
+        }
+        break;
+      }
+    }
+    // The high word picks the shard so that it doesn't fix the low bits the
+    // shard's own table indexes by
+    long h = Hashing.hash64(key, start, end - start) >>> 32;
+    return (int) ((h * shards.length) >>> 32);
+  }
+
+  /**
+   * Decide where a command runs: a shard index, ANY or COORDINATED.
+   */
+  int route(Command command) {
+    int id = RedisServerDispatcher.lookup(command);
+    CommandSpec spec = CommandSpec.lookup(id);
+    if (spec.isEngine() && persistent) {
+      return COORDINATED;
+    }
+    if (shards.length == 1) {
+      return 0;
+    }
+    if (spec.isBroadcast()) {
+      return id == RedisServerDispatcher.KEYS ? keys(command) : COORDINATED;
+    }
+    if (spec.isCursor()) {
+      return cursor(command);
+    }
+    byte[][] keys = spec.keys(command);
+    if (keys.length == 0) {
+      return ANY;
+    }
+    int shard = shardOf(keys[0]);
+    for (int i = 1; i < keys.length; i++) {
+      if (shardOf(keys[i]) != shard) {
+        return COORDINATED;
+      }
+    }
+    return shard;
+  }
+
+  /**
+   * The one shard that can have keys matching a KEYS pattern, because the
+   * pattern is a single key or its literal prefix has a whole hash tag in
+   * it, or else COORDINATED to ask them all.
+   */
+  private int keys(Command command) {
+    Object[] objects = command.getObjects();
+    if (objects.length != 2) {
+      return COORDINATED;
+    }
+    Glob glob = Glob.compile((byte[]) objects[1]);
+    byte[] prefix = glob.prefix();
+    return glob.isLiteral() || tagged(prefix) ? shardOf(prefix) : COORDINATED;
+  }
+
+  /**
+   * Whether the bytes have a hash tag that shardOf() would use, so any key
+   * they start is on the same shard.
+   */
+  private static boolean tagged(byte[] bytes) {
+    for (int i = 0; i < bytes.length; i++) {
+      if (bytes[i] == '{') {
+        for (int j = i + 1; j < bytes.length; j++) {
+          if (bytes[j] == '}') {
+            return j > i + 1;
+          }
+        }
+        return false;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * The shard a SCAN cursor continues on. The shards hand out cursors that
+   * are their own cursor times the number of shards plus their index, so a
+   * scan walks them one after the other.
+   */
+  private int cursor(Command command) {
+    Object[] objects = command.getObjects();
+    if (objects.length < 2) {
+      return ANY;
+    }
+    try {
+      long cursor = SimpleRedisServer._cursor((byte[]) objects[1]);
+      return (int) Long.remainderUnsigned(cursor, shards.length);
+    } catch (RedisException e) {
+      // Any shard can reply with the error
+      return ANY;
+    }
+  }
+
+  Future<Reply> coordinate(final Command command) {
+    return coordinators.next().submit(new Callable<Reply>() {
+      @Override
+      public Reply call() throws Exception {
+        int id = RedisServerDispatcher.lookup(command);
+        long start = System.nanoTime();
+        Reply reply = coordinated(command);
+        stats.shared().record(id, command, System.nanoTime() - start);
+        return reply;
+      }
+    });
+  }
+
+  /**
+   * Start watching keys for a transaction. Each shard that owns some of them
+   * records their versions, which the transaction keeps for EXEC to compare.
+   */
+  Future<Reply> watch(final Transaction transaction, final byte[][] keys) {
+    return coordinators.next().submit(new Callable<Reply>() {
+      @Override
+      public Reply call() throws Exception {
+        Map<Integer, List<byte[]>> owned = new TreeMap<Integer, List<byte[]>>();
+        for (byte[] key : keys) {
+          int shard = shardOf(key);
+          Map<BytesKey, Long> watched = transaction.watched.get(shard);
+          if (watched != null && watched.containsKey(new BytesKey(key))) {
+            continue;
+          }
+          List<byte[]> list = owned.get(shard);
+          if (list == null) {
+            owned.put(shard, list = new ArrayList<byte[]>());
+          }
+          list.add(key);
+        }
+        for (Map.Entry<Integer, List<byte[]>> entry : owned.entrySet()) {
+          final Shard shard = shards[entry.getKey()];
+          final byte[][] shardKeys = entry.getValue().toArray(new byte[entry.getValue().size()][]);
+          long[] versions = shard.executor.submit(new Callable<long[]>() {
+            @Override
+            public long[] call() throws Exception {
+              return shard.simple == null ? new long[shardKeys.length] : shard.simple._watch(shardKeys);
+            }
+          }).get();
+          transaction.watched(entry.getKey(), shardKeys, versions);
+        }
+        return OK;
+      }
+    });
+  }
+
+  /**
+   * Stop watching every key a transaction watches.
+   */
+  void unwatch(Transaction transaction) {
+    for (Map.Entry<Integer, Map<BytesKey, Long>> entry : transaction.watched.entrySet()) {
+      final Shard shard = shards[entry.getKey()];
+      final byte[][] keys = Transaction.keys(entry.getValue());
+      final long[] versions = Transaction.versions(entry.getValue());
+      if (shard.simple != null) {
+        shard.executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            shard.simple._unwatch(keys, versions);
+          }
+        });
+      }
+    }
+    transaction.watched.clear();
+  }
+
+  /**
+   * Run the commands queued by a transaction with nothing else running in
+   * between, unless a key it watches has changed. When they and the keys it
+   * watches all live on one shard they simply run together on its executor,
+   * otherwise every shard involved is parked while they run. Blocking
+   * commands don't wait, like in redis, and replies only go to nil.
+   */
+  Future<Reply> exec(final Transaction transaction, final List<Command> commands, final int home) {
+    final boolean[] used = new boolean[shards.length];
+    for (Command command : commands) {
+      if (!involve(command, used)) {
+        used[home] = true;
+      }
+    }
+    for (int shard : transaction.watched.keySet()) {
+      used[shard] = true;
+    }
+    final Shard[] involved = involved(used);
+    if (involved.length == 0) {
+      return shards[home].executor.submit(new Callable<Reply>() {
+        @Override
+        public Reply call() throws Exception {
+          return transaction(transaction, commands, home);
+        }
+      });
+    } else if (involved.length == 1) {
+      return involved[0].executor.submit(new Callable<Reply>() {
+        @Override
+        public Reply call() throws Exception {
+          return transaction(transaction, commands, involved[0].index);
+        }
+      });
+    }
+    return coordinators.next().submit(new Callable<Reply>() {
+      @Override
+      public Reply call() throws Exception {
+        return exclusive(involved, new Callable<Reply>() {
+          @Override
+          public Reply call() throws Exception {
+            return transaction(transaction, commands, used[home] ? home : involved[0].index);
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Called on the executor of the only shard involved or while every shard
+   * involved is parked. Keyless commands run on the shard any.
+   */
+  private Reply transaction(Transaction transaction, List<Command> commands, int any) throws Exception {
+    boolean changed = false;
+    for (Map.Entry<Integer, Map<BytesKey, Long>> entry : transaction.watched.entrySet()) {
+      SimpleRedisServer simple = shards[entry.getKey()].simple;
+      if (simple != null) {
+        changed |= simple._unwatch(Transaction.keys(entry.getValue()), Transaction.versions(entry.getValue()));
+      }
+    }
+    transaction.watched.clear();
+    if (changed) {
+      return MultiBulkReply.NIL_REPLY;
+    }
+    Reply[] replies = new Reply[commands.size()];
+    for (int i = 0; i < replies.length; i++) {
+      Command command = commands.get(i);
+      int route = route(command);
+      Reply reply;
+      if (route == ANY) {
+        reply = shards[any].execute(command, false);
+      } else if (route != COORDINATED) {
+        reply = shards[route].execute(command, false);
+      } else {
+        int id = RedisServerDispatcher.lookup(command);
+        long start = System.nanoTime();
+        reply = CommandSpec.lookup(id).isBroadcast() ? parkedBroadcast(id, command) : scratch(id, command, false);
+        stats.shared().record(id, command, System.nanoTime() - start);
+      }
+      replies[i] = detach(reply);
+    }
+    return new MultiBulkReply(replies);
+  }
+
+  /**
+   * Copy a reply that shares an off heap value onto the heap, since only top
+   * level replies are released once they are written.
+   */
+  private static Reply detach(Reply reply) {
+    if (reply instanceof ReferenceCounted) {
+      Object data = reply.data();
+      ByteBuf buffer = (ByteBuf) data;
+      byte[] bytes = new byte[buffer.readableBytes()];
+      buffer.getBytes(buffer.readerIndex(), bytes);
+      ReferenceCountUtil.release(reply);
+      return new BulkReply(bytes);
+    }
+    return reply;
+  }
+
+  private Reply coordinated(final Command command) throws Exception {
+    final int id = RedisServerDispatcher.lookup(command);
+    final CommandSpec spec = CommandSpec.lookup(id);
+    if (spec.isEngine()) {
+      return persistence(id, command);
+    }
+    if (spec.isBroadcast()) {
+      return broadcast(id, command);
+    }
+    boolean[] used = new boolean[shards.length];
+    involve(command, used);
+    return exclusive(involved(used), new Callable<Reply>() {
+      @Override
+      public Reply call() throws Exception {
+        return scratch(id, command, true);
+      }
+    });
+  }
+
+  /**
+   * Mark the shards that own the keys of a command, or every shard for a
+   * command that has to see them all. Returns false if it has no keys.
+   */
+  private boolean involve(Command command, boolean[] used) {
+    CommandSpec spec = CommandSpec.lookup(RedisServerDispatcher.lookup(command));
+    if (spec.isBroadcast()) {
+      Arrays.fill(used, true);
+      return true;
+    }
+    byte[][] keys = spec.keys(command);
+    for (byte[] key : keys) {
+      used[shardOf(key)] = true;
+    }
+    return keys.length > 0;
+  }
+
+  private Shard[] involved(boolean[] used) {
+    int count = 0;
+    for (boolean use : used) {
+      if (use) count++;
+    }
+    Shard[] involved = new Shard[count];
+    for (int i = 0, j = 0; i < used.length; i++) {
+      if (used[i]) involved[j++] = shards[i];
+    }
+    return involved;
+  }
+
+  /**
+   * Execute a command whose keys span shards against a scratch keyspace
+   * holding just its keys, while every shard that owns one is parked. A
+   * blocking command that finds nothing to pop only waits when block is set.
+   */
+  private Reply scratch(int id, Command command, boolean block) throws Exception {
+    CommandSpec spec = CommandSpec.lookup(id);
+    byte[][] keys = spec.keys(command);
+    if (spec.isWrite()) {
+      Reply refused = misconf();
+      if (refused != null) {
+        return refused;
+      }
+      boolean room = true;
+      for (byte[] key : keys) {
+        room &= owner(key)._evict();
+      }
+      if (!room && spec.isDenyOom()) {
+        return SimpleRedisServer.oom();
+      }
+      // The scratch keyspace changes the owners' values in place
+      for (byte[] key : keys) {
+        owner(key)._preserve(key);
+      }
+    }
+    SimpleRedisServer scratch = new SimpleRedisServer(store, config);
+    for (byte[] key : keys) {
+      SimpleRedisServer owner = owner(key);
+      scratch._restore(key, owner._raw(key), owner._expiration(key));
+    }
+    Reply reply = RedisServerDispatcher.execute(scratch, command);
+    if (!spec.isWrite()) {
+      // Nothing to move back, and restoring would count as a change to
+      // clients watching the keys
+      return reply;
+    }
+    Propagation propagation = this.propagation;
+    if (propagation != null) {
+      propagation.feed(id, command, reply, scratch);
+    }
+    for (byte[] key : keys) {
+      owner(key)._restore(key, scratch._raw(key), scratch._expiration(key));
+    }
+    if (block && spec.isBlocking() && Blocking.isEmpty(reply)) {
+      return blocking.block(id, command);
+    }
+    for (byte[] key : keys) {
+      owner(key)._serve(key);
+    }
+    return reply;
+  }
+
+  /**
+   * The error writes get while the append only file can't be written.
+   */
+  private Reply misconf() {
+    Aof aof = this.aof;
+    if (aof != null && aof.error() != null) {
+      return new ErrorReply("MISCONF Errors writing to the AOF file: " + aof.error());
+    }
+    return null;
+  }
+
+  SimpleRedisServer owner(byte[] key) {
+    return (SimpleRedisServer) shards[shardOf(key)].server;
+  }
+
+  /**
+   * Park the executors of the given shards, in index order, and run the
+   * callable while none of them can make progress.
+   */
+  private Reply exclusive(Shard[] involved, Callable<Reply> callable) throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    try {
+      for (Shard shard : involved) {
+        final CountDownLatch parked = new CountDownLatch(1);
+        shard.executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            parked.countDown();
+            boolean interrupted = false;
+            while (true) {
+              try {
+                release.await();
+                break;
+              } catch (InterruptedException e) {
+                interrupted = true;
+              }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+          }
+        });
+        parked.await();
+      }
+      return callable.call();
+    } finally {
+      release.countDown();
+    }
+  }
+
+  private Reply persistence(int id, Command command) throws Exception {
+    if (id == RedisServerDispatcher.SLAVEOF) {
+      return slaveof(command);
+    }
+    if (id == RedisServerDispatcher.LASTSAVE) {
+      return integer(lastsave() / 1000);
+    }
+    if (id == RedisServerDispatcher.BGREWRITEAOF) {
+      try {
+        bgrewriteaof();
+      } catch (RedisException e) {
+        return new ErrorReply("ERR " + e.getMessage());
+      }
+      return new StatusReply("Background append only file rewriting started");
+    }
+    Snapshot snapshot;
+    try {
+      snapshot = bgsave(null);
+    } catch (RedisException e) {
+      return new ErrorReply("ERR " + e.getMessage());
+    }
+    if (id == RedisServerDispatcher.BGSAVE) {
+      return new StatusReply("Background saving started");
+    }
+    try {
+      snapshot.get();
+    } catch (IOException e) {
+      return new ErrorReply("ERR Error saving: " + e.getMessage());
+    }
+    lastsave();
+    return OK;
+  }
+
+  /**
+   * Start saving every shard to the RDB file. The shards are parked just long
+   * enough to copy their slot arrays so that the file is a single point in
+   * time, then each writes its keys in steps between its other commands.
+   * The parked runnable, if there is one, runs at that point in time too.
+   */
+  private synchronized Snapshot bgsave(final Runnable parked) throws Exception {
+    if (saving != null && !saving.isDone()) {
+      throw new RedisException("Background save already in progress");
+    }
+    if (isRewriting()) {
+      throw new RedisException("Background append only file rewriting in progress");
+    }
+    final Snapshot snapshot = new Snapshot(config.rdb(), shards.length);
+    exclusive(shards, new Callable<Reply>() {
+      @Override
+      public Reply call() throws Exception {
+        for (Shard shard : shards) {
+          shard.simple._beginsnapshot(snapshot);
+        }
+        if (parked != null) {
+          parked.run();
+        }
+        return null;
+      }
+    });
+    for (Shard shard : shards) {
+      shard.snapshot();
+    }
+    saving = snapshot;
+    return snapshot;
+  }
+
+  /**
+   * Start rewriting the append only file from a snapshot of the shards, the
+   * same way bgsave() starts one. While the file is being appended to, the
+   * snapshot goes to a temporary file that the log takes over once it is
+   * done, see Aof.finishRewrite().
+   */
+  private synchronized void bgrewriteaof() throws Exception {
+    if (isRewriting()) {
+      throw new RedisException("Background append only file rewriting already in progress");
+    }
+    if (saving != null && !saving.isDone()) {
+      throw new RedisException("Background save already in progress");
+    }
+    final Aof aof = this.aof;
+    File target = config.aof();
+    final File file = aof == null ? target :
+        new File(target.getAbsoluteFile().getParentFile(), "temp-rewriteaof-" + target.getName());
+    final Snapshot snapshot = new Snapshot(file, shards.length);
+    exclusive(shards, new Callable<Reply>() {
+      @Override
+      public Reply call() throws Exception {
+        for (Shard shard : shards) {
+          shard.simple._beginsnapshot(snapshot);
+        }
+        if (aof != null) {
+          aof.beginRewrite(snapshot, file);
+        }
+        return null;
+      }
+    });
+    for (Shard shard : shards) {
+      shard.snapshot();
+    }
+    rewriting = snapshot;
+  }
+
+  private synchronized boolean isRewriting() {
+    Aof aof = this.aof;
+    return aof == null ? rewriting != null && !rewriting.isDone() : aof.isRewriting();
+  }
+
+  /**
+   * When the last successful save finished.
+   */
+  private synchronized long lastsave() throws InterruptedException {
+    if (saving != null && saving.isDone()) {
+      try {
+        lastSave = saving.get();
+      } catch (IOException e) {
+        // Failed saves don't count
+      }
+      saving = null;
+    }
+    return lastSave;
+  }
+
+  /**
+   * Restore the keyspace from disk and, with appendonly on, start logging
+   * writes. The append only file is replayed if there is one, otherwise the
+   * RDB file is loaded if there is one of those, returning the number of
+   * commands or keys read. The file is parsed on the calling thread while the
+   * shards execute the commands or build the values in parallel.
+   */
+  public long load() throws IOException, InterruptedException {
+    if (!persistent) {
+      return 0;
+    }
+    File log = config.aof();
+    File rdb = config.rdb();
+    long count = 0;
+    boolean appendonly = config.appendonly();
+    if (appendonly && log.exists()) {
+      count = replay(log);
+    } else if (rdb.exists()) {
+      count = loadRdb(rdb);
+      if (appendonly) {
+        // The keyspace just loaded is where the new log starts from
+        Files.copy(rdb.toPath(), log.toPath());
+      }
+    }
+    if (appendonly) {
+      aof = new Aof(config);
+      propagate();
+    }
+    return count;
+  }
+
+  private long loadRdb(File rdb) throws IOException, InterruptedException {
+    long count = 0;
+    Loader loader = new Loader();
+    Rdb.Reader reader = new Rdb.Reader(rdb);
+    try {
+      Rdb.Entry entry;
+      while ((entry = reader.next()) != null) {
+        loader.add(shardOf(entry.key), entry);
+        count++;
+      }
+    } finally {
+      reader.close();
+      loader.drain();
+    }
+    return count;
+  }
+
+  /**
+   * Point the shards at where their writes go now, while they are all
+   * parked so that a write is either sent everywhere or nowhere.
+   */
+  private void propagate() throws InterruptedException {
+    try {
+      exclusive(shards, new Callable<Reply>() {
+        @Override
+        public Reply call() throws Exception {
+          propagated();
+          return null;
+        }
+      });
+    } catch (InterruptedException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // Called while every shard is parked
+  private void propagated() {
+    Aof aof = this.aof;
+    boolean replicated = replication.isActive();
+    Propagation propagation = aof == null && !replicated ? null :
+        new Propagation(aof, replicated ? replication : null, replication.isReplica());
+    for (Shard shard : shards) {
+      shard.simple.propagation = propagation;
+    }
+    this.propagation = propagation;
+  }
+
+  /**
+   * Whether a client's command has to be refused because this server is a
+   * read only replica.
+   */
+  boolean isReadOnly(Command command) {
+    return replication.isReplica() && config.replicaReadOnly() &&
+        CommandSpec.lookup(RedisServerDispatcher.lookup(command)).isWrite();
+  }
+
+  /**
+   * Start sending the replication stream to a replica that asked for it
+   * with SYNC, or with PSYNC and the id and offset of the stream it has. It
+   * carries on from the backlog if it can, otherwise it waits for a snapshot
+   * to be sent first, see fullresync().
+   */
+  void replicate(Replication.Replica replica, String replid, long want) {
+    if (!persistent) {
+      replica.channel.writeAndFlush(new ErrorReply("ERR Replication needs a keyspace that can be saved"));
+      return;
+    }
+    if (replica.psync && replication.resume(replica, replid, want)) {
+      return;
+    }
+    replication.full(replica);
+    syncer.execute(new Runnable() {
+      @Override
+      public void run() {
+        fullresync();
+      }
+    });
+  }
+
+  /**
+   * Save a snapshot for every replica waiting for one and send it to them.
+   * Replicas that ask while one is being saved wait for the next, since their
+   * stream has to start where their snapshot does.
+   */
+  private void fullresync() {
+    if (!replication.isWaiting()) {
+      // Served along with an earlier one
+      return;
+    }
+    final List<List<Replication.Replica>> begun = new ArrayList<List<Replication.Replica>>(1);
+    Snapshot snapshot;
+    while (true) {
+      try {
+        snapshot = bgsave(new Runnable() {
+          @Override
+          public void run() {
+            begun.add(replication.begin());
+            propagated();
+          }
+        });
+        break;
+      } catch (RedisException e) {
+        // Wait for the save or rewrite in progress
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException ie) {
+          return;
+        }
+      } catch (Exception e) {
+        System.err.println("Failed starting a snapshot for replicas: " + e.getMessage());
+        return;
+      }
+    }
+    try {
+      snapshot.get();
+    } catch (Exception e) {
+      System.err.println("Failed saving a snapshot for replicas: " + e.getMessage());
+      replication.fail(begun.get(0));
+      return;
+    }
+    replication.transfer(begun.get(0), config.rdb());
+  }
+
+  /**
+   * Replace the keyspace with a snapshot of a master and take over its
+   * replication stream from where the snapshot was taken. Returns the
+   * number of keys loaded.
+   */
+  long resync(File rdb, final String replid, final long offset) throws Exception {
+    loading(true);
+    long count;
+    try {
+      exclusive(shards, new Callable<Reply>() {
+        @Override
+        public Reply call() throws Exception {
+          for (Shard shard : shards) {
+            shard.simple.flushall();
+          }
+          return null;
+        }
+      });
+      count = loadRdb(rdb);
+      exclusive(shards, new Callable<Reply>() {
+        @Override
+        public Reply call() throws Exception {
+          replication.adopt(replid, offset);
+          propagated();
+          return null;
+        }
+      });
+    } finally {
+      loading(false);
+    }
+    if (aof != null) {
+      // The log has to start from the new keyspace
+      try {
+        bgrewriteaof();
+      } catch (RedisException e) {
+        System.err.println("Failed rewriting the append only file after a resync: " + e.getMessage());
+      }
+    }
+    return count;
+  }
+
+  /**
+   * SLAVEOF host port replicates another server, SLAVEOF NO ONE stops.
+   */
+  private Reply slaveof(Command command) throws Exception {
+    Object[] objects = command.getObjects();
+    if (objects.length != 3) {
+      return new ErrorReply("ERR wrong number of arguments for 'slaveof' command");
+    }
+    String host = new String((byte[]) objects[1]);
+    String port = new String((byte[]) objects[2]);
+    MasterLink previous;
+    if (host.equalsIgnoreCase("no") && port.equalsIgnoreCase("one")) {
+      previous = replication.promote();
+      if (previous == null) {
+        return OK;
+      }
+      previous.close();
+      propagate();
+      System.out.println("Promoted to master");
+      return OK;
+    }
+    int number;
+    try {
+      number = Integer.parseInt(port);
+    } catch (NumberFormatException e) {
+      return new ErrorReply("ERR value is not an integer or out of range");
+    }
+    MasterLink current = replication.link();
+    if (current != null && current.host.equals(host) && current.port == number) {
+      return new StatusReply("OK Already connected to specified master");
+    }
+    MasterLink link = new MasterLink(this, replication, config, host, number);
+    previous = replication.follow(link);
+    if (previous != null) {
+      previous.close();
+    }
+    // Replicas of this server have to follow the new stream
+    replication.disconnect();
+    propagate();
+    link.connect();
+    System.out.println("Replicating " + host + ":" + number);
+    return OK;
+  }
+
+  /**
+   * Execute the commands in an append only file, after loading its RDB
+   * preamble if it has one. Nothing expires or is evicted until the whole
+   * file has been replayed.
+   */
+  private long replay(File file) throws IOException, InterruptedException {
+    loading(true);
+    long count = 0;
+    try {
+      Loader loader = new Loader();
+      long position = 0;
+      if (Rdb.isRdb(file)) {
+        Rdb.Reader rdb = new Rdb.Reader(file);
+        try {
+          Rdb.Entry entry;
+          while ((entry = rdb.next()) != null) {
+            loader.add(shardOf(entry.key), entry);
+          }
+          position = rdb.position();
+        } finally {
+          rdb.close();
+        }
+      }
+      Aof.Reader reader = new Aof.Reader(file, position);
+      try {
+        Command command;
+        while ((command = reader.next()) != null) {
+          int route = route(command);
+          if (route == COORDINATED) {
+            // Everything before it has to have been executed first
+            loader.drain();
+            try {
+              coordinated(command);
+            } catch (InterruptedException e) {
+              throw e;
+            } catch (Exception e) {
+              throw new IOException("Failed replaying " + new String(command.getName()), e);
+            }
+          } else {
+            loader.add(route == ANY ? 0 : route, command);
+          }
+          count++;
+        }
+      } finally {
+        reader.close();
+        loader.drain();
+      }
+      if (reader.isTruncated()) {
+        // Like redis with aof-load-truncated, a partial command at the end is
+        // assumed to be from a crash and dropped
+        System.err.println("Append only file ends part way through a command, truncating it to the last complete one");
+        Aof.truncate(file, reader.valid());
+      }
+    } finally {
+      loading(false);
+    }
+    return count;
+  }
+
+  private void loading(final boolean loading) throws InterruptedException {
+    for (final Shard shard : shards) {
+      shard.executor.submit(new Runnable() {
+        @Override
+        public void run() {
+          shard.simple._loading(loading);
+        }
+      }).sync();
+    }
+  }
+
+  /**
+   * Hands what is read from disk, RDB entries or commands, to the shards that
+   * own it a batch at a time.
+   */
+  private class Loader {
+    private final int permits = shards.length * 4;
+    private final Semaphore inflight = new Semaphore(permits);
+    private final List<List<Object>> batches = new ArrayList<List<Object>>(shards.length);
+
+    Loader() {
+      for (int i = 0; i < shards.length; i++) {
+        batches.add(new ArrayList<Object>(LOAD_BATCH));
+      }
+    }
+
+    void add(int shard, Object item) throws InterruptedException {
+      List<Object> batch = batches.get(shard);
+      batch.add(item);
+      if (batch.size() == LOAD_BATCH) {
+        submit(shards[shard], batch);
+        batches.set(shard, new ArrayList<Object>(LOAD_BATCH));
+      }
+    }
+
+    /**
+     * Returns once everything added so far has been executed.
+     */
+    void drain() throws InterruptedException {
+      for (int i = 0; i < shards.length; i++) {
+        if (!batches.get(i).isEmpty()) {
+          submit(shards[i], batches.get(i));
+          batches.set(i, new ArrayList<Object>(LOAD_BATCH));
+        }
+      }
+      // Every batch is done once all the permits are back
+      inflight.acquire(permits);
+      inflight.release(permits);
+    }
+
+    private void submit(final Shard shard, final List<Object> batch) throws InterruptedException {
+      inflight.acquire();
+      shard.executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (Object item : batch) {
+              if (item instanceof Rdb.Entry) {
+                shard.simple._load((Rdb.Entry) item);
+              } else {
+                ReferenceCountUtil.release(shard.execute((Command) item));
+              }
+            }
+          } finally {
+            inflight.release();
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Run the callback once any writes among the commands are as durable as
+   * appendfsync asks for, see Aof.sync().
+   */
+  void sync(List<Command> commands, Runnable callback) {
+    Aof aof = this.aof;
+    if (aof != null && config.appendfsync() == Config.Fsync.ALWAYS) {
+      for (Command command : commands) {
+        if (CommandSpec.lookup(RedisServerDispatcher.lookup(command)).isWrite()) {
+          aof.sync(callback);
+          return;
+        }
+      }
+    }
+    callback.run();
+  }
+
+  /**
+   * Stop waiting on behalf of a client that blocked and went away.
+   */
+  void cancel(Blocking.Waiter waiter) {
+    blocking.cancel(waiter);
+  }
+
+  /**
+   * Run a command on every shard and merge the replies.
+   */
+  private Reply broadcast(final int id, final Command command) throws Exception {
+    if (CommandSpec.lookup(id).isWrite()) {
+      // Every shard is parked so the command happens at one point between
+      // the writes of all of them and can be logged once
+      return exclusive(shards, new Callable<Reply>() {
+        @Override
+        public Reply call() throws Exception {
+          return parkedBroadcast(id, command);
+        }
+      });
+    }
+    List<Future<Reply>> futures = new ArrayList<Future<Reply>>(shards.length);
+    for (final Shard shard : shards) {
+      // Counted once, by the coordinator, rather than by every shard
+      futures.add(shard.executor.submit(new Callable<Reply>() {
+        @Override
+        public Reply call() throws Exception {
+          return RedisServerDispatcher.execute(shard.server, id, command);
+        }
+      }));
+    }
+    Reply[] replies = new Reply[shards.length];
+    for (int i = 0; i < replies.length; i++) {
+      replies[i] = futures.get(i).get();
+    }
+    return merge(id, replies);
+  }
+
+  /**
+   * Run a command on every shard while they are all parked.
+   */
+  private Reply parkedBroadcast(int id, Command command) {
+    boolean write = CommandSpec.lookup(id).isWrite();
+    if (write) {
+      Reply refused = misconf();
+      if (refused != null) {
+        return refused;
+      }
+    }
+    Reply[] replies = new Reply[shards.length];
+    for (int i = 0; i < replies.length; i++) {
+      replies[i] = RedisServerDispatcher.execute(shards[i].server, id, command);
+      if (write && replies[i] instanceof ErrorReply) {
+        return replies[i];
+      }
+    }
+    Propagation propagation = this.propagation;
+    if (write && propagation != null) {
+      propagation.feed(id, command, replies[0], shards[0].simple);
+    }
+    return merge(id, replies);
+  }
+
+  /**
+   * Combine the replies of every shard to a broadcast command.
+   */
+  private Reply merge(int id, Reply[] replies) {
+    for (Reply reply : replies) {
+      if (reply instanceof ErrorReply) {
+        return reply;
+      }
+    }
+    if (id == RedisServerDispatcher.DBSIZE) {
+      long total = 0;
+      for (Reply reply : replies) {
+        total += ((IntegerReply) reply).data();
+      }
+      return integer(total);
+    } else if (id == RedisServerDispatcher.KEYS) {
+      List<Reply> keys = new ArrayList<Reply>();
+      for (Reply reply : replies) {
+        for (Reply key : ((MultiBulkReply) reply).data()) {
+          keys.add(key);
+        }
+      }
+      return new MultiBulkReply(keys.toArray(new Reply[keys.size()]));
+    } else if (id == RedisServerDispatcher.RANDOMKEY) {
+      List<Reply> found = new ArrayList<Reply>();
+      for (Reply reply : replies) {
+        if (reply != null && reply != NIL_REPLY) found.add(reply);
+      }
+      return found.isEmpty() ? NIL_REPLY : found.get(random.nextInt(found.size()));
+    } else if (id == RedisServerDispatcher.INFO) {
+      return mergeInfo(replies);
+    }
+    return replies[0];
+  }
+
+  /**
+   * Sum the counters from every shard into the first shard's INFO.
+   */
+  private Reply mergeInfo(Reply[] replies) {
+    Map<String, Long> totals = new HashMap<String, Long>();
+    for (Reply reply : replies) {
+      for (String line : ((BulkReply) reply).asUTF8String().split("\n")) {
+        int colon = line.indexOf(':');
+        if (colon != -1 && SUMMED.contains(line.substring(0, colon))) {
+          String name = line.substring(0, colon);
+          Long total = totals.get(name);
+          totals.put(name, (total == null ? 0 : total) + Long.parseLong(line.substring(colon + 1).trim()));
+        }
+      }
+    }
+    StringBuilder sb = new StringBuilder();
+    for (String line : ((BulkReply) replies[0]).asUTF8String().split("\n")) {
+      int colon = line.indexOf(':');
+      String name = colon == -1 ? line : line.substring(0, colon);
+      if (totals.containsKey(name)) {
+        sb.append(name).append(":").append(totals.get(name)).append("\n");
+      } else {
+        sb.append(line).append("\n");
+      }
+      if (name.equals("keys")) {
+        sb.append("shards:").append(shards.length).append("\n");
+      }
+    }
+    return new BulkReply(sb.toString().getBytes());
+  }
+
+  public void shutdown() {
+    List<Future<?>> stopped = new ArrayList<Future<?>>(shards.length);
+    for (Shard shard : shards) {
+      stopped.add(shard.shutdown());
+    }
+    coordinators.shutdownGracefully();
+    syncer.shutdownGracefully();
+    blocking.shutdown();
+    MasterLink link = replication.promote();
+    if (link != null) {
+      link.close();
+    }
+    Aof aof = this.aof;
+    if (aof != null) {
+      try {
+        // Whatever the shards were still executing is logged before the file
+        // is closed
+        for (Future<?> future : stopped) {
+          future.await();
+        }
+        aof.close();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package redis.server.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import redis.netty4.BulkReply;
+import redis.netty4.IntegerReply;
+import redis.netty4.MultiBulkReply;
+import redis.netty4.Reply;
+
+import java.io.IOException;
+
+import static redis.netty4.StatusReply.OK;
+import static redis.netty4.StatusReply.PONG;
+import static redis.netty4.StatusReply.QUEUED;
+import static redis.netty4.StatusReply.QUIT;
+
+/**
+ * The replies that are sent all the time, like the shared objects of redis,
+ * encoded once into a read only direct buffer that is never released. A
+ * reply that is one of them is copied from there, or sent as a slice of it,
+ * instead of being encoded again.
+ */
+class SharedReplies {
+  // Integers from 0 up to here are shared, whichever IntegerReply they are
+  static final int INTEGERS = 10000;
+
+  // Matched by identity
+  private static final Reply[] CONSTANTS = {
+      OK, QUIT, PONG, QUEUED, BulkReply.NIL_REPLY, MultiBulkReply.NIL_REPLY, MultiBulkReply.EMPTY
+  };
+
+  private static final ByteBuf SHARED;
+  // Where each reply starts, the constants first and then the integers
+  private static final int[] OFFSETS = new int[CONSTANTS.length + INTEGERS + 1];
+
+  static {
+    ByteBuf encoded = Unpooled.buffer();
+    try {
+      for (int i = 0; i < CONSTANTS.length; i++) {
+        OFFSETS[i] = encoded.writerIndex();
+        CONSTANTS[i].write(encoded);
+      }
+      for (int i = 0; i < INTEGERS; i++) {
+        OFFSETS[CONSTANTS.length + i] = encoded.writerIndex();
+        new IntegerReply(i).write(encoded);
+      }
+    } catch (IOException e) {
+      // Only thrown by streams, not buffers
+      throw new IllegalStateException(e);
+    }
+    OFFSETS[OFFSETS.length - 1] = encoded.writerIndex();
+    ByteBuf direct = Unpooled.directBuffer(encoded.readableBytes());
+    direct.writeBytes(encoded);
+    SHARED = Unpooled.unreleasableBuffer(Unpooled.unmodifiableBuffer(direct));
+  }
+
+  private static int index(Reply reply) {
+    if (reply instanceof IntegerReply) {
+      long value = ((IntegerReply) reply).data();
+      return value >= 0 && value < INTEGERS ? CONSTANTS.length + (int) value : -1;
+    }
+    for (int i = 0; i < CONSTANTS.length; i++) {
+      if (reply == CONSTANTS[i]) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Copy a shared reply to the buffer. Returns false, having written
+   * nothing, if the reply isn't one of them.
+   */
+  static boolean write(Reply reply, ByteBuf out) {
+    int index = index(reply);
+    if (index == -1) {
+      return false;
+    }
+    out.writeBytes(SHARED, OFFSETS[index], OFFSETS[index + 1] - OFFSETS[index]);
+    return true;
+  }
+
+  /**
+   * A shared reply as a buffer of its own that can be written to a channel
+   * as it is, or null if it isn't one of them.
+   */
+  static ByteBuf get(Reply reply) {
+    int index = index(reply);
+    if (index == -1) {
+      return null;
+    }
+    return SHARED.slice(OFFSETS[index], OFFSETS[index + 1] - OFFSETS[index]);
+  }
+}
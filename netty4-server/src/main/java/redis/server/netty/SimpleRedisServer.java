@@ -1,10 +1,10 @@
 package redis.server.netty;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.util.ReferenceCountUtil;
 import redis.netty4.*;
 import redis.util.*;
 
-import java.lang.reflect.Field;
 import java.security.SecureRandom;
 import java.util.*;
 
@@ -13,18 +13,115 @@ import static java.lang.Integer.MAX_VALUE;
 import static redis.netty4.BulkReply.NIL_REPLY;
 import static redis.netty4.IntegerReply.integer;
 import static redis.netty4.StatusReply.OK;
+import static redis.netty4.StatusReply.PONG;
 import static redis.netty4.StatusReply.QUIT;
 import static redis.util.Encoding.bytesToNum;
 import static redis.util.Encoding.numToBytes;
 
 public class SimpleRedisServer implements RedisServer {
 
-  private static final StatusReply PONG = new StatusReply("PONG");
   private long started = now();
 
-  private BytesKeyObjectMap<Object> data = new BytesKeyObjectMap<Object>();
-  private BytesKeyObjectMap<Long> expires = new BytesKeyObjectMap<Long>();
+  private BytesMap<Object> data = new BytesMap<Object>();
+  private BytesMap<Long> expires = new BytesMap<Long>();
+  private final ExpirationWheel wheel = new ExpirationWheel(expires, now()) {
+    @Override
+    void expire(byte[] key) {
+      _remove(key);
+      _propagate(key);
+    }
+  };
+  private long expiredKeys;
+  private long expireCycleNanos;
+  // Expirations counted since the rate was last computed
+  private long rateStarted = now();
+  private long rateExpired;
+  private long expiredPerSecond;
   private static int[] mask = {128, 64, 32, 16, 8, 4, 2, 1};
+  private final ValueStore store;
+  private final Config config;
+
+  // The metadata data keeps for each key is its accounted size in the low 32
+  // bits and when it was last used in the high 32. That is a clock in seconds
+  // for LRU, or for LFU the minute it was last decayed and an 8 bit
+  // logarithmic access counter.
+  private static final long SIZE = 0xFFFFFFFFL;
+  // Keyspace slot, key and value headers
+  private static final int ENTRY_OVERHEAD = 80;
+  // Pooled buffer object and allocator bookkeeping
+  private static final int BUFFER_OVERHEAD = 64;
+  // Per element of each kind of collection, including wrapping the bytes
+  // Chunk object and links of a list
+  private static final int LIST_CHUNK = 48;
+  private static final int SET_ELEMENT = 72;
+  private static final int HASH_ELEMENT = 88;
+  private static final int ZSET_ELEMENT = 150;
+  // Wrapper, encoding and array headers of a set, hash or zset that is packed
+  private static final int PACKED = 64;
+  // Elements looked at to estimate the average size of a collection's elements
+  private static final int SIZE_SAMPLES = 8;
+  private static final int LFU_INIT = 5;
+  private static final ErrorReply OOM = new ErrorReply("OOM command not allowed when used memory > 'maxmemory'");
+
+  private final Random sampler = new Random();
+  private long used;
+  private long evictedKeys;
+
+  // The snapshot being written and how far through the keys it is
+  private Snapshot snapshot;
+  private BytesMap.Keys snapshotKeys;
+  private int snapshotPosition;
+  // Keys written ahead of their turn because they were about to change
+  private BytesMap<Boolean> snapshotSaved;
+  private ByteBuf snapshotOut;
+  private long lastSave = now();
+
+  // Where keys removed by the server rather than a command are sent, set by
+  // the engine once the append only file is open or a replica connects
+  Propagation propagation;
+  // Replaying the append only file, which is only correct if nothing expires
+  // or is evicted until it is done
+  private boolean loading;
+
+  // Clients blocked on each key until it gets an element, in the order they
+  // blocked, and where to hand the elements to, set by the shard that owns it
+  private final BytesMap<LinkedHashSet<Blocking.Waiter>> blocked = new BytesMap<LinkedHashSet<Blocking.Waiter>>();
+  Blocking blocking;
+  // Where PUBLISH sends messages, set by the engine
+  PubSub pubsub;
+  // What INFO reports about replication, set by the engine
+  Replication replication;
+  // Which of the engine's shards this is, for SCAN cursors, set by the engine
+  int shard;
+  int shards = 1;
+  // What INFO commandstats and SLOWLOG report, set by the engine and
+  // otherwise created when first asked for
+  Stats stats;
+  // Keys that clients WATCH, each with its version and how many clients
+  // watch it. A version is bumped whenever its key is about to change, so
+  // EXEC only compares versions and writing a key nobody watches costs no
+  // more than checking that this is empty.
+  private final BytesMap<long[]> watched = new BytesMap<long[]>();
+
+  public SimpleRedisServer() {
+    this(ValueStore.HEAP);
+  }
+
+  /**
+   * @param store where string values are kept
+   */
+  public SimpleRedisServer(ValueStore store) {
+    this(store, new Config());
+  }
+
+  /**
+   * @param store where string values are kept
+   * @param config settings shared with the other shards
+   */
+  public SimpleRedisServer(ValueStore store, Config config) {
+    this.store = store;
+    this.config = config;
+  }
 
   private static RedisException invalidValue() {
     return new RedisException("Operation against a key holding the wrong kind of value");
@@ -38,41 +135,38 @@ public class SimpleRedisServer implements RedisServer {
     return new RedisException("value is not a float or out of range");
   }
 
-  @SuppressWarnings("unchecked")
-  private BytesKeyObjectMap<byte[]> _gethash(byte[] key0, boolean create) throws RedisException {
+  private BytesHash _gethash(byte[] key0, boolean create) throws RedisException {
     Object o = _get(key0);
     if (o == null) {
-      o = new BytesKeyObjectMap();
+      o = _newhash();
       if (create) {
         data.put(key0, o);
       }
     }
-    if (!(o instanceof HashMap)) {
+    if (!(o instanceof BytesHash)) {
       throw invalidValue();
     }
-    return (BytesKeyObjectMap<byte[]>) o;
+    return (BytesHash) o;
   }
 
-  @SuppressWarnings("unchecked")
-  private BytesKeySet _getset(byte[] key0, boolean create) throws RedisException {
+  private BytesSet _getset(byte[] key0, boolean create) throws RedisException {
     Object o = _get(key0);
     if (o == null) {
-      o = new BytesKeySet();
+      o = _newset();
       if (create) {
         data.put(key0, o);
       }
     }
-    if (!(o instanceof BytesKeySet)) {
+    if (!(o instanceof BytesSet)) {
       throw invalidValue();
     }
-    return (BytesKeySet) o;
+    return (BytesSet) o;
   }
 
-  @SuppressWarnings("unchecked")
   private ZSet _getzset(byte[] key0, boolean create) throws RedisException {
     Object o = _get(key0);
     if (o == null) {
-      o = new ZSet();
+      o = _newzset();
       if (create) {
         data.put(key0, o);
       }
@@ -83,28 +177,292 @@ public class SimpleRedisServer implements RedisServer {
     return (ZSet) o;
   }
 
+  // New collections start out compact, within the limits configured when
+  // they are created
+
+  private BytesHash _newhash() {
+    return new BytesHash(config.hashMaxListpackEntries(), config.hashMaxListpackValue());
+  }
+
+  private BytesSet _newset() {
+    return new BytesSet(config.setMaxIntsetEntries(), config.setMaxListpackEntries(), config.setMaxListpackValue());
+  }
+
+  private ZSet _newzset() {
+    return new ZSet(config.zsetMaxListpackEntries(), config.zsetMaxListpackValue());
+  }
+
+  /**
+   * How a value is kept, as OBJECT ENCODING names it.
+   */
+  private static String _encoding(Object o) {
+    if (o instanceof BytesHash) {
+      return ((BytesHash) o).encoding();
+    } else if (o instanceof BytesSet) {
+      return ((BytesSet) o).encoding();
+    } else if (o instanceof ZSet) {
+      return ((ZSet) o).encoding();
+    } else if (o instanceof QuickList) {
+      return "quicklist";
+    }
+    return "raw";
+  }
+
   private Object _get(byte[] key0) {
-    Object o = data.get(key0);
-    if (o != null) {
+    int slot = data.slot(key0);
+    if (slot == -1) {
+      return null;
+    }
+    Object o = data.valueAt(slot);
+    if (!loading && !expires.isEmpty()) {
       Long l = expires.get(key0);
       if (l != null) {
         if (l < now()) {
-          data.remove(key0);
+          _expired(key0);
           return null;
         }
       }
     }
+    _touch(slot);
     return o;
   }
 
+  private void _expired(byte[] key) {
+    _remove(key);
+    expiredKeys++;
+    _propagate(key);
+  }
+
+  /**
+   * Log the removal of a key that no command asked for, so replaying the
+   * append only file, or a replica, doesn't bring it back.
+   */
+  private void _propagate(byte[] key) {
+    if (propagation != null) {
+      propagation.delete(key);
+    }
+  }
+
+  /**
+   * While loading, keys neither expire nor get evicted so that the commands
+   * replayed see the keyspace as it was when they were logged.
+   */
+  void _loading(boolean loading) {
+    this.loading = loading;
+  }
+
+  /**
+   * Record an access to a key for the eviction policy.
+   */
+  private void _touch(int slot) {
+    Config.Policy policy = config.policy();
+    if (policy == Config.Policy.ALLKEYS_LRU || policy == Config.Policy.ALLKEYS_LFU) {
+      long meta = data.metaAt(slot);
+      long access = policy == Config.Policy.ALLKEYS_LFU ? _lfuincrement((int) (meta >>> 32)) : _lruclock();
+      data.setMetaAt(slot, access << 32 | (meta & SIZE));
+    }
+  }
+
+  private long _lruclock() {
+    return (now() / 1000) & SIZE;
+  }
+
+  private int _lfuminutes() {
+    return (int) (now() / 60000) & 0xFFFF;
+  }
+
+  /**
+   * The access counter after decaying it by one for every lfu-decay-time
+   * minutes since it was last decayed.
+   */
+  private int _lfudecay(int access) {
+    int counter = access & 0xFF;
+    int decay = config.lfuDecayTime();
+    if (decay > 0) {
+      int elapsed = (_lfuminutes() - (access >>> 8)) & 0xFFFF;
+      counter = Math.max(0, counter - elapsed / decay);
+    }
+    return counter;
+  }
+
+  /**
+   * Like redis, the counter goes up with a probability that falls as it
+   * grows so that 8 bits can count millions of accesses.
+   */
+  private int _lfuincrement(int access) {
+    int counter = access == 0 ? LFU_INIT : _lfudecay(access);
+    if (counter < 255) {
+      double base = Math.max(0, counter - LFU_INIT);
+      if (sampler.nextDouble() < 1.0 / (base * config.lfuLogFactor() + 1)) {
+        counter++;
+      }
+    }
+    return _lfuminutes() << 8 | counter;
+  }
+
+  /**
+   * Recompute the accounted size of keys after a command has changed them.
+   * Sizes are estimates, collections are sized from a sample of their
+   * elements.
+   */
+  void _account(byte[][] keys) {
+    for (byte[] key : keys) {
+      _account(key);
+    }
+  }
+
+  private void _account(byte[] key) {
+    int slot = data.slot(key);
+    if (slot != -1) {
+      long meta = data.metaAt(slot);
+      long size = _sizeof(key, data.valueAt(slot));
+      used += size - (meta & SIZE);
+      data.setMetaAt(slot, (meta & ~SIZE) | size);
+      if (meta >>> 32 == 0) {
+        // New keys start out as recently and moderately used
+        _touch(slot);
+      }
+    }
+  }
+
+  private static long _sizeof(byte[] key, Object value) {
+    long size = ENTRY_OVERHEAD + key.length;
+    if (value instanceof byte[]) {
+      size += ((byte[]) value).length;
+    } else if (value instanceof ByteBuf) {
+      size += ((ByteBuf) value).capacity() + BUFFER_OVERHEAD;
+    } else if (value instanceof QuickList) {
+      // Lists know their packed size
+      size += ((QuickList) value).allocated() + ((QuickList) value).chunks() * LIST_CHUNK;
+    } else if (value instanceof BytesSet) {
+      // Compact encodings know their packed size too
+      BytesSet set = (BytesSet) value;
+      long packed = set.allocated();
+      size += packed != -1 ? packed + PACKED : _sizeof(set, set.size(), SET_ELEMENT);
+    } else if (value instanceof BytesHash) {
+      BytesHash hash = (BytesHash) value;
+      long packed = hash.allocated();
+      size += packed != -1 ? packed + PACKED : _sizeof(hash, hash.size(), HASH_ELEMENT);
+    } else if (value instanceof ZSet) {
+      ZSet zset = (ZSet) value;
+      long packed = zset.allocated();
+      size += packed != -1 ? packed + PACKED : _sizeof(zset, zset.size(), ZSET_ELEMENT);
+    }
+    return Math.min(size, SIZE);
+  }
+
+  private static long _sizeof(Iterable<?> elements, int count, int overhead) {
+    long sampled = 0;
+    int samples = 0;
+    for (Object element : elements) {
+      if (samples == SIZE_SAMPLES) break;
+      sampled += _elementsize(element);
+      samples++;
+    }
+    return samples == 0 ? 0 : count * (overhead + sampled / samples);
+  }
+
+  private static int _elementsize(Object element) {
+    if (element instanceof BytesValue) {
+      return ((BytesValue) element).getBytes().length;
+    } else if (element instanceof byte[]) {
+      return ((byte[]) element).length;
+    } else if (element instanceof ZSetEntry) {
+      return ((ZSetEntry) element).getKey().getBytes().length;
+    } else if (element instanceof Map.Entry) {
+      return _elementsize(((Map.Entry<?, ?>) element).getKey()) + _elementsize(((Map.Entry<?, ?>) element).getValue());
+    }
+    return 0;
+  }
+
+  /**
+   * Evict keys until this keyspace is within its part of maxmemory. Returns
+   * false if it can't be, because the policy doesn't allow evicting or there
+   * is nothing left that it allows evicting.
+   */
+  boolean _evict() {
+    long limit = config.limit();
+    if (limit == 0 || loading) {
+      return true;
+    }
+    while (used > limit) {
+      Config.Policy policy = config.policy();
+      byte[] victim;
+      if (policy == Config.Policy.NOEVICTION) {
+        return false;
+      } else if (policy == Config.Policy.VOLATILE_TTL) {
+        victim = _ttlvictim();
+      } else {
+        victim = _accessvictim(policy);
+      }
+      if (victim == null) {
+        return false;
+      }
+      _remove(victim);
+      evictedKeys++;
+      _propagate(victim);
+    }
+    return true;
+  }
+
+  /**
+   * Of a few randomly sampled keys, the one used longest ago or least often.
+   */
+  private byte[] _accessvictim(Config.Policy policy) {
+    byte[] victim = null;
+    long best = -1;
+    long clock = _lruclock();
+    for (int i = config.samples(); i > 0; i--) {
+      int slot = data.randomSlot(sampler);
+      if (slot == -1) {
+        break;
+      }
+      int access = (int) (data.metaAt(slot) >>> 32);
+      long score = policy == Config.Policy.ALLKEYS_LFU ? 255 - _lfudecay(access) : (clock - access) & SIZE;
+      if (score > best) {
+        best = score;
+        victim = data.keyAt(slot);
+      }
+    }
+    return victim;
+  }
+
+  /**
+   * Of a few randomly sampled keys with an expiration, the one that will
+   * expire soonest.
+   */
+  private byte[] _ttlvictim() {
+    byte[] victim = null;
+    long soonest = Long.MAX_VALUE;
+    for (int i = config.samples(); i > 0; i--) {
+      int slot = expires.randomSlot(sampler);
+      if (slot == -1) {
+        break;
+      }
+      long expiration = expires.valueAt(slot);
+      if (expiration < soonest) {
+        soonest = expiration;
+        victim = expires.keyAt(slot);
+      }
+    }
+    return victim;
+  }
+
+  /**
+   * The reply to a command that needs more memory when none can be freed.
+   */
+  static ErrorReply oom() {
+    return OOM;
+  }
+
   private IntegerReply _change(byte[] key0, long delta) throws RedisException {
     Object o = _get(key0);
     if (o == null) {
       _put(key0, numToBytes(delta, false));
       return integer(delta);
-    } else if (o instanceof byte[]) {
+    } else if (_isstring(o)) {
       try {
-        long integer = bytesToNum((byte[]) o) + delta;
+        long integer = bytesToNum(_bytes(o)) + delta;
         _put(key0, numToBytes(integer, false));
         return integer(integer);
       } catch (IllegalArgumentException e) {
@@ -121,9 +479,9 @@ public class SimpleRedisServer implements RedisServer {
       byte[] bytes = _tobytes(delta);
       _put(key0, bytes);
       return new BulkReply(bytes);
-    } else if (o instanceof byte[]) {
+    } else if (_isstring(o)) {
       try {
-        double number = _todouble((byte[]) o) + delta;
+        double number = _todouble(_bytes(o)) + delta;
         byte[] bytes = _tobytes(number);
         _put(key0, bytes);
         return new BulkReply(bytes);
@@ -152,8 +510,8 @@ public class SimpleRedisServer implements RedisServer {
   private byte[] _getbytes(byte[] aKey2) throws RedisException {
     byte[] src;
     Object o = _get(aKey2);
-    if (o instanceof byte[]) {
-      src = (byte[]) o;
+    if (_isstring(o)) {
+      src = _bytes(o);
     } else if (o != null) {
       throw invalidValue();
     } else {
@@ -163,13 +521,13 @@ public class SimpleRedisServer implements RedisServer {
   }
 
   @SuppressWarnings("unchecked")
-  private List<BytesValue> _getlist(byte[] key0, boolean create) throws RedisException {
+  private QuickList _getlist(byte[] key0, boolean create) throws RedisException {
     Object o = _get(key0);
-    if (o instanceof List) {
-      return (List<BytesValue>) o;
+    if (o instanceof QuickList) {
+      return (QuickList) o;
     } else if (o == null) {
       if (create) {
-        ArrayList<BytesValue> list = new ArrayList<BytesValue>();
+        QuickList list = new QuickList();
         _put(key0, list);
         return list;
       } else {
@@ -180,51 +538,329 @@ public class SimpleRedisServer implements RedisServer {
     }
   }
 
-  private Object _put(byte[] key, Object value) {
-    expires.remove(key);
-    return data.put(key, value);
+  /**
+   * The live value of a key, used by the sharded engine to move values
+   * between keyspaces.
+   */
+  Object _raw(byte[] key) {
+    return _get(key);
+  }
+
+  /**
+   * Expire keys whose time has passed without waiting for them to be read,
+   * spending at most about budgetNanos. Called periodically on the shard
+   * executor.
+   */
+  int _activeexpire(long budgetNanos) {
+    if (loading) {
+      return 0;
+    }
+    long start = System.nanoTime();
+    long now = now();
+    int expired = wheel.sweep(now, budgetNanos);
+    expiredKeys += expired;
+    expireCycleNanos += System.nanoTime() - start;
+    if (now - rateStarted >= 1000) {
+      expiredPerSecond = (expiredKeys - rateExpired) * 1000 / (now - rateStarted);
+      rateStarted = now;
+      rateExpired = expiredKeys;
+    }
+    return expired;
+  }
+
+  /**
+   * Start writing this keyspace to a snapshot as it is now. Only the slots of
+   * the keyspace are copied here, which is fast enough to do while every
+   * keyspace writing to the snapshot is parked so that the file is one point
+   * in time for all of them. The keys themselves are written by later calls
+   * to _snapshotstep(). Until it is done, any key that is about to be changed
+   * or removed before its turn is written first by _preserve().
+   */
+  void _beginsnapshot(Snapshot snapshot) {
+    this.snapshot = snapshot;
+    snapshotKeys = data.snapshot();
+    snapshotPosition = 0;
+    snapshotSaved = new BytesMap<Boolean>();
+    snapshotOut = snapshot.allocate();
+  }
+
+  /**
+   * Write the next keys of the snapshot, stopping early once the budget is
+   * spent. Returns true when every key has been written.
+   */
+  boolean _snapshotstep(long budgetNanos) {
+    return _snapshotstep(budgetNanos, false);
   }
 
-  private Object _put(byte[] key, byte[] value, long expiration) {
-    expires.put(key, expiration);
-    return data.put(key, value);
+  /**
+   * Write every key that is left, waiting for the writer if it falls behind.
+   */
+  private void _snapshotfinish() {
+    _snapshotstep(Long.MAX_VALUE, true);
   }
 
-  private static boolean matches(byte[] key, byte[] pattern, int kp, int pp) {
-    if (kp == key.length) {
-      return pp == pattern.length || (pp == pattern.length - 1 && pattern[pp] == '*');
-    } else if (pp == pattern.length) {
+  private boolean _snapshotstep(long budgetNanos, boolean wait) {
+    if (snapshot == null) {
+      return true;
+    }
+    long start = System.nanoTime();
+    int capacity = snapshotKeys.capacity();
+    if (!wait && snapshot.isBacklogged()) {
       return false;
     }
-    byte c = key[kp];
-    byte p = pattern[pp];
-    switch (p) {
-      case '?':
-        // Always matches, move to next character in key and pattern
-        return matches(key, pattern, kp + 1, pp + 1);
-      case '*':
-        // Matches this character than either matches end or try next character
-        return matches(key, pattern, kp + 1, pp + 1) || matches(key, pattern, kp + 1, pp);
-      case '\\':
-        // Matches the escaped character and the rest
-        return c == pattern[pp + 1] && matches(key, pattern, kp + 1, pp + 2);
-      case '[':
-        // Matches one of the characters and the rest
-        boolean found = false;
-        pp++;
-        do {
-          byte b = pattern[pp++];
-          if (b == ']') {
-            break;
-          } else {
-            if (b == c) found = true;
-          }
-        } while (true);
-        return found && matches(key, pattern, kp + 1, pp);
+    while (snapshotPosition < capacity) {
+      byte[] key = snapshotKeys.get(snapshotPosition++);
+      if (key != null && !snapshotSaved.containsKey(key)) {
+        // Unchanged since the snapshot began or it would have been saved
+        _snapshotwrite(key, data.get(key), wait);
+      }
+      if ((snapshotPosition & 0xFF) == 0 &&
+          (System.nanoTime() - start > budgetNanos || (!wait && snapshot.isBacklogged()))) {
+        return false;
+      }
+    }
+    if (snapshotOut.isReadable()) {
+      snapshot.write(snapshotOut);
+    } else {
+      snapshotOut.release();
+    }
+    snapshot.finished();
+    snapshot = null;
+    snapshotKeys = null;
+    snapshotSaved = null;
+    snapshotOut = null;
+    return true;
+  }
+
+  /**
+   * Called before keys are changed. Bumps the versions of the ones that are
+   * watched and writes the ones that were in the keyspace when the snapshot
+   * began and haven't been written yet.
+   */
+  void _preserve(byte[][] keys) {
+    if (snapshot != null || !watched.isEmpty()) {
+      for (byte[] key : keys) {
+        _preserve(key);
+      }
+    }
+  }
+
+  void _preserve(byte[] key) {
+    if (!watched.isEmpty()) {
+      long[] watch = watched.get(key);
+      if (watch != null) {
+        watch[0]++;
+      }
+    }
+    if (snapshot != null && snapshotKeys.indexOf(key) >= snapshotPosition
+        && snapshotSaved.put(key, Boolean.TRUE) == null) {
+      _snapshotwrite(key, data.get(key), false);
+    }
+  }
+
+  private void _snapshotwrite(byte[] key, Object value, boolean wait) {
+    if (value == null) {
+      return;
+    }
+    Rdb.writeEntry(snapshotOut, key, value, expires.get(key));
+    if (snapshotOut.readableBytes() >= Snapshot.CHUNK) {
+      if (wait) {
+        snapshot.write(snapshotOut);
+      } else if (!snapshot.offer(snapshotOut)) {
+        // Rather than wait for a writer that has fallen behind, the chunk
+        // grows until there is room
+        return;
+      }
+      snapshotOut = snapshot.allocate();
+    }
+  }
+
+  /**
+   * Whether the snapshot being written is waiting on the disk.
+   */
+  boolean _snapshotbacklogged() {
+    return snapshot != null && snapshot.isBacklogged();
+  }
+
+  /**
+   * Add a key read from an RDB file unless it has already expired. Keys in
+   * the preamble of an append only file are kept until it has been replayed.
+   */
+  void _load(Rdb.Entry entry) {
+    if (!loading && entry.expiration != -1 && entry.expiration < now()) {
+      return;
+    }
+    byte[][] elements = entry.elements;
+    Object value;
+    switch (entry.type) {
+      case Rdb.STRING:
+        value = store.store(entry.value);
+        break;
+      case Rdb.LIST:
+        QuickList list = new QuickList();
+        for (byte[] element : elements) {
+          list.addLast(element);
+        }
+        value = list;
+        break;
+      case Rdb.SET:
+        BytesSet set = _newset();
+        for (byte[] element : elements) {
+          set.add(element);
+        }
+        value = set;
+        break;
+      case Rdb.ZSET:
+        ZSet zset = _newzset();
+        for (int i = 0; i < elements.length; i++) {
+          zset.add(new BytesKey(elements[i]), entry.scores[i]);
+        }
+        value = zset;
+        break;
       default:
-        // This matches and the rest
-        return c == p && matches(key, pattern, kp + 1, pp + 1);
+        BytesHash hash = _newhash();
+        for (int i = 0; i < elements.length; i += 2) {
+          hash.put(elements[i], elements[i + 1]);
+        }
+        value = hash;
+    }
+    if (entry.type != Rdb.STRING && elements.length == 0) {
+      return;
+    }
+    _restore(entry.key, value, entry.expiration == -1 ? null : entry.expiration);
+  }
+
+  Long _expiration(byte[] key) {
+    return _get(key) == null ? null : expires.get(key);
+  }
+
+  /**
+   * Replace the value and expiration of a key, removing it if value is null.
+   */
+  void _restore(byte[] key, Object value, Long expiration) {
+    _preserve(key);
+    if (value == null) {
+      _unlink(key);
+      expires.remove(key);
+    } else {
+      data.put(key, value);
+      _account(key);
+      if (expiration == null) {
+        expires.remove(key);
+      } else {
+        _expire(key, expiration);
+      }
+    }
+  }
+
+  private static boolean _isstring(Object o) {
+    return o instanceof byte[] || o instanceof ByteBuf;
+  }
+
+  /**
+   * The bytes of a string value, copied onto the heap if it is stored off it.
+   */
+  private static byte[] _bytes(Object o) {
+    if (o instanceof ByteBuf) {
+      ByteBuf buffer = (ByteBuf) o;
+      byte[] bytes = new byte[buffer.readableBytes()];
+      buffer.getBytes(buffer.readerIndex(), bytes);
+      return bytes;
+    }
+    return (byte[]) o;
+  }
+
+  /**
+   * Whether an off heap value is long enough to be changed in place and no
+   * reply is still waiting to be written from it.
+   */
+  private static boolean _writable(Object o, long length) {
+    return o instanceof ByteBuf && ((ByteBuf) o).readableBytes() >= length && ((ByteBuf) o).refCnt() == 1;
+  }
+
+  private static int _length(Object o) {
+    return o instanceof ByteBuf ? ((ByteBuf) o).readableBytes() : ((byte[]) o).length;
+  }
+
+  /**
+   * A reply for a string value that writes off heap values straight from
+   * their memory. Only use it for a top level reply, the encoder releases it.
+   */
+  private static BulkReply _reply(Object o) {
+    return o instanceof ByteBuf ? new RetainedBulkReply((ByteBuf) o) : new BulkReply((byte[]) o);
+  }
+
+  /**
+   * Replace the value of a key. Values that are replaced or removed are
+   * released so off heap strings go back to the pool.
+   */
+  private void _put(byte[] key, Object value) {
+    expires.remove(key);
+    _replace(key, value);
+  }
+
+  private void _put(byte[] key, byte[] value, long expiration) {
+    _expire(key, expiration);
+    _replace(key, value);
+  }
+
+  /**
+   * Set the expiration of a key, indexing it so the key is removed on time
+   * even if it is never read again.
+   */
+  private void _expire(byte[] key, long expiration) {
+    Long old = expires.put(key, expiration);
+    if (old == null || old != expiration) {
+      wheel.add(key, expiration);
+    }
+  }
+
+  private void _replace(byte[] key, Object value) {
+    _preserve(key);
+    if (value instanceof byte[]) {
+      value = store.store((byte[]) value);
+    }
+    Object old = data.put(key, value);
+    if (old != value) {
+      ReferenceCountUtil.release(old);
+    }
+  }
+
+  private boolean _remove(byte[] key) {
+    expires.remove(key);
+    Object old = _unlink(key);
+    ReferenceCountUtil.release(old);
+    return old != null;
+  }
+
+  /**
+   * Remove a key from data without releasing its value.
+   */
+  private Object _unlink(byte[] key) {
+    int slot = data.slot(key);
+    if (slot == -1) {
+      return null;
+    }
+    _preserve(key);
+    used -= data.metaAt(slot) & SIZE;
+    return data.removeAt(slot);
+  }
+
+  private void _clear() {
+    if (snapshot != null) {
+      // Everything that is left has to be written before it is gone
+      _snapshotfinish();
+    }
+    for (Object value : data.values()) {
+      ReferenceCountUtil.release(value);
+    }
+    for (long[] watch : watched.values()) {
+      watch[0]++;
     }
+    data.clear();
+    expires.clear();
+    wheel.clear();
+    used = 0;
   }
 
 
@@ -259,24 +895,6 @@ public class SimpleRedisServer implements RedisServer {
   }
 
   private static Random r = new SecureRandom();
-  private static Field tableField;
-  private static Field nextField;
-  private static Field mapField;
-
-  static {
-    try {
-      tableField = HashMap.class.getDeclaredField("table");
-      tableField.setAccessible(true);
-      nextField = Class.forName("java.util.HashMap$Entry").getDeclaredField("next");
-      nextField.setAccessible(true);
-      mapField = HashSet.class.getDeclaredField("map");
-      mapField.setAccessible(true);
-    } catch (Exception e) {
-      e.printStackTrace();
-      tableField = null;
-      nextField = null;
-    }
-  }
 
   private static RedisException noSuchKey() {
     return new RedisException("no such key");
@@ -298,8 +916,8 @@ public class SimpleRedisServer implements RedisServer {
   public IntegerReply append(byte[] key0, byte[] value1) throws RedisException {
     Object o = _get(key0);
     int length1 = value1.length;
-    if (o instanceof byte[]) {
-      byte[] src = (byte[]) o;
+    if (_isstring(o)) {
+      byte[] src = _bytes(o);
       int length0 = src.length;
       byte[] bytes = new byte[length0 + length1];
       System.arraycopy(src, 0, bytes, 0, length0);
@@ -326,8 +944,8 @@ public class SimpleRedisServer implements RedisServer {
   @Override
   public IntegerReply bitcount(byte[] key0, byte[] start1, byte[] end2) throws RedisException {
     Object o = _get(key0);
-    if (o instanceof byte[]) {
-      byte[] bytes = (byte[]) o;
+    if (_isstring(o)) {
+      byte[] bytes = _bytes(o);
       int size = bytes.length;
       int s = _torange(start1, size);
       int e = _torange(end2, size);
@@ -443,8 +1061,8 @@ public class SimpleRedisServer implements RedisServer {
   @Override
   public BulkReply get(byte[] key0) throws RedisException {
     Object o = _get(key0);
-    if (o instanceof byte[]) {
-      return new BulkReply((byte[]) o);
+    if (_isstring(o)) {
+      return _reply(o);
     }
     if (o == null) {
       return NIL_REPLY;
@@ -468,6 +1086,14 @@ public class SimpleRedisServer implements RedisServer {
       long offset = bytesToNum(offset1);
       byte[] bytes = (byte[]) o;
       return _test(bytes, offset) == 1 ? integer(1) : integer(0);
+    } else if (o instanceof ByteBuf) {
+      long offset = bytesToNum(offset1);
+      ByteBuf bytes = (ByteBuf) o;
+      if (offset / 8 >= bytes.readableBytes()) {
+        return integer(0);
+      }
+      int value = bytes.getByte(bytes.readerIndex() + (int) (offset / 8)) & 0xFF;
+      return (value & mask[(int) (offset % 8)]) != 0 ? integer(1) : integer(0);
     } else if (o == null) {
       return integer(0);
     } else {
@@ -507,14 +1133,14 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public BulkReply getset(byte[] key0, byte[] value1) throws RedisException {
-    Object put = _put(key0, value1);
-    if (put == null || put instanceof byte[]) {
-      return put == null ? NIL_REPLY : new BulkReply((byte[]) put);
-    } else {
-      // Put it back
-      data.put(key0, put);
+    Object o = _get(key0);
+    if (o != null && !_isstring(o)) {
       throw invalidValue();
     }
+    // Take the reply before the old value is released
+    BulkReply reply = o == null ? NIL_REPLY : _reply(o);
+    _put(key0, value1);
+    return reply;
   }
 
   /**
@@ -568,8 +1194,8 @@ public class SimpleRedisServer implements RedisServer {
     Reply[] replies = new Reply[length];
     for (int i = 0; i < length; i++) {
       Object o = _get(key0[i]);
-      if (o instanceof byte[]) {
-        replies[i] = new BulkReply((byte[]) o);
+      if (_isstring(o)) {
+        replies[i] = new BulkReply(_bytes(o));
       } else {
         replies[i] = NIL_REPLY;
       }
@@ -663,32 +1289,40 @@ public class SimpleRedisServer implements RedisServer {
     int bit = (int) bytesToNum(value2);
     if (bit != 0 && bit != 1) throw notInteger();
     Object o = _get(key0);
-    if (o instanceof byte[] || o == null) {
+    if (_isstring(o) || o == null) {
       long offset = bytesToNum(offset1);
       long div = offset / 8;
       if (div + 1 > MAX_VALUE) throw notInteger();
+      int mod = (int) (offset % 8);
 
-      byte[] bytes = (byte[]) o;
+      if (_writable(o, div + 1)) {
+        ByteBuf buffer = (ByteBuf) o;
+        int index = buffer.readerIndex() + (int) div;
+        int value = buffer.getByte(index) & 0xFF;
+        buffer.setByte(index, bit == 0 ? value & ~mask[mod] : value | mask[mod]);
+        return (value & mask[mod]) == 0 ? integer(0) : integer(1);
+      }
+      byte[] bytes = o == null ? null : _bytes(o);
       if (bytes == null || bytes.length < div + 1) {
         byte[] tmp = bytes;
         bytes = new byte[(int) div + 1];
         if (tmp != null) System.arraycopy(tmp, 0, bytes, 0, tmp.length);
-        _put(key0, bytes);
       }
-      int mod = (int) (offset % 8);
       int value = bytes[((int) div)] & 0xFF;
       int i = value & mask[mod];
       if (i == 0) {
         if (bit != 0) {
           bytes[((int) div)] += mask[mod];
         }
-        return integer(0);
       } else {
         if (bit == 0) {
           bytes[((int) div)] -= mask[mod];
         }
-        return integer(1);
       }
+      if (bytes != o) {
+        _replace(key0, bytes);
+      }
+      return i == 0 ? integer(0) : integer(1);
     } else {
       throw invalidValue();
     }
@@ -737,16 +1371,27 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public IntegerReply setrange(byte[] key0, byte[] offset1, byte[] value2) throws RedisException {
-    byte[] bytes = _getbytes(key0);
+    Object o = _get(key0);
+    if (o != null && !_isstring(o)) {
+      throw invalidValue();
+    }
     int offset = _toposint(offset1);
     int length = value2.length + offset;
+    if (_writable(o, length)) {
+      ByteBuf buffer = (ByteBuf) o;
+      buffer.setBytes(buffer.readerIndex() + offset, value2);
+      return integer(buffer.readableBytes());
+    }
+    byte[] bytes = o == null ? new byte[0] : _bytes(o);
     if (bytes.length < length) {
       byte[] tmp = bytes;
       bytes = new byte[length];
-      System.arraycopy(tmp, 0, bytes, 0, offset);
-      _put(key0, bytes);
+      System.arraycopy(tmp, 0, bytes, 0, tmp.length);
     }
     System.arraycopy(value2, 0, bytes, offset, value2.length);
+    if (bytes != o) {
+      _replace(key0, bytes);
+    }
     return integer(bytes.length);
   }
 
@@ -759,7 +1404,11 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public IntegerReply strlen(byte[] key0) throws RedisException {
-    return integer(_getbytes(key0).length);
+    Object o = _get(key0);
+    if (o != null && !_isstring(o)) {
+      throw invalidValue();
+    }
+    return integer(o == null ? 0 : _length(o));
   }
 
   /**
@@ -827,7 +1476,7 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public StatusReply bgrewriteaof() throws RedisException {
-    throw new RedisException("Not supported");
+    throw new RedisException("Background append only file rewriting needs a ShardedEngine");
   }
 
   /**
@@ -838,7 +1487,8 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public StatusReply bgsave() throws RedisException {
-    throw new RedisException("Not supported");
+    // Steps of the save have to be interleaved with commands by an executor
+    throw new RedisException("Background saving needs a ShardedEngine");
   }
 
   /**
@@ -896,7 +1546,10 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public Reply config_get(byte[] parameter0) throws RedisException {
-    throw new RedisException("Not supported");
+    if (parameter0 == null) {
+      throw new RedisException("wrong number of arguments for 'config get' command");
+    }
+    return config.get(parameter0);
   }
 
   /**
@@ -909,7 +1562,11 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public Reply config_set(byte[] parameter0, byte[] value1) throws RedisException {
-    throw new RedisException("Not supported");
+    if (parameter0 == null || value1 == null) {
+      throw new RedisException("wrong number of arguments for 'config set' command");
+    }
+    config.set(new String(parameter0), new String(value1));
+    return OK;
   }
 
   /**
@@ -920,7 +1577,8 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public Reply config_resetstat() throws RedisException {
-    throw new RedisException("Not supported");
+    _stats().reset();
+    return OK;
   }
 
   /**
@@ -943,7 +1601,12 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public Reply debug_object(byte[] key0) throws RedisException {
-    throw new RedisException("Not supported");
+    Object o = _get(key0);
+    if (o == null) {
+      throw noSuchKey();
+    }
+    return new StatusReply("Value at:0x" + Integer.toHexString(System.identityHashCode(o)) +
+        " refcount:1 encoding:" + _encoding(o));
   }
 
   /**
@@ -965,7 +1628,7 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public StatusReply flushall() throws RedisException {
-    data.clear();
+    _clear();
     return OK;
   }
 
@@ -977,7 +1640,7 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public StatusReply flushdb() throws RedisException {
-    data.clear();
+    _clear();
     return OK;
   }
 
@@ -989,10 +1652,40 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public BulkReply info(byte[] section) throws RedisException {
+    String name = section == null ? "default" : new String(section).toLowerCase();
     StringBuilder sb = new StringBuilder();
+    // Like redis, only there when asked for by name or with all
+    if (name.equals("commandstats")) {
+      _stats().commandstats(sb);
+      return new BulkReply(sb.toString().getBytes());
+    } else if (name.equals("latencystats")) {
+      _stats().latencystats(sb);
+      return new BulkReply(sb.toString().getBytes());
+    }
     sb.append("redis_version:2.6.0\n");
     sb.append("keys:").append(data.size()).append("\n");
     sb.append("uptime:").append(now() - started).append("\n");
+    sb.append("expires:").append(expires.size()).append("\n");
+    sb.append("expired_keys:").append(expiredKeys).append("\n");
+    sb.append("instantaneous_expired_per_sec:").append(expiredPerSecond).append("\n");
+    sb.append("expired_stale_keys:").append(wheel.stale(now())).append("\n");
+    sb.append("expire_cycle_cpu_milliseconds:").append(expireCycleNanos / 1000000).append("\n");
+    sb.append("used_memory:").append(used).append("\n");
+    sb.append("maxmemory:").append(config.maxmemory()).append("\n");
+    sb.append("maxmemory_policy:").append(config.policy()).append("\n");
+    sb.append("evicted_keys:").append(evictedKeys).append("\n");
+    if (propagation == null || propagation.aof == null) {
+      sb.append("aof_enabled:0\n");
+    } else {
+      propagation.aof.info(sb);
+    }
+    if (replication != null) {
+      replication.info(sb);
+    }
+    if (name.equals("all") || name.equals("everything")) {
+      _stats().commandstats(sb);
+      _stats().latencystats(sb);
+    }
     return new BulkReply(sb.toString().getBytes());
   }
 
@@ -1004,7 +1697,7 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public IntegerReply lastsave() throws RedisException {
-    return integer(-1);
+    return integer(lastSave / 1000);
   }
 
   /**
@@ -1027,7 +1720,18 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public Reply save() throws RedisException {
-    throw new RedisException("Not supported");
+    if (snapshot != null) {
+      throw new RedisException("Background save already in progress");
+    }
+    Snapshot snapshot = new Snapshot(config.rdb(), 1);
+    _beginsnapshot(snapshot);
+    _snapshotfinish();
+    try {
+      lastSave = snapshot.get();
+    } catch (Exception e) {
+      throw new RedisException("Error saving: " + e.getMessage());
+    }
+    return OK;
   }
 
   /**
@@ -1067,7 +1771,38 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public Reply slowlog(byte[] subcommand0, byte[] argument1) throws RedisException {
-    throw new RedisException("Not supported");
+    if (subcommand0 == null) {
+      throw new RedisException("wrong number of arguments for 'slowlog' command");
+    }
+    String subcommand = new String(subcommand0);
+    Slowlog slowlog = _stats().slowlog();
+    if (subcommand.equalsIgnoreCase("get")) {
+      long count = 10;
+      if (argument1 != null) {
+        try {
+          count = bytesToNum(argument1);
+        } catch (IllegalArgumentException e) {
+          throw notInteger();
+        }
+        if (count < -1) {
+          throw new RedisException("count should be greater than or equal to -1");
+        }
+      }
+      return slowlog.get(count);
+    } else if (argument1 == null && subcommand.equalsIgnoreCase("len")) {
+      return integer(slowlog.len());
+    } else if (argument1 == null && subcommand.equalsIgnoreCase("reset")) {
+      slowlog.reset();
+      return OK;
+    }
+    throw new RedisException("unknown subcommand or wrong number of arguments for '" + subcommand + "'. Try SLOWLOG HELP.");
+  }
+
+  private Stats _stats() {
+    if (stats == null) {
+      stats = new Stats(config);
+    }
+    return stats;
   }
 
   /**
@@ -1102,14 +1837,16 @@ public class SimpleRedisServer implements RedisServer {
   /**
    * Remove and get the first element in a list, or block until one is available
    * List
+   * <p/>
+   * Never waits itself. With nothing to pop it replies with a nil multibulk
+   * and the shard that executed it blocks the client, see Blocking.
    *
    * @param key0
    * @return MultiBulkReply
    */
   @Override
   public MultiBulkReply blpop(byte[][] key0) throws RedisException {
-    // TODO: Blocking
-    return null;
+    return _bpop(key0, true);
   }
 
   /**
@@ -1121,8 +1858,41 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public MultiBulkReply brpop(byte[][] key0) throws RedisException {
-    // TODO: Blocking
-    return null;
+    return _bpop(key0, false);
+  }
+
+  private MultiBulkReply _bpop(byte[][] keys, boolean left) throws RedisException {
+    if (keys.length < 2) {
+      throw new RedisException("wrong number of arguments for '" + (left ? "blpop" : "brpop") + "' command");
+    }
+    _timeout(keys[keys.length - 1]);
+    for (int i = 0; i < keys.length - 1; i++) {
+      BulkReply popped = left ? lpop(keys[i]) : rpop(keys[i]);
+      if (popped != NIL_REPLY) {
+        return new MultiBulkReply(new Reply[]{new BulkReply(keys[i]), popped});
+      }
+    }
+    return MultiBulkReply.NIL_REPLY;
+  }
+
+  /**
+   * The timeout of a blocking command in milliseconds, 0 for none. Like
+   * redis 6 it is in seconds and can have a fraction.
+   */
+  static long _timeout(byte[] timeout) throws RedisException {
+    double seconds;
+    try {
+      seconds = parseDouble(new String(timeout));
+    } catch (NumberFormatException e) {
+      throw new RedisException("timeout is not a float or out of range");
+    }
+    if (Double.isNaN(seconds) || Double.isInfinite(seconds)) {
+      throw new RedisException("timeout is not a float or out of range");
+    }
+    if (seconds < 0) {
+      throw new RedisException("timeout is negative");
+    }
+    return (long) Math.ceil(seconds * 1000);
   }
 
   /**
@@ -1136,8 +1906,79 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public BulkReply brpoplpush(byte[] source0, byte[] destination1, byte[] timeout2) throws RedisException {
-    // TODO: Blocking
-    return null;
+    _timeout(timeout2);
+    return rpoplpush(source0, destination1);
+  }
+
+  /**
+   * Queue a blocked client on a key.
+   */
+  void _block(byte[] key, Blocking.Waiter waiter) {
+    LinkedHashSet<Blocking.Waiter> waiters = blocked.get(key);
+    if (waiters == null) {
+      waiters = new LinkedHashSet<Blocking.Waiter>();
+      blocked.put(key, waiters);
+    }
+    waiters.add(waiter);
+  }
+
+  /**
+   * Take a client off a key's queue once it has been served elsewhere, timed
+   * out or gone away.
+   */
+  void _unblock(byte[] key, Blocking.Waiter waiter) {
+    LinkedHashSet<Blocking.Waiter> waiters = blocked.get(key);
+    if (waiters != null && waiters.remove(waiter) && waiters.isEmpty()) {
+      blocked.remove(key);
+    }
+  }
+
+  /**
+   * Hand elements of the keys a write command may have pushed to to the
+   * clients blocked on them, in the order they blocked.
+   */
+  void _serve(byte[][] keys) {
+    if (blocked.isEmpty()) {
+      return;
+    }
+    for (byte[] key : keys) {
+      _serve(key);
+    }
+  }
+
+  void _serve(byte[] key) {
+    // Looked up again every time around since serving BRPOPLPUSH can push to
+    // a list of this keyspace, and serve its clients, before returning
+    LinkedHashSet<Blocking.Waiter> waiters;
+    while ((waiters = blocked.get(key)) != null) {
+      QuickList list;
+      try {
+        list = _getlist(key, false);
+      } catch (RedisException e) {
+        // Not a list, they keep waiting in case it becomes one
+        return;
+      }
+      if (list == null || list.isEmpty()) {
+        return;
+      }
+      Iterator<Blocking.Waiter> iterator = waiters.iterator();
+      Blocking.Waiter waiter = iterator.next();
+      iterator.remove();
+      if (waiters.isEmpty()) {
+        blocked.remove(key);
+      }
+      // It may have been served by another of its keys or have timed out
+      if (waiter.claim()) {
+        _preserve(key);
+        boolean left = waiter.left();
+        byte[] value = left ? list.pollFirst() : list.pollLast();
+        _account(key);
+        if (propagation != null) {
+          propagation.pop(key, left);
+        }
+        blocking.serve(waiter, this, key, value);
+      }
+    }
   }
 
   /**
@@ -1148,15 +1989,14 @@ public class SimpleRedisServer implements RedisServer {
    * @param index1
    * @return BulkReply
    */
-  @SuppressWarnings("unchecked")
   @Override
   public BulkReply lindex(byte[] key0, byte[] index1) throws RedisException {
     int index = _toposint(index1);
-    List<BytesValue> list = _getlist(key0, true);
+    QuickList list = _getlist(key0, false);
     if (list == null || list.size() <= index) {
       return NIL_REPLY;
     } else {
-      return new BulkReply(list.get(index).getBytes());
+      return new BulkReply(list.get(index));
     }
   }
 
@@ -1173,13 +2013,12 @@ public class SimpleRedisServer implements RedisServer {
   @Override
   public IntegerReply linsert(byte[] key0, byte[] where1, byte[] pivot2, byte[] value3) throws RedisException {
     Where where = Where.valueOf(new String(where1).toUpperCase());
-    List<BytesValue> list = _getlist(key0, true);
-    BytesKey pivot = new BytesKey(pivot2);
-    int i = list.indexOf(pivot);
+    QuickList list = _getlist(key0, true);
+    int i = list.indexOf(pivot2);
     if (i == -1) {
       return integer(-1);
     }
-    list.add(i + (where == Where.BEFORE ? 0 : 1), new BytesKey(value3));
+    list.add(i + (where == Where.BEFORE ? 0 : 1), value3);
     return integer(list.size());
   }
 
@@ -1194,7 +2033,7 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public IntegerReply llen(byte[] key0) throws RedisException {
-    List<BytesValue> list = _getlist(key0, false);
+    QuickList list = _getlist(key0, false);
     return list == null ? integer(0) : integer(list.size());
   }
 
@@ -1207,11 +2046,11 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public BulkReply lpop(byte[] key0) throws RedisException {
-    List<BytesValue> list = _getlist(key0, false);
-    if (list == null || list.size() == 0) {
+    QuickList list = _getlist(key0, false);
+    if (list == null || list.isEmpty()) {
       return NIL_REPLY;
     } else {
-      return new BulkReply(list.remove(0).getBytes());
+      return new BulkReply(list.pollFirst());
     }
   }
 
@@ -1225,9 +2064,9 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public IntegerReply lpush(byte[] key0, byte[][] value1) throws RedisException {
-    List<BytesValue> list = _getlist(key0, true);
+    QuickList list = _getlist(key0, true);
     for (byte[] value : value1) {
-      list.add(0, new BytesKey(value));
+      list.addFirst(value);
     }
     return integer(list.size());
   }
@@ -1242,11 +2081,11 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public IntegerReply lpushx(byte[] key0, byte[] value1) throws RedisException {
-    List<BytesValue> list = _getlist(key0, false);
+    QuickList list = _getlist(key0, false);
     if (list == null) {
       return integer(0);
     } else {
-      list.add(0, new BytesKey(value1));
+      list.addFirst(value1);
     }
     return integer(list.size());
   }
@@ -1262,18 +2101,22 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public MultiBulkReply lrange(byte[] key0, byte[] start1, byte[] stop2) throws RedisException {
-    List<BytesValue> list = _getlist(key0, false);
+    QuickList list = _getlist(key0, false);
     if (list == null) {
       return MultiBulkReply.EMPTY;
     } else {
       int size = list.size();
-      int s = _torange(start1, size);
+      int s = Math.max(0, _torange(start1, size));
       int e = _torange(stop2, size);
-      if (e < s) e = s;
+      if (e < s) {
+        return MultiBulkReply.EMPTY;
+      }
       int length = e - s + 1;
       Reply[] replies = new Reply[length];
-      for (int i = s; i <= e; i++) {
-        replies[i - s] = new BulkReply(list.get(i).getBytes());
+      // One walk to the start and then along the chunks
+      Iterator<byte[]> iterator = list.iterator(s);
+      for (int i = 0; i < length; i++) {
+        replies[i] = new BulkReply(iterator.next());
       }
       return new MultiBulkReply(replies);
     }
@@ -1290,34 +2133,11 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public IntegerReply lrem(byte[] key0, byte[] count1, byte[] value2) throws RedisException {
-    List<BytesValue> list = _getlist(key0, false);
+    QuickList list = _getlist(key0, false);
     if (list == null) {
       return integer(0);
     } else {
-      int count = _toint(count1);
-      BytesKey value = new BytesKey(value2);
-      int size = list.size();
-      int dir = 1;
-      int s = 0;
-      int e = size;
-      int rem = 0;
-      boolean all = count == 0;
-      if (count < 0) {
-        count = -count;
-        dir = -1;
-        s = e;
-        e = -1;
-      }
-      for (int i = s; (all || count != 0) && i != e; i += dir) {
-        if (list.get(i).equals(value)) {
-          list.remove(i);
-          e -= dir;
-          i -= dir;
-          rem++;
-          count--;
-        }
-      }
-      return integer(rem);
+      return integer(list.remove(value2, _toint(count1)));
     }
   }
 
@@ -1332,14 +2152,14 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public StatusReply lset(byte[] key0, byte[] index1, byte[] value2) throws RedisException {
-    List<BytesValue> list = _getlist(key0, false);
+    QuickList list = _getlist(key0, false);
     if (list == null) {
       throw noSuchKey();
     }
     int size = list.size();
     int index = _toposint(index1);
     if (index < size) {
-      list.set(index, new BytesKey(value2));
+      list.set(index, value2);
       return OK;
     } else {
       throw invalidValue();
@@ -1357,15 +2177,12 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public StatusReply ltrim(byte[] key0, byte[] start1, byte[] stop2) throws RedisException {
-    List<BytesValue> list = _getlist(key0, false);
+    QuickList list = _getlist(key0, false);
     if (list == null) {
       return OK;
     } else {
       int l = list.size();
-      int s = _torange(start1, l);
-      int e = _torange(stop2, l);
-      // Doesn't change expiration
-      data.put(key0, list.subList(s, e + 1));
+      list.trim(_torange(start1, l), _torange(stop2, l));
       return OK;
     }
   }
@@ -1379,14 +2196,11 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public BulkReply rpop(byte[] key0) throws RedisException {
-    List<BytesValue> list = _getlist(key0, false);
-    int l;
-    if (list == null || (l = list.size()) == 0) {
+    QuickList list = _getlist(key0, false);
+    if (list == null || list.isEmpty()) {
       return NIL_REPLY;
     } else {
-      byte[] bytes = list.get(l - 1).getBytes();
-      list.remove(l - 1);
-      return new BulkReply(bytes);
+      return new BulkReply(list.pollLast());
     }
   }
 
@@ -1400,16 +2214,14 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public BulkReply rpoplpush(byte[] source0, byte[] destination1) throws RedisException {
-    List<BytesValue> source = _getlist(source0, false);
-    int l;
-    if (source == null || (l = source.size()) == 0) {
+    QuickList source = _getlist(source0, false);
+    if (source == null || source.isEmpty()) {
       return NIL_REPLY;
     } else {
-      List<BytesValue> dest = _getlist(destination1, true);
-      BytesValue popped = source.get(l - 1);
-      source.remove(l - 1);
-      dest.add(0, popped);
-      return new BulkReply(popped.getBytes());
+      QuickList dest = _getlist(destination1, true);
+      byte[] popped = source.pollLast();
+      dest.addFirst(popped);
+      return new BulkReply(popped);
     }
   }
 
@@ -1423,9 +2235,9 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public IntegerReply rpush(byte[] key0, byte[][] value1) throws RedisException {
-    List<BytesValue> list = _getlist(key0, true);
+    QuickList list = _getlist(key0, true);
     for (byte[] bytes : value1) {
-      list.add(new BytesKey(bytes));
+      list.addLast(bytes);
     }
     return integer(list.size());
   }
@@ -1440,11 +2252,11 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public IntegerReply rpushx(byte[] key0, byte[] value1) throws RedisException {
-    List<BytesValue> list = _getlist(key0, false);
+    QuickList list = _getlist(key0, false);
     if (list == null) {
       return integer(0);
     } else {
-      list.add(new BytesKey(value1));
+      list.addLast(value1);
       return integer(list.size());
     }
   }
@@ -1460,11 +2272,9 @@ public class SimpleRedisServer implements RedisServer {
   public IntegerReply del(byte[][] key0) throws RedisException {
     int total = 0;
     for (byte[] bytes : key0) {
-      Object remove = data.remove(bytes);
-      if (remove != null) {
+      if (_remove(bytes)) {
         total++;
       }
-      expires.remove(bytes);
     }
     return integer(total);
   }
@@ -1508,7 +2318,7 @@ public class SimpleRedisServer implements RedisServer {
     if (o == null) {
       return integer(0);
     } else {
-      expires.put(key0, bytesToNum(seconds1) * 1000 + now());
+      _expire(key0, bytesToNum(seconds1) * 1000 + now());
       return integer(1);
     }
   }
@@ -1527,7 +2337,7 @@ public class SimpleRedisServer implements RedisServer {
     if (o == null) {
       return integer(0);
     } else {
-      expires.put(key0, bytesToNum(timestamp1) * 1000);
+      _expire(key0, bytesToNum(timestamp1) * 1000);
       return integer(1);
     }
   }
@@ -1544,26 +2354,157 @@ public class SimpleRedisServer implements RedisServer {
     if (pattern0 == null) {
       throw new RedisException("wrong number of arguments for KEYS");
     }
-    List<Reply<ByteBuf>> replies = new ArrayList<Reply<ByteBuf>>();
-    Iterator<Object> it = data.keySet().iterator();
-    while(it.hasNext()) {        
-      BytesKey key = (BytesKey) it.next();
-      byte[] bytes = key.getBytes();
-      boolean expired = false;
+    Glob glob = Glob.compile(pattern0);
+    if (glob.isLiteral()) {
+      // Only one key can match, so look it up rather than walking them all
+      byte[] key = glob.prefix();
+      if (!data.containsKey(key)) {
+        return new MultiBulkReply(new Reply[0]);
+      }
       Long l = expires.get(key);
-      if (l != null) {
-        if (l < now()) {
-          expired = true;
-          it.remove();
-        }
+      if (l != null && l < now()) {
+        _expired(key);
+        return new MultiBulkReply(new Reply[0]);
       }
-      if (matches(bytes, pattern0, 0, 0) && !expired) {
-        replies.add(new BulkReply(bytes));
+      return new MultiBulkReply(new Reply[]{new BulkReply(key)});
+    }
+    List<Reply<ByteBuf>> replies = new ArrayList<Reply<ByteBuf>>();
+    List<byte[]> expired = new ArrayList<byte[]>();
+    for (byte[] bytes : data.keys()) {
+      if (glob.matches(bytes)) {
+        Long l = expires.get(bytes);
+        if (l != null && l < now()) {
+          expired.add(bytes);
+        } else {
+          replies.add(new BulkReply(bytes));
+        }
       }
     }
+    // Removed afterwards so the memory they used is accounted for
+    for (byte[] bytes : expired) {
+      _expired(bytes);
+    }
     return new MultiBulkReply(replies.toArray(new Reply[replies.size()]));
   }
 
+  /**
+   * Incrementally iterate the keys space
+   * Generic
+   *
+   * @param cursor0
+   * @param pattern_count_type1
+   * @return MultiBulkReply
+   */
+  @Override
+  public MultiBulkReply scan(byte[] cursor0, byte[][] pattern_count_type1) throws RedisException {
+    // The engine sends a cursor to the shard it names, which walks its own
+    // keyspace with what is left of it and then hands over to the next shard
+    long cursor = _cursor(cursor0);
+    final Scan scan = _scan(pattern_count_type1, true);
+    final List<byte[]> expired = new ArrayList<byte[]>();
+    final long now = now();
+    BytesMap.Visitor<Object> visitor = new BytesMap.Visitor<Object>() {
+      @Override
+      public void visit(byte[] key, Object value) {
+        if (scan.matches(key)) {
+          Long l = expires.get(key);
+          if (l != null && l < now) {
+            expired.add(key);
+          } else if (scan.type == null || scan.type.equalsIgnoreCase(_type(value))) {
+            scan.found.add(new BulkReply(key));
+          }
+        }
+      }
+    };
+    int next = (int) Long.divideUnsigned(cursor, shards);
+    int buckets = 0;
+    do {
+      next = data.scan(next, visitor);
+    } while (scan.more(next, ++buckets));
+    for (byte[] bytes : expired) {
+      _expired(bytes);
+    }
+    if (next != 0) {
+      cursor = (next & 0xFFFFFFFFL) * shards + shard;
+    } else {
+      cursor = shard + 1 < shards ? shard + 1 : 0;
+    }
+    return scan.reply(cursor);
+  }
+
+  /**
+   * Parse a SCAN family cursor, which is an unsigned 64 bit number.
+   */
+  static long _cursor(byte[] cursor) throws RedisException {
+    if (cursor == null) {
+      throw new RedisException("wrong number of arguments for scan");
+    }
+    try {
+      return Long.parseUnsignedLong(new String(cursor));
+    } catch (NumberFormatException e) {
+      throw new RedisException("invalid cursor");
+    }
+  }
+
+  private static Scan _scan(byte[][] options, boolean types) throws RedisException {
+    Scan scan = new Scan();
+    for (int i = 0; i < options.length; i += 2) {
+      String option = new String(options[i]).toLowerCase();
+      if (i + 1 == options.length) {
+        throw new RedisException("syntax error");
+      } else if (option.equals("match")) {
+        byte[] pattern = options[i + 1];
+        // Matching everything is the same as not matching
+        scan.glob = pattern.length == 1 && pattern[0] == '*' ? null : Glob.compile(pattern);
+      } else if (option.equals("count")) {
+        scan.count = bytesToNum(options[i + 1]);
+        if (scan.count < 1) {
+          throw new RedisException("syntax error");
+        }
+      } else if (types && option.equals("type")) {
+        scan.type = new String(options[i + 1]);
+      } else {
+        throw new RedisException("syntax error");
+      }
+    }
+    return scan;
+  }
+
+  /**
+   * What a SCAN family command has found so far. COUNT limits how much it
+   * looks at rather than how much it finds, so a MATCH or TYPE that hardly
+   * anything passes returns few elements, or none, along with a cursor to
+   * continue from.
+   */
+  private static class Scan {
+    Glob glob;
+    long count = 10;
+    String type;
+    long visited;
+    final List<Reply<ByteBuf>> found = new ArrayList<Reply<ByteBuf>>();
+
+    boolean matches(byte[] bytes) {
+      visited++;
+      return glob == null || glob.matches(bytes);
+    }
+
+    /**
+     * Whether to go on to the bucket at cursor. Like redis it gives up after
+     * ten empty buckets for every element asked for, so that a sparse table
+     * doesn't hold up everything else.
+     */
+    boolean more(int cursor, int buckets) {
+      return cursor != 0 && visited < count && buckets < count * 10;
+    }
+
+    MultiBulkReply reply(long cursor) {
+      return new MultiBulkReply(new Reply[]{
+          new BulkReply(Long.toUnsignedString(cursor).getBytes()),
+          new MultiBulkReply(found.toArray(new Reply[found.size()]))
+      });
+    }
+  }
+
   /**
    * Atomically transfer a key from a Redis instance to another one.
    * Generic
@@ -1604,7 +2545,14 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public Reply object(byte[] subcommand0, byte[][] arguments1) throws RedisException {
-    throw new RedisException("Not supported");
+    if (!new String(subcommand0).equalsIgnoreCase("encoding")) {
+      throw new RedisException("Not supported");
+    }
+    if (arguments1.length != 1) {
+      throw new RedisException("wrong number of arguments for 'object' command");
+    }
+    Object o = _get(arguments1[0]);
+    return o == null ? NIL_REPLY : new BulkReply(_encoding(o).getBytes());
   }
 
   /**
@@ -1639,7 +2587,7 @@ public class SimpleRedisServer implements RedisServer {
     if (o == null) {
       return integer(0);
     } else {
-      expires.put(key0, bytesToNum(milliseconds1) + now());
+      _expire(key0, bytesToNum(milliseconds1) + now());
       return integer(1);
     }
   }
@@ -1658,7 +2606,7 @@ public class SimpleRedisServer implements RedisServer {
     if (o == null) {
       return integer(0);
     } else {
-      expires.put(key0, bytesToNum(milliseconds_timestamp1));
+      _expire(key0, bytesToNum(milliseconds_timestamp1));
       return integer(1);
     }
   }
@@ -1696,39 +2644,23 @@ public class SimpleRedisServer implements RedisServer {
     // This implementation mirrors that of Redis. I'm not
     // sure I believe that this is a great algorithm but
     // it beats the alternatives that are very inefficient.
-    if (tableField != null) {
-      int size = data.size();
-      if (size == 0) {
+    byte[] key;
+    do {
+      key = data.randomKey(r);
+      if (key == null) {
         return NIL_REPLY;
       }
-      try {
-        BytesKey key = getRandomKey(data);
-        return new BulkReply(key.getBytes());
-      } catch (Exception e) {
-        throw new RedisException(e);
-      }
-    }
-    return null;
+    } while (_get(key) == null);
+    return new BulkReply(key);
   }
 
-  private BytesKey getRandomKey(Map data1) throws IllegalAccessException {
-    Map.Entry[] table = (Map.Entry[]) tableField.get(data1);
-    int length = table.length;
-    Map.Entry entry;
-    do {
-      entry = table[r.nextInt(length)];
-    } while (entry == null);
-
-    int entries = 0;
-    Map.Entry current = entry;
-    do {
-      entries++;
-      current = (Map.Entry) nextField.get(current);
-    } while (current != null);
-    int choose = r.nextInt(entries);
-    current = entry;
-    while (choose-- != 0) current = (Map.Entry) nextField.get(current);
-    return (BytesKey) current.getKey();
+  private void _rename(byte[] key0, byte[] newkey1, Object o) {
+    Long expiration = expires.remove(key0);
+    _unlink(key0);
+    _put(newkey1, o);
+    if (expiration != null) {
+      _expire(newkey1, expiration);
+    }
   }
 
   /**
@@ -1745,8 +2677,7 @@ public class SimpleRedisServer implements RedisServer {
     if (o == null) {
       throw noSuchKey();
     } else {
-      data.put(newkey1, data.remove(key0));
-      expires.put(newkey1, expires.remove(key0));
+      _rename(key0, newkey1, o);
       return OK;
     }
   }
@@ -1767,8 +2698,7 @@ public class SimpleRedisServer implements RedisServer {
     } else {
       Object newo = _get(newkey1);
       if (newo == null) {
-        data.put(newkey1, data.remove(key0));
-        expires.put(newkey1, expires.remove(key0));
+        _rename(key0, newkey1, o);
         return integer(1);
       } else {
         return integer(0);
@@ -1844,22 +2774,25 @@ public class SimpleRedisServer implements RedisServer {
   @Override
   public StatusReply type(byte[] key0) throws RedisException {
     Object o = _get(key0);
-    if (o == null) {
-      return new StatusReply("none");
-    } else if (o instanceof byte[]) {
-      return new StatusReply("string");
-    } else if (o instanceof Map) {
-      return new StatusReply("hash");
-    } else if (o instanceof List) {
-      return new StatusReply("list");
-    } else if (o instanceof SortedSet) {
-      return new StatusReply("zset");
-    } else if (o instanceof Set) {
-      return new StatusReply("set");
+    return new StatusReply(o == null ? "none" : _type(o));
+  }
+
+  private static String _type(Object o) {
+    if (_isstring(o)) {
+      return "string";
+    } else if (o instanceof BytesHash) {
+      return "hash";
+    } else if (o instanceof QuickList) {
+      return "list";
+    } else if (o instanceof ZSet) {
+      return "zset";
+    } else if (o instanceof BytesSet) {
+      return "set";
     }
     return null;
   }
 
+
   /**
    * Forget about all watched keys
    * Transactions
@@ -1868,8 +2801,9 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public StatusReply unwatch() throws RedisException {
-    // TODO: Transactions
-    return null;
+    // Connections watch keys through _watch() and _unwatch(), this only runs
+    // when UNWATCH is queued in a transaction where it does nothing
+    return OK;
   }
 
   /**
@@ -1881,8 +2815,40 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public StatusReply watch(byte[][] key0) throws RedisException {
-    // TODO: Transactions
-    return null;
+    // Connections watch keys through _watch()
+    return OK;
+  }
+
+  /**
+   * Start watching keys for a client and return the versions they have now.
+   */
+  long[] _watch(byte[][] keys) {
+    long[] versions = new long[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      long[] watch = watched.get(keys[i]);
+      if (watch == null) {
+        watched.put(keys[i], watch = new long[2]);
+      }
+      watch[1]++;
+      versions[i] = watch[0];
+    }
+    return versions;
+  }
+
+  /**
+   * Stop watching keys for a client. Returns true if any of them changed
+   * since they had the versions it watched them at.
+   */
+  boolean _unwatch(byte[][] keys, long[] versions) {
+    boolean changed = false;
+    for (int i = 0; i < keys.length; i++) {
+      long[] watch = watched.get(keys[i]);
+      changed |= watch[0] != versions[i];
+      if (--watch[1] == 0) {
+        watched.remove(keys[i]);
+      }
+    }
+    return changed;
   }
 
   /**
@@ -1969,7 +2935,7 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public IntegerReply hdel(byte[] key0, byte[][] field1) throws RedisException {
-    BytesKeyObjectMap<byte[]> hash = _gethash(key0, false);
+    BytesHash hash = _gethash(key0, false);
     int total = 0;
     for (byte[] hkey : field1) {
       total += hash.remove(hkey) == null ? 0 : 1;
@@ -2017,17 +2983,48 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public MultiBulkReply hgetall(byte[] key0) throws RedisException {
-    BytesKeyObjectMap<byte[]> hash = _gethash(key0, false);
+    BytesHash hash = _gethash(key0, false);
     int size = hash.size();
     Reply[] replies = new Reply[size * 2];
     int i = 0;
-    for (Map.Entry<Object, byte[]> entry : hash.entrySet()) {
-      replies[i++] = new BulkReply(((BytesKey) entry.getKey()).getBytes());
+    for (Map.Entry<byte[], byte[]> entry : hash) {
+      replies[i++] = new BulkReply(entry.getKey());
       replies[i++] = new BulkReply(entry.getValue());
     }
     return new MultiBulkReply(replies);
   }
 
+  /**
+   * Incrementally iterate hash fields and associated values
+   * Hash
+   *
+   * @param key0
+   * @param cursor1
+   * @param pattern_count2
+   * @return MultiBulkReply
+   */
+  @Override
+  public MultiBulkReply hscan(byte[] key0, byte[] cursor1, byte[][] pattern_count2) throws RedisException {
+    long cursor = _cursor(cursor1);
+    final Scan scan = _scan(pattern_count2, false);
+    BytesHash hash = _gethash(key0, false);
+    BytesMap.Visitor<byte[]> visitor = new BytesMap.Visitor<byte[]>() {
+      @Override
+      public void visit(byte[] field, byte[] value) {
+        if (scan.matches(field)) {
+          scan.found.add(new BulkReply(field));
+          scan.found.add(new BulkReply(value));
+        }
+      }
+    };
+    int next = (int) cursor;
+    int buckets = 0;
+    do {
+      next = hash.scan(next, visitor);
+    } while (scan.more(next, ++buckets));
+    return scan.reply(next & 0xFFFFFFFFL);
+  }
+
   /**
    * Increment the integer value of a hash field by the given number
    * Hash
@@ -2039,7 +3036,7 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public IntegerReply hincrby(byte[] key0, byte[] field1, byte[] increment2) throws RedisException {
-    BytesKeyObjectMap<byte[]> hash = _gethash(key0, true);
+    BytesHash hash = _gethash(key0, true);
     byte[] field = hash.get(field1);
     int increment = _toint(increment2);
     if (field == null) {
@@ -2064,7 +3061,7 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public BulkReply hincrbyfloat(byte[] key0, byte[] field1, byte[] increment2) throws RedisException {
-    BytesKeyObjectMap<byte[]> hash = _gethash(key0, true);
+    BytesHash hash = _gethash(key0, true);
     byte[] field = hash.get(field1);
     double increment = _todouble(increment2);
     if (field == null) {
@@ -2088,12 +3085,12 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public MultiBulkReply hkeys(byte[] key0) throws RedisException {
-    BytesKeyObjectMap<byte[]> hash = _gethash(key0, false);
+    BytesHash hash = _gethash(key0, false);
     int size = hash.size();
     Reply[] replies = new Reply[size];
     int i = 0;
-    for (Object hkey : hash.keySet()) {
-      replies[i++] = new BulkReply(((BytesKey) hkey).getBytes());
+    for (Map.Entry<byte[], byte[]> entry : hash) {
+      replies[i++] = new BulkReply(entry.getKey());
     }
     return new MultiBulkReply(replies);
   }
@@ -2107,7 +3104,7 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public IntegerReply hlen(byte[] key0) throws RedisException {
-    BytesKeyObjectMap<byte[]> hash = _gethash(key0, false);
+    BytesHash hash = _gethash(key0, false);
     return integer(hash.size());
   }
 
@@ -2121,7 +3118,7 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public MultiBulkReply hmget(byte[] key0, byte[][] field1) throws RedisException {
-    BytesKeyObjectMap<byte[]> hash = _gethash(key0, false);
+    BytesHash hash = _gethash(key0, false);
     int length = field1.length;
     Reply[] replies = new Reply[length];
     for (int i = 0; i < length; i++) {
@@ -2145,7 +3142,7 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public StatusReply hmset(byte[] key0, byte[][] field_or_value1) throws RedisException {
-    BytesKeyObjectMap<byte[]> hash = _gethash(key0, true);
+    BytesHash hash = _gethash(key0, true);
     if (field_or_value1.length % 2 != 0) {
       throw new RedisException("wrong number of arguments for HMSET");
     }
@@ -2166,8 +3163,8 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public IntegerReply hset(byte[] key0, byte[] field1, byte[] value2) throws RedisException {
-    BytesKeyObjectMap<byte[]> hash = _gethash(key0, true);
-    Object put = hash.put(field1, value2);
+    BytesHash hash = _gethash(key0, true);
+    byte[] put = hash.put(field1, value2);
     return put == null ? integer(1) : integer(0);
   }
 
@@ -2182,7 +3179,7 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public IntegerReply hsetnx(byte[] key0, byte[] field1, byte[] value2) throws RedisException {
-    BytesKeyObjectMap<byte[]> hash = _gethash(key0, true);
+    BytesHash hash = _gethash(key0, true);
     byte[] bytes = hash.get(field1);
     if (bytes == null) {
       hash.put(field1, value2);
@@ -2201,12 +3198,12 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public MultiBulkReply hvals(byte[] key0) throws RedisException {
-    BytesKeyObjectMap<byte[]> hash = _gethash(key0, false);
+    BytesHash hash = _gethash(key0, false);
     int size = hash.size();
     Reply[] replies = new Reply[size];
     int i = 0;
-    for (byte[] hvalue : hash.values()) {
-      replies[i++] = new BulkReply(hvalue);
+    for (Map.Entry<byte[], byte[]> entry : hash) {
+      replies[i++] = new BulkReply(entry.getValue());
     }
     return new MultiBulkReply(replies);
   }
@@ -2221,8 +3218,7 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public IntegerReply publish(byte[] channel0, byte[] message1) throws RedisException {
-    // TODO: Pubsub
-    return null;
+    return integer(pubsub == null ? 0 : pubsub.publish(channel0, message1));
   }
 
   /**
@@ -2235,7 +3231,7 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public IntegerReply sadd(byte[] key0, byte[][] member1) throws RedisException {
-    BytesKeySet set = _getset(key0, true);
+    BytesSet set = _getset(key0, true);
     int total = 0;
     for (byte[] bytes : member1) {
       if (set.add(bytes)) total++;
@@ -2252,8 +3248,8 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public IntegerReply scard(byte[] key0) throws RedisException {
-    BytesKeySet bytesKeys = _getset(key0, false);
-    return integer(bytesKeys.size());
+    BytesSet set = _getset(key0, false);
+    return integer(set.size());
   }
 
   /**
@@ -2265,18 +3261,18 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public MultiBulkReply sdiff(byte[][] key0) throws RedisException {
-    BytesKeySet set = _sdiff(key0);
+    BytesSet set = _sdiff(key0);
     return _setreply(set);
   }
 
-  private BytesKeySet _sdiff(byte[][] key0) throws RedisException {
-    BytesKeySet set = null;
+  private BytesSet _sdiff(byte[][] key0) throws RedisException {
+    BytesSet set = null;
     for (byte[] key : key0) {
       if (set == null) {
-        set = new BytesKeySet();
+        set = _newset();
         set.addAll(_getset(key, false));
       } else {
-        BytesKeySet c = _getset(key, false);
+        BytesSet c = _getset(key, false);
         set.removeAll(c);
       }
     }
@@ -2297,8 +3293,8 @@ public class SimpleRedisServer implements RedisServer {
   @Override
   public IntegerReply sdiffstore(byte[] destination0, byte[][] key1) throws RedisException {
     Object o = _get(destination0);
-    if (o == null || o instanceof Set) {
-      BytesKeySet set = _sdiff(key1);
+    if (o == null || o instanceof BytesSet) {
+      BytesSet set = _sdiff(key1);
       _put(destination0, set);
       return integer(set.size());
     } else {
@@ -2315,21 +3311,21 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public MultiBulkReply sinter(byte[][] key0) throws RedisException {
-    BytesKeySet set = _sinter(key0);
+    BytesSet set = _sinter(key0);
     return _setreply(set);
   }
 
-  private BytesKeySet _sinter(byte[][] key0) throws RedisException {
-    BytesKeySet set = null;
+  private BytesSet _sinter(byte[][] key0) throws RedisException {
+    BytesSet set = null;
     for (byte[] key : key0) {
       if (set == null) {
         set = _getset(key, false);
       } else {
-        BytesKeySet inter = new BytesKeySet();
-        BytesKeySet newset = _getset(key, false);
-        for (BytesKey bytesKey : newset) {
-          if (set.contains(bytesKey)) {
-            inter.add(bytesKey);
+        BytesSet inter = _newset();
+        BytesSet newset = _getset(key, false);
+        for (byte[] member : newset) {
+          if (set.contains(member)) {
+            inter.add(member);
           }
         }
         set = inter;
@@ -2352,8 +3348,8 @@ public class SimpleRedisServer implements RedisServer {
   @Override
   public IntegerReply sinterstore(byte[] destination0, byte[][] key1) throws RedisException {
     Object o = _get(destination0);
-    if (o == null || o instanceof Set) {
-      BytesKeySet set = _sinter(key1);
+    if (o == null || o instanceof BytesSet) {
+      BytesSet set = _sinter(key1);
       _put(destination0, set);
       return integer(set.size());
     } else {
@@ -2371,7 +3367,7 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public IntegerReply sismember(byte[] key0, byte[] member1) throws RedisException {
-    BytesKeySet set = _getset(key0, false);
+    BytesSet set = _getset(key0, false);
     return set.contains(member1) ? integer(1) : integer(0);
   }
 
@@ -2384,15 +3380,45 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public MultiBulkReply smembers(byte[] key0) throws RedisException {
-    BytesKeySet set = _getset(key0, false);
+    BytesSet set = _getset(key0, false);
     return _setreply(set);
   }
 
-  private MultiBulkReply _setreply(BytesKeySet set) {
+  /**
+   * Incrementally iterate Set elements
+   * Set
+   *
+   * @param key0
+   * @param cursor1
+   * @param pattern_count2
+   * @return MultiBulkReply
+   */
+  @Override
+  public MultiBulkReply sscan(byte[] key0, byte[] cursor1, byte[][] pattern_count2) throws RedisException {
+    long cursor = _cursor(cursor1);
+    final Scan scan = _scan(pattern_count2, false);
+    BytesSet set = _getset(key0, false);
+    BytesMap.Visitor<Object> visitor = new BytesMap.Visitor<Object>() {
+      @Override
+      public void visit(byte[] member, Object value) {
+        if (scan.matches(member)) {
+          scan.found.add(new BulkReply(member));
+        }
+      }
+    };
+    int next = (int) cursor;
+    int buckets = 0;
+    do {
+      next = set.scan(next, visitor);
+    } while (scan.more(next, ++buckets));
+    return scan.reply(next & 0xFFFFFFFFL);
+  }
+
+  private MultiBulkReply _setreply(BytesSet set) {
     Reply[] replies = new Reply[set.size()];
     int i = 0;
-    for (BytesKey value : set) {
-      replies[i++] = new BulkReply(value.getBytes());
+    for (byte[] member : set) {
+      replies[i++] = new BulkReply(member);
     }
     return new MultiBulkReply(replies);
   }
@@ -2408,9 +3434,9 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public IntegerReply smove(byte[] source0, byte[] destination1, byte[] member2) throws RedisException {
-    BytesKeySet source = _getset(source0, false);
+    BytesSet source = _getset(source0, false);
     if (source.remove(member2)) {
-      BytesKeySet dest = _getset(destination1, true);
+      BytesSet dest = _getset(destination1, true);
       dest.add(member2);
       return integer(1);
     } else {
@@ -2427,18 +3453,11 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public BulkReply spop(byte[] key0) throws RedisException {
-    if (mapField == null || tableField == null) {
-      throw new RedisException("Not supported");
-    }
-    BytesKeySet set = _getset(key0, false);
-    if (set.size() == 0) return NIL_REPLY;
-    try {
-      BytesKey key = getRandomKey((Map) mapField.get(set));
-      set.remove(key);
-      return new BulkReply(key.getBytes());
-    } catch (IllegalAccessException e) {
-      throw new RedisException("Not supported");
-    }
+    BytesSet set = _getset(key0, false);
+    byte[] member = set.random(r);
+    if (member == null) return NIL_REPLY;
+    set.remove(member);
+    return new BulkReply(member);
   }
 
   /**
@@ -2450,40 +3469,37 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public Reply srandmember(byte[] key0, byte[] count1) throws RedisException {
-    if (mapField == null || tableField == null) {
-      throw new RedisException("Not supported");
-    }
-    BytesKeySet set = _getset(key0, false);
+    BytesSet set = _getset(key0, false);
     int size = set.size();
-    try {
-      if (count1 == null) {
-        if (size == 0) return NIL_REPLY;
-        BytesKey key = getRandomKey((Map) mapField.get(set));
-        return new BulkReply(key.getBytes());
-      } else {
-        int count = _toint(count1);
-        int distinct = count < 0 ? -1 : 1;
-        count *= distinct;
-        if (count > size && distinct > 0) count = size;
-        Reply[] replies = new Reply[count];
-        Set<BytesKey> found;
-        if (distinct > 0) {
-          found = new HashSet<BytesKey>(count);
-        } else {
-          found = null;
-        }
-        for (int i = 0; i < count; i++) {
-          BytesKey key;
-          do {
-            key = getRandomKey((Map) mapField.get(set));
-          } while (found != null && !found.add(key));
-          replies[i] = new BulkReply(key.getBytes());
-        }
-        return new MultiBulkReply(replies);
-      }
-    } catch (IllegalAccessException e) {
-      throw new RedisException("Not supported");
+    if (count1 == null) {
+      byte[] member = set.random(r);
+      return member == null ? NIL_REPLY : new BulkReply(member);
+    }
+    int count = _toint(count1);
+    int distinct = count < 0 ? -1 : 1;
+    count *= distinct;
+    if (count >= size && distinct > 0) {
+      // All of them
+      return _setreply(set);
+    }
+    if (size == 0) {
+      return MultiBulkReply.EMPTY;
+    }
+    Reply[] replies = new Reply[count];
+    Set<BytesKey> found;
+    if (distinct > 0) {
+      found = new HashSet<BytesKey>(count);
+    } else {
+      found = null;
+    }
+    for (int i = 0; i < count; i++) {
+      byte[] member;
+      do {
+        member = set.random(r);
+      } while (found != null && !found.add(new BytesKey(member)));
+      replies[i] = new BulkReply(member);
     }
+    return new MultiBulkReply(replies);
   }
 
   /**
@@ -2496,7 +3512,7 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public IntegerReply srem(byte[] key0, byte[][] member1) throws RedisException {
-    BytesKeySet set = _getset(key0, false);
+    BytesSet set = _getset(key0, false);
     int total = 0;
     for (byte[] member : member1) {
       if (set.remove(member)) {
@@ -2515,15 +3531,15 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public MultiBulkReply sunion(byte[][] key0) throws RedisException {
-    BytesKeySet set = _sunion(key0);
+    BytesSet set = _sunion(key0);
     return _setreply(set);
   }
 
-  private BytesKeySet _sunion(byte[][] key0) throws RedisException {
-    BytesKeySet set = null;
+  private BytesSet _sunion(byte[][] key0) throws RedisException {
+    BytesSet set = null;
     for (byte[] key : key0) {
       if (set == null) {
-        set = new BytesKeySet();
+        set = _newset();
         set.addAll(_getset(key, false));
       } else {
         set.addAll(_getset(key, false));
@@ -2546,8 +3562,8 @@ public class SimpleRedisServer implements RedisServer {
   @Override
   public IntegerReply sunionstore(byte[] destination0, byte[][] key1) throws RedisException {
     Object o = _get(destination0);
-    if (o == null || o instanceof Set) {
-      BytesKeySet set = _sunion(key1);
+    if (o == null || o instanceof BytesSet) {
+      BytesSet set = _sunion(key1);
       _put(destination0, set);
       return integer(set.size());
     } else {
@@ -2614,18 +3630,9 @@ public class SimpleRedisServer implements RedisServer {
     ZSet zset = _getzset(key0, false);
     Score min = _toscorerange(min1);
     Score max = _toscorerange(max2);
-    Iterable<ZSetEntry> entries = zset.subSet(_todouble(min1), _todouble(max2));
-    int total = 0;
-    for (ZSetEntry entry : entries) {
-      if (entry.getScore() == min.value && !min.inclusive) {
-        continue;
-      }
-      if (entry.getScore() == max.value && !max.inclusive) {
-        continue;
-      }
-      total++;
-    }
-    return integer(total);
+    int first = zset.firstRank(min.value, min.inclusive);
+    int last = zset.lastRank(max.value, max.inclusive);
+    return integer(Math.max(0, last - first + 1));
   }
 
   /**
@@ -2646,9 +3653,9 @@ public class SimpleRedisServer implements RedisServer {
       zset.add(new BytesKey(member2), increment);
       return new BulkReply(increment1);
     } else {
-      zset.remove(member2);
-      zset.add(entry.getKey(), entry.getScore() + increment);
-      return new BulkReply(_tobytes(entry.getScore()));
+      double score = entry.getScore() + increment;
+      zset.add(entry.getKey(), score);
+      return new BulkReply(_tobytes(score));
     }
   }
 
@@ -2714,7 +3721,6 @@ public class SimpleRedisServer implements RedisServer {
         for (ZSetEntry entry : zset) {
           BytesKey key = entry.getKey();
           ZSetEntry current = destination.get(key);
-          destination.remove(key);
           if (union || current != null) {
             double newscore = entry.getScore() * (weights == null ? 1 : weights[i]);
             if (type == null || type == Aggregate.SUM) {
@@ -2734,10 +3740,10 @@ public class SimpleRedisServer implements RedisServer {
           }
         }
         if (!union) {
-          for (ZSetEntry entry : new ZSet(destination)) {
-            BytesKey key = entry.getKey();
-            if (zset.get(key) == null) {
-              destination.remove(key);
+          Iterator<ZSetEntry> iterator = destination.iterator();
+          while (iterator.hasNext()) {
+            if (zset.get(iterator.next().getKey()) == null) {
+              iterator.remove();
             }
           }
         }
@@ -2768,19 +3774,15 @@ public class SimpleRedisServer implements RedisServer {
     int size = zset.size();
     int start = _torange(start1, size);
     int end = _torange(stop2, size);
-    Iterator<ZSetEntry> iterator = zset.iterator();
+    return _zrange(zset.subSet(start, end), withscores);
+  }
+
+  private MultiBulkReply _zrange(Iterable<ZSetEntry> entries, boolean withscores) {
     List<Reply<ByteBuf>> list = new ArrayList<Reply<ByteBuf>>();
-    for (int i = 0; i < size; i++) {
-      if (iterator.hasNext()) {
-        ZSetEntry next = iterator.next();
-        if (i >= start && i <= end) {
-          list.add(new BulkReply(next.getKey().getBytes()));
-          if (withscores) {
-            list.add(new BulkReply(_tobytes(next.getScore())));
-          }
-        } else if (i > end) {
-          break;
-        }
+    for (ZSetEntry entry : entries) {
+      list.add(new BulkReply(entry.getKey().getBytes()));
+      if (withscores) {
+        list.add(new BulkReply(_tobytes(entry.getScore())));
       }
     }
     return new MultiBulkReply(list.toArray(new Reply[list.size()]));
@@ -2847,16 +3849,21 @@ public class SimpleRedisServer implements RedisServer {
     }
     Score min = _toscorerange(min1);
     Score max = _toscorerange(max2);
-    List<ZSetEntry> entries = zset.subSet(min.value, max.value);
-    if (reverse) Collections.reverse(entries);
-    int current = 0;
+    int first = zset.firstRank(min.value, min.inclusive);
+    int last = zset.lastRank(max.value, max.inclusive);
+    // Apply the limit to the ranks rather than skipping entries
+    Iterable<ZSetEntry> entries;
+    if (reverse) {
+      long high = (long) last - offset;
+      entries = zset.reverseSubSet((int) Math.max(first, high - number + 1), (int) Math.max(high, -1));
+    } else {
+      long low = (long) first + offset;
+      entries = zset.subSet((int) Math.min(low, Integer.MAX_VALUE), (int) Math.min(last, low + number - 1));
+    }
     List<Reply<ByteBuf>> list = new ArrayList<Reply<ByteBuf>>();
     for (ZSetEntry entry : entries) {
-      if (current >= offset && current < offset + number) {
-        list.add(new BulkReply(entry.getKey().getBytes()));
-        if (withscores) list.add(new BulkReply(_tobytes(entry.getScore())));
-      }
-      current++;
+      list.add(new BulkReply(entry.getKey().getBytes()));
+      if (withscores) list.add(new BulkReply(_tobytes(entry.getScore())));
     }
     return list;
   }
@@ -2893,8 +3900,8 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public Reply zrank(byte[] key0, byte[] member1) throws RedisException {
-    List<ZSetEntry> zset = _getzset(key0, false).list();
-    return _zrank(member1, zset);
+    int rank = _getzset(key0, false).rank(member1);
+    return rank == -1 ? NIL_REPLY : integer(rank);
   }
 
   /**
@@ -2934,23 +3941,7 @@ public class SimpleRedisServer implements RedisServer {
     int size = zset.size();
     int start = _torange(start1, size);
     int end = _torange(stop2, size);
-    Iterator<ZSetEntry> iterator = zset.iterator();
-    List<ZSetEntry> list = new ArrayList<ZSetEntry>();
-    for (int i = 0; i < size; i++) {
-      if (iterator.hasNext()) {
-        ZSetEntry next = iterator.next();
-        if (i >= start && i <= end) {
-          list.add(next);
-        } else if (i > end) {
-          break;
-        }
-      }
-    }
-    int total = 0;
-    for (ZSetEntry zSetEntry : list) {
-      if (zset.remove(zSetEntry.getKey())) total++;
-    }
-    return integer(total);
+    return integer(zset.removeRange(start, end));
   }
 
   /**
@@ -2968,16 +3959,7 @@ public class SimpleRedisServer implements RedisServer {
     if (zset.isEmpty()) return integer(0);
     Score min = _toscorerange(min1);
     Score max = _toscorerange(max2);
-    List<ZSetEntry> entries = zset.subSet(min.value, max.value);
-    int total = 0;
-    for (ZSetEntry entry : new ArrayList<ZSetEntry>(entries)) {
-      if (!min.inclusive && entry.getScore() == min.value) continue;
-      if (!max.inclusive && entry.getScore() == max.value) continue;
-      if (zset.remove(entry.getKey())) {
-        total++;
-      }
-    }
-    return integer(total);
+    return integer(zset.removeRange(zset.firstRank(min.value, min.inclusive), zset.lastRank(max.value, max.inclusive)));
   }
 
   /**
@@ -3000,22 +3982,7 @@ public class SimpleRedisServer implements RedisServer {
     int size = zset.size();
     int end = size - _torange(start1, size) - 1;
     int start = size - _torange(stop2, size) - 1;
-    Iterator<ZSetEntry> iterator = zset.iterator();
-    List<Reply<ByteBuf>> list = new ArrayList<Reply<ByteBuf>>();
-    for (int i = 0; i < size; i++) {
-      if (iterator.hasNext()) {
-        ZSetEntry next = iterator.next();
-        if (i >= start && i <= end) {
-          list.add(0, new BulkReply(next.getKey().getBytes()));
-          if (withscores) {
-            list.add(1, new BulkReply(_tobytes(next.getScore())));
-          }
-        } else if (i > end) {
-          break;
-        }
-      }
-    }
-    return new MultiBulkReply(list.toArray(new Reply[list.size()]));
+    return _zrange(zset.reverseSubSet(start, end), withscores);
   }
 
   /**
@@ -3046,21 +4013,9 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public Reply zrevrank(byte[] key0, byte[] member1) throws RedisException {
-    List<ZSetEntry> zset = _getzset(key0, false).list();
-    Collections.reverse(zset);
-    return _zrank(member1, zset);
-  }
-
-  private Reply _zrank(byte[] member1, List<ZSetEntry> zset) {
-    BytesKey member = new BytesKey(member1);
-    int position = 0;
-    for (ZSetEntry entry : zset) {
-      if (entry.getKey().equals(member)) {
-        return integer(position);
-      }
-      position++;
-    }
-    return NIL_REPLY;
+    ZSet zset = _getzset(key0, false);
+    int rank = zset.rank(member1);
+    return rank == -1 ? NIL_REPLY : integer(zset.size() - rank - 1);
   }
 
   /**
@@ -3083,6 +4038,37 @@ public class SimpleRedisServer implements RedisServer {
     return String.valueOf(score).getBytes();
   }
 
+  /**
+   * Incrementally iterate sorted sets elements and associated scores
+   * Sorted_set
+   *
+   * @param key0
+   * @param cursor1
+   * @param pattern_count2
+   * @return MultiBulkReply
+   */
+  @Override
+  public MultiBulkReply zscan(byte[] key0, byte[] cursor1, byte[][] pattern_count2) throws RedisException {
+    long cursor = _cursor(cursor1);
+    final Scan scan = _scan(pattern_count2, false);
+    ZSet zset = _getzset(key0, false);
+    BytesMap.Visitor<Double> visitor = new BytesMap.Visitor<Double>() {
+      @Override
+      public void visit(byte[] member, Double score) {
+        if (scan.matches(member)) {
+          scan.found.add(new BulkReply(member));
+          scan.found.add(new BulkReply(_tobytes(score)));
+        }
+      }
+    };
+    int next = (int) cursor;
+    int buckets = 0;
+    do {
+      next = zset.scan(next, visitor);
+    } while (scan.more(next, ++buckets));
+    return scan.reply(next & 0xFFFFFFFFL);
+  }
+
   /**
    * Add multiple sorted sets and store the resulting sorted set in a new key
    * Sorted_set
@@ -0,0 +1,136 @@
+package redis.server.netty;
+
+import redis.netty4.BulkReply;
+import redis.netty4.Command;
+import redis.netty4.MultiBulkReply;
+import redis.netty4.Reply;
+
+import static redis.netty4.IntegerReply.integer;
+
+/**
+ * The most recent commands that took at least slowlog-log-slower-than
+ * microseconds to execute, in a ring of up to slowlog-max-len entries. Only
+ * slow commands get this far, so a lock is cheap enough. Like redis, long
+ * commands and arguments are cut short so a slow MSET can't hold on to all
+ * of its values.
+ */
+class Slowlog {
+  private static final int MAX_ARGS = 32;
+  private static final int MAX_STRING = 128;
+
+  private static class Entry {
+    final long id;
+    final long time;
+    final long usec;
+    final byte[][] args;
+
+    Entry(long id, long time, long usec, byte[][] args) {
+      this.id = id;
+      this.time = time;
+      this.usec = usec;
+      this.args = args;
+    }
+  }
+
+  private final Config config;
+
+  // Guarded by this
+  private Entry[] entries = new Entry[0];
+  // Where the next entry goes and how many there are
+  private int next;
+  private int size;
+  private long ids;
+
+  Slowlog(Config config) {
+    this.config = config;
+  }
+
+  void add(Command command, long usec) {
+    Object[] objects = command.getObjects();
+    int count = Math.min(objects.length, MAX_ARGS);
+    byte[][] args = new byte[count][];
+    for (int i = 0; i < count; i++) {
+      if (i == MAX_ARGS - 1 && objects.length > MAX_ARGS) {
+        args[i] = ("... (" + (objects.length - MAX_ARGS + 1) + " more arguments)").getBytes();
+      } else {
+        args[i] = truncate(objects[i]);
+      }
+    }
+    long time = System.currentTimeMillis() / 1000;
+    synchronized (this) {
+      resize(config.slowlogMaxLen());
+      if (entries.length == 0) {
+        return;
+      }
+      entries[next] = new Entry(ids++, time, usec, args);
+      next = (next + 1) % entries.length;
+      size = Math.min(size + 1, entries.length);
+    }
+  }
+
+  private static byte[] truncate(Object object) {
+    byte[] bytes = object instanceof byte[] ? (byte[]) object : String.valueOf(object).getBytes();
+    if (bytes.length <= MAX_STRING) {
+      return bytes;
+    }
+    byte[] more = ("... (" + (bytes.length - MAX_STRING) + " more bytes)").getBytes();
+    byte[] truncated = new byte[MAX_STRING + more.length];
+    System.arraycopy(bytes, 0, truncated, 0, MAX_STRING);
+    System.arraycopy(more, 0, truncated, MAX_STRING, more.length);
+    return truncated;
+  }
+
+  /**
+   * Keep the newest entries that fit after slowlog-max-len changes.
+   */
+  private void resize(int length) {
+    if (length == entries.length) {
+      return;
+    }
+    Entry[] resized = new Entry[length];
+    int kept = Math.min(size, length);
+    for (int i = 0; i < kept; i++) {
+      resized[kept - 1 - i] = newest(i);
+    }
+    entries = resized;
+    size = kept;
+    next = length == 0 ? 0 : kept % length;
+  }
+
+  /**
+   * The entry that came count entries before the newest one.
+   */
+  private Entry newest(int count) {
+    return entries[(next - 1 - count + 2 * entries.length) % entries.length];
+  }
+
+  /**
+   * SLOWLOG GET, newest first, everything when count is negative.
+   */
+  synchronized MultiBulkReply get(long count) {
+    resize(config.slowlogMaxLen());
+    int length = count < 0 ? size : (int) Math.min(count, size);
+    Reply[] replies = new Reply[length];
+    for (int i = 0; i < length; i++) {
+      Entry entry = newest(i);
+      Reply[] args = new Reply[entry.args.length];
+      for (int j = 0; j < args.length; j++) {
+        args[j] = new BulkReply(entry.args[j]);
+      }
+      replies[i] = new MultiBulkReply(new Reply[]{
+          integer(entry.id), integer(entry.time), integer(entry.usec), new MultiBulkReply(args)});
+    }
+    return new MultiBulkReply(replies);
+  }
+
+  synchronized int len() {
+    resize(config.slowlogMaxLen());
+    return size;
+  }
+
+  synchronized void reset() {
+    entries = new Entry[entries.length];
+    next = 0;
+    size = 0;
+  }
+}
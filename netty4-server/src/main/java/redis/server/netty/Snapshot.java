@@ -0,0 +1,185 @@
+package redis.server.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import redis.util.Crc64;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Writes an RDB file from keyspaces that keep serving commands while it is
+ * written. Each keyspace encodes its keys a chunk at a time on its own thread
+ * and hands the chunks to a single writer thread that streams them to a
+ * temporary file. Once every keyspace is done the file is synced and renamed
+ * over the old one, so a crash part way through never leaves a partial file.
+ * <p/>
+ * The keyspaces are responsible for making the file a point in time copy, see
+ * SimpleRedisServer._beginsnapshot().
+ */
+class Snapshot {
+  // Encoded keys are handed to the writer in chunks of about this size
+  static final int CHUNK = 1 << 16;
+  // Chunks waiting for the writer before keyspaces have to wait too
+  private static final int QUEUED = 64;
+  // Tells the writer that a keyspace has no more chunks
+  private static final ByteBuf DONE = Unpooled.EMPTY_BUFFER;
+
+  private final File file;
+  private final int parts;
+  private final BlockingQueue<ByteBuf> queue = new ArrayBlockingQueue<ByteBuf>(QUEUED);
+  private final FutureTask<Long> writer;
+
+  /**
+   * @param file where the snapshot goes
+   * @param parts the number of keyspaces that will write to it
+   */
+  Snapshot(File file, int parts) {
+    this.file = file;
+    this.parts = parts;
+    writer = new FutureTask<Long>(new Callable<Long>() {
+      @Override
+      public Long call() throws Exception {
+        return write();
+      }
+    });
+    Thread thread = new Thread(writer, "rdb-writer");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  ByteBuf allocate() {
+    return Unpooled.buffer(CHUNK + CHUNK / 4);
+  }
+
+  /**
+   * Whether the writer has fallen behind, so that keyspaces can go back to
+   * serving commands instead of waiting for it.
+   */
+  boolean isBacklogged() {
+    return queue.remainingCapacity() == 0;
+  }
+
+  /**
+   * Queue a chunk of encoded keys unless the writer has fallen behind.
+   */
+  boolean offer(ByteBuf chunk) {
+    return queue.offer(chunk);
+  }
+
+  /**
+   * Queue a chunk of encoded keys, waiting if the writer has fallen behind.
+   */
+  void write(ByteBuf chunk) {
+    boolean interrupted = false;
+    while (true) {
+      try {
+        queue.put(chunk);
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) Thread.currentThread().interrupt();
+  }
+
+  /**
+   * Called by each keyspace once it has queued all its keys.
+   */
+  void finished() {
+    write(DONE);
+  }
+
+  boolean isDone() {
+    return writer.isDone();
+  }
+
+  /**
+   * Waits for the file to be written and returns when it was finished.
+   */
+  long get() throws IOException, InterruptedException {
+    try {
+      return writer.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      throw new IOException(cause);
+    }
+  }
+
+  private long write() throws Exception {
+    File temp = new File(file.getAbsoluteFile().getParentFile(), "temp-" + file.getName());
+    FileOutputStream fos = null;
+    FileChannel channel = null;
+    IOException failed = null;
+    long crc = 0;
+    try {
+      fos = new FileOutputStream(temp);
+      channel = fos.getChannel();
+      ByteBuf header = Unpooled.buffer();
+      Rdb.writeHeader(header);
+      crc = write(channel, header, crc);
+    } catch (IOException e) {
+      failed = e;
+    }
+    // Keep taking chunks after a failure so the keyspaces aren't left waiting
+    int remaining = parts;
+    while (remaining > 0) {
+      ByteBuf chunk = queue.take();
+      if (chunk == DONE) {
+        remaining--;
+      } else if (failed == null) {
+        try {
+          crc = write(channel, chunk, crc);
+        } catch (IOException e) {
+          failed = e;
+        }
+      } else {
+        chunk.release();
+      }
+    }
+    try {
+      if (failed == null) {
+        ByteBuf end = Unpooled.buffer(9);
+        Rdb.writeEnd(end);
+        crc = Crc64.update(crc, end.array(), end.arrayOffset(), end.readableBytes());
+        end.writeLong(Long.reverseBytes(crc));
+        write(channel, end, 0);
+        channel.force(true);
+      }
+    } catch (IOException e) {
+      failed = e;
+    } finally {
+      if (fos != null) fos.close();
+    }
+    if (failed != null) {
+      temp.delete();
+      throw failed;
+    }
+    Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    return System.currentTimeMillis();
+  }
+
+  private static long write(FileChannel channel, ByteBuf chunk, long crc) throws IOException {
+    try {
+      crc = Crc64.update(crc, chunk.array(), chunk.arrayOffset() + chunk.readerIndex(), chunk.readableBytes());
+      ByteBuffer buffer = chunk.nioBuffer();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      return crc;
+    } finally {
+      chunk.release();
+    }
+  }
+}
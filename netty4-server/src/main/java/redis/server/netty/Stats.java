@@ -0,0 +1,176 @@
+package redis.server.netty;
+
+import redis.netty4.Command;
+import redis.util.Histogram;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * How many times each command has run, how long it took and the slow log.
+ * Each shard records into a recorder of its own, and the coordinators share
+ * another, so recording is a couple of uncontended atomic adds per command. INFO adds the recorders up when it is asked for
+ * commandstats or latencystats.
+ * <p/>
+ * Times are how long the command took to execute, like in redis, so time
+ * spent waiting for its shard or for its reply to be written isn't counted.
+ */
+class Stats {
+
+  /**
+   * The counts of one shard, or of the commands that run elsewhere.
+   */
+  class Recorder {
+    // Indexed by RedisServerDispatcher command
+    private final AtomicLongArray nanos = new AtomicLongArray(RedisServerDispatcher.COMMANDS);
+    // Created for a command the first time it runs
+    private final AtomicReferenceArray<Histogram> usec =
+        new AtomicReferenceArray<Histogram>(RedisServerDispatcher.COMMANDS);
+
+    /**
+     * Count a command that took elapsed nanoseconds and log it if that is
+     * slow enough.
+     */
+    void record(int id, Command command, long elapsed) {
+      if (id == RedisServerDispatcher.UNKNOWN) {
+        return;
+      }
+      nanos.addAndGet(id, elapsed);
+      long micros = elapsed / 1000;
+      histogram(id).record(micros);
+      long slower = config.slowlogLogSlowerThan();
+      if (slower >= 0 && micros >= slower) {
+        slowlog.add(command, micros);
+      }
+    }
+
+    private Histogram histogram(int id) {
+      Histogram histogram = usec.get(id);
+      if (histogram == null) {
+        usec.compareAndSet(id, null, new Histogram());
+        histogram = usec.get(id);
+      }
+      return histogram;
+    }
+  }
+
+  private final Config config;
+  private final Slowlog slowlog;
+  private final List<Recorder> recorders = new CopyOnWriteArrayList<Recorder>();
+  private final Recorder shared;
+
+  Stats(Config config) {
+    this.config = config;
+    slowlog = new Slowlog(config);
+    shared = recorder();
+  }
+
+  /**
+   * A new recorder, for one shard.
+   */
+  Recorder recorder() {
+    Recorder recorder = new Recorder();
+    recorders.add(recorder);
+    return recorder;
+  }
+
+  /**
+   * The recorder for commands that don't run on a shard's executor, which
+   * any thread may record into.
+   */
+  Recorder shared() {
+    return shared;
+  }
+
+  Slowlog slowlog() {
+    return slowlog;
+  }
+
+  /**
+   * CONFIG RESETSTAT. Commands that are running at the time may or may not
+   * be counted.
+   */
+  void reset() {
+    for (Recorder recorder : recorders) {
+      for (int id = 0; id < RedisServerDispatcher.COMMANDS; id++) {
+        recorder.nanos.set(id, 0);
+        Histogram histogram = recorder.usec.get(id);
+        if (histogram != null) {
+          histogram.reset();
+        }
+      }
+    }
+  }
+
+  /**
+   * Everything recorded for a command, or null if it has never run.
+   */
+  private Histogram total(int id) {
+    Histogram total = null;
+    for (Recorder recorder : recorders) {
+      Histogram histogram = recorder.usec.get(id);
+      if (histogram != null) {
+        if (total == null) {
+          total = new Histogram();
+        }
+        total.add(histogram);
+      }
+    }
+    return total;
+  }
+
+  /**
+   * The commandstats section of INFO, a line per command that has run.
+   */
+  void commandstats(StringBuilder sb) {
+    sb.append("# Commandstats\n");
+    for (int id = 0; id < RedisServerDispatcher.COMMANDS; id++) {
+      Histogram total = total(id);
+      long calls = total == null ? 0 : total.count();
+      if (calls == 0) {
+        continue;
+      }
+      long nanos = 0;
+      for (Recorder recorder : recorders) {
+        nanos += recorder.nanos.get(id);
+      }
+      sb.append("cmdstat_").append(name(id)).append(":calls=").append(calls)
+          .append(",usec=").append(nanos / 1000)
+          .append(",usec_per_call=").append(String.format(Locale.ROOT, "%.2f", nanos / 1000.0 / calls)).append("\n");
+    }
+  }
+
+  /**
+   * The latencystats section of INFO, the latency-tracking-info-percentiles
+   * of each command that has run.
+   */
+  void latencystats(StringBuilder sb) {
+    sb.append("# Latencystats\n");
+    double[] percentiles = config.latencyTrackingInfoPercentiles();
+    for (int id = 0; id < RedisServerDispatcher.COMMANDS; id++) {
+      Histogram total = total(id);
+      if (total == null || total.count() == 0) {
+        continue;
+      }
+      sb.append("latency_percentiles_usec_").append(name(id)).append(":");
+      for (int i = 0; i < percentiles.length; i++) {
+        sb.append(i == 0 ? "p" : ",p").append(Config.format(percentiles[i])).append("=")
+            .append(String.format(Locale.ROOT, "%.3f", (double) total.percentile(percentiles[i])));
+      }
+      sb.append("\n");
+    }
+  }
+
+  /**
+   * The name INFO uses for a command, with its subcommand after a | like
+   * config|get.
+   */
+  private static String name(int id) {
+    String name = new String(RedisServerDispatcher.name(id)).toLowerCase();
+    byte[] subcommand = RedisServerDispatcher.subcommand(id);
+    return subcommand == null ? name : name + "|" + new String(subcommand).toLowerCase();
+  }
+}
@@ -0,0 +1,32 @@
+package redis.server.netty;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prints messages to stderr, like everything else in the server, but at most
+ * one per period so that lots of clients failing at once can't flood it.
+ * The ones in between are only counted, and the count goes out with the next
+ * message that is printed.
+ */
+class ThrottledLog {
+  private final long period;
+  private final AtomicLong next;
+  private final AtomicLong suppressed = new AtomicLong();
+
+  ThrottledLog(long period, TimeUnit unit) {
+    this.period = unit.toNanos(period);
+    next = new AtomicLong(System.nanoTime());
+  }
+
+  void println(String message) {
+    long now = System.nanoTime();
+    long at = next.get();
+    if (now - at < 0 || !next.compareAndSet(at, now + period)) {
+      suppressed.incrementAndGet();
+      return;
+    }
+    long skipped = suppressed.getAndSet(0);
+    System.err.println(skipped == 0 ? message : message + " (" + skipped + " more like it suppressed)");
+  }
+}
@@ -0,0 +1,64 @@
+package redis.server.netty;
+
+import redis.netty4.Command;
+import redis.util.BytesKey;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The MULTI/EXEC state of a connection. Touched from the executor of the
+ * connection, and from the thread running its EXEC or WATCH while the
+ * connection waits for it.
+ */
+class Transaction {
+  // Commands queued since MULTI, or null outside of MULTI
+  List<Command> queued;
+  // A command couldn't be queued so EXEC has to discard the rest
+  boolean failed;
+  // Watched keys by the shard that owns them, with the version each had
+  // when it was watched
+  final Map<Integer, Map<BytesKey, Long>> watched = new TreeMap<Integer, Map<BytesKey, Long>>();
+
+  boolean isQueueing() {
+    return queued != null;
+  }
+
+  /**
+   * Leave MULTI, dropping whatever was queued.
+   */
+  void discard() {
+    queued = null;
+    failed = false;
+  }
+
+  void watched(int shard, byte[][] keys, long[] versions) {
+    Map<BytesKey, Long> keyVersions = watched.get(shard);
+    if (keyVersions == null) {
+      watched.put(shard, keyVersions = new LinkedHashMap<BytesKey, Long>());
+    }
+    for (int i = 0; i < keys.length; i++) {
+      keyVersions.put(new BytesKey(keys[i]), versions[i]);
+    }
+  }
+
+  static byte[][] keys(Map<BytesKey, Long> keyVersions) {
+    byte[][] keys = new byte[keyVersions.size()][];
+    int i = 0;
+    for (BytesKey key : keyVersions.keySet()) {
+      keys[i++] = key.getBytes();
+    }
+    return keys;
+  }
+
+  static long[] versions(Map<BytesKey, Long> keyVersions) {
+    long[] versions = new long[keyVersions.size()];
+    int i = 0;
+    for (Long version : keyVersions.values()) {
+      versions[i++] = version;
+    }
+    return versions;
+  }
+}
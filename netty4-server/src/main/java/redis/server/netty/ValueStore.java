@@ -0,0 +1,21 @@
+package redis.server.netty;
+
+/**
+ * Decides where SimpleRedisServer keeps string values. The keyspace holds
+ * whatever store returns, either the byte[] itself or a reference counted
+ * ByteBuf that the keyspace releases when the value is replaced or removed.
+ */
+public interface ValueStore {
+
+  /**
+   * Keep every value on the heap.
+   */
+  ValueStore HEAP = new ValueStore() {
+    @Override
+    public Object store(byte[] value) {
+      return value;
+    }
+  };
+
+  Object store(byte[] value);
+}
@@ -0,0 +1,286 @@
+package redis.server.netty;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.netty4.BulkReply;
+import redis.netty4.Command;
+import redis.netty4.IntegerReply;
+import redis.netty4.MultiBulkReply;
+import redis.netty4.Reply;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+import static redis.netty4.BulkReply.NIL_REPLY;
+
+/**
+ * Logging writes to the append only file and replaying them.
+ */
+public class AofTest {
+
+  private File dir;
+  private Config config;
+
+  @Before
+  public void setup() throws Exception {
+    dir = Files.createTempDirectory("aof").toFile();
+    config = new Config();
+    config.set("dir", dir.getPath());
+    config.appendonly(true);
+  }
+
+  @After
+  public void cleanup() {
+    for (File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  private ShardedEngine start(int shards) throws Exception {
+    ShardedEngine engine = new ShardedEngine(shards, ValueStore.HEAP, config);
+    engine.load();
+    return engine;
+  }
+
+  private static String string(Reply reply) {
+    return ((BulkReply) reply).asUTF8String();
+  }
+
+  @Test
+  public void testReplay() throws Exception {
+    long members;
+    ShardedEngine engine = start(4);
+    try {
+      for (int i = 0; i < 1000; i++) {
+        execute(engine, "set", "key" + i, "value" + i);
+      }
+      execute(engine, "flushdb");
+      for (int i = 0; i < 1000; i++) {
+        execute(engine, "set", "key" + i, "again" + i);
+        execute(engine, "incr", "counter");
+      }
+      execute(engine, "del", "key0", "key1", "key2");
+      execute(engine, "setex", "expiring", "100", "value");
+      execute(engine, "set", "relative", "value");
+      execute(engine, "pexpire", "relative", "50000");
+      execute(engine, "sadd", "set", "a", "b", "c");
+      execute(engine, "spop", "set");
+      members = ((IntegerReply) execute(engine, "scard", "set")).data();
+      // Refused commands aren't logged
+      execute(engine, "incr", "key5");
+    } finally {
+      engine.shutdown();
+    }
+
+    engine = start(3);
+    try {
+      assertEquals(1001L, execute(engine, "dbsize").data());
+      assertEquals(NIL_REPLY, execute(engine, "get", "key0"));
+      assertEquals("again5", string(execute(engine, "get", "key5")));
+      assertEquals("1000", string(execute(engine, "get", "counter")));
+      long ttl = ((IntegerReply) execute(engine, "ttl", "expiring")).data();
+      assertTrue(ttl > 95 && ttl <= 100);
+      long pttl = ((IntegerReply) execute(engine, "pttl", "relative")).data();
+      assertTrue(pttl > 45000 && pttl <= 50000);
+      // Whichever member was popped stays popped
+      assertEquals(members, (long) ((IntegerReply) execute(engine, "scard", "set")).data());
+    } finally {
+      engine.shutdown();
+    }
+  }
+
+  @Test
+  public void testExpiredWhileLogging() throws Exception {
+    ShardedEngine engine = start(2);
+    try {
+      // Made persistent just before it would have expired
+      execute(engine, "set", "kept", "value");
+      execute(engine, "pexpire", "kept", "100");
+      execute(engine, "persist", "kept");
+      // Expired and then reused for another type
+      execute(engine, "set", "reused", "value");
+      execute(engine, "pexpire", "reused", "1");
+      Thread.sleep(5);
+      execute(engine, "sadd", "reused", "member");
+    } finally {
+      engine.shutdown();
+    }
+    Thread.sleep(150);
+
+    engine = start(2);
+    try {
+      assertEquals("value", string(execute(engine, "get", "kept")));
+      assertEquals(-1L, execute(engine, "ttl", "kept").data());
+      assertEquals(1L, execute(engine, "scard", "reused").data());
+    } finally {
+      engine.shutdown();
+    }
+  }
+
+  @Test
+  public void testTruncated() throws Exception {
+    ShardedEngine engine = start(1);
+    try {
+      execute(engine, "set", "key", "value");
+    } finally {
+      engine.shutdown();
+    }
+    File file = config.aof();
+    long length = file.length();
+    FileOutputStream out = new FileOutputStream(file, true);
+    out.write("*3\r\n$3\r\nSET\r\n$5\r\nother\r\n$5\r\nval".getBytes());
+    out.close();
+
+    engine = start(1);
+    try {
+      assertEquals("value", string(execute(engine, "get", "key")));
+      assertEquals(NIL_REPLY, execute(engine, "get", "other"));
+      execute(engine, "set", "other", "value");
+    } finally {
+      engine.shutdown();
+    }
+    assertTrue(file.length() > length);
+    engine = start(1);
+    try {
+      assertEquals("value", string(execute(engine, "get", "other")));
+    } finally {
+      engine.shutdown();
+    }
+
+    // Anything else wrong with the file fails loading
+    out = new FileOutputStream(file, true);
+    out.write("SET key value\r\n".getBytes());
+    out.close();
+    engine = new ShardedEngine(1, ValueStore.HEAP, config);
+    try {
+      engine.load();
+      fail("Loaded a corrupt file");
+    } catch (IOException e) {
+      assertEquals("Bad file format reading the append only file", e.getMessage());
+    } finally {
+      engine.shutdown();
+    }
+  }
+
+  @Test
+  public void testRewrite() throws Exception {
+    ShardedEngine engine = start(4);
+    try {
+      for (int i = 0; i < 5000; i++) {
+        execute(engine, "set", "key" + (i % 1000), "value" + i);
+      }
+      execute(engine, "rpush", "list", "a", "b");
+      long before = config.aof().length();
+      assertEquals("Background append only file rewriting started", execute(engine, "bgrewriteaof").data());
+      // Logged after the snapshot began, so they end up after it in the new file
+      for (int i = 0; i < 1000; i++) {
+        execute(engine, "set", "after" + i, "value");
+      }
+      execute(engine, "rpush", "list", "c");
+      execute(engine, "del", "key0");
+      awaitRewrite(engine);
+      assertTrue(Rdb.isRdb(config.aof()));
+      assertTrue(config.aof().length() < before);
+      execute(engine, "set", "last", "value");
+    } finally {
+      engine.shutdown();
+    }
+
+    engine = start(2);
+    try {
+      assertEquals(2001L, execute(engine, "dbsize").data());
+      assertEquals(NIL_REPLY, execute(engine, "get", "key0"));
+      assertEquals("value4999", string(execute(engine, "get", "key999")));
+      assertEquals("value", string(execute(engine, "get", "after999")));
+      assertEquals("value", string(execute(engine, "get", "last")));
+      Reply[] list = ((MultiBulkReply) execute(engine, "lrange", "list", "0", "-1")).data();
+      assertEquals(3, list.length);
+      assertEquals("c", string(list[2]));
+    } finally {
+      engine.shutdown();
+    }
+  }
+
+  @Test
+  public void testStartFromRdb() throws Exception {
+    config.appendonly(false);
+    ShardedEngine engine = start(2);
+    try {
+      execute(engine, "set", "saved", "value");
+      execute(engine, "save");
+    } finally {
+      engine.shutdown();
+    }
+    config.appendonly(true);
+    engine = start(2);
+    try {
+      execute(engine, "set", "logged", "value");
+    } finally {
+      engine.shutdown();
+    }
+    config.rdb().delete();
+    engine = start(2);
+    try {
+      assertEquals("value", string(execute(engine, "get", "saved")));
+      assertEquals("value", string(execute(engine, "get", "logged")));
+    } finally {
+      engine.shutdown();
+    }
+  }
+
+  @Test
+  public void testFsyncAlways() throws Exception {
+    config.set("appendfsync", "always");
+    ShardedEngine engine = start(2);
+    try {
+      execute(engine, "set", "key", "value");
+      final CountDownLatch synced = new CountDownLatch(1);
+      final long[] length = new long[1];
+      engine.sync(Arrays.asList(new Command(new Object[]{"set".getBytes(), "key".getBytes(), "value".getBytes()})),
+          new Runnable() {
+            @Override
+            public void run() {
+              length[0] = config.aof().length();
+              synced.countDown();
+            }
+          });
+      assertTrue(synced.await(5, TimeUnit.SECONDS));
+      assertTrue(length[0] > 0);
+    } finally {
+      engine.shutdown();
+    }
+  }
+
+  private static void awaitRewrite(ShardedEngine engine) throws Exception {
+    for (int i = 0; i < 500; i++) {
+      if (string(execute(engine, "info")).contains("aof_rewrite_in_progress:0")) {
+        return;
+      }
+      Thread.sleep(10);
+    }
+    fail("Rewrite didn't finish");
+  }
+
+  private static Reply execute(ShardedEngine engine, String... args) throws Exception {
+    Object[] objects = new Object[args.length];
+    for (int i = 0; i < args.length; i++) {
+      objects[i] = args[i].getBytes();
+    }
+    Command command = new Command(objects);
+    int route = engine.route(command);
+    if (route == ShardedEngine.COORDINATED) {
+      return engine.coordinate(command).get();
+    }
+    return engine.shard(route == ShardedEngine.ANY ? 0 : route).submit(command).get();
+  }
+}
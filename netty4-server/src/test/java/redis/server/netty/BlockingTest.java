@@ -0,0 +1,204 @@
+package redis.server.netty;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.netty4.BulkReply;
+import redis.netty4.Command;
+import redis.netty4.ErrorReply;
+import redis.netty4.IntegerReply;
+import redis.netty4.MultiBulkReply;
+import redis.netty4.Reply;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Clients blocked in BLPOP, BRPOP and BRPOPLPUSH.
+ */
+public class BlockingTest {
+
+  private ShardedEngine engine;
+
+  @Before
+  public void setup() {
+    engine = new ShardedEngine(4);
+  }
+
+  @After
+  public void shutdown() {
+    engine.shutdown();
+  }
+
+  private static String string(Reply reply) {
+    return ((BulkReply) reply).asUTF8String();
+  }
+
+  private static String strings(Reply reply) {
+    StringBuilder sb = new StringBuilder();
+    for (Reply element : ((MultiBulkReply) reply).data()) {
+      sb.append(sb.length() == 0 ? "" : " ").append(string(element));
+    }
+    return sb.toString();
+  }
+
+  private static Reply await(Reply reply) throws Exception {
+    return ((Blocking.Waiter) reply).data().get(5, TimeUnit.SECONDS);
+  }
+
+  private static boolean isDone(Reply reply) {
+    return ((Blocking.Waiter) reply).data().isDone();
+  }
+
+  /**
+   * Two keys that live on different shards.
+   */
+  private String[] apart() {
+    for (int i = 1; ; i++) {
+      if (engine.shardOf(("key" + i).getBytes()) != engine.shardOf("key0".getBytes())) {
+        return new String[]{"key0", "key" + i};
+      }
+    }
+  }
+
+  @Test
+  public void testImmediate() throws Exception {
+    execute("rpush", "list", "a", "b", "c");
+    assertEquals("list a", strings(execute("blpop", "{list}empty", "list", "0")));
+    assertEquals("list c", strings(execute("brpop", "list", "1")));
+    assertEquals("b", string(execute("brpoplpush", "list", "{list}other", "0")));
+    assertEquals("b", string(execute("lindex", "{list}other", "0")));
+    assertEquals("ERR timeout is not a float or out of range", execute("blpop", "list", "soon").data());
+    assertEquals("ERR timeout is negative", execute("brpop", "list", "-1").data());
+    assertEquals("ERR timeout is negative", execute("brpoplpush", "list", "other", "-1").data());
+    execute("set", "string", "value");
+    assertTrue(execute("blpop", "string", "0") instanceof ErrorReply);
+  }
+
+  @Test
+  public void testWakeUp() throws Exception {
+    Reply waiting = execute("blpop", "list", "0");
+    assertFalse(isDone(waiting));
+    assertEquals(1L, execute("rpush", "list", "a").data());
+    assertEquals("list a", strings(await(waiting)));
+    assertEquals(0L, execute("llen", "list").data());
+
+    waiting = execute("brpop", "list", "0");
+    execute("rpush", "list", "a", "b");
+    assertEquals("list b", strings(await(waiting)));
+    assertEquals("a", string(execute("lindex", "list", "0")));
+  }
+
+  @Test
+  public void testTimeout() throws Exception {
+    long start = System.nanoTime();
+    Reply waiting = execute("blpop", "list", "0.05");
+    assertEquals(MultiBulkReply.NIL_REPLY, await(waiting));
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(40));
+    // It doesn't take the element after giving up
+    execute("rpush", "list", "a");
+    assertEquals(1L, execute("llen", "list").data());
+  }
+
+  @Test
+  public void testOrder() throws Exception {
+    Reply first = execute("blpop", "list", "0");
+    Reply second = execute("blpop", "list", "0");
+    Reply third = execute("brpoplpush", "list", "{list}done", "0");
+    execute("rpush", "list", "a", "b");
+    assertEquals("list a", strings(await(first)));
+    assertEquals("list b", strings(await(second)));
+    assertFalse(isDone(third));
+    execute("lpush", "list", "c");
+    assertEquals("c", string(await(third)));
+    assertEquals("c", string(execute("lindex", "{list}done", "0")));
+  }
+
+  @Test
+  public void testAcrossShards() throws Exception {
+    String[] keys = apart();
+    Reply waiting = execute("blpop", keys[0], keys[1], "0");
+    execute("rpush", keys[1], "a");
+    assertEquals(keys[1] + " a", strings(await(waiting)));
+    // Served by one key it is no longer waiting on the other
+    execute("rpush", keys[0], "b");
+    assertEquals(1L, execute("llen", keys[0]).data());
+
+    waiting = execute("brpoplpush", keys[0], keys[1], "0");
+    assertEquals("b", string(waiting));
+    waiting = execute("brpoplpush", keys[0], keys[1], "0");
+    execute("rpush", keys[0], "c");
+    assertEquals("c", string(await(waiting)));
+    assertEquals("c b", strings(execute("lrange", keys[1], "0", "-1")));
+  }
+
+  @Test
+  public void testWrongDestination() throws Exception {
+    String[] keys = apart();
+    execute("set", keys[1], "value");
+    Reply waiting = execute("brpoplpush", keys[0], keys[1], "0");
+    execute("rpush", keys[0], "a");
+    assertTrue(await(waiting) instanceof ErrorReply);
+    // The element goes back to the source
+    assertEquals("a", string(execute("lindex", keys[0], "0")));
+  }
+
+  @Test
+  public void testCancel() throws Exception {
+    Reply waiting = execute("blpop", "list", "0");
+    engine.cancel((Blocking.Waiter) waiting);
+    execute("rpush", "list", "a");
+    assertEquals(1L, execute("llen", "list").data());
+    assertFalse(isDone(waiting));
+  }
+
+  @Test
+  public void testLogged() throws Exception {
+    engine.shutdown();
+    File dir = Files.createTempDirectory("aof").toFile();
+    Config config = new Config();
+    config.set("dir", dir.getPath());
+    config.appendonly(true);
+    try {
+      engine = new ShardedEngine(2, ValueStore.HEAP, config);
+      engine.load();
+      String[] keys = apart();
+      execute("rpush", keys[0], "a", "b");
+      execute("blpop", keys[0], "0");
+      Reply waiting = execute("brpop", keys[1], "0");
+      execute("rpush", keys[1], "c", "d");
+      await(waiting);
+      assertEquals("c", string(execute("brpoplpush", keys[1], keys[0], "0")));
+      engine.shutdown();
+
+      engine = new ShardedEngine(3, ValueStore.HEAP, config);
+      engine.load();
+      assertEquals("c b", strings(execute("lrange", keys[0], "0", "-1")));
+      assertEquals(0L, (long) ((IntegerReply) execute("llen", keys[1])).data());
+    } finally {
+      engine.shutdown();
+      for (File file : dir.listFiles()) {
+        file.delete();
+      }
+      dir.delete();
+    }
+  }
+
+  private Reply execute(String... args) throws Exception {
+    Object[] objects = new Object[args.length];
+    for (int i = 0; i < args.length; i++) {
+      objects[i] = args[i].getBytes();
+    }
+    Command command = new Command(objects);
+    int route = engine.route(command);
+    if (route == ShardedEngine.COORDINATED) {
+      return engine.coordinate(command).get();
+    }
+    return engine.shard(route == ShardedEngine.ANY ? 0 : route).submit(command).get();
+  }
+}
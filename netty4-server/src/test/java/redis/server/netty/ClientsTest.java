@@ -0,0 +1,192 @@
+package redis.server.netty;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * CLIENT LIST, KILL, GETNAME, SETNAME and ID against a running server.
+ */
+public class ClientsTest {
+
+  private ShardedEngine engine;
+  private NioEventLoopGroup group;
+  private Channel server;
+  private int port;
+
+  @Before
+  public void setUp() throws Exception {
+    engine = new ShardedEngine(2, ValueStore.HEAP, new Config());
+    group = new NioEventLoopGroup(2);
+    server = new ServerBootstrap()
+        .group(group)
+        .channel(NioServerSocketChannel.class)
+        .childHandler(new ChannelInitializer<SocketChannel>() {
+          @Override
+          public void initChannel(SocketChannel ch) throws Exception {
+            ch.pipeline().addLast(new RedisCommandDecoder(), new RedisReplyEncoder(), new RedisCommandHandler(engine));
+          }
+        })
+        .bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+    port = ((InetSocketAddress) server.localAddress()).getPort();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    server.close().sync();
+    group.shutdownGracefully();
+    engine.shutdown();
+  }
+
+  @Test
+  public void testClients() throws Exception {
+    Socket first = new Socket("127.0.0.1", port);
+    Socket second = new Socket("127.0.0.1", port);
+    try {
+      assertEquals("$-1\r\n", send(first, "client", "getname"));
+      assertEquals("+OK\r\n", send(first, "client", "setname", "first"));
+      assertEquals("$5\r\nfirst\r\n", send(first, "CLIENT", "GETNAME"));
+      assertEquals("-ERR Client names cannot contain spaces, newlines or special characters.\r\n",
+          send(second, "client", "setname", "a b"));
+      assertEquals("-ERR wrong number of arguments for 'client|getname' command\r\n",
+          send(second, "client", "getname", "x"));
+      assertEquals("-ERR unknown subcommand 'nope'. Try CLIENT HELP.\r\n", send(second, "client", "nope"));
+      assertEquals("+OK\r\n", send(second, "set", "a", "b"));
+      String id = send(second, "client", "id");
+      assertTrue(id.startsWith(":"));
+      id = id.substring(1).trim();
+
+      String[] lines = bulk(send(first, "client", "list")).split("\n");
+      assertEquals(2, lines.length);
+      // Oldest first, in whichever order the server accepted them
+      String mine = lines[0].startsWith("id=" + id + " ") ? lines[1] : lines[0];
+      String other = lines[0].startsWith("id=" + id + " ") ? lines[0] : lines[1];
+      assertTrue(mine.contains(" name=first "));
+      // Not counting the CLIENT LIST that is still running
+      assertTrue(mine.contains(" tot-cmds=3 "));
+      assertTrue(mine.endsWith(" cmd=client"));
+      assertTrue(other.startsWith("id=" + id + " addr=127.0.0.1:" + second.getLocalPort() + " "));
+      assertTrue(other.contains(" name= "));
+      assertTrue(other.contains(" flags=N "));
+      assertTrue(other.contains(" tot-cmds=5 "));
+      assertTrue(other.contains(" tot-net-in=151 "));
+      assertEquals(1, bulk(send(first, "client", "list", "id", id)).split("\n").length);
+      assertEquals("", bulk(send(first, "client", "list", "type", "pubsub")));
+      assertEquals("-ERR Unknown client type 'nope'\r\n", send(first, "client", "list", "type", "nope"));
+
+      // Not allowed in a transaction, like the other engine commands
+      assertEquals("+OK\r\n", send(first, "multi"));
+      assertEquals("-ERR Command not allowed inside a transaction\r\n", send(first, "client", "list"));
+      assertEquals("+OK\r\n", send(first, "discard"));
+
+      assertEquals("-ERR No such client\r\n", send(first, "client", "kill", "127.0.0.1:1"));
+      assertEquals("-ERR client-id should be greater than 0\r\n", send(first, "client", "kill", "id", "x"));
+      // Skips itself unless told not to
+      assertEquals(":0\r\n", send(first, "client", "kill", "type", "normal", "id", "999"));
+      assertEquals(":1\r\n", send(first, "client", "kill", "id", id));
+      assertEquals(-1, second.getInputStream().read());
+      Thread.sleep(100);
+      assertEquals(1, bulk(send(first, "client", "list")).split("\n").length);
+
+      assertEquals(":1\r\n", send(first, "client", "kill", "type", "normal", "skipme", "no"));
+      assertEquals(-1, first.getInputStream().read());
+    } finally {
+      first.close();
+      second.close();
+    }
+  }
+
+  @Test
+  public void testCommandsCounted() throws Exception {
+    Socket first = new Socket("127.0.0.1", port);
+    Socket second = new Socket("127.0.0.1", port);
+    try {
+      String id = send(first, "client", "id").substring(1).trim();
+      assertEquals("+OK\r\n", send(first, "multi"));
+      assertEquals("+QUEUED\r\n", send(first, "set", "a", "b"));
+      // Queued commands haven't run yet
+      assertTrue(info(second, id).endsWith(" tot-cmds=2 cmd=multi"));
+      assertEquals("*1\r\n", send(first, "exec"));
+      assertEquals("+OK\r\n", read(first.getInputStream()));
+      assertTrue(info(second, id).endsWith(" tot-cmds=4 cmd=exec"));
+
+      // Neither the blocked command nor the one pipelined behind it has run
+      write(first, "blpop", "list", "0");
+      write(first, "ping");
+      Thread.sleep(100);
+      assertTrue(info(second, id).endsWith(" tot-cmds=4 cmd=exec"));
+      assertEquals(":1\r\n", send(second, "rpush", "list", "x"));
+      InputStream is = first.getInputStream();
+      assertEquals("*2\r\n", read(is));
+      assertEquals("$4\r\nlist\r\n", read(is));
+      assertEquals("$1\r\nx\r\n", read(is));
+      assertEquals("+PONG\r\n", read(is));
+      assertTrue(info(second, id).endsWith(" tot-cmds=6 cmd=ping"));
+    } finally {
+      first.close();
+      second.close();
+    }
+  }
+
+  /**
+   * The CLIENT LIST line of a connection, as another one sees it.
+   */
+  private static String info(Socket socket, String id) throws Exception {
+    return bulk(send(socket, "client", "list", "id", id)).trim();
+  }
+
+  private static String bulk(String reply) {
+    return reply.substring(reply.indexOf('\n') + 1, reply.length() - 2);
+  }
+
+  /**
+   * Send a command and read its reply.
+   */
+  private static String send(Socket socket, String... args) throws Exception {
+    write(socket, args);
+    return read(socket.getInputStream());
+  }
+
+  private static void write(Socket socket, String... args) throws Exception {
+    StringBuilder command = new StringBuilder("*" + args.length + "\r\n");
+    for (String arg : args) {
+      command.append("$").append(arg.length()).append("\r\n").append(arg).append("\r\n");
+    }
+    OutputStream os = socket.getOutputStream();
+    os.write(command.toString().getBytes());
+    os.flush();
+  }
+
+  /**
+   * Read a reply that is a single line or a bulk string.
+   */
+  private static String read(InputStream is) throws Exception {
+    StringBuilder sb = new StringBuilder();
+    int c;
+    while ((c = is.read()) != '\n') {
+      sb.append((char) c);
+    }
+    sb.append('\n');
+    if (sb.charAt(0) == '$' && sb.charAt(1) != '-') {
+      int length = Integer.parseInt(sb.substring(1).trim());
+      for (int i = 0; i < length + 2; i++) {
+        sb.append((char) is.read());
+      }
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,92 @@
+package redis.server.netty;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import redis.netty4.Command;
+import redis.netty4.Reply;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the generated RedisServerDispatcher with the reflective dispatch it
+ * replaced for GET, SET and INCR. Run with:
+ * <p/>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=redis.server.netty.DispatchBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+  private SimpleRedisServer rs;
+  private ReflectiveDispatcher reflective;
+  private Command get;
+  private Command set;
+  private Command incr;
+
+  @Setup
+  public void setup() throws RedisException {
+    rs = new SimpleRedisServer();
+    reflective = new ReflectiveDispatcher(SimpleRedisServer.class);
+    rs.set("key".getBytes(), "value".getBytes());
+    get = command("GET", "key");
+    set = command("SET", "key", "value");
+    incr = command("INCR", "counter");
+  }
+
+  private static Command command(String... args) {
+    Object[] objects = new Object[args.length];
+    for (int i = 0; i < args.length; i++) {
+      objects[i] = args[i].getBytes();
+    }
+    return new Command(objects);
+  }
+
+  @Benchmark
+  public Reply reflectiveGet() throws RedisException {
+    return reflective.execute(rs, get);
+  }
+
+  @Benchmark
+  public Reply generatedGet() {
+    return RedisServerDispatcher.execute(rs, get);
+  }
+
+  @Benchmark
+  public Reply reflectiveSet() throws RedisException {
+    return reflective.execute(rs, set);
+  }
+
+  @Benchmark
+  public Reply generatedSet() {
+    return RedisServerDispatcher.execute(rs, set);
+  }
+
+  @Benchmark
+  public Reply reflectiveIncr() throws RedisException {
+    return reflective.execute(rs, incr);
+  }
+
+  @Benchmark
+  public Reply generatedIncr() {
+    return RedisServerDispatcher.execute(rs, incr);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(DispatchBenchmark.class.getSimpleName()).build()).run();
+  }
+}
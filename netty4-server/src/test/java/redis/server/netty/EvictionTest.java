@@ -0,0 +1,190 @@
+package redis.server.netty;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.netty4.BulkReply;
+import redis.netty4.Command;
+import redis.netty4.ErrorReply;
+import redis.netty4.MultiBulkReply;
+import redis.netty4.Reply;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static redis.netty4.BulkReply.NIL_REPLY;
+
+/**
+ * Keeping a shard within maxmemory.
+ */
+public class EvictionTest {
+
+  private Config config;
+  private Shard shard;
+
+  @Before
+  public void setup() {
+    config = new Config();
+    shard = new Shard(0, new SimpleRedisServer(ValueStore.HEAP, config));
+  }
+
+  @After
+  public void shutdown() {
+    shard.shutdown();
+  }
+
+  private Reply execute(String... args) throws Exception {
+    Object[] objects = new Object[args.length];
+    for (int i = 0; i < args.length; i++) {
+      objects[i] = args[i].getBytes();
+    }
+    return shard.submit(new Command(objects)).get();
+  }
+
+  private long info(String field) throws Exception {
+    String info = ((BulkReply) execute("info")).asUTF8String();
+    int start = info.indexOf(field + ":") + field.length() + 1;
+    return Long.parseLong(info.substring(start, info.indexOf('\n', start)));
+  }
+
+  /**
+   * Room is made before each write, so the last write can take usage over
+   * the limit by a key.
+   */
+  private void assertWithin(long limit) throws Exception {
+    long used = info("used_memory");
+    assertTrue(used + " > " + limit, used <= limit + 200);
+  }
+
+  @Test
+  public void testAccounting() throws Exception {
+    execute("set", "key", "value");
+    long one = info("used_memory");
+    assertTrue(one > "keyvalue".length());
+    execute("append", "key", "1234567890");
+    assertEquals(one + 10, info("used_memory"));
+    for (int i = 0; i < 100; i++) {
+      execute("rpush", "list", "element" + i);
+    }
+    assertTrue(info("used_memory") > one + 100 * "element".length());
+    execute("del", "list");
+    execute("rename", "key", "renamed");
+    assertEquals(one + 10 + "renamed".length() - "key".length(), info("used_memory"));
+    execute("flushdb");
+    assertEquals(0, info("used_memory"));
+  }
+
+  @Test
+  public void testLru() throws Exception {
+    config.set("maxmemory", "20000");
+    config.set("maxmemory-policy", "allkeys-lru");
+    for (int i = 0; i < 1000; i++) {
+      assertEquals("OK", execute("set", "key" + i, "value" + i).data());
+    }
+    assertWithin(20000);
+    assertTrue(info("evicted_keys") > 500);
+    // The most recent write is never the one evicted
+    assertEquals("value999", ((BulkReply) execute("get", "key999")).asUTF8String());
+  }
+
+  @Test
+  public void testLfuKeepsHotKeys() throws Exception {
+    config.set("maxmemory", "20000");
+    config.set("maxmemory-policy", "allkeys-lfu");
+    config.set("maxmemory-samples", "10");
+    for (int i = 0; i < 100; i++) {
+      execute("set", "hot" + i, "value" + i);
+    }
+    for (int j = 0; j < 100; j++) {
+      for (int i = 0; i < 100; i++) {
+        execute("get", "hot" + i);
+      }
+    }
+    for (int i = 0; i < 1000; i++) {
+      execute("set", "cold" + i, "value" + i);
+    }
+    assertWithin(20000);
+    int hot = 0;
+    for (int i = 0; i < 100; i++) {
+      if (execute("get", "hot" + i) != NIL_REPLY) hot++;
+    }
+    assertTrue("only " + hot + " hot keys left", hot >= 95);
+  }
+
+  @Test
+  public void testNoEviction() throws Exception {
+    config.set("maxmemory", "2000");
+    Reply reply = null;
+    int written = 0;
+    for (; written < 100; written++) {
+      reply = execute("set", "key" + written, "value");
+      if (reply instanceof ErrorReply) break;
+    }
+    assertTrue(written > 0 && written < 100);
+    assertTrue(((ErrorReply) reply).data().startsWith("OOM"));
+    assertEquals(0, info("evicted_keys"));
+    // Reads and deletes still work, and deleting makes room
+    assertEquals("value", ((BulkReply) execute("get", "key0")).asUTF8String());
+    assertEquals(1L, execute("del", "key0").data());
+    assertEquals(1L, execute("del", "key1").data());
+    assertEquals("OK", execute("set", "again", "value").data());
+  }
+
+  @Test
+  public void testVolatileTtl() throws Exception {
+    config.set("maxmemory", "5000");
+    config.set("maxmemory-policy", "volatile-ttl");
+    for (int i = 0; i < 20; i++) {
+      execute("set", "persistent" + i, "value");
+    }
+    for (int i = 0; i < 50; i++) {
+      execute("setex", "volatile" + i, String.valueOf(1000 + i), "value");
+    }
+    assertTrue(info("evicted_keys") > 0);
+    for (int i = 0; i < 20; i++) {
+      assertFalse(execute("get", "persistent" + i) == NIL_REPLY);
+    }
+    // Once there are no volatile keys left writes are refused
+    Reply reply = null;
+    for (int i = 0; i < 100 && !(reply instanceof ErrorReply); i++) {
+      reply = execute("set", "more" + i, "value");
+    }
+    assertTrue(reply instanceof ErrorReply);
+    assertEquals(0, info("expires"));
+  }
+
+  @Test
+  public void testConfig() throws Exception {
+    assertEquals("OK", execute("config", "set", "maxmemory", "1kb").data());
+    assertEquals("OK", execute("config", "set", "maxmemory-policy", "allkeys-lru").data());
+    Reply[] values = ((MultiBulkReply) execute("config", "get", "maxmemory*")).data();
+    assertEquals(6, values.length);
+    assertEquals("maxmemory", ((BulkReply) values[0]).asUTF8String());
+    assertEquals("1024", ((BulkReply) values[1]).asUTF8String());
+    assertEquals("allkeys-lru", ((BulkReply) values[3]).asUTF8String());
+    assertTrue(execute("config", "set", "maxmemory-policy", "sometimes") instanceof ErrorReply);
+    assertTrue(execute("config", "set", "unknown", "1") instanceof ErrorReply);
+    // Lowering maxmemory evicts on the next write
+    for (int i = 0; i < 20; i++) {
+      execute("set", "key" + i, "value");
+    }
+    assertWithin(1024);
+  }
+
+  @Test
+  public void testParseMemory() throws Exception {
+    assertEquals(100, Config.parseMemory("100"));
+    assertEquals(1000, Config.parseMemory("1k"));
+    assertEquals(1024, Config.parseMemory("1KB"));
+    assertEquals(3L << 30, Config.parseMemory("3gb"));
+    assertEquals(2000000, Config.parseMemory("2m"));
+    for (String invalid : new String[]{"", "mb", "-1", "1tb"}) {
+      try {
+        Config.parseMemory(invalid);
+        assertTrue(invalid, false);
+      } catch (RedisException e) {
+        // Expected
+      }
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package redis.server.netty;
+
+import org.junit.Test;
+import redis.netty4.BulkReply;
+import redis.util.BytesMap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Sweeping the expiration index with a made up clock.
+ */
+public class ExpirationWheelTest {
+
+  private static final long START = 1000000 * ExpirationWheel.TICK;
+
+  private final BytesMap<Long> expires = new BytesMap<Long>();
+  private final List<String> expired = new ArrayList<String>();
+  private final ExpirationWheel wheel = new ExpirationWheel(expires, START) {
+    @Override
+    void expire(byte[] key) {
+      expires.remove(key);
+      expired.add(new String(key));
+    }
+  };
+
+  private void add(String key, long deadline) {
+    expires.put(key.getBytes(), deadline);
+    wheel.add(key.getBytes(), deadline);
+  }
+
+  @Test
+  public void testSweep() {
+    add("a", START + 10);
+    add("b", START + 1500);
+    add("c", START + 2500);
+    add("past", START - 5000);
+    add("deleted", START + 20);
+    expires.remove("deleted".getBytes());
+    add("changed", START + 30);
+    add("changed", START + 5000);
+    // Nothing is swept until its second is over
+    assertEquals(0, wheel.sweep(START + 999, Long.MAX_VALUE));
+    assertEquals(2, wheel.stale(START + 999));
+    assertEquals(2, wheel.sweep(START + 1000, Long.MAX_VALUE));
+    assertEquals("[a, past]", expired.toString());
+    assertEquals(3, wheel.size());
+    assertEquals(1, wheel.sweep(START + 2000, Long.MAX_VALUE));
+    assertEquals(0, wheel.sweep(START + 2999, Long.MAX_VALUE));
+    assertEquals(2, wheel.sweep(START + 6000, Long.MAX_VALUE));
+    assertEquals("[a, past, b, c, changed]", expired.toString());
+    assertEquals(0, wheel.size());
+    assertEquals(0, expires.size());
+  }
+
+  @Test
+  public void testLaterTurns() {
+    // Far enough out to share slots with keys that are due sooner
+    long day = 86400 * ExpirationWheel.TICK;
+    for (int i = 0; i < 2000; i++) {
+      add("soon" + i, START + i * 10);
+      add("later" + i, START + day + i * 10);
+    }
+    assertEquals(2000, wheel.sweep(START + 3600 * ExpirationWheel.TICK, Long.MAX_VALUE));
+    assertEquals(2000, wheel.size());
+    assertEquals(2000, wheel.sweep(START + day + 3600 * ExpirationWheel.TICK, Long.MAX_VALUE));
+    assertEquals(0, wheel.size());
+  }
+
+  @Test
+  public void testBudget() {
+    for (int i = 0; i < 10000; i++) {
+      add("key" + i, START + i % 1000);
+    }
+    // With no time at all each sweep still makes some progress
+    int total = 0;
+    int sweeps = 0;
+    while (total < 10000) {
+      int swept = wheel.sweep(START + 1000, 0);
+      assertTrue(swept > 0);
+      total += swept;
+      sweeps++;
+    }
+    assertTrue(sweeps > 1);
+    assertEquals(0, wheel.size());
+    assertEquals(0, expires.size());
+  }
+
+  @Test
+  public void testWriteOnce() throws Exception {
+    // Keys that are never read again are still removed
+    SimpleRedisServer server = new SimpleRedisServer();
+    for (int i = 0; i < 1000; i++) {
+      server.psetex(("key" + i).getBytes(), "1".getBytes(), "value".getBytes());
+    }
+    server.set("persistent".getBytes(), "value".getBytes());
+    long now = System.currentTimeMillis();
+    Thread.sleep(ExpirationWheel.TICK - now % ExpirationWheel.TICK + 10);
+    assertEquals(1000, server._activeexpire(Long.MAX_VALUE));
+    assertEquals(1L, (long) server.dbsize().data());
+    String info = ((BulkReply) server.info(null)).asUTF8String();
+    assertTrue(info, info.contains("expired_keys:1000\n"));
+    assertTrue(info, info.contains("expires:0\n"));
+  }
+}
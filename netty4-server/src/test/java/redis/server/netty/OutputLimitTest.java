@@ -0,0 +1,175 @@
+package redis.server.netty;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Clients that don't read their replies stop being read from, and are
+ * disconnected once they go over their output buffer limit.
+ */
+public class OutputLimitTest {
+
+  private static final int SIZE = 100000;
+  private static final byte[] GET = "*2\r\n$3\r\nGET\r\n$3\r\nbig\r\n".getBytes();
+  // $100000\r\n, the value and its CRLF
+  private static final int REPLY = 9 + SIZE + 2;
+
+  private Config config;
+  private ShardedEngine engine;
+  private NioEventLoopGroup group;
+  private Channel server;
+  private final AtomicReference<Channel> accepted = new AtomicReference<Channel>();
+  private int port;
+
+  @Before
+  public void setUp() throws Exception {
+    config = new Config();
+    engine = new ShardedEngine(1, ValueStore.HEAP, config);
+    group = new NioEventLoopGroup(2);
+    server = new ServerBootstrap()
+        .group(group)
+        .channel(NioServerSocketChannel.class)
+        .childOption(ChannelOption.SO_SNDBUF, 4096)
+        .childHandler(new ChannelInitializer<SocketChannel>() {
+          @Override
+          public void initChannel(SocketChannel ch) throws Exception {
+            accepted.set(ch);
+            ch.pipeline().addLast(new RedisCommandDecoder(), new RedisReplyEncoder(), new RedisCommandHandler(engine));
+          }
+        })
+        .bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+    port = ((InetSocketAddress) server.localAddress()).getPort();
+    byte[] value = new byte[SIZE];
+    Arrays.fill(value, (byte) 'x');
+    engine.shard(0).server.set("big".getBytes(), value);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    server.close().sync();
+    group.shutdownGracefully();
+    engine.shutdown();
+  }
+
+  @Test
+  public void testBackpressure() throws Exception {
+    final Socket socket = new Socket();
+    socket.setReceiveBufferSize(4096);
+    socket.connect(new InetSocketAddress("127.0.0.1", port));
+    final int commands = 200;
+    try {
+      // Sent one at a time, so that each is a batch of its own
+      Thread writer = new Thread() {
+        @Override
+        public void run() {
+          try {
+            OutputStream os = socket.getOutputStream();
+            for (int i = 0; i < commands; i++) {
+              os.write(GET);
+              os.flush();
+            }
+          } catch (Exception e) {
+            // The test fails on the replies
+          }
+        }
+      };
+      writer.start();
+      Thread.sleep(1000);
+      Channel channel = accepted.get();
+      assertFalse(channel.config().isAutoRead());
+      final Connection connection = channel.attr(Connection.KEY).get();
+      final long[] queued = new long[1];
+      channel.eventLoop().submit(new Runnable() {
+        @Override
+        public void run() {
+          queued[0] = connection.queued;
+        }
+      }).sync();
+      // Nowhere near all of them
+      assertTrue(queued[0] < 20 * REPLY);
+
+      // Reading them all lets it carry on
+      InputStream is = socket.getInputStream();
+      byte[] buffer = new byte[65536];
+      long left = (long) commands * REPLY;
+      while (left > 0) {
+        int read = is.read(buffer, 0, (int) Math.min(buffer.length, left));
+        assertTrue(read > 0);
+        left -= read;
+      }
+      writer.join();
+      // The event loop may not have seen it become writable yet
+      for (int i = 0; i < 100 && !channel.config().isAutoRead(); i++) {
+        Thread.sleep(10);
+      }
+      assertTrue(channel.config().isAutoRead());
+    } finally {
+      socket.close();
+    }
+  }
+
+  @Test
+  public void testLimit() throws Exception {
+    config.set("client-output-buffer-limit", "normal 256kb 0 0");
+    Socket socket = new Socket();
+    socket.setReceiveBufferSize(4096);
+    socket.connect(new InetSocketAddress("127.0.0.1", port));
+    try {
+      // One read, so one batch of replies that is over the limit
+      OutputStream os = socket.getOutputStream();
+      byte[] commands = new byte[GET.length * 3];
+      for (int i = 0; i < 3; i++) {
+        System.arraycopy(GET, 0, commands, i * GET.length, GET.length);
+      }
+      os.write(commands);
+      os.flush();
+      InputStream is = socket.getInputStream();
+      assertEquals(-1, is.read());
+    } finally {
+      socket.close();
+    }
+  }
+
+  @Test
+  public void testLimitBeforeQuit() throws Exception {
+    config.set("client-output-buffer-limit", "normal 256kb 0 0");
+    Socket socket = new Socket();
+    socket.setReceiveBufferSize(4096);
+    socket.connect(new InetSocketAddress("127.0.0.1", port));
+    try {
+      // The replies batched ahead of QUIT are held to the limit too
+      OutputStream os = socket.getOutputStream();
+      byte[] quit = "*1\r\n$4\r\nQUIT\r\n".getBytes();
+      byte[] commands = new byte[GET.length * 3 + quit.length];
+      for (int i = 0; i < 3; i++) {
+        System.arraycopy(GET, 0, commands, i * GET.length, GET.length);
+      }
+      System.arraycopy(quit, 0, commands, GET.length * 3, quit.length);
+      os.write(commands);
+      os.flush();
+      InputStream is = socket.getInputStream();
+      assertEquals(-1, is.read());
+    } finally {
+      socket.close();
+    }
+  }
+}
@@ -0,0 +1,120 @@
+package redis.server.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.ReferenceCounted;
+import org.junit.Test;
+import redis.netty4.BulkReply;
+import redis.netty4.MultiBulkReply;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * String values kept in pooled direct memory.
+ */
+public class PooledValueStoreTest {
+
+  private static final String LARGE = "0123456789abcdefghijklmnopqrstuvwxyz";
+
+  private SimpleRedisServer rs = new SimpleRedisServer(new PooledValueStore(16));
+
+  private static String string(BulkReply reply) {
+    return reply.asUTF8String();
+  }
+
+  private static String written(BulkReply reply) throws Exception {
+    ByteBuf out = Unpooled.buffer();
+    reply.write(out);
+    if (reply instanceof ReferenceCounted) {
+      ((ReferenceCounted) reply).release();
+    }
+    return out.toString(com.google.common.base.Charsets.UTF_8);
+  }
+
+  private static String wire(String value) {
+    return "$" + value.length() + "\r\n" + value + "\r\n";
+  }
+
+  @Test
+  public void testSmallValuesStayOnHeap() throws Exception {
+    rs.set("small".getBytes(), "value".getBytes());
+    BulkReply reply = rs.get("small".getBytes());
+    assertFalse(reply instanceof ReferenceCounted);
+    assertEquals("value", string(reply));
+  }
+
+  @Test
+  public void testReplyHoldsValue() throws Exception {
+    rs.set("key".getBytes(), LARGE.getBytes());
+    BulkReply reply = rs.get("key".getBytes());
+    assertTrue(reply instanceof ReferenceCounted);
+    ByteBuf stored = reply.data();
+    assertTrue(stored.isDirect());
+    assertEquals(2, stored.refCnt());
+    // Replacing the value only drops the keyspace's reference
+    rs.set("key".getBytes(), "another value that is long".getBytes());
+    assertEquals(1, stored.refCnt());
+    assertEquals(wire(LARGE), written(reply));
+    assertEquals(0, stored.refCnt());
+  }
+
+  @Test
+  public void testRemovedValuesAreReleased() throws Exception {
+    rs.set("a".getBytes(), LARGE.getBytes());
+    rs.set("b".getBytes(), LARGE.getBytes());
+    rs.set("c".getBytes(), LARGE.getBytes());
+    BulkReply a = rs.get("a".getBytes());
+    BulkReply b = rs.get("b".getBytes());
+    BulkReply c = rs.get("c".getBytes());
+    rs.del(new byte[][]{"a".getBytes()});
+    rs.rename("b".getBytes(), "c".getBytes());
+    assertEquals(1, a.data().refCnt());
+    assertEquals(2, b.data().refCnt());
+    assertEquals(1, c.data().refCnt());
+    rs.flushall();
+    assertEquals(1, b.data().refCnt());
+    written(a);
+    written(b);
+    written(c);
+  }
+
+  @Test
+  public void testStringCommands() throws Exception {
+    byte[] key = "key".getBytes();
+    rs.set(key, "00000000000000000041".getBytes());
+    assertEquals(42L, (long) rs.incr(key).data());
+    rs.set(key, "00000000000000000042".getBytes());
+    rs.append(key, "0".getBytes());
+    assertEquals(21L, (long) rs.strlen(key).data());
+    rs.set(key, LARGE.getBytes());
+    assertEquals("abc", string(rs.getrange(key, "10".getBytes(), "12".getBytes())));
+    assertEquals(1L, (long) rs.getbit(key, "2".getBytes()).data());
+    MultiBulkReply mget = rs.mget(new byte[][]{key});
+    assertEquals(LARGE, string((BulkReply) mget.data()[0]));
+    assertEquals(wire(LARGE), written(rs.getset(key, LARGE.toUpperCase().getBytes())));
+    assertEquals(wire(LARGE.toUpperCase()), written(rs.get(key)));
+  }
+
+  @Test
+  public void testChangesInPlace() throws Exception {
+    byte[] key = "key".getBytes();
+    rs.set(key, LARGE.getBytes());
+    BulkReply before = rs.get(key);
+    // A reply is still pending so the value is copied
+    rs.setrange(key, "0".getBytes(), "X".getBytes());
+    assertEquals(wire(LARGE), written(before));
+    BulkReply after = rs.get(key);
+    ByteBuf stored = after.data();
+    written(after);
+    // Nothing is pending so the value changes in place
+    rs.setrange(key, "1".getBytes(), "Y".getBytes());
+    rs.setbit(key, "23".getBytes(), "1".getBytes());
+    BulkReply reply = rs.get(key);
+    assertEquals(stored.refCnt(), reply.data().refCnt());
+    assertEquals("XY3" + LARGE.substring(3), string(reply));
+    written(reply);
+    assertEquals(37L, (long) rs.setrange(key, "36".getBytes(), "!".getBytes()).data());
+  }
+}
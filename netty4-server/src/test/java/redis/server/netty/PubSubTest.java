@@ -0,0 +1,214 @@
+package redis.server.netty;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Channel and pattern subscriptions, and dropping subscribers that fall
+ * behind.
+ */
+public class PubSubTest {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static String string(Object buf) {
+    ByteBuf bytes = (ByteBuf) buf;
+    try {
+      return bytes.toString(UTF8);
+    } finally {
+      bytes.release();
+    }
+  }
+
+  @Test
+  public void testFanout() {
+    PubSub pubsub = new PubSub(new Config());
+    EmbeddedChannel[] channels = new EmbeddedChannel[1000];
+    for (int i = 0; i < channels.length; i++) {
+      channels[i] = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+      assertTrue(pubsub.subscribe(new PubSub.Subscriber(new Connection(i, channels[i], 0)), "news".getBytes()));
+    }
+    assertEquals(1000, pubsub.publish("news".getBytes(), "hello".getBytes()));
+    assertEquals(0, pubsub.publish("other".getBytes(), "hello".getBytes()));
+    for (EmbeddedChannel channel : channels) {
+      channel.runPendingTasks();
+    }
+    ByteBuf first = (ByteBuf) channels[0].readOutbound();
+    for (EmbeddedChannel channel : channels) {
+      ByteBuf message = (ByteBuf) channel.readOutbound();
+      if (message == null) {
+        message = first;
+      }
+      // Every subscriber shares the one encoding
+      assertSame(first.unwrap(), message.unwrap());
+      assertEquals("*3\r\n$7\r\nmessage\r\n$4\r\nnews\r\n$5\r\nhello\r\n", string(message));
+      assertNull(channel.readOutbound());
+    }
+  }
+
+  @Test
+  public void testPatterns() {
+    PubSub pubsub = new PubSub(new Config());
+    EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+    PubSub.Subscriber subscriber = new PubSub.Subscriber(new Connection(1, channel, 0));
+    String[] patterns = {"news.*", "news.sport", "n?ws.*", "news.[st]port", "other*", "*", "news", "news.\\*"};
+    for (String pattern : patterns) {
+      assertTrue(pubsub.psubscribe(subscriber, pattern.getBytes()));
+    }
+    assertEquals(8, subscriber.count());
+    assertEquals(5, pubsub.publish("news.sport".getBytes(), "goal".getBytes()));
+    channel.runPendingTasks();
+    StringBuilder matched = new StringBuilder();
+    Object message;
+    while ((message = channel.readOutbound()) != null) {
+      String text = string(message);
+      assertTrue(text.startsWith("*4\r\n$8\r\npmessage\r\n"));
+      assertTrue(text.endsWith("$10\r\nnews.sport\r\n$4\r\ngoal\r\n"));
+      matched.append(text.split("\r\n")[4]).append(' ');
+    }
+    for (String pattern : new String[]{"news.*", "news.sport", "n?ws.*", "news.[st]port", "*"}) {
+      assertTrue(matched.toString(), matched.toString().contains(pattern + " "));
+    }
+    assertEquals(4, pubsub.publish("news.*".getBytes(), "".getBytes()));
+    assertEquals(2, pubsub.publish("news".getBytes(), "".getBytes()));
+    assertEquals(1, pubsub.publish("".getBytes(), "".getBytes()));
+
+    assertTrue(pubsub.punsubscribe(subscriber, "*".getBytes()));
+    assertEquals(false, pubsub.punsubscribe(subscriber, "*".getBytes()));
+    assertEquals(0, pubsub.publish("".getBytes(), "".getBytes()));
+    pubsub.unsubscribeAll(subscriber);
+    assertEquals(0, subscriber.count());
+    assertEquals(0, pubsub.publish("news.sport".getBytes(), "goal".getBytes()));
+  }
+
+  @Test
+  public void testServer() throws Exception {
+    Config config = new Config();
+    config.set("client-output-buffer-limit", "pubsub 64kb 16kb 60");
+    final ShardedEngine engine = new ShardedEngine(2, ValueStore.HEAP, config);
+    NioEventLoopGroup group = new NioEventLoopGroup(2);
+    try {
+      Channel server = new ServerBootstrap()
+          .group(group)
+          .channel(NioServerSocketChannel.class)
+          .childOption(ChannelOption.SO_SNDBUF, 4096)
+          .childHandler(new ChannelInitializer<SocketChannel>() {
+            @Override
+            public void initChannel(SocketChannel ch) throws Exception {
+              ch.pipeline().addLast(new RedisCommandDecoder(), new RedisReplyEncoder(), new RedisCommandHandler(engine));
+            }
+          })
+          .bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+      int port = ((InetSocketAddress) server.localAddress()).getPort();
+      Socket subscriber = new Socket();
+      subscriber.setReceiveBufferSize(4096);
+      subscriber.connect(new InetSocketAddress("127.0.0.1", port));
+      Socket publisher = new Socket("127.0.0.1", port);
+      try {
+        assertEquals("*3\r\n$9\r\nsubscribe\r\n$4\r\nnews\r\n:1\r\n" +
+            "*3\r\n$10\r\npsubscribe\r\n$2\r\nn*\r\n:2\r\n",
+            send(subscriber, "*2\r\n$9\r\nSUBSCRIBE\r\n$4\r\nnews\r\n*2\r\n$10\r\npsubscribe\r\n$2\r\nn*\r\n", 2));
+        assertEquals("-ERR Can't execute 'get': only (P)SUBSCRIBE / (P)UNSUBSCRIBE / PING / QUIT are allowed in this context\r\n" +
+            "*2\r\n$4\r\npong\r\n$0\r\n\r\n",
+            send(subscriber, "*2\r\n$3\r\nget\r\n$1\r\nx\r\n*1\r\n$4\r\nping\r\n", 2));
+        assertEquals(":2\r\n", send(publisher, "*3\r\n$7\r\npublish\r\n$4\r\nnews\r\n$2\r\nhi\r\n", 1));
+        assertEquals("*3\r\n$7\r\nmessage\r\n$4\r\nnews\r\n$2\r\nhi\r\n" +
+            "*4\r\n$8\r\npmessage\r\n$2\r\nn*\r\n$4\r\nnews\r\n$2\r\nhi\r\n", read(subscriber, 2));
+        assertEquals("*3\r\n$11\r\nunsubscribe\r\n$4\r\nnews\r\n:1\r\n",
+            send(subscriber, "*1\r\n$11\r\nunsubscribe\r\n", 1));
+
+        // Messages waiting to be sent to it show as its omem
+        for (int i = 0; i < 5; i++) {
+          engine.pubsub().publish("news".getBytes(), new byte[8192]);
+        }
+        Thread.sleep(100);
+        String header = send(publisher, "*2\r\n$6\r\nclient\r\n$4\r\nlist\r\n", 1);
+        byte[] list = new byte[Integer.parseInt(header.substring(1).trim()) + 2];
+        new DataInputStream(publisher.getInputStream()).readFully(list);
+        Matcher omem = Pattern.compile("psub=1 .* omem=(\\d+) ").matcher(new String(list, UTF8));
+        assertTrue(omem.find());
+        assertTrue(Long.parseLong(omem.group(1)) > 0);
+
+        // The subscriber stops reading until it is over the hard limit
+        byte[] message = new byte[8192];
+        int receivers = 1;
+        for (int i = 0; i < 10000 && receivers == 1; i++) {
+          receivers = engine.pubsub().publish("news".getBytes(), message);
+          if (i % 100 == 0) Thread.sleep(10);
+        }
+        assertEquals(0, receivers);
+      } finally {
+        subscriber.close();
+        publisher.close();
+        server.close().sync();
+      }
+    } finally {
+      group.shutdownGracefully();
+      engine.shutdown();
+    }
+  }
+
+  private static String send(Socket socket, String command, int replies) throws Exception {
+    OutputStream os = socket.getOutputStream();
+    os.write(command.getBytes(UTF8));
+    os.flush();
+    return read(socket, replies);
+  }
+
+  /**
+   * Read the given number of replies that are each a single line or an array
+   * of bulk strings and integers.
+   */
+  private static String read(Socket socket, int replies) throws Exception {
+    InputStream is = socket.getInputStream();
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < replies; i++) {
+      String line = line(is);
+      sb.append(line);
+      if (line.charAt(0) == '*') {
+        int count = Integer.parseInt(line.substring(1).trim());
+        for (int j = 0; j < count; j++) {
+          String element = line(is);
+          sb.append(element);
+          if (element.charAt(0) == '$') {
+            sb.append(line(is));
+          }
+        }
+      }
+    }
+    return sb.toString();
+  }
+
+  private static String line(InputStream is) throws Exception {
+    StringBuilder sb = new StringBuilder();
+    int c;
+    while ((c = is.read()) != -1) {
+      sb.append((char) c);
+      if (c == '\n') break;
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,122 @@
+package redis.server.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.DecoderException;
+import org.junit.Test;
+import redis.netty4.Command;
+
+import java.util.Arrays;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/**
+ * Commands split across reads, large arguments and slice ownership.
+ */
+public class RedisCommandDecoderTest {
+
+  private static ByteBuf buffer(String s) {
+    return Unpooled.copiedBuffer(s.getBytes());
+  }
+
+  private static String string(Object argument) {
+    if (argument instanceof ByteBuf) {
+      ByteBuf buf = (ByteBuf) argument;
+      byte[] bytes = new byte[buf.readableBytes()];
+      buf.getBytes(buf.readerIndex(), bytes);
+      return new String(bytes);
+    }
+    return new String((byte[]) argument);
+  }
+
+  @Test
+  public void testOneByteAtATime() {
+    EmbeddedChannel channel = new EmbeddedChannel(new RedisCommandDecoder());
+    byte[] bytes = "*3\r\n$3\r\nSET\r\n$3\r\nkey\r\n$5\r\nvalue\r\n*2\r\n$3\r\nGET\r\n$3\r\nkey\r\n".getBytes();
+    for (byte b : bytes) {
+      channel.writeInbound(Unpooled.wrappedBuffer(new byte[]{b}));
+    }
+    Command set = (Command) channel.readInbound();
+    assertEquals("SET", string(set.getObjects()[0]));
+    assertEquals("value", string(set.getObjects()[2]));
+    Command get = (Command) channel.readInbound();
+    assertEquals("key", string(get.getObjects()[1]));
+    assertNull(channel.readInbound());
+  }
+
+  @Test
+  public void testInline() {
+    EmbeddedChannel channel = new EmbeddedChannel(new RedisCommandDecoder());
+    channel.writeInbound(buffer("set  key value\r\nPI"));
+    channel.writeInbound(buffer("NG\r\n\r\n"));
+    Command set = (Command) channel.readInbound();
+    assertTrue(set.isInline());
+    assertEquals(3, set.getObjects().length);
+    assertEquals("value", string(set.getObjects()[2]));
+    assertEquals("PING", string(((Command) channel.readInbound()).getObjects()[0]));
+    assertNull(channel.readInbound());
+  }
+
+  @Test
+  public void testLargeArgumentSlices() {
+    EmbeddedChannel channel = new EmbeddedChannel(new RedisCommandDecoder(false));
+    char[] chars = new char[100 * 1024];
+    Arrays.fill(chars, 'x');
+    String value = new String(chars);
+    String command = "*3\r\n$3\r\nSET\r\n$3\r\nkey\r\n$" + value.length() + "\r\n" + value + "\r\n";
+    ByteBuf first = buffer(command.substring(0, 1000));
+    ByteBuf second = buffer(command.substring(1000, 50000));
+    ByteBuf third = buffer(command.substring(50000, command.length() - 1));
+    ByteBuf last = buffer(command.substring(command.length() - 1));
+    channel.writeInbound(first);
+    channel.writeInbound(second);
+    channel.writeInbound(third);
+    assertNull(channel.readInbound());
+    channel.writeInbound(last);
+    Command set = (Command) channel.readInbound();
+    Object argument = set.getObjects()[2];
+    assertTrue(argument instanceof ByteBuf);
+    assertEquals(value, string(argument));
+    set.release();
+    assertEquals(0, first.refCnt());
+    assertEquals(0, ((ByteBuf) argument).refCnt());
+  }
+
+  @Test
+  public void testManyArguments() {
+    EmbeddedChannel channel = new EmbeddedChannel(new RedisCommandDecoder(false));
+    StringBuilder sb = new StringBuilder("*2001\r\n$4\r\nMSET\r\n");
+    for (int i = 0; i < 1000; i++) {
+      String key = "key" + i;
+      String value = "value" + i;
+      sb.append("$").append(key.length()).append("\r\n").append(key).append("\r\n");
+      sb.append("$").append(value.length()).append("\r\n").append(value).append("\r\n");
+    }
+    ByteBuf in = buffer(sb.toString());
+    channel.writeInbound(in);
+    Command mset = (Command) channel.readInbound();
+    assertEquals(2001, mset.getObjects().length);
+    assertEquals("key999", string(mset.getObjects()[1999]));
+    assertEquals("value999", string(mset.getObjects()[2000]));
+    assertTrue(in.refCnt() > 0);
+    mset.release();
+    assertEquals(0, in.refCnt());
+  }
+
+  @Test
+  public void testProtocolError() {
+    EmbeddedChannel channel = new EmbeddedChannel(new RedisCommandDecoder(false));
+    ByteBuf in = buffer("*2\r\n$3\r\nGET\r\n:3\r\nkey\r\n");
+    try {
+      channel.writeInbound(in);
+      fail("Should have failed");
+    } catch (DecoderException e) {
+      assertTrue(e.getCause() instanceof RedisException);
+    }
+    assertNull(channel.readInbound());
+  }
+}
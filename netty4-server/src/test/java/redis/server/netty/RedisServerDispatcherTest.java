@@ -0,0 +1,71 @@
+package redis.server.netty;
+
+import org.junit.Test;
+import redis.netty4.BulkReply;
+import redis.netty4.Command;
+import redis.netty4.ErrorReply;
+import redis.netty4.IntegerReply;
+import redis.netty4.Reply;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static redis.server.netty.RedisServerDispatcher.*;
+
+/**
+ * Command lookup and argument passing in the generated dispatcher.
+ */
+public class RedisServerDispatcherTest {
+
+  private static Object[] objects(String... args) {
+    Object[] objects = new Object[args.length];
+    for (int i = 0; i < args.length; i++) {
+      objects[i] = args[i].getBytes();
+    }
+    return objects;
+  }
+
+  @Test
+  public void testLookup() {
+    assertEquals(GET, lookup(objects("get", "key")));
+    assertEquals(GET, lookup(objects("GeT", "key")));
+    assertEquals(GETSET, lookup(objects("GETSET", "key", "value")));
+    assertEquals(CONFIG_GET, lookup(objects("config", "get", "maxmemory")));
+    assertEquals(CONFIG_SET, lookup(objects("CONFIG", "Set", "maxmemory", "1")));
+    assertEquals(CLIENT_LIST, lookup(objects("client", "list")));
+    assertEquals(UNKNOWN, lookup(objects("config")));
+    assertEquals(UNKNOWN, lookup(objects("config", "bogus")));
+    assertEquals(UNKNOWN, lookup(objects("gett", "key")));
+    assertEquals(UNKNOWN, lookup(objects("wait")));
+  }
+
+  @Test
+  public void testLookupOnce() {
+    Command command = new Command(objects("get", "key"));
+    assertEquals(Command.UNRESOLVED, command.getId());
+    assertEquals(GET, lookup(command));
+    assertEquals(GET, command.getId());
+    // Read back rather than looked up again
+    command.setId(SET);
+    assertEquals(SET, lookup(command));
+    Command unknown = new Command(objects("gett"));
+    assertEquals(UNKNOWN, lookup(unknown));
+    assertEquals(UNKNOWN, unknown.getId());
+  }
+
+  private static Reply execute(RedisServer rs, String... args) throws RedisException {
+    Object[] objects = objects(args);
+    return RedisServerDispatcher.execute(rs, lookup(objects), objects);
+  }
+
+  @Test
+  public void testExecute() throws RedisException {
+    SimpleRedisServer rs = new SimpleRedisServer();
+    execute(rs, "set", "key", "value");
+    assertEquals("value", ((BulkReply) execute(rs, "get", "key")).asUTF8String());
+    assertEquals(2L, (long) ((IntegerReply) execute(rs, "sadd", "set", "a", "b")).data());
+    assertEquals(2L, (long) ((IntegerReply) execute(rs, "zadd", "zset", "1", "a", "2", "b")).data());
+    Reply reply = execute(rs, "foo", "bar");
+    assertTrue(reply instanceof ErrorReply);
+    assertEquals("unknown command 'foo'", ((ErrorReply) reply).data());
+  }
+}
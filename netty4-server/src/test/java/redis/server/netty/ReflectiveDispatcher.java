@@ -0,0 +1,73 @@
+package redis.server.netty;
+
+import com.google.common.base.Charsets;
+import redis.netty4.Command;
+import redis.netty4.ErrorReply;
+import redis.netty4.Reply;
+import redis.util.BytesKey;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The original reflective dispatch, mapping command names onto the methods of
+ * a RedisServer implementation. Kept as the baseline for DispatchBenchmark.
+ */
+public class ReflectiveDispatcher {
+
+  private static final byte LOWER_DIFF = 'a' - 'A';
+
+  private Map<BytesKey, Wrapper> methods = new HashMap<BytesKey, Wrapper>();
+
+  interface Wrapper {
+    Reply execute(RedisServer rs, Command command) throws RedisException;
+  }
+
+  public ReflectiveDispatcher(Class<? extends RedisServer> aClass) {
+    for (final Method method : aClass.getMethods()) {
+      final Class<?>[] types = method.getParameterTypes();
+      methods.put(new BytesKey(method.getName().getBytes()), new Wrapper() {
+        @Override
+        public Reply execute(RedisServer rs, Command command) throws RedisException {
+          Object[] objects = new Object[types.length];
+          try {
+            command.toArguments(objects, types);
+            return (Reply) method.invoke(rs, objects);
+          } catch (IllegalAccessException e) {
+            throw new RedisException("Invalid server implementation");
+          } catch (InvocationTargetException e) {
+            Throwable te = e.getTargetException();
+            if (!(te instanceof RedisException)) {
+              te.printStackTrace();
+            }
+            return new ErrorReply("ERR " + te.getMessage());
+          } catch (Exception e) {
+            return new ErrorReply("ERR " + e.getMessage());
+          }
+        }
+      });
+    }
+  }
+
+  private static byte[] lowercase(byte[] name) {
+    for (int i = 0; i < name.length; i++) {
+      byte b = name[i];
+      if (b >= 'A' && b <= 'Z') {
+        name[i] = (byte) (b + LOWER_DIFF);
+      }
+    }
+    return name;
+  }
+
+  public Reply execute(RedisServer rs, Command command) throws RedisException {
+    byte[] name = lowercase(command.getName());
+    Wrapper wrapper = methods.get(new BytesKey(name));
+    if (wrapper == null) {
+      return new ErrorReply("unknown command '" + new String(name, Charsets.US_ASCII) + "'");
+    } else {
+      return wrapper.execute(rs, command);
+    }
+  }
+}
@@ -0,0 +1,209 @@
+package redis.server.netty;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.FileRegion;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import org.junit.Test;
+import redis.netty4.BulkReply;
+import redis.netty4.Command;
+import redis.netty4.ErrorReply;
+import redis.netty4.Reply;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Continuing from the backlog, and a replica that is fully resynchronized
+ * and then follows the stream.
+ */
+public class ReplicationTest {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static Object[] objects(String... args) {
+    Object[] objects = new Object[args.length];
+    for (int i = 0; i < args.length; i++) {
+      objects[i] = args[i].getBytes();
+    }
+    return objects;
+  }
+
+  private static String received(EmbeddedChannel channel) {
+    StringBuilder sb = new StringBuilder();
+    Object message;
+    while ((message = channel.readOutbound()) != null) {
+      ByteBuf bytes = (ByteBuf) message;
+      sb.append(bytes.toString(UTF8));
+      bytes.release();
+    }
+    return sb.toString();
+  }
+
+  @Test
+  public void testBacklog() throws Exception {
+    Config config = new Config();
+    config.set("repl-backlog-size", "64");
+    Replication replication = new Replication(config);
+    EmbeddedChannel first = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+    Replication.Replica replica = new Replication.Replica(first);
+    replica.psync = true;
+    // Nothing is kept until there is a replica
+    replication.append(objects("SET", "a", "1"));
+    assertFalse(replication.resume(replica, replication.id(), 1));
+    replication.full(replica);
+    replication.begin();
+    String id = replication.id();
+    assertEquals("+FULLRESYNC " + id + " 0\r\n", received(first));
+
+    String set = "*3\r\n$3\r\nSET\r\n$1\r\nb\r\n$1\r\n2\r\n";
+    replication.append(objects("SET", "b", "2"));
+    assertEquals(set.length(), replication.offset());
+    // Wrap around the backlog a couple of times
+    for (int i = 0; i < 6; i++) {
+      replication.append(objects("SET", "b", "2"));
+    }
+    long offset = replication.offset();
+    EmbeddedChannel second = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+    Replication.Replica resumed = new Replication.Replica(second);
+    resumed.psync = true;
+    assertTrue(replication.resume(resumed, id, offset - 2 * set.length() + 1));
+    second.runPendingTasks();
+    assertEquals("+CONTINUE " + id + "\r\n" + set + set, received(second));
+    assertTrue(replication.resume(resumed, id, offset + 1));
+    assertEquals("+CONTINUE " + id + "\r\n", received(second));
+    // Older than the backlog, or another stream
+    assertFalse(replication.resume(resumed, id, offset - 3 * set.length() + 1));
+    assertFalse(replication.resume(resumed, "?", offset + 1));
+
+    // The replica that is still waiting for its snapshot gets the stream
+    // from where it began once the snapshot is sent
+    File file = File.createTempFile("replication", ".rdb");
+    try {
+      Files.write(file.toPath(), "snapshot".getBytes());
+      replication.transfer(Collections.singletonList(replica), file);
+      first.runPendingTasks();
+      Object header = first.readOutbound();
+      assertEquals("$8\r\n", ((ByteBuf) header).toString(UTF8));
+      ((ByteBuf) header).release();
+      // The file goes out as a region rather than through a buffer
+      assertTrue(first.readOutbound() instanceof FileRegion);
+      assertEquals(7 * set.length(), ((ByteBuf) first.readOutbound()).readableBytes());
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testReplica() throws Exception {
+    File masterDir = Files.createTempDirectory("master").toFile();
+    File replicaDir = Files.createTempDirectory("replica").toFile();
+    Config masterConfig = new Config();
+    masterConfig.set("dir", masterDir.getPath());
+    Config replicaConfig = new Config();
+    replicaConfig.set("dir", replicaDir.getPath());
+    final ShardedEngine master = new ShardedEngine(2, ValueStore.HEAP, masterConfig);
+    ShardedEngine replica = new ShardedEngine(2, ValueStore.HEAP, replicaConfig);
+    NioEventLoopGroup group = new NioEventLoopGroup(1);
+    try {
+      Channel server = new ServerBootstrap()
+          .group(group)
+          .channel(NioServerSocketChannel.class)
+          .childHandler(new ChannelInitializer<SocketChannel>() {
+            @Override
+            public void initChannel(SocketChannel ch) throws Exception {
+              ch.pipeline().addLast(new RedisCommandDecoder(), new RedisReplyEncoder(), new RedisCommandHandler(master));
+            }
+          })
+          .bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+      int port = ((InetSocketAddress) server.localAddress()).getPort();
+      try {
+        for (int i = 0; i < 100; i++) {
+          execute(master, "set", "key" + i, "value" + i);
+        }
+        execute(master, "setex", "expiring", "100", "x");
+        assertEquals("OK", execute(replica, "slaveof", "127.0.0.1", String.valueOf(port)).data());
+        // Until it has synced it has nothing
+        wait(replica, "key99", "value99");
+        execute(master, "mset", "a", "1", "b", "2");
+        execute(master, "rpush", "list", "x", "y");
+        execute(master, "lpop", "list");
+        execute(master, "del", "key0");
+        execute(master, "set", "last", "done");
+        wait(replica, "last", "done");
+        assertEquals("1", string(execute(replica, "get", "a")));
+        assertEquals("2", string(execute(replica, "get", "b")));
+        assertEquals(1L, execute(replica, "llen", "list").data());
+        assertEquals(null, execute(replica, "get", "key0").data());
+        assertEquals(104L, execute(replica, "dbsize").data());
+        assertTrue((Long) execute(replica, "ttl", "expiring").data() > 0);
+        String info = string(execute(replica, "info"));
+        assertTrue(info.contains("role:slave\n"));
+        assertTrue(info.contains("master_link_status:up\n"));
+        assertTrue(replica.isReadOnly(new Command(objects("set", "a", "1"))));
+        assertFalse(replica.isReadOnly(new Command(objects("get", "a"))));
+
+        // Promoted, it takes writes again
+        assertEquals("OK", execute(replica, "slaveof", "no", "one").data());
+        assertFalse(replica.isReadOnly(new Command(objects("set", "a", "1"))));
+        assertTrue(string(execute(replica, "info")).contains("role:master\n"));
+        assertTrue(execute(replica, "slaveof", "127.0.0.1", "x") instanceof ErrorReply);
+      } finally {
+        server.close().sync();
+      }
+    } finally {
+      group.shutdownGracefully();
+      replica.shutdown();
+      master.shutdown();
+      delete(masterDir);
+      delete(replicaDir);
+    }
+  }
+
+  private static Reply execute(ShardedEngine engine, String... args) throws Exception {
+    Command command = new Command(objects(args));
+    int route = engine.route(command);
+    if (route == ShardedEngine.COORDINATED) {
+      return engine.coordinate(command).get();
+    }
+    return engine.shard(route == ShardedEngine.ANY ? 0 : route).submit(command).get();
+  }
+
+  private static String string(Reply reply) {
+    return ((BulkReply) reply).asUTF8String();
+  }
+
+  private static void wait(ShardedEngine engine, String key, String value) throws Exception {
+    for (int i = 0; i < 500; i++) {
+      Reply reply = execute(engine, "get", key);
+      if (reply.data() != null && string(reply).equals(value)) {
+        return;
+      }
+      Thread.sleep(10);
+    }
+    throw new AssertionError(key + " never became " + value);
+  }
+
+  private static void delete(File dir) {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    dir.delete();
+  }
+}
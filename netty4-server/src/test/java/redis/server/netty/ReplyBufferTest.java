@@ -0,0 +1,119 @@
+package redis.server.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+import redis.netty4.BulkReply;
+import redis.netty4.ErrorReply;
+import redis.netty4.MultiBulkReply;
+import redis.netty4.Reply;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static redis.netty4.IntegerReply.integer;
+import static redis.netty4.StatusReply.OK;
+import static redis.netty4.StatusReply.PONG;
+import static redis.netty4.StatusReply.QUEUED;
+
+/**
+ * Shared replies and composite buffers encode to the same bytes as the
+ * replies themselves.
+ */
+public class ReplyBufferTest {
+
+  private static byte[] bytes(ByteBuf buf) {
+    byte[] bytes = new byte[buf.readableBytes()];
+    buf.getBytes(buf.readerIndex(), bytes);
+    return bytes;
+  }
+
+  private static byte[] expected(Reply... replies) throws IOException {
+    ByteBuf buf = Unpooled.buffer();
+    for (Reply reply : replies) {
+      reply.write(buf);
+    }
+    return bytes(buf);
+  }
+
+  @Test
+  public void testShared() throws IOException {
+    Reply[] shared = {OK, PONG, QUEUED, BulkReply.NIL_REPLY, MultiBulkReply.NIL_REPLY, MultiBulkReply.EMPTY,
+        integer(0), integer(255), integer(SharedReplies.INTEGERS - 1)};
+    for (Reply reply : shared) {
+      ByteBuf buf = SharedReplies.get(reply);
+      assertTrue(Arrays.equals(expected(reply), bytes(buf)));
+      assertTrue(buf.isDirect());
+      // Writing it to a channel releases it
+      buf.release();
+      assertTrue(Arrays.equals(expected(reply), bytes(SharedReplies.get(reply))));
+    }
+    assertNull(SharedReplies.get(integer(-1)));
+    assertNull(SharedReplies.get(integer(SharedReplies.INTEGERS)));
+    assertNull(SharedReplies.get(new ErrorReply("ERR")));
+    assertFalse(SharedReplies.write(new BulkReply("OK".getBytes()), Unpooled.buffer()));
+  }
+
+  @Test
+  public void testMultiBulk() throws IOException {
+    Reply reply = new MultiBulkReply(new Reply[]{
+        new BulkReply("a".getBytes()), BulkReply.NIL_REPLY, integer(12345), integer(7),
+        new MultiBulkReply(new Reply[]{OK, new ErrorReply("ERR no")})});
+    ReplyBuffer buffer = new ReplyBuffer(PooledByteBufAllocator.DEFAULT);
+    buffer.write(reply);
+    buffer.write(OK);
+    ByteBuf buf = buffer.finish();
+    assertTrue(buf.isDirect());
+    assertTrue(Arrays.equals(expected(reply, OK), bytes(buf)));
+    buf.release();
+  }
+
+  @Test
+  public void testComposite() throws IOException {
+    PooledValueStore store = new PooledValueStore(PooledByteBufAllocator.DEFAULT, 64);
+    byte[] big = new byte[ReplyBuffer.COMPOSITE_BYTES * 2];
+    Arrays.fill(big, (byte) 'x');
+    ByteBuf value = (ByteBuf) store.store(big);
+    ByteBuf small = (ByteBuf) store.store(Arrays.copyOf(big, 100));
+
+    ReplyBuffer buffer = new ReplyBuffer(PooledByteBufAllocator.DEFAULT);
+    RetainedBulkReply reply = new RetainedBulkReply(value);
+    buffer.write(OK);
+    buffer.write(reply);
+    reply.release();
+    RetainedBulkReply copied = new RetainedBulkReply(small);
+    buffer.write(copied);
+    copied.release();
+    ByteBuf buf = buffer.finish();
+    assertTrue(buf instanceof CompositeByteBuf);
+    assertTrue(buf.isDirect());
+    // The big value is shared with the buffer, the small one copied
+    assertEquals(2, value.refCnt());
+    assertEquals(1, small.refCnt());
+    assertTrue(Arrays.equals(expected(OK, new BulkReply(big), new BulkReply(Arrays.copyOf(big, 100))), bytes(buf)));
+    buf.release();
+    assertEquals(1, value.refCnt());
+    value.release();
+    small.release();
+  }
+
+  @Test
+  public void testEncoder() throws IOException {
+    EmbeddedChannel channel = new EmbeddedChannel(new RedisReplyEncoder());
+    Reply reply = new MultiBulkReply(new Reply[]{new BulkReply("a".getBytes()), integer(1)});
+    channel.writeOutbound(OK, reply);
+    ByteBuf buf = (ByteBuf) channel.readOutbound();
+    assertTrue(Arrays.equals(expected(OK), bytes(buf)));
+    buf.release();
+    buf = (ByteBuf) channel.readOutbound();
+    assertTrue(Arrays.equals(expected(reply), bytes(buf)));
+    buf.release();
+  }
+}
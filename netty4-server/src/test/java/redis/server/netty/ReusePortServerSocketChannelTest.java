@@ -0,0 +1,68 @@
+package redis.server.netty;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Several acceptors listening on one port.
+ */
+public class ReusePortServerSocketChannelTest {
+
+  @Test
+  public void testAcceptors() throws Exception {
+    if (!ReusePortServerSocketChannel.isSupported()) {
+      return;
+    }
+    final ShardedEngine engine = new ShardedEngine(1, ValueStore.HEAP, new Config());
+    NioEventLoopGroup bossGroup = new NioEventLoopGroup(2);
+    NioEventLoopGroup workerGroup = new NioEventLoopGroup(2);
+    try {
+      ServerBootstrap b = new ServerBootstrap()
+          .group(bossGroup, workerGroup)
+          .channel(ReusePortServerSocketChannel.class)
+          .childHandler(new ChannelInitializer<SocketChannel>() {
+            @Override
+            public void initChannel(SocketChannel ch) throws Exception {
+              ch.pipeline().addLast(new RedisCommandDecoder(), new RedisReplyEncoder(), new RedisCommandHandler(engine));
+            }
+          });
+      Channel first = b.bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+      int port = ((InetSocketAddress) first.localAddress()).getPort();
+      Channel second = b.bind(new InetSocketAddress("127.0.0.1", port)).sync().channel();
+      try {
+        // Closing one leaves the other accepting
+        first.close().sync();
+        for (int i = 0; i < 4; i++) {
+          Socket socket = new Socket("127.0.0.1", port);
+          try {
+            socket.getOutputStream().write("PING\r\n".getBytes());
+            InputStream is = socket.getInputStream();
+            byte[] reply = new byte[7];
+            for (int read = 0; read < reply.length; ) {
+              read += is.read(reply, read, reply.length - read);
+            }
+            assertEquals("+PONG\r\n", new String(reply));
+          } finally {
+            socket.close();
+          }
+        }
+      } finally {
+        second.close().sync();
+      }
+    } finally {
+      bossGroup.shutdownGracefully();
+      workerGroup.shutdownGracefully();
+      engine.shutdown();
+    }
+  }
+}
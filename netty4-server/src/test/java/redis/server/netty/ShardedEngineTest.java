@@ -0,0 +1,343 @@
+package redis.server.netty;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.netty4.BulkReply;
+import redis.netty4.Command;
+import redis.netty4.ErrorReply;
+import redis.netty4.IntegerReply;
+import redis.netty4.MultiBulkReply;
+import redis.netty4.Reply;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static redis.netty4.BulkReply.NIL_REPLY;
+
+/**
+ * Multiple key commands spanning shards.
+ */
+public class ShardedEngineTest {
+
+  private ShardedEngine engine;
+
+  @Before
+  public void setup() {
+    engine = new ShardedEngine(4);
+  }
+
+  @After
+  public void shutdown() {
+    engine.shutdown();
+  }
+
+  private Reply execute(String... args) throws Exception {
+    Object[] objects = new Object[args.length];
+    for (int i = 0; i < args.length; i++) {
+      objects[i] = args[i].getBytes();
+    }
+    Command command = new Command(objects);
+    int route = engine.route(command);
+    if (route == ShardedEngine.COORDINATED) {
+      return engine.coordinate(command).get();
+    }
+    return engine.shard(route == ShardedEngine.ANY ? 0 : route).submit(command).get();
+  }
+
+  private String string(Reply reply) {
+    return ((BulkReply) reply).asUTF8String();
+  }
+
+  @Test
+  public void testRouting() throws Exception {
+    int first = engine.shardOf("{user:1}:name".getBytes());
+    assertEquals(first, engine.shardOf("{user:1}:email".getBytes()));
+    assertEquals(first, engine.shardOf("user:1".getBytes()));
+    boolean spread = false;
+    for (int i = 0; i < 100; i++) {
+      if (engine.shardOf(("key" + i).getBytes()) != first) spread = true;
+    }
+    assertTrue(spread);
+  }
+
+  @Test
+  public void testKeys() throws Exception {
+    for (int i = 0; i < 20; i++) {
+      execute("set", "{user:1}:" + i, "value");
+      execute("set", "user:" + i, "value");
+    }
+    // A pattern whose prefix has the hash tag only needs the shard it names
+    int tagged = engine.shardOf("{user:1}".getBytes());
+    assertEquals(tagged, engine.route(new Command(new Object[]{"keys".getBytes(), "{user:1}:1*".getBytes()})));
+    assertEquals(11, ((MultiBulkReply) execute("keys", "{user:1}:1*")).data().length);
+    assertEquals(engine.shardOf("user:3".getBytes()), engine.route(new Command(new Object[]{"keys".getBytes(), "user:3".getBytes()})));
+    assertEquals(1, ((MultiBulkReply) execute("keys", "user:3")).data().length);
+    assertEquals(0, ((MultiBulkReply) execute("keys", "user:x")).data().length);
+    assertEquals(ShardedEngine.COORDINATED, engine.route(new Command(new Object[]{"keys".getBytes(), "user:*".getBytes()})));
+    assertEquals(20, ((MultiBulkReply) execute("keys", "user:*")).data().length);
+    assertEquals(4, ((MultiBulkReply) execute("keys", "*:1[0-1]")).data().length);
+  }
+
+  @Test
+  public void testMultipleKeys() throws Exception {
+    for (int i = 0; i < 50; i++) {
+      execute("set", "key" + i, "value" + i);
+    }
+    assertEquals(50L, execute("dbsize").data());
+    Reply[] values = ((MultiBulkReply) execute("mget", "key0", "key17", "missing", "key49")).data();
+    assertEquals("value0", string(values[0]));
+    assertEquals("value17", string(values[1]));
+    assertEquals(NIL_REPLY, values[2]);
+    assertEquals("value49", string(values[3]));
+    assertEquals(11, ((MultiBulkReply) execute("keys", "key1*")).data().length);
+
+    execute("rename", "key1", "renamed");
+    assertEquals(NIL_REPLY, execute("get", "key1"));
+    assertEquals("value1", string(execute("get", "renamed")));
+
+    assertEquals(3L, execute("del", "key2", "key3", "key4", "missing").data());
+    assertEquals(47L, execute("dbsize").data());
+  }
+
+  @Test
+  public void testSetsAndSortedSets() throws Exception {
+    execute("sadd", "set1", "a", "b");
+    execute("sadd", "set2", "b", "c");
+    execute("sadd", "set3", "c", "d");
+    assertEquals(4L, execute("sunionstore", "dest", "set1", "set2", "set3").data());
+    assertEquals(4, ((MultiBulkReply) execute("smembers", "dest")).data().length);
+
+    execute("zadd", "zset1", "1", "a", "2", "b");
+    execute("zadd", "zset2", "3", "b", "4", "c");
+    assertEquals(3L, execute("zunionstore", "zdest", "2", "zset1", "zset2").data());
+    Reply[] range = ((MultiBulkReply) execute("zrange", "zdest", "0", "-1")).data();
+    assertEquals(Arrays.asList("a", "c", "b"), Arrays.asList(string(range[0]), string(range[1]), string(range[2])));
+  }
+
+  @Test
+  public void testEncodings() throws Exception {
+    execute("hset", "hash", "field", "value");
+    assertEquals("listpack", string(execute("object", "encoding", "hash")));
+    assertTrue(((String) execute("debug", "object", "hash").data()).contains(" encoding:listpack"));
+    execute("hset", "hash", "long", new String(new char[65]).replace('\0', 'x'));
+    assertEquals("hashtable", string(execute("object", "encoding", "hash")));
+    assertEquals(4, ((MultiBulkReply) execute("hgetall", "hash")).data().length);
+
+    execute("sadd", "set", "1", "2", "3");
+    assertEquals("intset", string(execute("object", "encoding", "set")));
+    execute("sadd", "set", "a");
+    assertEquals("listpack", string(execute("object", "encoding", "set")));
+    execute("config", "set", "set-max-listpack-entries", "2");
+    execute("sadd", "other", "a", "b", "c");
+    assertEquals("hashtable", string(execute("object", "encoding", "other")));
+    String popped = string(execute("spop", "other"));
+    assertTrue(Arrays.asList("a", "b", "c").contains(popped));
+    assertEquals(2L, execute("scard", "other").data());
+    // Across shards, so built in a scratch keyspace that has to use the
+    // same thresholds
+    String source = "source";
+    for (int i = 0; engine.shardOf(source.getBytes()) == engine.shardOf("union".getBytes()); i++) {
+      source = "source" + i;
+    }
+    execute("sadd", source, "a", "b", "c");
+    assertEquals(3L, execute("sunionstore", "union", source).data());
+    assertEquals("hashtable", string(execute("object", "encoding", "union")));
+
+    for (int i = 0; i < 128; i++) {
+      execute("zadd", "zset", String.valueOf(i), "member" + i);
+    }
+    assertEquals("listpack", string(execute("object", "encoding", "zset")));
+    execute("zadd", "zset", "-1", "first");
+    assertEquals("skiplist", string(execute("object", "encoding", "zset")));
+    assertEquals("first", string(((MultiBulkReply) execute("zrange", "zset", "0", "0")).data()[0]));
+    assertEquals("zset", execute("type", "zset").data());
+    assertEquals(NIL_REPLY, execute("object", "encoding", "missing"));
+  }
+
+  /**
+   * Scan a command to the end, collecting every element or field.
+   */
+  private Set<String> scan(String command, String key, String... options) throws Exception {
+    Set<String> found = new HashSet<String>();
+    String cursor = "0";
+    int calls = 0;
+    do {
+      String[] args = new String[(key == null ? 2 : 3) + options.length];
+      int i = 0;
+      args[i++] = command;
+      if (key != null) {
+        args[i++] = key;
+      }
+      args[i++] = cursor;
+      System.arraycopy(options, 0, args, i, options.length);
+      Reply[] reply = ((MultiBulkReply) execute(args)).data();
+      cursor = string(reply[0]);
+      Reply[] elements = ((MultiBulkReply) reply[1]).data();
+      int step = command.equals("hscan") || command.equals("zscan") ? 2 : 1;
+      for (int j = 0; j < elements.length; j += step) {
+        found.add(string(elements[j]));
+      }
+      assertTrue(++calls < 10000);
+    } while (!cursor.equals("0"));
+    return found;
+  }
+
+  @Test
+  public void testScan() throws Exception {
+    Set<String> expected = new HashSet<String>();
+    for (int i = 0; i < 500; i++) {
+      execute("set", "key" + i, "value");
+      expected.add("key" + i);
+    }
+    execute("sadd", "set", "a");
+    execute("rpush", "list", "a");
+    expected.add("set");
+    expected.add("list");
+    // Walks every shard in turn
+    assertEquals(expected, scan("scan", null));
+    assertEquals(expected, scan("scan", null, "count", "3"));
+    Set<String> matched = scan("scan", null, "match", "key1?");
+    assertEquals(10, matched.size());
+    assertTrue(matched.contains("key17"));
+    assertEquals(new HashSet<String>(Arrays.asList("set")), scan("scan", null, "type", "SET"));
+
+    // Keys that expired are left out
+    execute("pexpire", "key0", "1");
+    Thread.sleep(5);
+    assertFalse(scan("scan", null).contains("key0"));
+
+    for (int i = 0; i < 1000; i++) {
+      execute("hset", "hash", "field" + i, "value");
+      execute("sadd", "members", "member" + i);
+      execute("zadd", "zset", String.valueOf(i), "member" + i);
+    }
+    assertEquals(1000, scan("hscan", "hash").size());
+    assertEquals(1000, scan("sscan", "members", "count", "100").size());
+    Set<String> scored = scan("zscan", "zset", "match", "*99*");
+    assertEquals(19, scored.size());
+    // A compact set comes back whole
+    Reply[] reply = ((MultiBulkReply) execute("sscan", "set", "0")).data();
+    assertEquals("0", string(reply[0]));
+    assertEquals(1, ((MultiBulkReply) reply[1]).data().length);
+    reply = ((MultiBulkReply) execute("hscan", "missing", "0")).data();
+    assertEquals(0, ((MultiBulkReply) reply[1]).data().length);
+
+    assertEquals("ERR invalid cursor", execute("scan", "x").data());
+    assertEquals("ERR syntax error", execute("scan", "0", "count", "0").data());
+    assertEquals("ERR syntax error", execute("sscan", "set", "0", "type", "set").data());
+  }
+
+  private String info(String section, String field) throws Exception {
+    for (String line : string(execute("info", section)).split("\n")) {
+      if (line.startsWith(field + ":")) {
+        return line.substring(field.length() + 1);
+      }
+    }
+    return null;
+  }
+
+  @Test
+  public void testStats() throws Exception {
+    for (int i = 0; i < 100; i++) {
+      execute("set", "key" + i, "value");
+    }
+    execute("mset", "a", "1", "b", "2", "c", "3");
+    execute("dbsize");
+    execute("config", "get", "maxmemory");
+    // Spread over every shard but added up
+    assertTrue(info("commandstats", "cmdstat_set").startsWith("calls=100,usec="));
+    // Coordinated and broadcast commands count once
+    assertTrue(info("commandstats", "cmdstat_mset").startsWith("calls=1,"));
+    assertTrue(info("commandstats", "cmdstat_dbsize").startsWith("calls=1,"));
+    assertTrue(info("commandstats", "cmdstat_config|get").startsWith("calls=1,"));
+    assertEquals(null, info("commandstats", "cmdstat_get"));
+    assertTrue(info("latencystats", "latency_percentiles_usec_set").matches("p50=[0-9.]+,p99=[0-9.]+,p99.9=[0-9.]+"));
+    assertEquals(null, info("default", "cmdstat_set"));
+    assertTrue(info("all", "cmdstat_set") != null);
+    execute("config", "set", "latency-tracking-info-percentiles", "90");
+    assertTrue(info("latencystats", "latency_percentiles_usec_set").matches("p90=[0-9.]+"));
+    execute("config", "resetstat");
+    assertEquals(null, info("commandstats", "cmdstat_set"));
+
+    // Whatever was slower than the default while warming up goes first
+    execute("config", "set", "slowlog-log-slower-than", "-1");
+    execute("slowlog", "reset");
+    assertEquals(0, ((IntegerReply) execute("slowlog", "len")).data().intValue());
+    execute("config", "set", "slowlog-log-slower-than", "0");
+    execute("get", "key1");
+    execute("append", "key2", new String(new char[200]).replace('\0', 'x'));
+    String[] args = new String[40];
+    args[0] = "del";
+    for (int i = 1; i < args.length; i++) {
+      args[i] = "missing" + i;
+    }
+    execute(args);
+    Reply[] entries = ((MultiBulkReply) execute("slowlog", "get", "-1")).data();
+    // The CONFIG SET that turned it on is logged too
+    assertEquals(4, entries.length);
+    // Newest first, with long commands and arguments cut short
+    Reply[] del = args(entries[0]);
+    assertEquals(32, del.length);
+    assertEquals("del", string(del[0]));
+    assertEquals("... (9 more arguments)", string(del[31]));
+    assertEquals(128 + "... (72 more bytes)".length(), string(args(entries[1])[2]).length());
+    assertEquals("get", string(args(entries[2])[0]));
+    assertTrue(id(entries[0]) > id(entries[1]));
+    assertEquals(1, ((MultiBulkReply) execute("slowlog", "get", "1")).data().length);
+    // Now with the SLOWLOG GETs in it too
+    assertEquals(6, ((IntegerReply) execute("slowlog", "len")).data().intValue());
+    execute("config", "set", "slowlog-max-len", "2");
+    entries = ((MultiBulkReply) execute("slowlog", "get")).data();
+    assertEquals(2, entries.length);
+    assertEquals("slowlog-max-len", string(args(entries[0])[2]));
+    assertEquals("len", string(args(entries[1])[1]));
+    execute("config", "set", "slowlog-log-slower-than", "-1");
+    execute("slowlog", "reset");
+    execute("get", "key1");
+    assertEquals(0, ((IntegerReply) execute("slowlog", "len")).data().intValue());
+    assertTrue(((ErrorReply) execute("slowlog", "nope")).data().contains("unknown subcommand"));
+  }
+
+  private static Reply[] args(Reply entry) {
+    return ((MultiBulkReply) ((MultiBulkReply) entry).data()[3]).data();
+  }
+
+  private static long id(Reply entry) {
+    return ((IntegerReply) ((MultiBulkReply) entry).data()[0]).data();
+  }
+
+  @Test
+  public void testConcurrentCoordination() throws Exception {
+    final int count = 200;
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      final int id = t;
+      threads[t] = new Thread() {
+        public void run() {
+          try {
+            for (int i = 0; i < count; i++) {
+              execute("incr", "counter" + id);
+              execute("mset", "a" + id, "1", "b" + id, "2", "c" + id, "3");
+              execute("rpoplpush", "missing" + id, "other" + id);
+            }
+          } catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    for (int t = 0; t < threads.length; t++) {
+      assertEquals("" + count, string(execute("get", "counter" + t)));
+    }
+    assertTrue(execute("dbsize") instanceof IntegerReply);
+  }
+}
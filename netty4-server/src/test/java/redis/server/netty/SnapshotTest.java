@@ -0,0 +1,267 @@
+package redis.server.netty;
+
+import io.netty.util.ReferenceCountUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.netty4.BulkReply;
+import redis.netty4.Command;
+import redis.netty4.ErrorReply;
+import redis.netty4.IntegerReply;
+import redis.netty4.MultiBulkReply;
+import redis.netty4.Reply;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+import static redis.netty4.BulkReply.NIL_REPLY;
+
+/**
+ * Saving to and loading from RDB files.
+ */
+public class SnapshotTest {
+
+  private File dir;
+  private Config config;
+
+  @Before
+  public void setup() throws Exception {
+    dir = Files.createTempDirectory("rdb").toFile();
+    config = new Config();
+    config.set("dir", dir.getPath());
+  }
+
+  @After
+  public void cleanup() {
+    for (File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  private static String string(Reply reply) {
+    return ((BulkReply) reply).asUTF8String();
+  }
+
+  private static String strings(Reply reply) {
+    StringBuilder sb = new StringBuilder();
+    for (Reply element : ((MultiBulkReply) reply).data()) {
+      sb.append(sb.length() == 0 ? "" : " ").append(string(element));
+    }
+    return sb.toString();
+  }
+
+  private SimpleRedisServer load() throws IOException {
+    SimpleRedisServer server = new SimpleRedisServer(new PooledValueStore(16), config);
+    Rdb.Reader reader = new Rdb.Reader(config.rdb());
+    try {
+      Rdb.Entry entry;
+      while ((entry = reader.next()) != null) {
+        server._load(entry);
+      }
+    } finally {
+      reader.close();
+    }
+    return server;
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    SimpleRedisServer rs = new SimpleRedisServer(new PooledValueStore(16), config);
+    rs.set("small".getBytes(), "value".getBytes());
+    rs.set("large".getBytes(), "0123456789abcdefghijklmnopqrstuvwxyz".getBytes());
+    rs.set("empty".getBytes(), new byte[0]);
+    for (String number : new String[]{"0", "-1", "127", "-129", "40000", "-2147483648", "2147483648", "007", "-0"}) {
+      rs.set(("number" + number).getBytes(), number.getBytes());
+    }
+    byte[] binary = new byte[300];
+    for (int i = 0; i < binary.length; i++) binary[i] = (byte) i;
+    rs.set("binary".getBytes(), binary);
+    rs.rpush("list".getBytes(), new byte[][]{"a".getBytes(), "b".getBytes(), "1".getBytes()});
+    rs.sadd("set".getBytes(), new byte[][]{"x".getBytes(), "y".getBytes()});
+    rs.zadd(new byte[][]{"zset".getBytes(), "1.5".getBytes(), "a".getBytes(), "-Infinity".getBytes(), "b".getBytes(),
+        "Infinity".getBytes(), "c".getBytes()});
+    rs.hset("hash".getBytes(), "field".getBytes(), "value".getBytes());
+    rs.hset("hash".getBytes(), "number".getBytes(), "12".getBytes());
+    rs.setex("expiring".getBytes(), "100".getBytes(), "value".getBytes());
+    rs.psetex("expired".getBytes(), "1".getBytes(), "value".getBytes());
+    Thread.sleep(5);
+    assertEquals("OK", rs.save().data());
+
+    SimpleRedisServer loaded = load();
+    // Everything but the key that expired before it was loaded
+    assertEquals(rs.dbsize().data() - 1, (long) loaded.dbsize().data());
+    assertEquals("value", string(loaded.get("small".getBytes())));
+    assertEquals("0123456789abcdefghijklmnopqrstuvwxyz", string(loaded.get("large".getBytes())));
+    assertEquals(0, ((BulkReply) loaded.get("empty".getBytes())).data().readableBytes());
+    for (String number : new String[]{"0", "-1", "127", "-129", "40000", "-2147483648", "2147483648", "007", "-0"}) {
+      assertEquals(number, string(loaded.get(("number" + number).getBytes())));
+    }
+    BulkReply reply = loaded.get("binary".getBytes());
+    byte[] read = new byte[binary.length];
+    reply.data().getBytes(reply.data().readerIndex(), read);
+    ReferenceCountUtil.release(reply);
+    assertTrue(Arrays.equals(binary, read));
+    assertEquals("a b 1", strings(loaded.lrange("list".getBytes(), "0".getBytes(), "-1".getBytes())));
+    assertEquals(1L, (long) loaded.sismember("set".getBytes(), "y".getBytes()).data());
+    assertEquals("b a c", strings(loaded.zrange("zset".getBytes(), "0".getBytes(), "-1".getBytes(), null)));
+    assertEquals(Double.POSITIVE_INFINITY, Double.parseDouble(string(loaded.zscore("zset".getBytes(), "c".getBytes()))));
+    assertEquals("12", string(loaded.hget("hash".getBytes(), "number".getBytes())));
+    long ttl = loaded.ttl("expiring".getBytes()).data();
+    assertTrue(ttl > 95 && ttl <= 100);
+    assertEquals(NIL_REPLY, loaded.get("expired".getBytes()));
+    assertEquals(-1L, (long) loaded.ttl("small".getBytes()).data());
+  }
+
+  @Test
+  public void testPointInTime() throws Exception {
+    SimpleRedisServer rs = new SimpleRedisServer(ValueStore.HEAP, config);
+    for (int i = 0; i < 5000; i++) {
+      rs.set(("key" + i).getBytes(), ("value" + i).getBytes());
+    }
+    rs.rpush("list".getBytes(), new byte[][]{"a".getBytes(), "b".getBytes()});
+    Snapshot snapshot = new Snapshot(config.rdb(), 1);
+    rs._beginsnapshot(snapshot);
+    // Each step with no time left still writes a few hundred slots
+    assertFalse(rs._snapshotstep(0));
+    for (int i = 0; i < 5000; i++) {
+      if (i % 2 == 0) {
+        rs.set(("key" + i).getBytes(), "changed".getBytes());
+      } else {
+        rs.del(new byte[][]{("key" + i).getBytes()});
+      }
+      rs.set(("added" + i).getBytes(), "value".getBytes());
+    }
+    // Commands that change values in place rely on the shard to preserve them
+    byte[][] keys = {"list".getBytes()};
+    rs._preserve(keys);
+    rs.rpush("list".getBytes(), new byte[][]{"c".getBytes()});
+    while (!rs._snapshotstep(0)) {
+    }
+    snapshot.get();
+
+    SimpleRedisServer loaded = load();
+    assertEquals(5001L, (long) loaded.dbsize().data());
+    for (int i = 0; i < 5000; i++) {
+      assertEquals("value" + i, string(loaded.get(("key" + i).getBytes())));
+    }
+    assertEquals("a b", strings(loaded.lrange("list".getBytes(), "0".getBytes(), "-1".getBytes())));
+    // A second save sees the changes
+    rs.save();
+    loaded = load();
+    assertEquals(7501L, (long) loaded.dbsize().data());
+    assertEquals("changed", string(loaded.get("key0".getBytes())));
+  }
+
+  @Test
+  public void testFlushWhileSaving() throws Exception {
+    SimpleRedisServer rs = new SimpleRedisServer(ValueStore.HEAP, config);
+    for (int i = 0; i < 2000; i++) {
+      rs.set(("key" + i).getBytes(), "value".getBytes());
+    }
+    Snapshot snapshot = new Snapshot(config.rdb(), 1);
+    rs._beginsnapshot(snapshot);
+    rs._snapshotstep(0);
+    rs.flushdb();
+    rs.set("after".getBytes(), "value".getBytes());
+    assertTrue(rs._snapshotstep(0));
+    snapshot.get();
+    SimpleRedisServer loaded = load();
+    assertEquals(2000L, (long) loaded.dbsize().data());
+    assertEquals(NIL_REPLY, loaded.get("after".getBytes()));
+  }
+
+  @Test
+  public void testCorruption() throws Exception {
+    SimpleRedisServer rs = new SimpleRedisServer(ValueStore.HEAP, config);
+    rs.set("key".getBytes(), "value".getBytes());
+    rs.save();
+    RandomAccessFile file = new RandomAccessFile(config.rdb(), "rw");
+    file.seek(file.length() - 12);
+    int b = file.read();
+    file.seek(file.length() - 12);
+    file.write(b ^ 1);
+    file.close();
+    try {
+      load();
+      fail("Loaded a corrupt file");
+    } catch (IOException e) {
+      assertEquals("Wrong RDB checksum", e.getMessage());
+    }
+  }
+
+  @Test
+  public void testRedisEncodings() throws Exception {
+    // Integer and LZF encoded strings, as redis writes them, with seconds
+    // expirations from older versions and the checksum turned off
+    int[] bytes = {
+        'R', 'E', 'D', 'I', 'S', '0', '0', '0', '6', 0xFE, 0x00,
+        0x00, 0x03, 'i', 'n', 't', 0xC0, 0x7B,
+        0x00, 0x05, 's', 'h', 'o', 'r', 't', 0xC1, 0x39, 0x30,
+        0xFD, 0xFF, 0xFF, 0xFF, 0x7F,
+        0x00, 0x03, 'l', 'z', 'f', 0xC3, 0x05, 0x0A, 0x00, 'a', 0xE0, 0x00, 0x00,
+        0xFF, 0, 0, 0, 0, 0, 0, 0, 0
+    };
+    FileOutputStream out = new FileOutputStream(config.rdb());
+    for (int b : bytes) out.write(b);
+    out.close();
+    SimpleRedisServer loaded = load();
+    assertEquals("123", string(loaded.get("int".getBytes())));
+    assertEquals("12345", string(loaded.get("short".getBytes())));
+    assertEquals("aaaaaaaaaa", string(loaded.get("lzf".getBytes())));
+    assertTrue(loaded.ttl("lzf".getBytes()).data() > 0);
+  }
+
+  @Test
+  public void testEngine() throws Exception {
+    ShardedEngine engine = new ShardedEngine(4, ValueStore.HEAP, config);
+    try {
+      for (int i = 0; i < 10000; i++) {
+        execute(engine, "set", "key" + i, "value" + i);
+      }
+      execute(engine, "sadd", "set", "a", "b");
+      long before = ((IntegerReply) execute(engine, "lastsave")).data();
+      assertEquals("Background saving started", execute(engine, "bgsave").data());
+      // Overlapping saves are refused until the first is done
+      Reply reply = execute(engine, "save");
+      while (reply instanceof ErrorReply) {
+        Thread.sleep(10);
+        reply = execute(engine, "save");
+      }
+      assertEquals("OK", reply.data());
+      assertTrue(((IntegerReply) execute(engine, "lastsave")).data() >= before);
+    } finally {
+      engine.shutdown();
+    }
+    engine = new ShardedEngine(3, ValueStore.HEAP, config);
+    try {
+      assertEquals(10001, engine.load());
+      assertEquals(10001L, execute(engine, "dbsize").data());
+      assertEquals("value1234", string(execute(engine, "get", "key1234")));
+      assertEquals(2L, execute(engine, "scard", "set").data());
+    } finally {
+      engine.shutdown();
+    }
+  }
+
+  private static Reply execute(ShardedEngine engine, String... args) throws Exception {
+    Object[] objects = new Object[args.length];
+    for (int i = 0; i < args.length; i++) {
+      objects[i] = args[i].getBytes();
+    }
+    Command command = new Command(objects);
+    int route = engine.route(command);
+    if (route == ShardedEngine.COORDINATED) {
+      return engine.coordinate(command).get();
+    }
+    return engine.shard(route == ShardedEngine.ANY ? 0 : route).submit(command).get();
+  }
+}
@@ -0,0 +1,137 @@
+package redis.server.netty;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.netty4.BulkReply;
+import redis.netty4.Command;
+import redis.netty4.IntegerReply;
+import redis.netty4.MultiBulkReply;
+import redis.netty4.Reply;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * MULTI/EXEC against one shard and across shards, and WATCH.
+ */
+public class TransactionTest {
+
+  private ShardedEngine engine;
+
+  @Before
+  public void setup() {
+    engine = new ShardedEngine(4);
+  }
+
+  @After
+  public void shutdown() {
+    engine.shutdown();
+  }
+
+  private static Command command(String... args) {
+    Object[] objects = new Object[args.length];
+    for (int i = 0; i < args.length; i++) {
+      objects[i] = args[i].getBytes();
+    }
+    return new Command(objects);
+  }
+
+  private Reply execute(String... args) throws Exception {
+    Command command = command(args);
+    int route = engine.route(command);
+    if (route == ShardedEngine.COORDINATED) {
+      return engine.coordinate(command).get();
+    }
+    return engine.shard(route == ShardedEngine.ANY ? 0 : route).submit(command).get();
+  }
+
+  private Reply exec(Transaction transaction, String[]... commands) throws Exception {
+    List<Command> queued = new ArrayList<Command>();
+    for (String[] command : commands) {
+      queued.add(command(command));
+    }
+    return engine.exec(transaction, queued, 0).get();
+  }
+
+  private static String string(Reply reply) {
+    return ((BulkReply) reply).asUTF8String();
+  }
+
+  /**
+   * Two keys that live on different shards.
+   */
+  private String[] apart() {
+    for (int i = 1; ; i++) {
+      if (engine.shardOf(("key" + i).getBytes()) != engine.shardOf("key0".getBytes())) {
+        return new String[]{"key0", "key" + i};
+      }
+    }
+  }
+
+  @Test
+  public void testExec() throws Exception {
+    String[] keys = apart();
+    Reply[] replies = ((MultiBulkReply) exec(new Transaction(),
+        new String[]{"set", "{a}1", "x"},
+        new String[]{"append", "{a}1", "y"},
+        new String[]{"get", "{a}1"},
+        new String[]{"ping"})).data();
+    assertEquals(4, replies.length);
+    assertEquals(2L, replies[1].data());
+    assertEquals("xy", string(replies[2]));
+
+    replies = ((MultiBulkReply) exec(new Transaction(),
+        new String[]{"mset", keys[0], "1", keys[1], "2"},
+        new String[]{"incr", keys[1]},
+        new String[]{"mget", keys[0], keys[1]},
+        new String[]{"dbsize"},
+        new String[]{"blpop", "empty", "0"},
+        new String[]{"lpush", "list", "a"})).data();
+    Reply[] values = ((MultiBulkReply) replies[2]).data();
+    assertEquals("1", string(values[0]));
+    assertEquals("3", string(values[1]));
+    assertEquals(3L, replies[3].data());
+    // Blocking commands don't wait inside a transaction
+    assertEquals(MultiBulkReply.NIL_REPLY, replies[4]);
+    assertEquals(1L, replies[5].data());
+    assertTrue(execute("dbsize") instanceof IntegerReply);
+    assertEquals(4L, execute("dbsize").data());
+  }
+
+  @Test
+  public void testWatch() throws Exception {
+    String[] keys = apart();
+    execute("set", keys[0], "1");
+    Transaction transaction = new Transaction();
+    engine.watch(transaction, new byte[][]{keys[0].getBytes(), keys[1].getBytes()}).get();
+    // Reads and writes to other keys don't count
+    execute("get", keys[0]);
+    execute("mget", keys[0], keys[1]);
+    execute("set", "other", "1");
+    assertEquals(1, ((MultiBulkReply) exec(transaction, new String[]{"incr", keys[0]})).data().length);
+    assertEquals("2", string(execute("get", keys[0])));
+
+    engine.watch(transaction, new byte[][]{keys[1].getBytes()}).get();
+    execute("set", keys[1], "changed");
+    assertEquals(MultiBulkReply.NIL_REPLY, exec(transaction, new String[]{"incr", keys[0]}));
+    assertEquals("2", string(execute("get", keys[0])));
+
+    // A key that is removed or flushed has changed too
+    engine.watch(transaction, new byte[][]{keys[0].getBytes()}).get();
+    execute("del", keys[0]);
+    assertEquals(MultiBulkReply.NIL_REPLY, exec(transaction, new String[]{"ping"}));
+    engine.watch(transaction, new byte[][]{keys[1].getBytes()}).get();
+    execute("flushall");
+    assertEquals(MultiBulkReply.NIL_REPLY, exec(transaction, new String[]{"ping"}));
+
+    // Nothing is left watched
+    engine.watch(transaction, new byte[][]{keys[0].getBytes()}).get();
+    engine.unwatch(transaction);
+    execute("set", keys[0], "1");
+    assertEquals(1, ((MultiBulkReply) exec(transaction, new String[]{"ping"})).data().length);
+  }
+}
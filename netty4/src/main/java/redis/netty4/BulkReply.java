@@ -13,40 +13,47 @@ public class BulkReply implements Reply<ByteBuf> {
   public static final BulkReply NIL_REPLY = new BulkReply();
 
   public static final char MARKER = '$';
-  private final ByteBuf bytes;
+  private ByteBuf bytes;
+  // Only wrapped in a ByteBuf if data() is asked for, since a server
+  // replying with many of them mostly just writes them
+  private final byte[] array;
   private final int capacity;
 
   private BulkReply() {
     bytes = null;
+    array = null;
     capacity = -1;
   }
 
   public BulkReply(byte[] bytes) {
-    this.bytes = Unpooled.wrappedBuffer(bytes);
+    array = bytes;
     capacity = bytes.length;
   }
 
   public BulkReply(ByteBuf bytes) {
     this.bytes = bytes;
+    array = null;
     capacity = bytes.capacity();
   }
 
   @Override
   public ByteBuf data() {
+    if (bytes == null && array != null) {
+      bytes = Unpooled.wrappedBuffer(array);
+    }
     return bytes;
   }
 
   public String asAsciiString() {
-    if (bytes == null) return null;
-    return bytes.toString(Charsets.US_ASCII);
+    return asString(Charsets.US_ASCII);
   }
 
   public String asUTF8String() {
-    if (bytes == null) return null;
-    return bytes.toString(Charsets.UTF_8);
+    return asString(Charsets.UTF_8);
   }
 
   public String asString(Charset charset) {
+    if (array != null) return new String(array, charset);
     if (bytes == null) return null;
     return bytes.toString(charset);
   }
@@ -55,8 +62,13 @@ public class BulkReply implements Reply<ByteBuf> {
   public void write(ByteBuf os) throws IOException {
     os.writeByte(MARKER);
     os.writeBytes(numToBytes(capacity, true));
-    if (capacity > 0) {
-      os.writeBytes(bytes);
+    // An empty string still has its line ending
+    if (capacity >= 0) {
+      if (array != null) {
+        os.writeBytes(array);
+      } else {
+        os.writeBytes(bytes);
+      }
       os.writeBytes(CRLF);
     }
   }
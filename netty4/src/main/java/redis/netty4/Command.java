@@ -2,6 +2,7 @@ package redis.netty4;
 
 import com.google.common.base.Charsets;
 import io.netty.buffer.ByteBuf;
+import io.netty.util.ReferenceCountUtil;
 
 import java.io.IOException;
 
@@ -17,6 +18,7 @@ public class Command {
   public static final byte[] CRLF = "\r\n".getBytes();
   public static final byte[] BYTES_PREFIX = "$".getBytes();
   public static final byte[] EMPTY_BYTES = new byte[0];
+  public static final int UNRESOLVED = Integer.MIN_VALUE;
 
   private final Object name;
   private final Object[] objects;
@@ -24,6 +26,8 @@ public class Command {
   private final Object object2;
   private final Object object3;
   private final boolean inline;
+  // What a server looked the name up as, so it is only looked up once
+  private int id = UNRESOLVED;
 
   public Command(Object[] objects) {
     this(null, null, null, null, objects, false);
@@ -72,6 +76,24 @@ public class Command {
     return inline;
   }
 
+  /**
+   * The id a server gave the command when it looked it up, or UNRESOLVED.
+   */
+  public int getId() {
+    return id;
+  }
+
+  public void setId(int id) {
+    this.id = id;
+  }
+
+  /**
+   * The raw arguments, including the command name, of a command read off the wire.
+   */
+  public Object[] getObjects() {
+    return objects;
+  }
+
   private byte[] getBytes(Object object) {
     byte[] argument;
     if (object == null) {
@@ -79,7 +101,9 @@ public class Command {
     } else if (object instanceof byte[]) {
       argument = (byte[]) object;
     } else if (object instanceof ByteBuf) {
-      argument = ((ByteBuf) object).array();
+      ByteBuf buf = (ByteBuf) object;
+      argument = new byte[buf.readableBytes()];
+      buf.getBytes(buf.readerIndex(), argument);
     } else if (object instanceof String) {
       argument = ((String) object).getBytes(Charsets.UTF_8);
     } else {
@@ -88,6 +112,22 @@ public class Command {
     return argument;
   }
 
+  /**
+   * Release any reference counted arguments, like the ByteBuf slices a decoder
+   * hands out when it doesn't copy arguments.
+   */
+  public void release() {
+    ReferenceCountUtil.release(name);
+    ReferenceCountUtil.release(object1);
+    ReferenceCountUtil.release(object2);
+    ReferenceCountUtil.release(object3);
+    if (objects != null) {
+      for (Object object : objects) {
+        ReferenceCountUtil.release(object);
+      }
+    }
+  }
+
   public void toArguments(Object[] arguments, Class<?>[] types) {
     int position = 0;
     for (Class<?> type : types) {
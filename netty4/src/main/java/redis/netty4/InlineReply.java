@@ -33,7 +33,8 @@ public class InlineReply implements Reply<Object> {
       os.writeBytes(CRLF);
     } else if (o instanceof ByteBuf) {
       os.writeByte('+');
-      os.writeBytes(((ByteBuf) o).array());
+      ByteBuf bytes = (ByteBuf) o;
+      os.writeBytes(bytes, bytes.readerIndex(), bytes.readableBytes());
       os.writeBytes(CRLF);
     } else if (o instanceof byte[]) {
       os.writeByte('+');
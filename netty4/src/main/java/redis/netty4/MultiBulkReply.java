@@ -17,6 +17,7 @@ import static redis.util.Encoding.numToBytes;
 public class MultiBulkReply implements Reply<Reply[]> {
   public static final char MARKER = '*';
   public static final MultiBulkReply EMPTY = new MultiBulkReply(new Reply[0]);
+  public static final MultiBulkReply NIL_REPLY = new MultiBulkReply();
 
   private Reply[] replies;
   private int size = -2;
@@ -9,6 +9,8 @@ public class StatusReply implements Reply<String> {
   public static final char MARKER = '+';
   public static final StatusReply OK = new StatusReply("OK");
   public static final StatusReply QUIT = new StatusReply("OK");
+  public static final StatusReply PONG = new StatusReply("PONG");
+  public static final StatusReply QUEUED = new StatusReply("QUEUED");
   private final String status;
   private final byte[] statusBytes;
 
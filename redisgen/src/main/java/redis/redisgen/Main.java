@@ -6,6 +6,7 @@ import com.github.mustachejava.MustacheException;
 import com.github.mustachejava.MustacheFactory;
 import com.google.common.base.Function;
 import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Multimaps;
 import com.sampullara.cli.Args;
 import com.sampullara.cli.Argument;
@@ -52,6 +53,9 @@ public class Main {
   @Argument(alias = "n")
   private static String className = "RedisClient";
 
+  @Argument(alias = "c")
+  private static String commandsUrl = "https://raw.github.com/antirez/redis-doc/master/commands.json";
+
   private static Set<String> keywords = new HashSet<String>() {{
     add("type");
     add("object");
@@ -105,8 +109,11 @@ public class Main {
             "ZADD"
     ));
     JsonFactory jf = new MappingJsonFactory();
-    JsonParser jsonParser = jf.createJsonParser(new URL("https://raw.github.com/antirez/redis-doc/master/commands.json"));
+    JsonParser jsonParser = jf.createJsonParser(new URL(commandsUrl));
     final JsonNode commandNodes = jsonParser.readValueAsTree();
+    // Commands the server implements that commands.json doesn't describe
+    // yet, with their replies, kept in commands-extra.json
+    final JsonNode extraNodes = jf.createJsonParser(Main.class.getResource("/commands-extra.json")).readValueAsTree();
     Iterator<String> fieldNames = commandNodes.getFieldNames();
     ImmutableListMultimap<String,String> group = Multimaps.index(fieldNames,
             new Function<String, String>() {
@@ -115,15 +122,30 @@ public class Main {
                 return commandNodes.get(s).get("group").asText();
               }
             });
-    List<Object> commands = new ArrayList<Object>();
-    for (Map.Entry<String, String> entry : group.entries()) {
+    // The extra commands go last so that adding one doesn't renumber the rest
+    List<Map.Entry<String, String>> entries = new ArrayList<Map.Entry<String, String>>(group.entries());
+    Iterator<String> extraNames = extraNodes.getFieldNames();
+    while (extraNames.hasNext()) {
+      String name = extraNames.next();
+      if (commandNodes.get(name) == null) {
+        entries.add(Maps.immutableEntry(extraNodes.get(name).get("group").asText(), name));
+      }
+    }
+    final List<Object> commands = new ArrayList<Object>();
+    Map<Integer, List<Object>> hashes = new LinkedHashMap<Integer, List<Object>>();
+    for (Map.Entry<String, String> entry : entries) {
       String key = entry.getKey();
       final String groupName = key.substring(0, 1).toUpperCase() + key.substring(1);
       final String command = entry.getValue();
       if (ungenerated.contains(command)) continue;
       final boolean splitCommand = command.contains(" ");
       final String safeCommand = command.replace(" ", "_");
-      String cacheReply = cache.getProperty(command.toLowerCase());
+      JsonNode node = commandNodes.get(command);
+      if (node == null) {
+        node = extraNodes.get(command);
+      }
+      final JsonNode commandNode = node;
+      String cacheReply = commandNode.get("reply") == null ? cache.getProperty(command.toLowerCase()) : commandNode.get("reply").getTextValue();
       if (cacheReply == null) {
         final Document detail = db.parse("http://query.yahooapis.com/v1/public/yql/javarants/redisreply?url=" + URLEncoder.encode("http://redis.io/commands/" + safeCommand.toLowerCase(), "utf-8"));
         cacheReply = replyX.evaluate(detail).replaceAll("[- ]", "").replaceAll("reply", "Reply").replaceAll("bulk", "Bulk").replaceAll("Statuscode", "Status");
@@ -131,8 +153,10 @@ public class Main {
         cache.store(new FileWriter(cacheFile), "# Updated " + new Date());
       }
       final String finalReply = cacheReply;
-      final JsonNode commandNode = commandNodes.get(command);
-      commands.add(new Object() {
+      final int commandHash = hash(splitCommand ? command.substring(0, command.indexOf(" ")) : command);
+      Object commandObject = new Object() {
+        int index = commands.size();
+        int hash = commandHash;
         String group = groupName;
         boolean split_command = splitCommand;
         String name = safeCommand;
@@ -151,6 +175,8 @@ public class Main {
 
         boolean usearray = false;
         List<Object> arguments = new ArrayList<Object>();
+        // Whether each argument is optional and whether it is multiple
+        List<boolean[]> kinds = new ArrayList<boolean[]>();
 
         int base_length() {
           return arguments.size() - (hasMultiple ? 1 : 0);
@@ -171,6 +197,7 @@ public class Main {
                 String typename = "Object";
                 String name = "args";
               });
+              kinds.add(new boolean[]{false, true});
             } else {
               for (final JsonNode argumentNode : argumentArray) {
                 JsonNode nameNodes = argumentNode.get("name");
@@ -218,6 +245,7 @@ public class Main {
                     return skip;
                   }
                 });
+                kinds.add(new boolean[]{isOptional, isMultiple});
                 if (isMultiple) {
                   usearray = true;
                 }
@@ -229,15 +257,61 @@ public class Main {
           }
         }
 
+        // The method parameters and where they are found in the command,
+        // leaving out the same arguments as skip()
+        List<Object> parameters = new ArrayList<Object>();
+
+        {
+          int position = splitCommand ? 2 : 1;
+          for (final boolean[] kind : kinds) {
+            if (hasMultiple && kind[0] && !kind[1]) continue;
+            final boolean finalFirst = parameters.isEmpty();
+            final int finalPosition = position++;
+            parameters.add(new Object() {
+              boolean first = finalFirst;
+              boolean multiple = kind[1];
+              int position = finalPosition;
+            });
+          }
+        }
+
         String methodname = safeCommand.toLowerCase();
         String quote = keywords.contains(methodname) ? "`" : "";
+      };
+      commands.add(commandObject);
+      List<Object> sameHash = hashes.get(commandHash);
+      if (sameHash == null) {
+        hashes.put(commandHash, sameHash = new ArrayList<Object>());
+      }
+      sameHash.add(commandObject);
+    }
+
+    List<Object> hashList = new ArrayList<Object>();
+    for (final Map.Entry<Integer, List<Object>> entry : hashes.entrySet()) {
+      hashList.add(new Object() {
+        int hash = entry.getKey();
+        List<Object> commands = entry.getValue();
       });
     }
 
     Map<String, Object> ctx = new HashMap<String, Object>();
     ctx.put("commands", commands);
+    ctx.put("count", commands.size());
+    ctx.put("hashes", hashList);
     File base = new File(dest, pkg.replace(".", "/"));
     base.mkdirs();
     mustache.execute(new FileWriter(new File(base, className + "." + language)), ctx).close();
   }
+
+  /**
+   * Case insensitive hash of a command name, must match the one in the
+   * nettyserverdispatcher template.
+   */
+  static int hash(String name) {
+    int h = 0;
+    for (byte b : name.getBytes()) {
+      h = 31 * h + (b & 0xDF);
+    }
+    return h;
+  }
 }
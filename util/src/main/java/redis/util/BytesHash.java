@@ -0,0 +1,172 @@
+package redis.util;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Fields and values that are byte arrays kept the way redis keeps hashes
+ * <p/>
+ * A hash starts out as a listpack of each field followed by its value while
+ * it has few fields and short values, and becomes a BytesMap once it
+ * outgrows that. Finding a field in the listpack means comparing it
+ * with the fields before it, but for a hash that small that is about as fast
+ * as hashing it, and a field and its value take their bytes and a few bytes
+ * of length instead of two arrays and a hash table slot. Like redis a
+ * hash never goes back to a listpack.
+ */
+public class BytesHash implements Iterable<Map.Entry<byte[], byte[]>> {
+
+  private final int maxEntries;
+  private final int maxValue;
+
+  // One of these holds the fields
+  private Listpack pack;
+  private BytesMap<byte[]> table;
+
+  /**
+   * A hash that is a listpack for up to maxEntries fields with fields and
+   * values of up to maxValue bytes.
+   */
+  public BytesHash(int maxEntries, int maxValue) {
+    this.maxEntries = maxEntries;
+    this.maxValue = maxValue;
+    if (maxEntries > 0) {
+      pack = new Listpack();
+    } else {
+      table = new BytesMap<byte[]>();
+    }
+  }
+
+  /**
+   * How the fields are kept, as OBJECT ENCODING names it.
+   */
+  public String encoding() {
+    return pack != null ? "listpack" : "hashtable";
+  }
+
+  /**
+   * Bytes held by a listpack, or -1 for a map.
+   */
+  public long allocated() {
+    return pack != null ? pack.allocated() : -1;
+  }
+
+  public int size() {
+    return pack != null ? pack.size() / 2 : table.size();
+  }
+
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  /**
+   * The value of a field, or null if it isn't there.
+   */
+  public byte[] get(byte[] field) {
+    if (pack != null) {
+      int offset = pack.find(field, 2);
+      return offset == -1 ? null : pack.get(pack.next(offset));
+    }
+    return table.get(field);
+  }
+
+  /**
+   * Set a field and return its previous value, or null if it is new.
+   */
+  public byte[] put(byte[] field, byte[] value) {
+    if (pack != null) {
+      int offset = pack.find(field, 2);
+      if (offset != -1 && value.length <= maxValue) {
+        int at = pack.next(offset);
+        byte[] previous = pack.get(at);
+        pack.replace(at, value);
+        return previous;
+      }
+      if (offset == -1 && pack.size() / 2 < maxEntries && field.length <= maxValue && value.length <= maxValue) {
+        pack.insert(pack.end(), field);
+        pack.insert(pack.end(), value);
+        return null;
+      }
+      convert();
+    }
+    return table.put(field, value);
+  }
+
+  /**
+   * Remove a field and return its value, or null if it wasn't there.
+   */
+  public byte[] remove(byte[] field) {
+    if (pack != null) {
+      int offset = pack.find(field, 2);
+      if (offset == -1) {
+        return null;
+      }
+      byte[] previous = pack.get(pack.next(offset));
+      pack.remove(offset, 2);
+      return previous;
+    }
+    return table.remove(field);
+  }
+
+  private void convert() {
+    BytesMap<byte[]> converted = new BytesMap<byte[]>(size());
+    for (Map.Entry<byte[], byte[]> entry : this) {
+      converted.put(entry.getKey(), entry.getValue());
+    }
+    pack = null;
+    table = converted;
+  }
+
+  /**
+   * Visit some of the fields and their values from a cursor and return the
+   * cursor to continue from, or 0 once they have all been visited, as
+   * BytesMap.scan() does. A listpack is small enough to visit in one go.
+   */
+  public int scan(int cursor, BytesMap.Visitor<byte[]> visitor) {
+    if (table != null) {
+      return table.scan(cursor, visitor);
+    }
+    for (Map.Entry<byte[], byte[]> entry : this) {
+      visitor.visit(entry.getKey(), entry.getValue());
+    }
+    return 0;
+  }
+
+  /**
+   * The fields and their values. The entries can't be changed.
+   */
+  @Override
+  public Iterator<Map.Entry<byte[], byte[]>> iterator() {
+    if (table != null) {
+      return table.entries().iterator();
+    }
+    final Listpack pack = this.pack;
+    return new Iterator<Map.Entry<byte[], byte[]>>() {
+      private int offset;
+
+      @Override
+      public boolean hasNext() {
+        return offset < pack.end();
+      }
+
+      @Override
+      public Map.Entry<byte[], byte[]> next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        byte[] field = pack.get(offset);
+        offset = pack.next(offset);
+        byte[] value = pack.get(offset);
+        offset = pack.next(offset);
+        return new AbstractMap.SimpleImmutableEntry<byte[], byte[]>(field, value);
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+}
@@ -27,11 +27,7 @@ public class BytesKey extends BytesValue implements Comparable<BytesKey> {
 
   public BytesKey(byte[] bytes) {
     super(bytes);
-    int hashCode = 0;
-    for (byte aByte : this.bytes) {
-      hashCode += 43 * aByte;
-    }
-    this.hashCode = hashCode;
+    this.hashCode = Hashing.hash(bytes);
   }
 
   public int hashCode() {
@@ -0,0 +1,565 @@
+package redis.util;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * Open addressing hash map keyed directly by byte[]s. There is no entry object
+ * per mapping, just a slot in parallel key, value and hash arrays, and lookups
+ * don't allocate. When the table fills up a new one is created and the old
+ * slots are moved over a few at a time by later puts and removes so that no
+ * single command pays for rehashing the whole map.
+ * <p/>
+ * Keys are not copied and must not be changed while they are in the map. The
+ * map must not be changed while iterating except through Iterator.remove().
+ * <p/>
+ * Each mapping also has a long of metadata that the map keeps with it but
+ * never looks at, for things like access times. It starts at 0 and is reached
+ * through a slot handle so that reading a value and updating its metadata
+ * only costs one lookup.
+ */
+public class BytesMap<V> {
+  private static final int MIN_CAPACITY = 16;
+  // Old slots moved to the new table by each put or remove
+  private static final int REHASH_STEP = 16;
+  // Marks a removed slot so that probing continues past it
+  private static final byte[] TOMBSTONE = new byte[0];
+  // Set in a slot handle that refers to the old table
+  private static final int OLD = 1 << 30;
+
+  private Table table;
+  // The table being drained into table while a rehash is in progress
+  private Table old;
+  private int rehashIndex;
+  private int size;
+
+  private static class Table {
+    final byte[][] keys;
+    final Object[] values;
+    final int[] hashes;
+    final long[] metas;
+    final int mask;
+    final int threshold;
+    // Slots that are not empty, tombstones included
+    int used;
+    // Slots holding a mapping
+    int live;
+
+    Table(int capacity) {
+      keys = new byte[capacity][];
+      values = new Object[capacity];
+      hashes = new int[capacity];
+      metas = new long[capacity];
+      mask = capacity - 1;
+      threshold = capacity / 4 * 3;
+    }
+
+    int find(byte[] key, int hash) {
+      int index = hash & mask;
+      byte[] current;
+      while ((current = keys[index]) != null) {
+        if (current != TOMBSTONE && hashes[index] == hash && BytesValue.equals(current, key)) {
+          return index;
+        }
+        index = (index + 1) & mask;
+      }
+      return -1;
+    }
+
+    void insert(byte[] key, int hash, Object value, long meta) {
+      int index = hash & mask;
+      byte[] current;
+      while ((current = keys[index]) != null && current != TOMBSTONE) {
+        index = (index + 1) & mask;
+      }
+      if (current == null) {
+        used++;
+      }
+      keys[index] = key;
+      hashes[index] = hash;
+      values[index] = value;
+      metas[index] = meta;
+      live++;
+    }
+
+    Object delete(int index) {
+      Object value = values[index];
+      keys[index] = TOMBSTONE;
+      values[index] = null;
+      metas[index] = 0;
+      live--;
+      return value;
+    }
+
+    boolean isLive(int index) {
+      byte[] key = keys[index];
+      return key != null && key != TOMBSTONE;
+    }
+  }
+
+  public BytesMap() {
+    this(MIN_CAPACITY);
+  }
+
+  /**
+   * @param expected number of mappings to size the table for
+   */
+  public BytesMap(int expected) {
+    table = new Table(capacityFor(expected));
+  }
+
+  private static int capacityFor(int entries) {
+    int capacity = MIN_CAPACITY;
+    while (capacity / 2 < entries && capacity < (1 << 30)) {
+      capacity <<= 1;
+    }
+    return capacity;
+  }
+
+  static int hash(byte[] key) {
+    return Hashing.hash(key);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  @SuppressWarnings("unchecked")
+  public V get(byte[] key) {
+    int hash = hash(key);
+    int index = table.find(key, hash);
+    if (index >= 0) {
+      return (V) table.values[index];
+    }
+    if (old != null) {
+      index = old.find(key, hash);
+      if (index >= 0) {
+        return (V) old.values[index];
+      }
+    }
+    return null;
+  }
+
+  public boolean containsKey(byte[] key) {
+    int hash = hash(key);
+    return table.find(key, hash) >= 0 || (old != null && old.find(key, hash) >= 0);
+  }
+
+  @SuppressWarnings("unchecked")
+  public V put(byte[] key, V value) {
+    int hash = hash(key);
+    int index = table.find(key, hash);
+    if (index >= 0) {
+      V previous = (V) table.values[index];
+      table.values[index] = value;
+      return previous;
+    }
+    V previous = null;
+    long meta = 0;
+    if (old != null) {
+      index = old.find(key, hash);
+      if (index >= 0) {
+        meta = old.metas[index];
+        previous = (V) old.delete(index);
+        size--;
+      }
+    }
+    // Slots still waiting in the old table count against the new one
+    if (table.used + (old == null ? 0 : old.live) >= table.threshold) {
+      grow();
+    }
+    table.insert(key, hash, value, meta);
+    size++;
+    rehash(REHASH_STEP);
+    return previous;
+  }
+
+  @SuppressWarnings("unchecked")
+  public V remove(byte[] key) {
+    int hash = hash(key);
+    V previous = null;
+    int index = table.find(key, hash);
+    if (index >= 0) {
+      previous = (V) table.delete(index);
+      size--;
+    } else if (old != null) {
+      index = old.find(key, hash);
+      if (index >= 0) {
+        previous = (V) old.delete(index);
+        size--;
+      }
+    }
+    rehash(REHASH_STEP);
+    return previous;
+  }
+
+  public void clear() {
+    table = new Table(MIN_CAPACITY);
+    old = null;
+    size = 0;
+  }
+
+  private void grow() {
+    if (old != null) {
+      // Not reached, the new table is sized so the old one always drains
+      // first, but finishing it here keeps the map correct if it were
+      rehash(Integer.MAX_VALUE);
+    }
+    old = table;
+    rehashIndex = 0;
+    // Sized from the live mappings so a table full of tombstones isn't
+    // doubled, plus every insert it can take before the old table is
+    // drained REHASH_STEP slots at a time, so it never has to grow again
+    // until then
+    table = new Table(capacityFor(old.live + old.keys.length / REHASH_STEP + 1));
+  }
+
+  /**
+   * The old slots a rehash in progress still has to move, or 0.
+   */
+  int rehashing() {
+    return old == null ? 0 : old.keys.length - rehashIndex;
+  }
+
+  /**
+   * Move up to the given number of slots from the old table to the new one.
+   */
+  private void rehash(int slots) {
+    if (old == null) {
+      return;
+    }
+    int end = (int) Math.min((long) rehashIndex + slots, old.keys.length);
+    for (; rehashIndex < end; rehashIndex++) {
+      if (old.isLive(rehashIndex)) {
+        long meta = old.metas[rehashIndex];
+        table.insert(old.keys[rehashIndex], old.hashes[rehashIndex], old.delete(rehashIndex), meta);
+      }
+    }
+    if (rehashIndex == old.keys.length) {
+      old = null;
+    }
+  }
+
+  /**
+   * A random key, or null if the map is empty.
+   */
+  public byte[] randomKey(Random random) {
+    int slot = randomSlot(random);
+    return slot == -1 ? null : keyAt(slot);
+  }
+
+  /**
+   * The slot of a random mapping, or -1 if the map is empty. Like redis this
+   * samples random slots, falling back to a scan if the table is very sparse.
+   */
+  public int randomSlot(Random random) {
+    if (size == 0) {
+      return -1;
+    }
+    boolean inOld = old != null && random.nextInt(size) < old.live;
+    Table t = inOld ? old : table;
+    int length = t.keys.length;
+    int index = random.nextInt(length);
+    for (int tries = 0; tries < 100; tries++) {
+      if (t.isLive(index)) {
+        return inOld ? index | OLD : index;
+      }
+      index = random.nextInt(length);
+    }
+    for (int i = 0; i < length; i++) {
+      if (t.isLive(index)) {
+        return inOld ? index | OLD : index;
+      }
+      index = (index + 1) & t.mask;
+    }
+    // Only reachable if the chosen table is empty
+    return randomSlot(random);
+  }
+
+  /**
+   * A handle on the slot holding a key, or -1 if it isn't in the map. The
+   * handle is only good until the map is next changed.
+   */
+  public int slot(byte[] key) {
+    int hash = hash(key);
+    int index = table.find(key, hash);
+    if (index >= 0) {
+      return index;
+    }
+    if (old != null) {
+      index = old.find(key, hash);
+      if (index >= 0) {
+        return index | OLD;
+      }
+    }
+    return -1;
+  }
+
+  private Table tableOf(int slot) {
+    return (slot & OLD) == 0 ? table : old;
+  }
+
+  public byte[] keyAt(int slot) {
+    return tableOf(slot).keys[slot & ~OLD];
+  }
+
+  @SuppressWarnings("unchecked")
+  public V valueAt(int slot) {
+    return (V) tableOf(slot).values[slot & ~OLD];
+  }
+
+  public long metaAt(int slot) {
+    return tableOf(slot).metas[slot & ~OLD];
+  }
+
+  public void setMetaAt(int slot, long meta) {
+    tableOf(slot).metas[slot & ~OLD] = meta;
+  }
+
+  @SuppressWarnings("unchecked")
+  public V removeAt(int slot) {
+    V previous = (V) tableOf(slot).delete(slot & ~OLD);
+    size--;
+    rehash(REHASH_STEP);
+    return previous;
+  }
+
+  /**
+   * The keys. The iterator supports remove().
+   */
+  public Iterable<byte[]> keys() {
+    return new Iterable<byte[]>() {
+      @Override
+      public Iterator<byte[]> iterator() {
+        return new SlotIterator<byte[]>() {
+          @Override
+          byte[] get(Table t, int index) {
+            return t.keys[index];
+          }
+        };
+      }
+    };
+  }
+
+  /**
+   * The values. The iterator supports remove().
+   */
+  public Iterable<V> values() {
+    return new Iterable<V>() {
+      @Override
+      public Iterator<V> iterator() {
+        return new SlotIterator<V>() {
+          @SuppressWarnings("unchecked")
+          @Override
+          V get(Table t, int index) {
+            return (V) t.values[index];
+          }
+        };
+      }
+    };
+  }
+
+  /**
+   * The keys and values. The entries can't be changed but the iterator
+   * supports remove().
+   */
+  public Iterable<Map.Entry<byte[], V>> entries() {
+    return new Iterable<Map.Entry<byte[], V>>() {
+      @Override
+      public Iterator<Map.Entry<byte[], V>> iterator() {
+        return new SlotIterator<Map.Entry<byte[], V>>() {
+          @SuppressWarnings("unchecked")
+          @Override
+          Map.Entry<byte[], V> get(Table t, int index) {
+            return new AbstractMap.SimpleImmutableEntry<byte[], V>(t.keys[index], (V) t.values[index]);
+          }
+        };
+      }
+    };
+  }
+
+  /**
+   * Receives the mappings a scan comes across.
+   */
+  public interface Visitor<V> {
+    void visit(byte[] key, V value);
+  }
+
+  /**
+   * Visit the mappings that hash to the bucket named by a cursor and return
+   * the cursor of the next bucket, or 0 once every bucket has been visited.
+   * Scanning from 0 until it comes back to 0 visits every mapping that was
+   * in the map the whole time at least once, however the map is changed and
+   * resized in between, though some may be visited more than once.
+   * <p/>
+   * This is the cursor redis uses for SCAN. A bucket here is every slot whose
+   * mapping's hash starts probing at the same index, which are all in the
+   * run of occupied slots from that index since removals leave tombstones.
+   * The cursor is advanced by incrementing its bits in reverse so that the
+   * buckets of a table twice the size, or half, that a mapping can move to
+   * come after or with the ones already visited. While a rehash is in
+   * progress a bucket of the smaller table is visited together with all of
+   * the buckets of the larger table that it splits into.
+   * <p/>
+   * The map must not be changed by the visitor.
+   */
+  public int scan(int cursor, Visitor<? super V> visitor) {
+    if (old == null) {
+      int mask = table.mask;
+      visit(table, cursor & mask, visitor);
+      return next(cursor, mask);
+    }
+    Table small = old.mask <= table.mask ? old : table;
+    Table large = small == old ? table : old;
+    visit(small, cursor & small.mask, visitor);
+    // The buckets of the larger table whose low bits name the same bucket
+    // of the smaller one
+    do {
+      visit(large, cursor & large.mask, visitor);
+      cursor = next(cursor, large.mask);
+    } while ((cursor & (small.mask ^ large.mask)) != 0);
+    return cursor;
+  }
+
+  private static int next(int cursor, int mask) {
+    // Set the bits above the mask so the increment carries out of them
+    cursor |= ~mask;
+    return Integer.reverse(Integer.reverse(cursor) + 1);
+  }
+
+  @SuppressWarnings("unchecked")
+  private void visit(Table t, int bucket, Visitor<? super V> visitor) {
+    int index = bucket;
+    byte[] key;
+    while ((key = t.keys[index]) != null) {
+      if (key != TOMBSTONE && (t.hashes[index] & t.mask) == bucket) {
+        visitor.visit(key, (V) t.values[index]);
+      }
+      index = (index + 1) & t.mask;
+    }
+  }
+
+  /**
+   * The keys as they are now, for walking a map that keeps changing a piece
+   * at a time. Only the slot arrays are copied, which is much cheaper than
+   * visiting every key, so slots without a key are skipped as they are read.
+   */
+  public Keys snapshot() {
+    return new Keys(table.keys.clone(), old == null ? null : old.keys.clone());
+  }
+
+  public static class Keys {
+    private final byte[][] slots;
+    private final byte[][] old;
+
+    private Keys(byte[][] slots, byte[][] old) {
+      this.slots = slots;
+      this.old = old;
+    }
+
+    /**
+     * The number of slots, some of which may not hold a key.
+     */
+    public int capacity() {
+      return slots.length + (old == null ? 0 : old.length);
+    }
+
+    /**
+     * The key that was in a slot, or null if there wasn't one.
+     */
+    public byte[] get(int index) {
+      byte[] key = index < slots.length ? slots[index] : old[index - slots.length];
+      return key == TOMBSTONE ? null : key;
+    }
+
+    /**
+     * The slot a key was in, or -1 if it wasn't in the map.
+     */
+    public int indexOf(byte[] key) {
+      int hash = hash(key);
+      int index = find(slots, key, hash);
+      if (index == -1 && old != null) {
+        index = find(old, key, hash);
+        if (index != -1) {
+          index += slots.length;
+        }
+      }
+      return index;
+    }
+
+    private static int find(byte[][] keys, byte[] key, int hash) {
+      int mask = keys.length - 1;
+      int index = hash & mask;
+      byte[] current;
+      while ((current = keys[index]) != null) {
+        if (current == key || (current != TOMBSTONE && BytesValue.equals(current, key))) {
+          return index;
+        }
+        index = (index + 1) & mask;
+      }
+      return -1;
+    }
+  }
+
+  /**
+   * Walks the live slots of the new table and then the old one.
+   */
+  private abstract class SlotIterator<T> implements Iterator<T> {
+    private Table current = table;
+    private int index = -1;
+    private Table lastTable;
+    private int last = -1;
+
+    SlotIterator() {
+      advance();
+    }
+
+    private void advance() {
+      while (current != null) {
+        while (++index < current.keys.length) {
+          if (current.isLive(index)) {
+            return;
+          }
+        }
+        current = current == table && old != null ? old : null;
+        index = -1;
+      }
+    }
+
+    abstract T get(Table t, int index);
+
+    @Override
+    public boolean hasNext() {
+      return current != null;
+    }
+
+    @Override
+    public T next() {
+      if (current == null) {
+        throw new NoSuchElementException();
+      }
+      lastTable = current;
+      last = index;
+      T t = get(current, index);
+      advance();
+      return t;
+    }
+
+    @Override
+    public void remove() {
+      if (last == -1) {
+        throw new IllegalStateException();
+      }
+      lastTable.delete(last);
+      size--;
+      last = -1;
+    }
+  }
+}
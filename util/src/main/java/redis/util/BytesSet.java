@@ -0,0 +1,236 @@
+package redis.util;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * A set of byte arrays kept the way redis keeps sets
+ * <p/>
+ * A set starts out as an intset while every member is an integer, or as a
+ * listpack while it has few members that are all short, and becomes a
+ * BytesMap of the members once it outgrows them. Members are looked up by
+ * binary search in an intset and one by one in a listpack, which for the
+ * sizes they are allowed costs about what hashing does, while each member
+ * takes its bytes instead of an array and a hash table slot. Like redis
+ * a set never goes back to a compact encoding.
+ */
+public class BytesSet implements Iterable<byte[]> {
+
+  private final int maxIntset;
+  private final int maxEntries;
+  private final int maxValue;
+
+  // Exactly one of these holds the members
+  private IntSet ints;
+  private Listpack pack;
+  private BytesMap<Boolean> table;
+
+  /**
+   * A set that is an intset for up to maxIntset integers, or else a listpack
+   * for up to maxEntries members of up to maxValue bytes.
+   */
+  public BytesSet(int maxIntset, int maxEntries, int maxValue) {
+    this.maxIntset = maxIntset;
+    this.maxEntries = maxEntries;
+    this.maxValue = maxValue;
+    if (maxIntset > 0) {
+      ints = new IntSet();
+    } else if (maxEntries > 0) {
+      pack = new Listpack();
+    } else {
+      table = new BytesMap<Boolean>();
+    }
+  }
+
+  /**
+   * An empty set that is encoded the same way this one would be.
+   */
+  public BytesSet emptyCopy() {
+    return new BytesSet(maxIntset, maxEntries, maxValue);
+  }
+
+  /**
+   * How the members are kept, as OBJECT ENCODING names it.
+   */
+  public String encoding() {
+    return ints != null ? "intset" : pack != null ? "listpack" : "hashtable";
+  }
+
+  /**
+   * Bytes held by an intset or listpack, or -1 for a hash set.
+   */
+  public long allocated() {
+    return ints != null ? ints.allocated() : pack != null ? pack.allocated() : -1;
+  }
+
+  public int size() {
+    return ints != null ? ints.size() : pack != null ? pack.size() : table.size();
+  }
+
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  public boolean contains(byte[] member) {
+    if (ints != null) {
+      return IntSet.isInteger(member) && ints.contains(Encoding.bytesToNum(member));
+    } else if (pack != null) {
+      return pack.find(member, 1) != -1;
+    }
+    return table.containsKey(member);
+  }
+
+  /**
+   * Returns true if it wasn't there already.
+   */
+  public boolean add(byte[] member) {
+    if (ints != null) {
+      if (IntSet.isInteger(member)) {
+        long value = Encoding.bytesToNum(member);
+        if (ints.contains(value)) {
+          return false;
+        }
+        if (ints.size() < maxIntset) {
+          return ints.add(value);
+        }
+      }
+      convert(member);
+      return add(member);
+    } else if (pack != null) {
+      if (pack.find(member, 1) != -1) {
+        return false;
+      }
+      if (pack.size() < maxEntries && member.length <= maxValue) {
+        pack.insert(pack.end(), member);
+        return true;
+      }
+      convert(member);
+    }
+    return table.put(member, Boolean.TRUE) == null;
+  }
+
+  /**
+   * Returns true if it was there to remove.
+   */
+  public boolean remove(byte[] member) {
+    if (ints != null) {
+      return IntSet.isInteger(member) && ints.remove(Encoding.bytesToNum(member));
+    } else if (pack != null) {
+      int offset = pack.find(member, 1);
+      if (offset == -1) {
+        return false;
+      }
+      pack.remove(offset, 1);
+      return true;
+    }
+    return table.remove(member) != null;
+  }
+
+  public void addAll(BytesSet other) {
+    for (byte[] member : other) {
+      add(member);
+    }
+  }
+
+  public void removeAll(BytesSet other) {
+    for (byte[] member : other) {
+      remove(member);
+    }
+  }
+
+  /**
+   * A member picked at random, or null if there are none.
+   */
+  public byte[] random(Random random) {
+    int size = size();
+    if (size == 0) {
+      return null;
+    }
+    int index = random.nextInt(size);
+    if (ints != null) {
+      return Encoding.numToBytes(ints.get(index));
+    } else if (pack != null) {
+      return pack.get(pack.offsetOf(index));
+    }
+    return table.randomKey(random);
+  }
+
+  /**
+   * Move the members out of an intset or listpack that can't take member
+   * into whichever encoding can, before it is added.
+   */
+  private void convert(byte[] member) {
+    int size = size();
+    boolean packs = size < maxEntries && member.length <= maxValue;
+    for (Iterator<byte[]> i = iterator(); packs && i.hasNext(); ) {
+      packs = i.next().length <= maxValue;
+    }
+    if (packs && ints != null) {
+      Listpack converted = new Listpack();
+      for (int i = 0; i < size; i++) {
+        converted.insert(converted.end(), Encoding.numToBytes(ints.get(i)));
+      }
+      ints = null;
+      pack = converted;
+      return;
+    }
+    BytesMap<Boolean> converted = new BytesMap<Boolean>(size + 1);
+    for (byte[] existing : this) {
+      converted.put(existing, Boolean.TRUE);
+    }
+    ints = null;
+    pack = null;
+    table = converted;
+  }
+
+  /**
+   * Visit some of the members from a cursor and return the cursor to
+   * continue from, or 0 once they have all been visited, as BytesMap.scan()
+   * does. An intset or listpack is small enough to visit in one go.
+   */
+  public int scan(int cursor, BytesMap.Visitor<Object> visitor) {
+    if (table != null) {
+      return table.scan(cursor, visitor);
+    }
+    for (byte[] member : this) {
+      visitor.visit(member, null);
+    }
+    return 0;
+  }
+
+  @Override
+  public Iterator<byte[]> iterator() {
+    if (table != null) {
+      return table.keys().iterator();
+    }
+    return new Iterator<byte[]>() {
+      private int index;
+      private int offset;
+
+      @Override
+      public boolean hasNext() {
+        return index < size();
+      }
+
+      @Override
+      public byte[] next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        index++;
+        if (ints != null) {
+          return Encoding.numToBytes(ints.get(index - 1));
+        }
+        byte[] member = pack.get(offset);
+        offset = pack.next(offset);
+        return member;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+}
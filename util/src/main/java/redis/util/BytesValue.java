@@ -16,11 +16,7 @@ public class BytesValue {
 
   @Override
   public int hashCode() {
-    int hashCode = 0;
-    for (byte aByte : this.bytes) {
-      hashCode += 43 * aByte;
-    }
-    return hashCode;
+    return Hashing.hash(bytes);
   }
 
   public static boolean equals(byte[] thisBytes, byte[] otherBytes) {
@@ -0,0 +1,35 @@
+package redis.util;
+
+/**
+ * The CRC-64 redis uses to checksum RDB files, the Jones polynomial in its
+ * reflected form with no final xor. Use it incrementally by passing the
+ * previous result back in.
+ */
+public class Crc64 {
+  private static final long POLY = 0x95AC9329AC4BC9B5L;
+  private static final long[] TABLE = new long[256];
+
+  static {
+    for (int i = 0; i < 256; i++) {
+      long crc = i;
+      for (int j = 0; j < 8; j++) {
+        crc = (crc & 1) == 1 ? (crc >>> 1) ^ POLY : crc >>> 1;
+      }
+      TABLE[i] = crc;
+    }
+  }
+
+  private Crc64() {
+  }
+
+  public static long update(long crc, byte[] bytes, int offset, int length) {
+    for (int i = offset, end = offset + length; i < end; i++) {
+      crc = TABLE[(int) (crc ^ bytes[i]) & 0xFF] ^ (crc >>> 8);
+    }
+    return crc;
+  }
+
+  public static long crc(byte[] bytes) {
+    return update(0, bytes, 0, bytes.length);
+  }
+}
@@ -0,0 +1,197 @@
+package redis.util;
+
+import java.util.Arrays;
+
+/**
+ * A glob-style pattern compiled once for matching many keys or channels,
+ * with the same syntax as redis: * matches any run of bytes, ? any single
+ * byte, [abc], [a-z] and [^abc] a byte from or outside a set, and \ escapes
+ * the byte after it. An unterminated [ ends at the end of the pattern and a
+ * trailing \ is a literal backslash.
+ * <p/>
+ * The pattern is turned into a sequence of single byte steps, with the sets
+ * as 256 bit masks, and *s between them. Matching keeps only the position of
+ * the last * to go back to, which is all glob patterns ever need, so a
+ * pattern full of *s costs at most the length of the input times the length
+ * of the pattern rather than the exponential time of trying every split.
+ * <p/>
+ * The literal bytes a pattern starts with are kept as its prefix, which is
+ * compared before anything else and which callers can use to look in fewer
+ * places, e.g. only channels or shards that can have that prefix.
+ */
+public class Glob {
+  private static final byte LITERAL = 0;
+  private static final byte ANY = 1;
+  private static final byte SET = 2;
+  private static final byte STAR = 3;
+
+  private final byte[] pattern;
+  private final byte[] kinds;
+  // The byte of each literal step
+  private final byte[] literals;
+  // The mask of each set step
+  private final long[][] sets;
+  private final byte[] prefix;
+
+  private Glob(byte[] pattern) {
+    this.pattern = pattern;
+    int length = pattern.length;
+    byte[] kinds = new byte[length];
+    byte[] literals = new byte[length];
+    long[][] sets = new long[length][];
+    int steps = 0;
+    for (int i = 0; i < length; i++) {
+      byte b = pattern[i];
+      switch (b) {
+        case '*':
+          // A run of *s is the same as one
+          if (steps == 0 || kinds[steps - 1] != STAR) {
+            kinds[steps++] = STAR;
+          }
+          break;
+        case '?':
+          kinds[steps++] = ANY;
+          break;
+        case '[':
+          i = set(pattern, i + 1, sets[steps] = new long[4]);
+          kinds[steps++] = SET;
+          break;
+        case '\\':
+          if (i + 1 < length) {
+            b = pattern[++i];
+          }
+          // Fall through
+        default:
+          literals[steps] = b;
+          kinds[steps++] = LITERAL;
+      }
+    }
+    this.kinds = Arrays.copyOf(kinds, steps);
+    this.literals = Arrays.copyOf(literals, steps);
+    this.sets = Arrays.copyOf(sets, steps);
+    int prefix = 0;
+    while (prefix < steps && kinds[prefix] == LITERAL) {
+      prefix++;
+    }
+    this.prefix = Arrays.copyOf(literals, prefix);
+  }
+
+  /**
+   * Fill in the mask of the set that starts at start, just after the [, and
+   * return the position of its ].
+   */
+  private static int set(byte[] pattern, int start, long[] mask) {
+    int length = pattern.length;
+    int i = start;
+    boolean not = i < length && pattern[i] == '^';
+    if (not) {
+      i++;
+    }
+    for (; i < length && pattern[i] != ']'; i++) {
+      if (pattern[i] == '\\' && i + 1 < length) {
+        add(mask, pattern[++i] & 0xFF, pattern[i] & 0xFF);
+      } else if (i + 2 < length && pattern[i + 1] == '-') {
+        int from = pattern[i] & 0xFF;
+        int to = pattern[i + 2] & 0xFF;
+        add(mask, Math.min(from, to), Math.max(from, to));
+        i += 2;
+      } else {
+        add(mask, pattern[i] & 0xFF, pattern[i] & 0xFF);
+      }
+    }
+    if (not) {
+      for (int j = 0; j < mask.length; j++) {
+        mask[j] = ~mask[j];
+      }
+    }
+    return i;
+  }
+
+  private static void add(long[] mask, int from, int to) {
+    for (int b = from; b <= to; b++) {
+      mask[b >>> 6] |= 1L << b;
+    }
+  }
+
+  public static Glob compile(byte[] pattern) {
+    return new Glob(pattern);
+  }
+
+  /**
+   * The pattern as it was given.
+   */
+  public byte[] pattern() {
+    return pattern;
+  }
+
+  /**
+   * The literal bytes that everything the pattern matches starts with.
+   */
+  public byte[] prefix() {
+    return prefix;
+  }
+
+  /**
+   * Whether the pattern only matches its prefix, having no wildcards.
+   */
+  public boolean isLiteral() {
+    return prefix.length == kinds.length;
+  }
+
+  public boolean matches(byte[] bytes) {
+    int length = bytes.length;
+    int p = prefix.length;
+    if (length < p) {
+      return false;
+    }
+    for (int i = 0; i < p; i++) {
+      if (bytes[i] != prefix[i]) {
+        return false;
+      }
+    }
+    int steps = kinds.length;
+    int step = p;
+    int at = p;
+    // Where to go back to when a step fails: the step after the last * and
+    // the next byte that * could stop at
+    int starStep = -1;
+    int starAt = 0;
+    while (at < length) {
+      if (step < steps) {
+        byte kind = kinds[step];
+        if (kind == STAR) {
+          starStep = ++step;
+          starAt = at;
+          continue;
+        }
+        if (accepts(step, kind, bytes[at])) {
+          step++;
+          at++;
+          continue;
+        }
+      }
+      if (starStep == -1) {
+        return false;
+      }
+      // Let the last * take one more byte and try again from there
+      step = starStep;
+      at = ++starAt;
+    }
+    while (step < steps && kinds[step] == STAR) {
+      step++;
+    }
+    return step == steps;
+  }
+
+  private boolean accepts(int step, byte kind, byte b) {
+    switch (kind) {
+      case LITERAL:
+        return literals[step] == b;
+      case ANY:
+        return true;
+      default:
+        int i = b & 0xFF;
+        return (sets[step][i >>> 6] & (1L << i)) != 0;
+    }
+  }
+}
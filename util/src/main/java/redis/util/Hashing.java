@@ -0,0 +1,99 @@
+package redis.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The hash used for byte[] keys everywhere, XXH64 with a zero seed. Input is
+ * consumed 8 bytes at a time, and inputs of 32 bytes or more are split over
+ * four independent accumulators so the multiplies can overlap. Unlike the
+ * additive hash it replaces, the position of every byte matters, so anagrams
+ * like user:12 and user:21 hash differently.
+ */
+public class Hashing {
+  private static final long PRIME1 = 0x9E3779B185EBCA87L;
+  private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+  private static final long PRIME3 = 0x165667B19E3779F9L;
+  private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+  private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+  private Hashing() {
+  }
+
+  /**
+   * 32 bit hash of a whole array, for hashCode() and hash tables.
+   */
+  public static int hash(byte[] bytes) {
+    return hash(bytes, 0, bytes.length);
+  }
+
+  public static int hash(byte[] bytes, int offset, int length) {
+    long h = hash64(bytes, offset, length);
+    return (int) (h ^ (h >>> 32));
+  }
+
+  public static long hash64(byte[] bytes) {
+    return hash64(bytes, 0, bytes.length);
+  }
+
+  public static long hash64(byte[] bytes, int offset, int length) {
+    // Word reads through a buffer view compile to single unaligned loads and
+    // the wrapper itself is optimized away
+    ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    int i = offset;
+    int end = offset + length;
+    long h;
+    if (length >= 32) {
+      long v1 = PRIME1 + PRIME2;
+      long v2 = PRIME2;
+      long v3 = 0;
+      long v4 = -PRIME1;
+      int limit = end - 32;
+      do {
+        v1 = round(v1, buffer.getLong(i));
+        v2 = round(v2, buffer.getLong(i + 8));
+        v3 = round(v3, buffer.getLong(i + 16));
+        v4 = round(v4, buffer.getLong(i + 24));
+        i += 32;
+      } while (i <= limit);
+      h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+      h = merge(h, v1);
+      h = merge(h, v2);
+      h = merge(h, v3);
+      h = merge(h, v4);
+    } else {
+      h = PRIME5;
+    }
+    h += length;
+    for (; i + 8 <= end; i += 8) {
+      h ^= round(0, buffer.getLong(i));
+      h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+    }
+    if (i + 4 <= end) {
+      h ^= (buffer.getInt(i) & 0xFFFFFFFFL) * PRIME1;
+      h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+      i += 4;
+    }
+    for (; i < end; i++) {
+      h ^= (bytes[i] & 0xFFL) * PRIME5;
+      h = Long.rotateLeft(h, 11) * PRIME1;
+    }
+    h ^= h >>> 33;
+    h *= PRIME2;
+    h ^= h >>> 29;
+    h *= PRIME3;
+    h ^= h >>> 32;
+    return h;
+  }
+
+  private static long round(long acc, long input) {
+    acc += input * PRIME2;
+    acc = Long.rotateLeft(acc, 31);
+    return acc * PRIME1;
+  }
+
+  private static long merge(long acc, long v) {
+    acc ^= round(0, v);
+    return acc * PRIME1 + PRIME4;
+  }
+}
@@ -0,0 +1,95 @@
+package redis.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts of non-negative values in buckets that grow with the value, in the
+ * style of HdrHistogram, so that every value is kept to within about 6% and
+ * the whole range of a long fits in under a thousand buckets.
+ * <p/>
+ * Values below 32 each get a bucket of their own. Past that, every power of
+ * two is split into 16 buckets of equal width. Recording is a single atomic
+ * increment, so any number of threads can record into one histogram while
+ * others read it, and readers see each count as it was at some point along
+ * the way rather than all of them at one instant.
+ */
+public class Histogram {
+  private static final int SUB_BITS = 5;
+  private static final int SUB_COUNT = 1 << SUB_BITS;
+  private static final int HALF_COUNT = SUB_COUNT >> 1;
+  // Enough for Long.MAX_VALUE
+  private static final int BUCKETS = index(Long.MAX_VALUE) + 1;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+  static int index(long value) {
+    int magnitude = 64 - Long.numberOfLeadingZeros(value | (SUB_COUNT - 1)) - SUB_BITS;
+    return (magnitude << (SUB_BITS - 1)) + (int) (value >>> magnitude);
+  }
+
+  /**
+   * The largest value that lands in a bucket.
+   */
+  static long highest(int index) {
+    if (index < SUB_COUNT) {
+      return index;
+    }
+    int magnitude = (index >> (SUB_BITS - 1)) - 1;
+    long sub = (index & (HALF_COUNT - 1)) + HALF_COUNT;
+    return ((sub + 1) << magnitude) - 1;
+  }
+
+  public void record(long value) {
+    counts.incrementAndGet(index(Math.max(0, value)));
+  }
+
+  /**
+   * Add everything recorded by another histogram to this one.
+   */
+  public void add(Histogram other) {
+    for (int i = 0; i < BUCKETS; i++) {
+      long count = other.counts.get(i);
+      if (count != 0) {
+        counts.addAndGet(i, count);
+      }
+    }
+  }
+
+  public long count() {
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      total += counts.get(i);
+    }
+    return total;
+  }
+
+  /**
+   * The value that the given percentage of recorded values are at or below,
+   * as the largest value in its bucket, or 0 if nothing has been recorded.
+   */
+  public long percentile(double percentile) {
+    long[] snapshot = new long[BUCKETS];
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      total += snapshot[i] = counts.get(i);
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(Math.min(100, percentile) / 100 * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        return highest(i);
+      }
+    }
+    return highest(BUCKETS - 1);
+  }
+
+  public void reset() {
+    for (int i = 0; i < BUCKETS; i++) {
+      counts.set(i, 0);
+    }
+  }
+}
@@ -0,0 +1,149 @@
+package redis.util;
+
+import java.util.Arrays;
+
+/**
+ * A sorted array of integers, the way redis keeps sets whose members are all
+ * integers in an intset
+ * <p/>
+ * Every member takes the same number of bytes, the fewest of 2, 4 or 8 that
+ * fit the biggest of them, so looking one up is a binary search. Adding a
+ * member that needs more bytes widens all of them.
+ */
+final class IntSet {
+
+  private static final byte[] EMPTY = new byte[0];
+
+  private byte[] data = EMPTY;
+  private int width = 2;
+  private int size;
+
+  int size() {
+    return size;
+  }
+
+  long allocated() {
+    return data.length;
+  }
+
+  long get(int index) {
+    return read(data, index * width, width);
+  }
+
+  boolean contains(long value) {
+    return widthOf(value) <= width && search(value) >= 0;
+  }
+
+  /**
+   * Returns true if it wasn't there already.
+   */
+  boolean add(long value) {
+    int needed = widthOf(value);
+    if (needed > width) {
+      widen(needed);
+    }
+    int index = search(value);
+    if (index >= 0) {
+      return false;
+    }
+    index = -index - 1;
+    byte[] bigger = data.length >= (size + 1) * width ? data : Arrays.copyOf(data, (size + 1) * width);
+    System.arraycopy(data, index * width, bigger, (index + 1) * width, (size - index) * width);
+    data = bigger;
+    write(data, index * width, width, value);
+    size++;
+    return true;
+  }
+
+  /**
+   * Returns true if it was there to remove.
+   */
+  boolean remove(long value) {
+    if (widthOf(value) > width) {
+      return false;
+    }
+    int index = search(value);
+    if (index < 0) {
+      return false;
+    }
+    size--;
+    System.arraycopy(data, (index + 1) * width, data, index * width, (size - index) * width);
+    data = Arrays.copyOf(data, size * width);
+    return true;
+  }
+
+  /**
+   * Whether bytes are an integer written the way redis writes them, without
+   * a plus sign or leading zeros, that a long holds. Only those can be kept
+   * in an intset and given back unchanged.
+   */
+  static boolean isInteger(byte[] bytes) {
+    int length = bytes.length;
+    if (length == 0 || length > 20) {
+      return false;
+    }
+    boolean negative = bytes[0] == '-';
+    int i = negative ? 1 : 0;
+    if (i == length || bytes[i] == '0' && (negative || length > 1)) {
+      return false;
+    }
+    // Accumulated as a negative number so that the overflow check is simple
+    long value = 0;
+    for (; i < length; i++) {
+      int digit = bytes[i] - '0';
+      if (digit < 0 || digit > 9 || value < (Long.MIN_VALUE + digit) / 10) {
+        return false;
+      }
+      value = value * 10 - digit;
+    }
+    return value != Long.MIN_VALUE;
+  }
+
+  private int search(long value) {
+    int low = 0;
+    int high = size - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      long current = get(mid);
+      if (current < value) {
+        low = mid + 1;
+      } else if (current > value) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -(low + 1);
+  }
+
+  private void widen(int wider) {
+    byte[] widened = new byte[size * wider];
+    for (int i = 0; i < size; i++) {
+      write(widened, i * wider, wider, get(i));
+    }
+    data = widened;
+    width = wider;
+  }
+
+  private static int widthOf(long value) {
+    if (value == (short) value) return 2;
+    if (value == (int) value) return 4;
+    return 8;
+  }
+
+  private static long read(byte[] data, int offset, int width) {
+    // The first byte carries the sign
+    long value = data[offset];
+    for (int i = 1; i < width; i++) {
+      value = value << 8 | (data[offset + i] & 0xFF);
+    }
+    return value;
+  }
+
+  private static void write(byte[] data, int offset, int width, long value) {
+    for (int i = width - 1; i >= 0; i--) {
+      data[offset + i] = (byte) value;
+      value >>= 8;
+    }
+  }
+}
@@ -0,0 +1,254 @@
+package redis.util;
+
+import java.util.Arrays;
+
+/**
+ * Byte arrays packed one after another into a single array, the way redis
+ * keeps small hashes, sets and sorted sets in a listpack
+ * <p/>
+ * Each entry is its length as a varint, its bytes and its length again with
+ * the varint bytes reversed, so the entries can be walked from either end.
+ * QuickList packs its chunks the same way. An entry is found by its offset
+ * and getting to it means walking the entries before it, which is cheap for
+ * the hundred or so entries a collection is allowed before it moves to a
+ * full structure.
+ */
+final class Listpack {
+
+  private static final byte[] EMPTY = new byte[0];
+
+  private byte[] data = EMPTY;
+  private int end;
+  private int count;
+
+  int size() {
+    return count;
+  }
+
+  /**
+   * The offset just after the last entry, where the next one is appended.
+   */
+  int end() {
+    return end;
+  }
+
+  long allocated() {
+    return data.length;
+  }
+
+  /**
+   * The offset of the entry after the one at offset.
+   */
+  int next(int offset) {
+    return offset + entrySize(readLength(data, offset));
+  }
+
+  /**
+   * The offset of the entry before the one at offset.
+   */
+  int prev(int offset) {
+    return offset - entrySize(readBack(data, offset));
+  }
+
+  /**
+   * The offset of the entry at index.
+   */
+  int offsetOf(int index) {
+    if (index < 0 || index > count) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+    }
+    int offset = 0;
+    for (int i = 0; i < index; i++) {
+      offset = next(offset);
+    }
+    return offset;
+  }
+
+  byte[] get(int offset) {
+    return read(data, offset);
+  }
+
+  /**
+   * An entry of 8 bytes read as a big endian long.
+   */
+  long getLong(int offset) {
+    int from = offset + 1;
+    long value = 0;
+    for (int i = 0; i < 8; i++) {
+      value = value << 8 | (data[from + i] & 0xFF);
+    }
+    return value;
+  }
+
+  boolean matches(int offset, byte[] value) {
+    return equals(data, offset, readLength(data, offset), value);
+  }
+
+  /**
+   * Compare the entry at offset with value as unsigned bytes.
+   */
+  int compare(int offset, byte[] value) {
+    int length = readLength(data, offset);
+    int from = offset + varintSize(length);
+    int common = Math.min(length, value.length);
+    for (int i = 0; i < common; i++) {
+      int diff = (data[from + i] & 0xFF) - (value[i] & 0xFF);
+      if (diff != 0) return diff;
+    }
+    return length - value.length;
+  }
+
+  /**
+   * The offset of the first entry equal to value looking at every step-th
+   * entry from the first, or -1.
+   */
+  int find(byte[] value, int step) {
+    int offset = 0;
+    while (offset < end) {
+      if (matches(offset, value)) {
+        return offset;
+      }
+      for (int i = 0; i < step; i++) {
+        offset = next(offset);
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Insert an entry before the one at offset, or at the end if offset is
+   * end().
+   */
+  void insert(int offset, byte[] value) {
+    splice(offset, 0, value);
+    count++;
+  }
+
+  void replace(int offset, byte[] value) {
+    splice(offset, next(offset) - offset, value);
+  }
+
+  /**
+   * Remove entries starting with the one at offset.
+   */
+  void remove(int offset, int entries) {
+    int to = offset;
+    for (int i = 0; i < entries; i++) {
+      to = next(to);
+    }
+    splice(offset, to - offset, null);
+    count -= entries;
+  }
+
+  void clear() {
+    data = EMPTY;
+    end = 0;
+    count = 0;
+  }
+
+  private void splice(int offset, int removed, byte[] value) {
+    int length = value == null ? 0 : entrySize(value.length);
+    int delta = length - removed;
+    int required = end + delta;
+    if (required > data.length) {
+      // A little spare for the next one, without keeping much more than is used
+      data = Arrays.copyOf(data, required + required / 8);
+    }
+    int from = offset + removed;
+    System.arraycopy(data, from, data, from + delta, end - from);
+    end = required;
+    if (value != null) {
+      write(data, offset, value);
+    }
+    if (end < data.length / 2) {
+      data = end == 0 ? EMPTY : Arrays.copyOf(data, end + end / 8);
+    }
+  }
+
+  static byte[] toBytes(long value) {
+    byte[] bytes = new byte[8];
+    for (int i = 7; i >= 0; i--) {
+      bytes[i] = (byte) value;
+      value >>>= 8;
+    }
+    return bytes;
+  }
+
+  static int varintSize(int value) {
+    int bytes = 1;
+    while ((value >>>= 7) != 0) bytes++;
+    return bytes;
+  }
+
+  static int entrySize(int length) {
+    return length + 2 * varintSize(length);
+  }
+
+  /**
+   * Write an entry at offset and return the offset after it.
+   */
+  static int write(byte[] data, int offset, byte[] value) {
+    int length = value.length;
+    int start = offset;
+    int v = length;
+    while ((v & ~0x7F) != 0) {
+      data[offset++] = (byte) (v & 0x7F | 0x80);
+      v >>>= 7;
+    }
+    data[offset++] = (byte) v;
+    int varint = offset - start;
+    System.arraycopy(value, 0, data, offset, length);
+    offset += length;
+    for (int i = varint - 1; i >= 0; i--) {
+      data[offset++] = data[start + i];
+    }
+    return offset;
+  }
+
+  /**
+   * The length of the entry that starts at offset.
+   */
+  static int readLength(byte[] data, int offset) {
+    int length = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = data[offset++];
+      length |= (b & 0x7F) << shift;
+      shift += 7;
+    } while (b < 0);
+    return length;
+  }
+
+  /**
+   * The length of the entry that ends at offset.
+   */
+  static int readBack(byte[] data, int offset) {
+    int length = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = data[--offset];
+      length |= (b & 0x7F) << shift;
+      shift += 7;
+    } while (b < 0);
+    return length;
+  }
+
+  static byte[] read(byte[] data, int offset) {
+    int length = readLength(data, offset);
+    int from = offset + varintSize(length);
+    return Arrays.copyOfRange(data, from, from + length);
+  }
+
+  static boolean equals(byte[] data, int offset, int length, byte[] value) {
+    if (length != value.length) {
+      return false;
+    }
+    int from = offset + varintSize(length);
+    for (int i = 0; i < length; i++) {
+      if (data[from + i] != value[i]) return false;
+    }
+    return true;
+  }
+}
@@ -0,0 +1,510 @@
+package redis.util;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A list of byte arrays kept the way redis keeps lists in a quicklist
+ * <p/>
+ * Elements are packed into chunks of a few kilobytes that are linked together
+ * in both directions. Each element is its length as a varint, its bytes and
+ * its length again with the varint bytes reversed, so a chunk can be walked
+ * from either end, like a listpack. Chunks keep free space at both ends, so
+ * pushing and popping at either end of the list is O(1) and copies nothing
+ * but the element. Reaching an index walks whole chunks from the nearer end
+ * and then the elements of one chunk.
+ * <p/>
+ * Compared to a list of wrapped byte arrays an element costs its bytes and
+ * two or so bytes of length instead of two objects and a reference.
+ */
+public class QuickList implements Iterable<byte[]> {
+
+  // Chunks are filled up to this many bytes, like list-max-listpack-size -2.
+  // An element bigger than this gets a chunk of its own.
+  private static final int CHUNK_SIZE = 8192;
+  // Neighbouring chunks that would fit in this much are merged after removals
+  private static final int MERGE_SIZE = CHUNK_SIZE / 2;
+  private static final int INITIAL = 64;
+
+  private static final class Chunk {
+    byte[] data;
+    // The elements are data[start, end)
+    int start;
+    int end;
+    int count;
+    Chunk prev;
+    Chunk next;
+
+    Chunk(int capacity, int start) {
+      data = new byte[capacity];
+      this.start = start;
+      end = start;
+    }
+
+    int bytes() {
+      return end - start;
+    }
+  }
+
+  private Chunk head;
+  private Chunk tail;
+  private int size;
+  private int chunks;
+  private long allocated;
+
+  public QuickList() {
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Number of chunks the elements are packed into.
+   */
+  public int chunks() {
+    return chunks;
+  }
+
+  /**
+   * Bytes allocated for the chunks, including their free space.
+   */
+  public long allocated() {
+    return allocated;
+  }
+
+  public void addFirst(byte[] value) {
+    int length = Listpack.entrySize(value.length);
+    if (head == null || head.bytes() + length > CHUNK_SIZE) {
+      Chunk chunk = allocate(Math.max(INITIAL, length), true);
+      link(chunk, null, head);
+    } else if (head.start < length) {
+      grow(head, length, true);
+    }
+    head.start -= length;
+    Listpack.write(head.data, head.start, value);
+    head.count++;
+    size++;
+  }
+
+  public void addLast(byte[] value) {
+    int length = Listpack.entrySize(value.length);
+    if (tail == null || tail.bytes() + length > CHUNK_SIZE) {
+      Chunk chunk = allocate(Math.max(INITIAL, length), false);
+      link(chunk, tail, null);
+    } else if (tail.data.length - tail.end < length) {
+      grow(tail, length, false);
+    }
+    tail.end = Listpack.write(tail.data, tail.end, value);
+    tail.count++;
+    size++;
+  }
+
+  /**
+   * Remove and return the first element, or null if there are none.
+   */
+  public byte[] pollFirst() {
+    if (head == null) {
+      return null;
+    }
+    Chunk chunk = head;
+    byte[] value = Listpack.read(chunk.data, chunk.start);
+    chunk.start += Listpack.entrySize(value.length);
+    polled(chunk);
+    return value;
+  }
+
+  /**
+   * Remove and return the last element, or null if there are none.
+   */
+  public byte[] pollLast() {
+    if (tail == null) {
+      return null;
+    }
+    Chunk chunk = tail;
+    int offset = chunk.end - Listpack.entrySize(Listpack.readBack(chunk.data, chunk.end));
+    byte[] value = Listpack.read(chunk.data, offset);
+    chunk.end = offset;
+    polled(chunk);
+    return value;
+  }
+
+  public byte[] get(int index) {
+    Position position = locate(index);
+    return Listpack.read(position.chunk.data, position.offset);
+  }
+
+  public void set(int index, byte[] value) {
+    Position position = locate(index);
+    Chunk chunk = position.chunk;
+    int old = Listpack.entrySize(Listpack.readLength(chunk.data, position.offset));
+    splice(chunk, position.offset, old, value);
+    split(chunk);
+  }
+
+  /**
+   * Insert an element before the one at index, or at the end if index is
+   * the size of the list.
+   */
+  public void add(int index, byte[] value) {
+    if (index == size) {
+      addLast(value);
+    } else if (index == 0) {
+      addFirst(value);
+    } else {
+      Position position = locate(index);
+      Chunk chunk = position.chunk;
+      splice(chunk, position.offset, 0, value);
+      chunk.count++;
+      size++;
+      split(chunk);
+    }
+  }
+
+  /**
+   * The index of the first element equal to value, or -1.
+   */
+  public int indexOf(byte[] value) {
+    int index = 0;
+    for (Chunk chunk = head; chunk != null; chunk = chunk.next) {
+      byte[] data = chunk.data;
+      for (int offset = chunk.start; offset < chunk.end; index++) {
+        int length = Listpack.readLength(data, offset);
+        if (Listpack.equals(data, offset, length, value)) {
+          return index;
+        }
+        offset += Listpack.entrySize(length);
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Remove elements equal to value the way LREM does: the first count of
+   * them if count is positive, the last -count if it is negative, or all of
+   * them if it is 0. Returns the number removed.
+   */
+  public int remove(byte[] value, int count) {
+    int removed = 0;
+    if (count >= 0) {
+      Chunk chunk = head;
+      while (chunk != null && (count == 0 || removed < count)) {
+        Chunk next = chunk.next;
+        byte[] data = chunk.data;
+        int offset = chunk.start;
+        while (offset < chunk.end && (count == 0 || removed < count)) {
+          int length = Listpack.readLength(data, offset);
+          if (Listpack.equals(data, offset, length, value)) {
+            // The rest of the chunk moves down to offset
+            splice(chunk, offset, Listpack.entrySize(length), null);
+            chunk.count--;
+            size--;
+            removed++;
+          } else {
+            offset += Listpack.entrySize(length);
+          }
+        }
+        if (chunk.count == 0) unlink(chunk);
+        chunk = next;
+      }
+    } else {
+      Chunk chunk = tail;
+      while (chunk != null && removed < -count) {
+        Chunk prev = chunk.prev;
+        byte[] data = chunk.data;
+        int end = chunk.end;
+        while (end > chunk.start && removed < -count) {
+          int length = Listpack.readBack(data, end);
+          int offset = end - Listpack.entrySize(length);
+          if (Listpack.equals(data, offset, length, value)) {
+            // Only what follows the element moves, so offset stays put
+            splice(chunk, offset, Listpack.entrySize(length), null);
+            chunk.count--;
+            size--;
+            removed++;
+          }
+          end = offset;
+        }
+        if (chunk.count == 0) unlink(chunk);
+        chunk = prev;
+      }
+    }
+    if (removed > 0) {
+      compact();
+    }
+    return removed;
+  }
+
+  /**
+   * Keep only the elements from start to end inclusive, the way LTRIM does
+   * once its arguments are resolved against the size.
+   */
+  public void trim(int start, int end) {
+    start = Math.max(0, start);
+    end = Math.min(size - 1, end);
+    if (start > end) {
+      clear();
+      return;
+    }
+    int drop = start;
+    while (drop > 0) {
+      Chunk chunk = head;
+      if (chunk.count <= drop) {
+        drop -= chunk.count;
+        size -= chunk.count;
+        unlink(chunk);
+      } else {
+        int offset = chunk.start;
+        for (int i = 0; i < drop; i++) {
+          offset += Listpack.entrySize(Listpack.readLength(chunk.data, offset));
+        }
+        chunk.start = offset;
+        chunk.count -= drop;
+        size -= drop;
+        drop = 0;
+      }
+    }
+    drop = size - 1 - (end - start);
+    while (drop > 0) {
+      Chunk chunk = tail;
+      if (chunk.count <= drop) {
+        drop -= chunk.count;
+        size -= chunk.count;
+        unlink(chunk);
+      } else {
+        int offset = chunk.end;
+        for (int i = 0; i < drop; i++) {
+          offset -= Listpack.entrySize(Listpack.readBack(chunk.data, offset));
+        }
+        chunk.end = offset;
+        chunk.count -= drop;
+        size -= drop;
+        drop = 0;
+      }
+    }
+  }
+
+  public void clear() {
+    head = tail = null;
+    size = 0;
+    chunks = 0;
+    allocated = 0;
+  }
+
+  @Override
+  public Iterator<byte[]> iterator() {
+    return iterator(0);
+  }
+
+  /**
+   * Iterate from the element at index to the end of the list.
+   */
+  public Iterator<byte[]> iterator(int index) {
+    if (index >= size) {
+      return new Itr(null, 0, 0);
+    }
+    Position position = locate(index);
+    return new Itr(position.chunk, position.offset, size - index);
+  }
+
+  private class Itr implements Iterator<byte[]> {
+    private Chunk chunk;
+    private int offset;
+    private int remaining;
+
+    Itr(Chunk chunk, int offset, int remaining) {
+      this.chunk = chunk;
+      this.offset = offset;
+      this.remaining = remaining;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return remaining > 0;
+    }
+
+    @Override
+    public byte[] next() {
+      if (remaining == 0) {
+        throw new NoSuchElementException();
+      }
+      if (offset == chunk.end) {
+        chunk = chunk.next;
+        offset = chunk.start;
+      }
+      byte[] value = Listpack.read(chunk.data, offset);
+      offset += Listpack.entrySize(value.length);
+      remaining--;
+      return value;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private static final class Position {
+    final Chunk chunk;
+    final int offset;
+
+    Position(Chunk chunk, int offset) {
+      this.chunk = chunk;
+      this.offset = offset;
+    }
+  }
+
+  /**
+   * Find the chunk holding an element and where it starts, walking from
+   * whichever end of the list is nearer.
+   */
+  private Position locate(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+    if (index < size / 2) {
+      Chunk chunk = head;
+      while (index >= chunk.count) {
+        index -= chunk.count;
+        chunk = chunk.next;
+      }
+      int offset = chunk.start;
+      for (int i = 0; i < index; i++) {
+        offset += Listpack.entrySize(Listpack.readLength(chunk.data, offset));
+      }
+      return new Position(chunk, offset);
+    }
+    int fromEnd = size - 1 - index;
+    Chunk chunk = tail;
+    while (fromEnd >= chunk.count) {
+      fromEnd -= chunk.count;
+      chunk = chunk.prev;
+    }
+    int offset = chunk.end;
+    for (int i = 0; i <= fromEnd; i++) {
+      offset -= Listpack.entrySize(Listpack.readBack(chunk.data, offset));
+    }
+    return new Position(chunk, offset);
+  }
+
+  /**
+   * Replace the removed bytes at offset with an element, or with nothing if
+   * value is null, moving what follows in the chunk and growing it if needed.
+   */
+  private void splice(Chunk chunk, int offset, int removed, byte[] value) {
+    int length = value == null ? 0 : Listpack.entrySize(value.length);
+    int delta = length - removed;
+    if (delta > chunk.data.length - chunk.end) {
+      int position = offset - chunk.start;
+      grow(chunk, delta, false);
+      offset = chunk.start + position;
+    }
+    int from = offset + removed;
+    System.arraycopy(chunk.data, from, chunk.data, from + delta, chunk.end - from);
+    chunk.end += delta;
+    if (value != null) {
+      Listpack.write(chunk.data, offset, value);
+    }
+  }
+
+  /**
+   * Make room for needed more bytes at the front or the back of a chunk,
+   * moving the elements within it when it has enough free space overall or
+   * else moving them to a bigger one. Either way half of what is left over
+   * goes to each end so that pushes alternating between them stay cheap.
+   */
+  private void grow(Chunk chunk, int needed, boolean front) {
+    int bytes = chunk.bytes();
+    int required = bytes + needed;
+    byte[] data = chunk.data;
+    if (data.length < required + required / 4) {
+      int capacity = Math.max(INITIAL, Integer.highestOneBit(required + required / 4 - 1) << 1);
+      data = new byte[capacity];
+      allocated += capacity - chunk.data.length;
+    }
+    int spare = data.length - required;
+    int start = front ? needed + spare / 2 : spare / 2;
+    System.arraycopy(chunk.data, chunk.start, data, start, bytes);
+    chunk.data = data;
+    chunk.start = start;
+    chunk.end = start + bytes;
+  }
+
+  /**
+   * Split a chunk that grew past the chunk size in the middle into two.
+   */
+  private void split(Chunk chunk) {
+    if (chunk.bytes() <= CHUNK_SIZE || chunk.count < 2) {
+      return;
+    }
+    int half = chunk.start + chunk.bytes() / 2;
+    int offset = chunk.start;
+    int kept = 0;
+    while (kept == 0 || offset < half && kept < chunk.count - 1) {
+      offset += Listpack.entrySize(Listpack.readLength(chunk.data, offset));
+      kept++;
+    }
+    int moved = chunk.end - offset;
+    Chunk second = allocate(Math.max(INITIAL, moved), false);
+    System.arraycopy(chunk.data, offset, second.data, 0, moved);
+    second.end = moved;
+    second.count = chunk.count - kept;
+    chunk.end = offset;
+    chunk.count = kept;
+    link(second, chunk, chunk.next);
+  }
+
+  /**
+   * Merge neighbouring chunks that have become small enough to share one.
+   */
+  private void compact() {
+    Chunk chunk = head;
+    while (chunk != null && chunk.next != null) {
+      Chunk next = chunk.next;
+      int bytes = chunk.bytes() + next.bytes();
+      if (bytes <= MERGE_SIZE) {
+        if (chunk.data.length - chunk.end < next.bytes()) {
+          grow(chunk, next.bytes(), false);
+        }
+        System.arraycopy(next.data, next.start, chunk.data, chunk.end, next.bytes());
+        chunk.end += next.bytes();
+        chunk.count += next.count;
+        unlink(next);
+      } else {
+        chunk = next;
+      }
+    }
+  }
+
+  private Chunk allocate(int capacity, boolean front) {
+    allocated += capacity;
+    return new Chunk(capacity, front ? capacity : 0);
+  }
+
+  private void link(Chunk chunk, Chunk prev, Chunk next) {
+    chunk.prev = prev;
+    chunk.next = next;
+    if (prev == null) head = chunk; else prev.next = chunk;
+    if (next == null) tail = chunk; else next.prev = chunk;
+    chunks++;
+  }
+
+  private void unlink(Chunk chunk) {
+    if (chunk.prev == null) head = chunk.next; else chunk.prev.next = chunk.next;
+    if (chunk.next == null) tail = chunk.prev; else chunk.next.prev = chunk.prev;
+    allocated -= chunk.data.length;
+    chunks--;
+  }
+
+  private void polled(Chunk chunk) {
+    chunk.count--;
+    size--;
+    if (chunk.count == 0) {
+      unlink(chunk);
+    }
+  }
+}
@@ -1,134 +1,595 @@
 package redis.util;
 
-import java.util.*;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Sorted by score, look up by key
  * <p/>
+ * The order is kept in a skip list like the one redis uses. Every link also
+ * records how many entries it skips, so finding the rank of an entry, or the
+ * entry at a rank, takes O(log n) just like adding and removing. Entries with
+ * the same score are ordered by their keys as unsigned bytes.
+ * <p/>
+ * A set with few entries and short keys can instead be a listpack of each
+ * key followed by its score, in the same order, until it outgrows that. Then
+ * everything is a walk through the entries, which for so few is as quick as
+ * the skip list and takes a fraction of the memory.
+ * <p/>
  * User: sam
  * Date: 7/29/12
  * Time: 4:40 PM
  */
 public class ZSet implements Iterable<ZSetEntry> {
 
-  private static final BytesKey EMPTY = new BytesKey(new byte[0]);
+  // With a 1 in 4 chance of each extra level this covers 4^16 entries
+  private static final int MAX_LEVEL = 16;
+
+  private static class Node {
+    final ZSetEntry entry;
+    final Node[] forward;
+    // Number of entries each forward link moves past
+    final int[] span;
+    Node backward;
+
+    Node(ZSetEntry entry, int level) {
+      this.entry = entry;
+      forward = new Node[level];
+      span = new int[level];
+    }
+  }
+
+  private final int maxEntries;
+  private final int maxValue;
+
+  // The entries while they are packed, otherwise null
+  private Listpack pack;
   // A way to find an entry by key
-  private BytesKeyObjectMap<ZSetEntry> map = new BytesKeyObjectMap<ZSetEntry>();
-  // A list that we keep sorted by score
-  private List<ZSetEntry> list = new ArrayList<ZSetEntry>();
+  private BytesMap<Node> map;
+  private Node header;
+  private int level = 1;
+  private int size;
 
   public ZSet(ZSet destination) {
-    map.putAll(destination.map);
-    list.addAll(destination.list);
+    this(destination.maxEntries, destination.maxValue);
+    for (ZSetEntry entry : destination) {
+      add(entry.getKey(), entry.getScore());
+    }
   }
 
   public ZSet() {
+    this(0, 0);
   }
 
-  public int size() {
-    return list.size();
+  /**
+   * A set that is a listpack for up to maxEntries entries with keys of up
+   * to maxValue bytes.
+   */
+  public ZSet(int maxEntries, int maxValue) {
+    this.maxEntries = maxEntries;
+    this.maxValue = maxValue;
+    if (maxEntries > 0) {
+      pack = new Listpack();
+    } else {
+      map = new BytesMap<Node>();
+      header = new Node(null, MAX_LEVEL);
+    }
   }
 
-  public ZSetEntry get(byte[] member2) {
-    return map.get(member2);
+  /**
+   * How the entries are kept, as OBJECT ENCODING names it.
+   */
+  public String encoding() {
+    return pack != null ? "listpack" : "skiplist";
   }
 
-  public boolean remove(byte[] member2) {
-    return remove(new BytesKey(member2));
+  /**
+   * Bytes held by a listpack, or -1 for a skip list.
+   */
+  public long allocated() {
+    return pack != null ? pack.allocated() : -1;
   }
 
-  @Override
-  public Iterator<ZSetEntry> iterator() {
-    return list.iterator();
+  public int size() {
+    return pack != null ? pack.size() / 2 : size;
   }
 
-  public ZSetEntry get(BytesKey key) {
-    return map.get(key);
+  public boolean isEmpty() {
+    return size() == 0;
   }
 
-  public List<ZSetEntry> list() {
-    return list;
+  public ZSetEntry get(byte[] member2) {
+    if (pack != null) {
+      int offset = pack.find(member2, 2);
+      return offset == -1 ? null : new ZSetEntry(new BytesKey(member2), score(offset));
+    }
+    Node node = map.get(member2);
+    return node == null ? null : node.entry;
   }
 
-  private static class ScoreComparator implements Comparator<ZSetEntry> {
-    @Override
-    public int compare(ZSetEntry o1, ZSetEntry o2) {
-      double value = o1.getScore() - o2.getScore();
-      return value < 0 ? -1 : value == (o1.getKey().compareTo(o2.getKey())) ? 0 : 1;
+  public ZSetEntry get(BytesKey key) {
+    return get(key.getBytes());
+  }
+
+  /**
+   * Add an entry or change its score. Returns true if it is new.
+   */
+  public boolean add(BytesKey key, double score) {
+    byte[] bytes = key.getBytes();
+    if (pack != null) {
+      int offset = pack.find(bytes, 2);
+      if (offset != -1) {
+        if (score(offset) == score) {
+          return false;
+        }
+        pack.remove(offset, 2);
+      } else if (pack.size() / 2 >= maxEntries || bytes.length > maxValue) {
+        convert();
+        return add(key, score);
+      }
+      int at = 0;
+      while (at < pack.end() && compare(at, score, bytes) < 0) {
+        at = pack.next(pack.next(at));
+      }
+      pack.insert(at, bytes);
+      pack.insert(pack.next(at), Listpack.toBytes(Double.doubleToLongBits(score)));
+      return offset == -1;
     }
+    Node current = map.get(bytes);
+    if (current != null) {
+      if (current.entry.getScore() == score) {
+        return false;
+      }
+      delete(current.entry);
+    }
+    map.put(bytes, insert(new ZSetEntry(key, score)));
+    return current == null;
   }
 
   public void addAll(ZSet other) {
-    for (ZSetEntry zSetEntry : other.list) {
-      remove(zSetEntry.getKey());
+    for (ZSetEntry zSetEntry : other) {
       add(zSetEntry.getKey(), zSetEntry.getScore());
     }
   }
 
+  /**
+   * Returns true if the entry was there to remove.
+   */
+  public boolean remove(byte[] member2) {
+    if (pack != null) {
+      int offset = pack.find(member2, 2);
+      if (offset == -1) {
+        return false;
+      }
+      pack.remove(offset, 2);
+      return true;
+    }
+    Node node = map.remove(member2);
+    if (node == null) {
+      return false;
+    }
+    delete(node.entry);
+    return true;
+  }
+
   public boolean remove(BytesKey key) {
-    ZSetEntry current = map.get(key);
-    if (current != null) {
-      map.remove(key);
-      int index = Collections.binarySearch(list, current);
-      list.remove(index);
+    return remove(key.getBytes());
+  }
+
+  /**
+   * Remove the entries from rank start to rank end inclusive, returning how
+   * many there were.
+   */
+  public int removeRange(int start, int end) {
+    start = Math.max(start, 0);
+    end = Math.min(end, size() - 1);
+    if (start > end) {
+      return 0;
     }
-    return current == null;
+    if (pack != null) {
+      pack.remove(pack.offsetOf(start * 2), (end - start + 1) * 2);
+      return end - start + 1;
+    }
+    Node[] update = new Node[MAX_LEVEL];
+    Node x = header;
+    int traversed = 0;
+    for (int i = level - 1; i >= 0; i--) {
+      while (x.forward[i] != null && traversed + x.span[i] <= start) {
+        traversed += x.span[i];
+        x = x.forward[i];
+      }
+      update[i] = x;
+    }
+    x = x.forward[0];
+    int removed = 0;
+    while (x != null && removed <= end - start) {
+      Node next = x.forward[0];
+      unlink(x, update);
+      map.remove(x.entry.getKey().getBytes());
+      removed++;
+      x = next;
+    }
+    return removed;
   }
 
-  public boolean add(BytesKey key, double score) {
-    ZSetEntry current = map.get(key);
-    if (current != null) {
-      map.remove(key);
-      int index = Collections.binarySearch(list, current);
-      list.remove(index);
-    }
-    ZSetEntry entry = new ZSetEntry(key, score);
-    map.put(key, entry);
-    int index = find(Collections.binarySearch(list, entry));
-    list.add(index, entry);
-    return current == null;
+  /**
+   * The position of an entry counting from 0 at the lowest score, or -1 if it
+   * isn't in the set.
+   */
+  public int rank(byte[] member) {
+    if (pack != null) {
+      int rank = 0;
+      for (int offset = 0; offset < pack.end(); offset = pack.next(pack.next(offset))) {
+        if (pack.matches(offset, member)) {
+          return rank;
+        }
+        rank++;
+      }
+      return -1;
+    }
+    Node node = map.get(member);
+    if (node == null) {
+      return -1;
+    }
+    double score = node.entry.getScore();
+    int rank = 0;
+    Node x = header;
+    for (int i = level - 1; i >= 0; i--) {
+      while (x.forward[i] != null && compare(x.forward[i].entry, score, member) <= 0) {
+        rank += x.span[i];
+        x = x.forward[i];
+      }
+      if (x == node) {
+        return rank - 1;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * The rank of the first entry with a score above min, or at min if
+   * inclusive. This is size() if there isn't one.
+   */
+  public int firstRank(double min, boolean inclusive) {
+    int rank = 0;
+    if (pack != null) {
+      for (int offset = 0; offset < pack.end(); offset = pack.next(pack.next(offset))) {
+        double score = score(offset);
+        if (score > min || (inclusive && score == min)) {
+          break;
+        }
+        rank++;
+      }
+      return rank;
+    }
+    Node x = header;
+    for (int i = level - 1; i >= 0; i--) {
+      Node next;
+      while ((next = x.forward[i]) != null &&
+          (next.entry.getScore() < min || (!inclusive && next.entry.getScore() == min))) {
+        rank += x.span[i];
+        x = next;
+      }
+    }
+    return rank;
+  }
+
+  /**
+   * The rank of the last entry with a score below max, or at max if
+   * inclusive. This is -1 if there isn't one.
+   */
+  public int lastRank(double max, boolean inclusive) {
+    int rank = 0;
+    if (pack != null) {
+      for (int offset = 0; offset < pack.end(); offset = pack.next(pack.next(offset))) {
+        double score = score(offset);
+        if (score > max || (!inclusive && score == max)) {
+          break;
+        }
+        rank++;
+      }
+      return rank - 1;
+    }
+    Node x = header;
+    for (int i = level - 1; i >= 0; i--) {
+      Node next;
+      while ((next = x.forward[i]) != null &&
+          (next.entry.getScore() < max || (inclusive && next.entry.getScore() == max))) {
+        rank += x.span[i];
+        x = next;
+      }
+    }
+    return rank - 1;
+  }
+
+  /**
+   * Visit some of the members and their scores from a cursor and return the
+   * cursor to continue from, or 0 once they have all been visited, as
+   * BytesMap.scan() does. A listpack is small enough to visit in one go.
+   */
+  public int scan(int cursor, final BytesMap.Visitor<Double> visitor) {
+    if (pack != null) {
+      for (ZSetEntry entry : this) {
+        visitor.visit(entry.getKey().getBytes(), entry.getScore());
+      }
+      return 0;
+    }
+    return map.scan(cursor, new BytesMap.Visitor<Node>() {
+      @Override
+      public void visit(byte[] member, Node node) {
+        visitor.visit(member, node.entry.getScore());
+      }
+    });
   }
 
-  public Iterable<ZSetEntry> subSet(final int minIndex, int maxIndex) {
-    final int finalMaxIndex = Math.min(maxIndex, list.size() - 1);
+  @Override
+  public Iterator<ZSetEntry> iterator() {
+    if (pack != null) {
+      return new PackedIterator(0, size(), false);
+    }
+    return new EntryIterator(header.forward[0], size, false);
+  }
+
+  /**
+   * Entries from rank minIndex to rank maxIndex inclusive, lowest score first.
+   */
+  public Iterable<ZSetEntry> subSet(int minIndex, int maxIndex) {
+    return range(minIndex, maxIndex, false);
+  }
+
+  /**
+   * Entries from rank maxIndex down to rank minIndex inclusive, highest score
+   * first.
+   */
+  public Iterable<ZSetEntry> reverseSubSet(int minIndex, int maxIndex) {
+    return range(minIndex, maxIndex, true);
+  }
+
+  /**
+   * Entries with scores from min to max inclusive, lowest score first.
+   */
+  public Iterable<ZSetEntry> subSet(double min, double max) {
+    return subSet(firstRank(min, true), lastRank(max, true));
+  }
+
+  private Iterable<ZSetEntry> range(int minIndex, int maxIndex, final boolean reverse) {
+    final int min = Math.max(minIndex, 0);
+    final int max = Math.min(maxIndex, size() - 1);
     return new Iterable<ZSetEntry>() {
       @Override
       public Iterator<ZSetEntry> iterator() {
-        return new Iterator<ZSetEntry>() {
-          int min = minIndex;
+        if (min > max) {
+          return new EntryIterator(null, 0, reverse);
+        }
+        if (pack != null) {
+          return new PackedIterator(pack.offsetOf((reverse ? max : min) * 2), max - min + 1, reverse);
+        }
+        return new EntryIterator(byRank(reverse ? max : min), max - min + 1, reverse);
+      }
+    };
+  }
+
+  private Node byRank(int rank) {
+    int traversed = 0;
+    Node x = header;
+    for (int i = level - 1; i >= 0; i--) {
+      while (x.forward[i] != null && traversed + x.span[i] <= rank + 1) {
+        traversed += x.span[i];
+        x = x.forward[i];
+      }
+      if (traversed == rank + 1) {
+        return x;
+      }
+    }
+    throw new IndexOutOfBoundsException("rank " + rank + " of " + size);
+  }
+
+  private class EntryIterator implements Iterator<ZSetEntry> {
+    private Node next;
+    private int remaining;
+    private final boolean reverse;
+    private Node last;
 
-          @Override
-          public boolean hasNext() {
-            return min <= finalMaxIndex;
-          }
+    EntryIterator(Node first, int count, boolean reverse) {
+      this.next = first;
+      this.remaining = count;
+      this.reverse = reverse;
+    }
 
-          @Override
-          public ZSetEntry next() {
-            return list.get(min++);
-          }
+    @Override
+    public boolean hasNext() {
+      return remaining > 0 && next != null;
+    }
 
-          @Override
-          public void remove() {
-          }
-        };
+    @Override
+    public ZSetEntry next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
       }
-    };
+      last = next;
+      next = reverse ? next.backward : next.forward[0];
+      remaining--;
+      return last.entry;
+    }
+
+    @Override
+    public void remove() {
+      if (last == null) {
+        throw new IllegalStateException();
+      }
+      ZSet.this.remove(last.entry.getKey());
+      last = null;
+    }
   }
 
-  public boolean isEmpty() {
-    return list.size() == 0;
+  private class PackedIterator implements Iterator<ZSetEntry> {
+    // Offset of the key of the next entry
+    private int next;
+    private int remaining;
+    private final boolean reverse;
+    private int last = -1;
+
+    PackedIterator(int first, int count, boolean reverse) {
+      this.next = first;
+      this.remaining = count;
+      this.reverse = reverse;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return remaining > 0;
+    }
+
+    @Override
+    public ZSetEntry next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      last = next;
+      ZSetEntry entry = new ZSetEntry(new BytesKey(pack.get(last)), score(last));
+      if (--remaining > 0) {
+        next = reverse ? pack.prev(pack.prev(last)) : pack.next(pack.next(last));
+      }
+      return entry;
+    }
+
+    @Override
+    public void remove() {
+      if (last == -1) {
+        throw new IllegalStateException();
+      }
+      pack.remove(last, 2);
+      // What came after the removed entry moved down to where it was
+      if (!reverse) {
+        next = last;
+      }
+      last = -1;
+    }
+  }
+
+  /**
+   * The score that follows the key at offset in the listpack.
+   */
+  private double score(int offset) {
+    return Double.longBitsToDouble(pack.getLong(pack.next(offset)));
+  }
+
+  /**
+   * Compare the packed entry with its key at offset to a score and key.
+   */
+  private int compare(int offset, double score, byte[] key) {
+    double entryScore = score(offset);
+    if (entryScore < score) return -1;
+    if (entryScore > score) return 1;
+    return pack.compare(offset, key);
+  }
+
+  /**
+   * Move the entries out of the listpack into a skip list.
+   */
+  private void convert() {
+    Listpack packed = pack;
+    pack = null;
+    map = new BytesMap<Node>();
+    header = new Node(null, MAX_LEVEL);
+    for (int offset = 0; offset < packed.end(); offset = packed.next(offset)) {
+      byte[] key = packed.get(offset);
+      offset = packed.next(offset);
+      double score = Double.longBitsToDouble(packed.getLong(offset));
+      map.put(key, insert(new ZSetEntry(new BytesKey(key), score)));
+    }
+  }
+
+  private static int compare(ZSetEntry entry, double score, byte[] key) {
+    double entryScore = entry.getScore();
+    if (entryScore < score) return -1;
+    if (entryScore > score) return 1;
+    byte[] entryKey = entry.getKey().getBytes();
+    int length = Math.min(entryKey.length, key.length);
+    for (int i = 0; i < length; i++) {
+      int diff = (entryKey[i] & 0xFF) - (key[i] & 0xFF);
+      if (diff != 0) return diff;
+    }
+    return entryKey.length - key.length;
+  }
+
+  private static int randomLevel() {
+    // Each pair of trailing zero bits is a 1 in 4 chance of another level
+    int bits = ThreadLocalRandom.current().nextInt() | 0x80000000;
+    return 1 + Integer.numberOfTrailingZeros(bits) / 2;
+  }
+
+  private Node insert(ZSetEntry entry) {
+    double score = entry.getScore();
+    byte[] key = entry.getKey().getBytes();
+    Node[] update = new Node[MAX_LEVEL];
+    int[] rank = new int[MAX_LEVEL];
+    Node x = header;
+    for (int i = level - 1; i >= 0; i--) {
+      rank[i] = i == level - 1 ? 0 : rank[i + 1];
+      while (x.forward[i] != null && compare(x.forward[i].entry, score, key) < 0) {
+        rank[i] += x.span[i];
+        x = x.forward[i];
+      }
+      update[i] = x;
+    }
+    int newLevel = randomLevel();
+    if (newLevel > level) {
+      for (int i = level; i < newLevel; i++) {
+        rank[i] = 0;
+        update[i] = header;
+        header.span[i] = size;
+      }
+      level = newLevel;
+    }
+    x = new Node(entry, newLevel);
+    for (int i = 0; i < newLevel; i++) {
+      x.forward[i] = update[i].forward[i];
+      update[i].forward[i] = x;
+      x.span[i] = update[i].span[i] - (rank[0] - rank[i]);
+      update[i].span[i] = rank[0] - rank[i] + 1;
+    }
+    for (int i = newLevel; i < level; i++) {
+      update[i].span[i]++;
+    }
+    x.backward = update[0] == header ? null : update[0];
+    if (x.forward[0] != null) {
+      x.forward[0].backward = x;
+    }
+    size++;
+    return x;
   }
 
-  public List<ZSetEntry> subSet(double min, double max) {
-    int minIndex = find(Collections.binarySearch(list, new ZSetEntry(EMPTY, min)));
-    int maxIndex = find(Collections.binarySearch(list, new ZSetEntry(EMPTY, max)));
-    if (list.get(maxIndex).getScore() > max) {
-      maxIndex = maxIndex - 1;
+  private void delete(ZSetEntry entry) {
+    double score = entry.getScore();
+    byte[] key = entry.getKey().getBytes();
+    Node[] update = new Node[MAX_LEVEL];
+    Node x = header;
+    for (int i = level - 1; i >= 0; i--) {
+      while (x.forward[i] != null && compare(x.forward[i].entry, score, key) < 0) {
+        x = x.forward[i];
+      }
+      update[i] = x;
     }
-    return list.subList(minIndex, maxIndex + 1);
+    unlink(x.forward[0], update);
   }
 
-  private int find(int minIndex) {
-    return minIndex < 0 ? -(minIndex + 1) : minIndex;
+  private void unlink(Node x, Node[] update) {
+    for (int i = 0; i < level; i++) {
+      if (update[i].forward[i] == x) {
+        update[i].span[i] += x.span[i] - 1;
+        update[i].forward[i] = x.forward[i];
+      } else {
+        update[i].span[i]--;
+      }
+    }
+    if (x.forward[0] != null) {
+      x.forward[0].backward = x.backward;
+    }
+    while (level > 1 && header.forward[level - 1] == null) {
+      level--;
+    }
+    size--;
   }
 }
@@ -0,0 +1,84 @@
+package redis.util;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+
+/**
+ * Checks both encodings against a plain map and the move between them.
+ */
+public class BytesHashTest {
+
+  private static byte[] bytes(String s) {
+    return s.getBytes();
+  }
+
+  private static String string(byte[] bytes) {
+    return bytes == null ? null : new String(bytes);
+  }
+
+  private static Map<String, String> fields(BytesHash hash) {
+    Map<String, String> fields = new HashMap<String, String>();
+    for (Map.Entry<byte[], byte[]> entry : hash) {
+      assertNull(fields.put(string(entry.getKey()), string(entry.getValue())));
+    }
+    return fields;
+  }
+
+  @Test
+  public void testConvert() {
+    BytesHash hash = new BytesHash(2, 5);
+    assertNull(hash.put(bytes("a"), bytes("1")));
+    assertNull(hash.put(bytes("b"), bytes("2")));
+    assertEquals("1", string(hash.put(bytes("a"), bytes("3"))));
+    assertEquals("listpack", hash.encoding());
+    // A third field
+    assertNull(hash.put(bytes("c"), bytes("4")));
+    assertEquals("hashtable", hash.encoding());
+    assertEquals(3, hash.size());
+    assertEquals("3", string(hash.get(bytes("a"))));
+
+    hash = new BytesHash(2, 5);
+    hash.put(bytes("a"), bytes("1"));
+    // A value that is too long
+    assertEquals("1", string(hash.put(bytes("a"), bytes("toolong"))));
+    assertEquals("hashtable", hash.encoding());
+    assertEquals("toolong", string(hash.get(bytes("a"))));
+    assertEquals(-1, hash.allocated());
+
+    hash = new BytesHash(2, 5);
+    hash.put(bytes("toolong"), bytes("1"));
+    assertEquals("hashtable", hash.encoding());
+  }
+
+  @Test
+  public void testRandom() {
+    Random random = new Random(3);
+    BytesHash[] hashes = {new BytesHash(1000, 64), new BytesHash(50, 64), new BytesHash(0, 0)};
+    for (BytesHash hash : hashes) {
+      Map<String, String> expected = new HashMap<String, String>();
+      for (int i = 0; i < 5000; i++) {
+        String field = "f" + random.nextInt(200);
+        switch (random.nextInt(3)) {
+          case 0:
+          case 1:
+            String value = random.nextInt(2) == 0 ? "" : "v" + random.nextInt(1000);
+            assertEquals(expected.put(field, value), string(hash.put(bytes(field), bytes(value))));
+            break;
+          default:
+            assertEquals(expected.remove(field), string(hash.remove(bytes(field))));
+        }
+        assertEquals(expected.get(field), string(hash.get(bytes(field))));
+        assertEquals(expected.size(), hash.size());
+      }
+      assertEquals(expected, fields(hash));
+    }
+    assertEquals("listpack", hashes[0].encoding());
+    assertEquals("hashtable", hashes[1].encoding());
+  }
+}
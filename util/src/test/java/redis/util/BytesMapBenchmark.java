@@ -0,0 +1,137 @@
+package redis.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares BytesMap with the BytesKeyObjectMap it replaced for the keyspace.
+ * Run with:
+ * <p/>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=redis.util.BytesMapBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class BytesMapBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class Keys {
+    @Param({"1000000", "10000000"})
+    int size;
+
+    byte[][] keys;
+    // Copies so that lookups can't succeed on reference equality
+    byte[][] lookups;
+    int next;
+
+    @Setup
+    public void setup() {
+      keys = new byte[size][];
+      lookups = new byte[size][];
+      for (int i = 0; i < size; i++) {
+        keys[i] = ("key:" + i).getBytes();
+        lookups[i] = ("key:" + i).getBytes();
+      }
+    }
+
+    byte[] lookup() {
+      // Stride through the keys so consecutive lookups don't share cache lines
+      next = (next + 7919) % size;
+      return lookups[next];
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class Open {
+    BytesMap<Object> map;
+
+    @Setup
+    public void setup(Keys keys) {
+      map = new BytesMap<Object>();
+      for (byte[] key : keys.keys) {
+        map.put(key, key);
+      }
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class Chained {
+    BytesKeyObjectMap<Object> map;
+
+    @Setup
+    public void setup(Keys keys) {
+      map = new BytesKeyObjectMap<Object>();
+      for (byte[] key : keys.keys) {
+        map.put(key, key);
+      }
+    }
+  }
+
+  @Benchmark
+  public Object bytesMapGet(Keys keys, Open open) {
+    return open.map.get(keys.lookup());
+  }
+
+  @Benchmark
+  public Object bytesKeyObjectMapGet(Keys keys, Chained chained) {
+    return chained.map.get(keys.lookup());
+  }
+
+  @Benchmark
+  public Object bytesMapPut(Keys keys, Open open) {
+    byte[] key = keys.lookup();
+    return open.map.put(key, key);
+  }
+
+  @Benchmark
+  public Object bytesKeyObjectMapPut(Keys keys, Chained chained) {
+    byte[] key = keys.lookup();
+    return chained.map.put(key, key);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  @Warmup(iterations = 1)
+  @Measurement(iterations = 3)
+  public Object bytesMapFill(Keys keys) {
+    BytesMap<Object> map = new BytesMap<Object>();
+    for (byte[] key : keys.keys) {
+      map.put(key, key);
+    }
+    return map;
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  @Warmup(iterations = 1)
+  @Measurement(iterations = 3)
+  public Object bytesKeyObjectMapFill(Keys keys) {
+    BytesKeyObjectMap<Object> map = new BytesKeyObjectMap<Object>();
+    for (byte[] key : keys.keys) {
+      map.put(key, key);
+    }
+    return map;
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(BytesMapBenchmark.class.getSimpleName()).build()).run();
+  }
+}
@@ -0,0 +1,238 @@
+package redis.util;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Checks BytesMap against a HashMap through many incremental rehashes.
+ */
+public class BytesMapTest {
+
+  @Test
+  public void testAgainstHashMap() {
+    Random random = new Random(1337);
+    BytesMap<Integer> map = new BytesMap<Integer>();
+    Map<String, Integer> expected = new HashMap<String, Integer>();
+    for (int i = 0; i < 200000; i++) {
+      String key = "key:" + random.nextInt(20000);
+      if (random.nextInt(3) == 0) {
+        assertEquals(expected.remove(key), map.remove(key.getBytes()));
+      } else {
+        assertEquals(expected.put(key, i), map.put(key.getBytes(), i));
+      }
+      assertEquals(expected.size(), map.size());
+    }
+    for (int i = 0; i < 20000; i++) {
+      String key = "key:" + i;
+      assertEquals(expected.get(key), map.get(key.getBytes()));
+      assertEquals(expected.containsKey(key), map.containsKey(key.getBytes()));
+    }
+    Set<String> keys = new HashSet<String>();
+    for (byte[] key : map.keys()) {
+      assertTrue(keys.add(new String(key)));
+    }
+    assertEquals(expected.keySet(), keys);
+  }
+
+  @Test
+  public void testSnapshot() {
+    BytesMap<Integer> map = new BytesMap<Integer>();
+    Set<String> expected = new HashSet<String>();
+    map.put(new byte[0], 0);
+    expected.add("");
+    // Stops part way through a rehash
+    for (int i = 0; i < 3000; i++) {
+      map.put(("key:" + i).getBytes(), i);
+      expected.add("key:" + i);
+      if (i % 3 == 0) {
+        map.remove(("key:" + i).getBytes());
+        expected.remove("key:" + i);
+      }
+    }
+    BytesMap.Keys keys = map.snapshot();
+    for (int i = 0; i < 3000; i++) {
+      map.remove(("key:" + i).getBytes());
+      map.put(("other:" + i).getBytes(), i);
+    }
+    Set<String> found = new HashSet<String>();
+    for (int i = 0; i < keys.capacity(); i++) {
+      byte[] key = keys.get(i);
+      if (key != null) {
+        assertTrue(found.add(new String(key)));
+      }
+    }
+    assertEquals(expected, found);
+    for (String key : expected) {
+      assertEquals(key, new String(keys.get(keys.indexOf(key.getBytes()))));
+    }
+    assertEquals(-1, keys.indexOf("key:3".getBytes()));
+    assertEquals(-1, keys.indexOf("other:1".getBytes()));
+  }
+
+  @Test
+  public void testMeta() {
+    BytesMap<Integer> map = new BytesMap<Integer>();
+    // Enough puts that most keys are moved by a rehash after their meta is set
+    for (int i = 0; i < 50000; i++) {
+      byte[] key = ("key:" + i).getBytes();
+      map.put(key, i);
+      int slot = map.slot(key);
+      assertEquals(0, map.metaAt(slot));
+      map.setMetaAt(slot, i * 10L);
+      map.put(key, -i);
+    }
+    for (int i = 0; i < 50000; i++) {
+      int slot = map.slot(("key:" + i).getBytes());
+      assertEquals(i * 10L, map.metaAt(slot));
+      assertEquals(-i, (int) map.valueAt(slot));
+      assertEquals("key:" + i, new String(map.keyAt(slot)));
+    }
+    assertEquals(-1, map.slot("missing".getBytes()));
+    assertEquals(-7, (int) map.removeAt(map.slot("key:7".getBytes())));
+    assertNull(map.get("key:7".getBytes()));
+    assertEquals(49999, map.size());
+    map.put("key:7".getBytes(), 7);
+    assertEquals(0, map.metaAt(map.slot("key:7".getBytes())));
+    Random random = new Random(1);
+    for (int i = 0; i < 100; i++) {
+      int slot = map.randomSlot(random);
+      assertEquals(map.get(map.keyAt(slot)), map.valueAt(slot));
+    }
+  }
+
+  @Test
+  public void testScan() {
+    final BytesMap<Integer> map = new BytesMap<Integer>();
+    for (int i = 0; i < 1000; i++) {
+      map.put(("stable:" + i).getBytes(), i);
+    }
+    final Set<String> seen = new HashSet<String>();
+    BytesMap.Visitor<Integer> visitor = new BytesMap.Visitor<Integer>() {
+      @Override
+      public void visit(byte[] key, Integer value) {
+        assertEquals(map.get(key), value);
+        seen.add(new String(key));
+      }
+    };
+    // Grows the table several times part way through and then shrinks it
+    // again once most of what was added is removed
+    int cursor = 0;
+    int step = 0;
+    do {
+      cursor = map.scan(cursor, visitor);
+      if (step < 500) {
+        for (int i = 0; i < 40; i++) {
+          map.put(("grow:" + step + ":" + i).getBytes(), i);
+        }
+      } else {
+        for (int i = 0; i < 40; i++) {
+          map.remove(("grow:" + (step - 500) + ":" + i).getBytes());
+        }
+      }
+      step++;
+    } while (cursor != 0 && step < 100000);
+    assertEquals(0, cursor);
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(seen.contains("stable:" + i));
+    }
+
+    // Left alone a scan visits exactly what is there
+    seen.clear();
+    int visits = 0;
+    final int[] count = new int[1];
+    do {
+      cursor = map.scan(cursor, new BytesMap.Visitor<Integer>() {
+        @Override
+        public void visit(byte[] key, Integer value) {
+          seen.add(new String(key));
+          count[0]++;
+        }
+      });
+      visits++;
+    } while (cursor != 0);
+    assertEquals(map.size(), seen.size());
+    assertEquals(map.size(), count[0]);
+    assertTrue(visits > 1);
+  }
+
+  @Test
+  public void testRehashIsIncremental() {
+    // Filled to just under its threshold, no rehash yet
+    BytesMap<Integer> map = new BytesMap<Integer>(100000);
+    for (int i = 0; i < 196000; i++) {
+      map.put(("key" + i).getBytes(), i);
+    }
+    assertEquals(0, map.rehashing());
+    // A big table of tombstones that the churn below rebuilds much smaller,
+    // and keeps inserting into while the old one drains
+    for (int i = 1000; i < 196000; i++) {
+      map.remove(("key" + i).getBytes());
+    }
+    int grows = 0;
+    for (int i = 0; i < 100000; i++) {
+      int before = map.rehashing();
+      map.put(("churn" + i).getBytes(), i);
+      int after = map.rehashing();
+      if (after > before) {
+        grows++;
+      }
+      assertTrue(before - after <= 16);
+      before = after;
+      map.remove(("churn" + i).getBytes());
+      assertTrue(before - map.rehashing() <= 16);
+    }
+    assertTrue(grows > 0);
+    assertEquals(1000, map.size());
+    assertEquals(999, (int) map.get("key999".getBytes()));
+  }
+
+  @Test
+  public void testIteratorRemove() {
+    BytesMap<Integer> map = new BytesMap<Integer>();
+    for (int i = 0; i < 1000; i++) {
+      map.put(("key" + i).getBytes(), i);
+    }
+    int seen = 0;
+    for (Iterator<Integer> it = map.values().iterator(); it.hasNext(); seen++) {
+      if (it.next() % 2 == 0) {
+        it.remove();
+      }
+    }
+    assertEquals(1000, seen);
+    assertEquals(500, map.size());
+    assertNull(map.get("key10".getBytes()));
+    assertEquals(11, (int) map.get("key11".getBytes()));
+  }
+
+  @Test
+  public void testRandomKey() {
+    Random random = new Random(1);
+    BytesMap<Integer> map = new BytesMap<Integer>();
+    assertNull(map.randomKey(random));
+    for (int i = 0; i < 100000; i++) {
+      map.put(("key" + i).getBytes(), i);
+    }
+    for (int i = 0; i < 99990; i++) {
+      map.remove(("key" + i).getBytes());
+    }
+    Set<String> seen = new HashSet<String>();
+    for (int i = 0; i < 1000; i++) {
+      seen.add(new String(map.randomKey(random)));
+    }
+    assertEquals(10, seen.size());
+    map.clear();
+    assertTrue(map.isEmpty());
+    assertFalse(map.containsKey("key99999".getBytes()));
+  }
+}
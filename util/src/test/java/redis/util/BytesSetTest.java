@@ -0,0 +1,141 @@
+package redis.util;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Checks each encoding against a plain set and the moves between them.
+ */
+public class BytesSetTest {
+
+  private static byte[] bytes(String s) {
+    return s.getBytes();
+  }
+
+  private static Set<String> members(BytesSet set) {
+    Set<String> members = new HashSet<String>();
+    for (byte[] member : set) {
+      assertTrue(members.add(new String(member)));
+    }
+    return members;
+  }
+
+  @Test
+  public void testIntegers() {
+    assertTrue(IntSet.isInteger(bytes("0")));
+    assertTrue(IntSet.isInteger(bytes("-12")));
+    assertTrue(IntSet.isInteger(bytes("9223372036854775807")));
+    assertTrue(IntSet.isInteger(bytes("-9223372036854775807")));
+    assertFalse(IntSet.isInteger(bytes("-9223372036854775808")));
+    assertFalse(IntSet.isInteger(bytes("9223372036854775808")));
+    assertFalse(IntSet.isInteger(bytes("")));
+    assertFalse(IntSet.isInteger(bytes("-")));
+    assertFalse(IntSet.isInteger(bytes("-0")));
+    assertFalse(IntSet.isInteger(bytes("01")));
+    assertFalse(IntSet.isInteger(bytes("+1")));
+    assertFalse(IntSet.isInteger(bytes("1.0")));
+
+    BytesSet set = new BytesSet(512, 128, 64);
+    assertEquals("intset", set.encoding());
+    assertTrue(set.add(bytes("5")));
+    assertTrue(set.add(bytes("-70000")));
+    assertTrue(set.add(bytes("100")));
+    assertTrue(set.add(bytes("9223372036854775807")));
+    assertFalse(set.add(bytes("100")));
+    assertEquals("intset", set.encoding());
+    assertEquals(32, set.allocated());
+    assertTrue(set.contains(bytes("-70000")));
+    assertFalse(set.contains(bytes("05")));
+    assertFalse(set.remove(bytes("6")));
+    assertTrue(set.remove(bytes("100")));
+    assertEquals(3, set.size());
+    // Not an integer
+    assertTrue(set.add(bytes("05")));
+    assertEquals("listpack", set.encoding());
+    assertEquals(4, set.size());
+    assertTrue(set.contains(bytes("5")));
+    assertTrue(set.contains(bytes("05")));
+
+    set = new BytesSet(2, 128, 64);
+    set.add(bytes("1"));
+    set.add(bytes("2"));
+    set.add(bytes("3"));
+    assertEquals("listpack", set.encoding());
+    set = new BytesSet(2, 2, 64);
+    set.add(bytes("1"));
+    set.add(bytes("2"));
+    set.add(bytes("3"));
+    assertEquals("hashtable", set.encoding());
+    assertEquals(-1, set.allocated());
+    assertEquals(3, members(set).size());
+  }
+
+  @Test
+  public void testListpack() {
+    BytesSet set = new BytesSet(512, 3, 5);
+    assertTrue(set.add(bytes("a")));
+    assertTrue(set.add(bytes("b")));
+    assertEquals("listpack", set.encoding());
+    assertTrue(set.add(bytes("toolong")));
+    assertEquals("hashtable", set.encoding());
+    set = new BytesSet(512, 3, 5);
+    set.add(bytes("a"));
+    set.add(bytes("b"));
+    set.add(bytes("c"));
+    assertEquals("listpack", set.encoding());
+    assertFalse(set.add(bytes("c")));
+    assertTrue(set.remove(bytes("b")));
+    assertTrue(set.add(bytes("d")));
+    assertEquals("listpack", set.encoding());
+    assertTrue(set.add(bytes("e")));
+    assertEquals("hashtable", set.encoding());
+    assertEquals(4, set.size());
+    assertTrue(set.contains(bytes("a")));
+    assertFalse(set.contains(bytes("b")));
+  }
+
+  @Test
+  public void testRandom() {
+    Random random = new Random(7);
+    BytesSet[] sets = {new BytesSet(512, 128, 64), new BytesSet(0, 128, 64), new BytesSet(0, 0, 0),
+        new BytesSet(50, 100, 64)};
+    for (BytesSet set : sets) {
+      Set<String> expected = new HashSet<String>();
+      for (int i = 0; i < 5000; i++) {
+        String member = random.nextInt(5) == 0 ? "m" + random.nextInt(200) : String.valueOf(random.nextInt(200) - 100);
+        switch (random.nextInt(3)) {
+          case 0:
+          case 1:
+            assertEquals(expected.add(member), set.add(bytes(member)));
+            break;
+          default:
+            assertEquals(expected.remove(member), set.remove(bytes(member)));
+        }
+        assertEquals(expected.contains(member), set.contains(bytes(member)));
+        assertEquals(expected.size(), set.size());
+      }
+      assertEquals(expected, members(set));
+      for (int i = 0; i < 100; i++) {
+        assertTrue(expected.contains(new String(set.random(random))));
+      }
+    }
+    assertNull(new BytesSet(512, 128, 64).random(random));
+    BytesSet union = sets[0].emptyCopy();
+    union.addAll(sets[1]);
+    union.addAll(sets[2]);
+    Set<String> expected = members(sets[1]);
+    expected.addAll(members(sets[2]));
+    assertEquals(expected, members(union));
+    union.removeAll(sets[1]);
+    expected.removeAll(members(sets[1]));
+    assertEquals(expected, members(union));
+  }
+}
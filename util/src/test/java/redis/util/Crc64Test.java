@@ -0,0 +1,27 @@
+package redis.util;
+
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Checks against the value redis' own crc64 test expects.
+ */
+public class Crc64Test {
+
+  @Test
+  public void testReference() {
+    assertEquals(0xe9c6d914c4b8d9caL, Crc64.crc("123456789".getBytes()));
+    assertEquals(0, Crc64.crc(new byte[0]));
+  }
+
+  @Test
+  public void testIncremental() {
+    byte[] bytes = "This is a test of the emergency broadcast system.".getBytes();
+    long crc = 0;
+    for (int i = 0; i < bytes.length; i += 7) {
+      crc = Crc64.update(crc, bytes, i, Math.min(7, bytes.length - i));
+    }
+    assertEquals(Crc64.crc(bytes), crc);
+  }
+}
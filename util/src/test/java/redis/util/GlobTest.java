@@ -0,0 +1,78 @@
+package redis.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class GlobTest {
+
+  private static boolean matches(String pattern, String string) {
+    return Glob.compile(pattern.getBytes()).matches(string.getBytes());
+  }
+
+  @Test
+  public void testSyntax() {
+    assertTrue(matches("*", ""));
+    assertTrue(matches("*", "anything"));
+    assertTrue(matches("user:*", "user:1000"));
+    assertFalse(matches("user:*", "use"));
+    assertTrue(matches("h?llo", "hello"));
+    assertFalse(matches("h?llo", "hllo"));
+    assertTrue(matches("h*llo", "hllo"));
+    assertTrue(matches("h*llo", "heeeello"));
+    assertFalse(matches("h*llo", "hellox"));
+    assertTrue(matches("h[ae]llo", "hallo"));
+    assertFalse(matches("h[ae]llo", "hillo"));
+    assertTrue(matches("h[^e]llo", "hallo"));
+    assertFalse(matches("h[^e]llo", "hello"));
+    assertTrue(matches("h[a-b]llo", "hbllo"));
+    assertTrue(matches("h[b-a]llo", "hallo"));
+    assertFalse(matches("h[a-b]llo", "hcllo"));
+    assertTrue(matches("h[\\]]llo", "h]llo"));
+    assertTrue(matches("a\\*b", "a*b"));
+    assertFalse(matches("a\\*b", "axb"));
+    assertTrue(matches("*.txt", "notes.txt"));
+    assertFalse(matches("*.txt", "notes.txt.bak"));
+    assertTrue(matches("*a*b*c*", "xxaxxbxxcxx"));
+    assertFalse(matches("*a*b*c*", "xxcxxbxxaxx"));
+    // Like redis, a [ without a ] runs to the end and a trailing \ is itself
+    assertTrue(matches("a[bc", "ab"));
+    assertFalse(matches("a[", "a["));
+    assertTrue(matches("a\\", "a\\"));
+    assertFalse(matches("a[]", "a]"));
+    // Bytes above 127 are matched as themselves
+    byte[] high = {'k', (byte) 0xE9};
+    assertTrue(Glob.compile(new byte[]{'k', '[', (byte) 0xE0, '-', (byte) 0xEF, ']'}).matches(high));
+    assertTrue(Glob.compile(new byte[]{'k', '?'}).matches(high));
+  }
+
+  @Test
+  public void testPrefix() {
+    Glob glob = Glob.compile("user:\\*1*".getBytes());
+    assertEquals("user:*1", new String(glob.prefix()));
+    assertFalse(glob.isLiteral());
+    glob = Glob.compile("exact\\?".getBytes());
+    assertEquals("exact?", new String(glob.prefix()));
+    assertTrue(glob.isLiteral());
+    assertTrue(glob.matches("exact?".getBytes()));
+    assertFalse(glob.matches("exact?!".getBytes()));
+    assertEquals(0, Glob.compile("*user".getBytes()).prefix().length);
+  }
+
+  @Test(timeout = 5000)
+  public void testManyStars() {
+    // Exponential for a matcher that tries every way of splitting the input
+    char[] chars = new char[100];
+    Arrays.fill(chars, 'a');
+    String input = new String(chars);
+    Glob glob = Glob.compile("*a*a*a*a*a*a*a*a*a*a*a*a*a*a*a*a*b".getBytes());
+    for (int i = 0; i < 1000; i++) {
+      assertFalse(glob.matches(input.getBytes()));
+    }
+    assertTrue(matches("*a*a*a*a*a*a*a*a*a*a*a*a*a*a*a*a*", input));
+  }
+}
@@ -0,0 +1,131 @@
+package redis.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares Hashing with the additive hash BytesKey used to have, both on its
+ * own and for HashMap lookups of sequential keys. Run with:
+ * <p/>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=redis.util.HashingBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class HashingBenchmark {
+
+  static int additive(byte[] bytes) {
+    int hashCode = 0;
+    for (byte aByte : bytes) {
+      hashCode += 43 * aByte;
+    }
+    return hashCode;
+  }
+
+  /**
+   * BytesKey as it was.
+   */
+  static class AdditiveKey extends BytesValue {
+    private final int hashCode;
+
+    AdditiveKey(byte[] bytes) {
+      super(bytes);
+      hashCode = additive(bytes);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof AdditiveKey && hashCode == o.hashCode() && equals(bytes, ((AdditiveKey) o).bytes);
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class Input {
+    @Param({"8", "32", "128", "1024"})
+    int length;
+
+    byte[] bytes;
+
+    @Setup
+    public void setup() {
+      bytes = new byte[length];
+      for (int i = 0; i < length; i++) {
+        bytes[i] = (byte) ('a' + i % 26);
+      }
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class Maps {
+    @Param({"100000"})
+    int size;
+
+    Map<AdditiveKey, Object> additive = new HashMap<AdditiveKey, Object>();
+    Map<BytesKey, Object> hashing = new HashMap<BytesKey, Object>();
+    byte[][] lookups;
+    int next;
+
+    @Setup
+    public void setup() {
+      lookups = new byte[size][];
+      for (int i = 0; i < size; i++) {
+        byte[] key = ("user:" + i).getBytes();
+        additive.put(new AdditiveKey(key), key);
+        hashing.put(new BytesKey(key), key);
+        lookups[i] = key.clone();
+      }
+    }
+
+    byte[] lookup() {
+      next = (next + 7919) % size;
+      return lookups[next];
+    }
+  }
+
+  @Benchmark
+  public int additiveHash(Input input) {
+    return additive(input.bytes);
+  }
+
+  @Benchmark
+  public int xxHash(Input input) {
+    return Hashing.hash(input.bytes);
+  }
+
+  @Benchmark
+  public Object additiveHashMapGet(Maps maps) {
+    return maps.additive.get(new AdditiveKey(maps.lookup()));
+  }
+
+  @Benchmark
+  public Object xxHashMapGet(Maps maps) {
+    return maps.hashing.get(new BytesKey(maps.lookup()));
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(HashingBenchmark.class.getSimpleName()).build()).run();
+  }
+}
@@ -0,0 +1,103 @@
+package redis.util;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class HashingTest {
+
+  @Test
+  public void testReference() {
+    // Published XXH64 values with seed 0
+    assertEquals(0xEF46DB3751D8E999L, Hashing.hash64(new byte[0]));
+    assertEquals(0xD24EC4F1A98C6E5BL, Hashing.hash64("a".getBytes()));
+    assertEquals(0x44BC2CF5AD770999L, Hashing.hash64("abc".getBytes()));
+    assertEquals(0xFBCEA83C8A378BF1L, Hashing.hash64("Nobody inspects the spammish repetition".getBytes()));
+  }
+
+  @Test
+  public void testRange() {
+    byte[] bytes = "xx{user:1000}yy".getBytes();
+    assertEquals(Hashing.hash("user:1000".getBytes()), Hashing.hash(bytes, 3, 9));
+    assertEquals(new BytesKey("user:1000".getBytes()).hashCode(), Hashing.hash("user:1000".getBytes()));
+    assertEquals(new BytesValue("user:1000".getBytes()).hashCode(), Hashing.hash("user:1000".getBytes()));
+  }
+
+  @Test
+  public void testAnagrams() {
+    assertFalse(Hashing.hash("user:12".getBytes()) == Hashing.hash("user:21".getBytes()));
+    assertFalse(Hashing.hash("ab".getBytes()) == Hashing.hash("ba".getBytes()));
+    assertFalse(Hashing.hash("listening".getBytes()) == Hashing.hash("silent:gni".getBytes()));
+    // Every permutation of 8 distinct bytes
+    Set<Integer> hashes = new HashSet<Integer>();
+    byte[] bytes = "01234567".getBytes();
+    int permutations = permute(bytes, 0, hashes);
+    assertEquals(40320, permutations);
+    assertTrue(permutations - hashes.size() < 5);
+  }
+
+  private static int permute(byte[] bytes, int start, Set<Integer> hashes) {
+    if (start == bytes.length) {
+      hashes.add(Hashing.hash(bytes));
+      return 1;
+    }
+    int count = 0;
+    for (int i = start; i < bytes.length; i++) {
+      swap(bytes, start, i);
+      count += permute(bytes, start + 1, hashes);
+      swap(bytes, start, i);
+    }
+    return count;
+  }
+
+  private static void swap(byte[] bytes, int i, int j) {
+    byte b = bytes[i];
+    bytes[i] = bytes[j];
+    bytes[j] = b;
+  }
+
+  @Test
+  public void testSequentialDistribution() {
+    // Sequential numeric keys of every length class, including some long
+    // enough to use all four accumulators, spread over power of two tables
+    // the way BytesMap indexes them
+    String[] prefixes = {"", "user:", "session:0123456789abcdef:", "a-much-longer-key-prefix-for-the-32-byte-path:"};
+    int count = 1 << 18;
+    int buckets = 1 << 14;
+    for (String prefix : prefixes) {
+      int[] low = new int[buckets];
+      int[] high = new int[buckets];
+      Set<Integer> distinct = new HashSet<Integer>();
+      for (int i = 0; i < count; i++) {
+        int h = Hashing.hash((prefix + i).getBytes());
+        distinct.add(h);
+        low[h & (buckets - 1)]++;
+        high[h >>> 18]++;
+      }
+      // About count^2 / 2^33 = 8 full 32 bit collisions are expected
+      assertTrue(prefix, count - distinct.size() < 40);
+      assertUniform(prefix, low, count);
+      assertUniform(prefix, high, count);
+    }
+  }
+
+  /**
+   * Chi-squared test against a uniform distribution, allowing six standard
+   * deviations.
+   */
+  private static void assertUniform(String message, int[] buckets, int count) {
+    double expected = (double) count / buckets.length;
+    double chi = 0;
+    for (int bucket : buckets) {
+      double d = bucket - expected;
+      chi += d * d / expected;
+    }
+    int freedom = buckets.length - 1;
+    assertTrue(message + " chi-squared " + chi, Math.abs(chi - freedom) < 6 * Math.sqrt(2 * freedom));
+  }
+}
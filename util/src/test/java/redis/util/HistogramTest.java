@@ -0,0 +1,52 @@
+package redis.util;
+
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class HistogramTest {
+
+  @Test
+  public void testBuckets() {
+    // Every bucket holds the values between the end of the one before and
+    // its own highest value
+    long previous = -1;
+    for (int i = 0; i < Histogram.index(Long.MAX_VALUE); i++) {
+      long highest = Histogram.highest(i);
+      assertTrue(highest > previous);
+      assertEquals(i, Histogram.index(previous + 1));
+      assertEquals(i, Histogram.index(highest));
+      // No wider than a sixteenth of what it holds
+      assertTrue(highest - previous <= Math.max(1, (previous + 1) / 16));
+      previous = highest;
+    }
+    assertEquals(Long.MAX_VALUE, Histogram.highest(Histogram.index(Long.MAX_VALUE)));
+  }
+
+  @Test
+  public void testPercentile() {
+    Histogram histogram = new Histogram();
+    assertEquals(0, histogram.percentile(50));
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(i);
+    }
+    assertEquals(1000, histogram.count());
+    assertEquals(1, histogram.percentile(0));
+    long median = histogram.percentile(50);
+    assertTrue(median >= 500 && median <= 500 * 17 / 16);
+    long tail = histogram.percentile(99.9);
+    assertTrue(tail >= 999 && tail <= 999 * 17 / 16);
+    assertEquals(Histogram.highest(Histogram.index(1000)), histogram.percentile(100));
+
+    Histogram other = new Histogram();
+    other.record(1000000);
+    other.record(-5);
+    histogram.add(other);
+    assertEquals(1002, histogram.count());
+    assertEquals(0, histogram.percentile(0));
+    assertTrue(histogram.percentile(100) >= 1000000);
+    histogram.reset();
+    assertEquals(0, histogram.count());
+  }
+}
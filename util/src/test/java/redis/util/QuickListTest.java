@@ -0,0 +1,166 @@
+package redis.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Checks the packed chunks against a plain list.
+ */
+public class QuickListTest {
+
+  private static byte[] bytes(String s) {
+    return s.getBytes();
+  }
+
+  private static void check(List<String> expected, QuickList list) {
+    assertEquals(expected.size(), list.size());
+    Iterator<byte[]> iterator = list.iterator();
+    for (String element : expected) {
+      assertEquals(element, new String(iterator.next()));
+    }
+    assertTrue(!iterator.hasNext());
+  }
+
+  @Test
+  public void testEnds() {
+    QuickList list = new QuickList();
+    assertNull(list.pollFirst());
+    assertNull(list.pollLast());
+    for (int i = 0; i < 10000; i++) {
+      list.addLast(bytes("r" + i));
+      list.addFirst(bytes("l" + i));
+    }
+    assertEquals(20000, list.size());
+    assertTrue(list.chunks() > 1);
+    assertEquals("l9999", new String(list.get(0)));
+    assertEquals("r9999", new String(list.get(19999)));
+    assertEquals("l0", new String(list.get(9999)));
+    assertEquals("r0", new String(list.get(10000)));
+    for (int i = 9999; i >= 0; i--) {
+      assertEquals("l" + i, new String(list.pollFirst()));
+      assertEquals("r" + i, new String(list.pollLast()));
+    }
+    assertTrue(list.isEmpty());
+    assertEquals(0, list.chunks());
+    assertEquals(0, list.allocated());
+  }
+
+  @Test
+  public void testLengths() {
+    // Lengths either side of each varint size, and bigger than a chunk
+    QuickList list = new QuickList();
+    int[] lengths = {0, 1, 127, 128, 16383, 16384, 20000};
+    for (int length : lengths) {
+      byte[] value = new byte[length];
+      Arrays.fill(value, (byte) length);
+      list.addLast(value);
+      list.addFirst(value);
+    }
+    for (int i = lengths.length - 1; i >= 0; i--) {
+      assertEquals(lengths[i], list.pollFirst().length);
+      byte[] last = list.pollLast();
+      assertEquals(lengths[i], last.length);
+      if (last.length > 0) assertEquals((byte) lengths[i], last[last.length - 1]);
+    }
+  }
+
+  @Test
+  public void testRandom() {
+    Random random = new Random(1);
+    QuickList list = new QuickList();
+    List<String> expected = new ArrayList<String>();
+    for (int i = 0; i < 50000; i++) {
+      String value = random.nextInt(4) == 0 ? "v" + random.nextInt(20) : "value" + random.nextInt(1000);
+      if (random.nextInt(50) == 0) {
+        value += new String(new char[random.nextInt(3000)]).replace('\0', 'x');
+      }
+      int size = expected.size();
+      switch (random.nextInt(10)) {
+        case 0:
+        case 1:
+          list.addFirst(bytes(value));
+          expected.add(0, value);
+          break;
+        case 2:
+        case 3:
+          list.addLast(bytes(value));
+          expected.add(value);
+          break;
+        case 4:
+          byte[] first = list.pollFirst();
+          assertEquals(size == 0 ? null : expected.remove(0), first == null ? null : new String(first));
+          break;
+        case 5:
+          byte[] last = list.pollLast();
+          assertEquals(size == 0 ? null : expected.remove(size - 1), last == null ? null : new String(last));
+          break;
+        case 6:
+          int index = random.nextInt(size + 1);
+          list.add(index, bytes(value));
+          expected.add(index, value);
+          break;
+        case 7:
+          if (size > 0) {
+            index = random.nextInt(size);
+            assertEquals(expected.get(index), new String(list.get(index)));
+            list.set(index, bytes(value));
+            expected.set(index, value);
+          }
+          break;
+        case 8:
+          String target = "v" + random.nextInt(20);
+          int count = random.nextInt(5) - 2;
+          int removed = 0;
+          if (count >= 0) {
+            for (int j = 0; j < expected.size() && (count == 0 || removed < count); ) {
+              if (expected.get(j).equals(target)) {
+                expected.remove(j);
+                removed++;
+              } else {
+                j++;
+              }
+            }
+          } else {
+            for (int j = expected.size() - 1; j >= 0 && removed < -count; j--) {
+              if (expected.get(j).equals(target)) {
+                expected.remove(j);
+                removed++;
+              }
+            }
+          }
+          assertEquals(removed, list.remove(bytes(target), count));
+          assertEquals(expected.indexOf(value), list.indexOf(bytes(value)));
+          break;
+        case 9:
+          if (random.nextInt(20) == 0 && size > 0) {
+            int start = random.nextInt(size);
+            int end = start + random.nextInt(size - start);
+            list.trim(start, end);
+            expected = new ArrayList<String>(expected.subList(start, end + 1));
+          }
+          break;
+      }
+      if (i % 1000 == 0) {
+        check(expected, list);
+      }
+    }
+    check(expected, list);
+    if (expected.size() > 10) {
+      Iterator<byte[]> iterator = list.iterator(expected.size() - 10);
+      for (String element : expected.subList(expected.size() - 10, expected.size())) {
+        assertEquals(element, new String(iterator.next()));
+      }
+    }
+    list.trim(5, 2);
+    assertTrue(list.isEmpty());
+  }
+}
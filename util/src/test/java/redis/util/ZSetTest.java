@@ -2,10 +2,18 @@ package redis.util;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
 
 /**
  * Some tests.
@@ -62,6 +70,127 @@ public class ZSetTest {
     }
   }
 
+  @Test
+  public void testRanks() {
+    ZSet zs = new ZSet();
+    // Equal scores are ordered by key
+    zs.add(new BytesKey("b".getBytes()), 1);
+    zs.add(new BytesKey("a".getBytes()), 1);
+    zs.add(new BytesKey("c".getBytes()), 0);
+    assertEquals(0, zs.rank("c".getBytes()));
+    assertEquals(1, zs.rank("a".getBytes()));
+    assertEquals(2, zs.rank("b".getBytes()));
+    assertEquals(-1, zs.rank("d".getBytes()));
+    assertFalse(zs.add(new BytesKey("c".getBytes()), 2));
+    assertEquals(2, zs.rank("c".getBytes()));
+    assertEquals(2.0, zs.get("c".getBytes()).getScore());
+    assertEquals("[c, b, a]", keys(zs.reverseSubSet(0, 10)).toString());
+    assertEquals(2, zs.firstRank(1, false));
+    assertEquals(0, zs.firstRank(1, true));
+    assertEquals(1, zs.lastRank(2, false));
+    assertEquals(-1, zs.lastRank(0, true));
+    assertTrue(zs.remove("a".getBytes()));
+    assertFalse(zs.remove("a".getBytes()));
+    assertNull(zs.get("a".getBytes()));
+    assertEquals(2, zs.size());
+  }
+
+  @Test
+  public void testAgainstTreeMap() {
+    againstTreeMap(new ZSet(), 2000);
+  }
+
+  @Test
+  public void testPacked() {
+    ZSet zs = new ZSet(1000, 64);
+    againstTreeMap(zs, 200);
+    assertEquals("listpack", zs.encoding());
+    // Converted part way through once it has too many entries
+    zs = new ZSet(100, 64);
+    againstTreeMap(zs, 2000);
+    assertEquals("skiplist", zs.encoding());
+    zs = new ZSet(100, 4);
+    zs.add(ONE, 1);
+    assertEquals("listpack", zs.encoding());
+    zs.add(THREE, 3);
+    assertEquals("skiplist", zs.encoding());
+    assertEquals(1, zs.rank("three".getBytes()));
+  }
+
+  private void againstTreeMap(ZSet zs, int members) {
+    // The same random operations on a TreeMap ordered by score and key
+    Random random = new Random(42);
+    TreeMap<String, Double> scores = new TreeMap<String, Double>();
+    for (int i = 0; i < 20000; i++) {
+      String key = "m" + random.nextInt(members);
+      int op = random.nextInt(10);
+      if (op < 6) {
+        double score = random.nextInt(100);
+        assertEquals(!scores.containsKey(key), zs.add(new BytesKey(key.getBytes()), score));
+        scores.put(key, score);
+      } else if (op < 9) {
+        assertEquals(scores.remove(key) != null, zs.remove(key.getBytes()));
+      } else {
+        int start = random.nextInt(scores.size() + 1);
+        int end = start + random.nextInt(10);
+        List<String> expected = sorted(scores);
+        int removed = Math.max(0, Math.min(end, expected.size() - 1) - start + 1);
+        for (String removedKey : expected.subList(start, start + removed)) {
+          scores.remove(removedKey);
+        }
+        assertEquals(removed, zs.removeRange(start, end));
+      }
+      assertEquals(scores.size(), zs.size());
+    }
+    List<String> expected = sorted(scores);
+    assertEquals(expected, keys(zs));
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(i, zs.rank(expected.get(i).getBytes()));
+    }
+    assertEquals(expected.subList(10, 21), keys(zs.subSet(10, 20)));
+    for (String key : expected.subList(0, 10)) {
+      assertEquals(scores.get(key), zs.get(key.getBytes()).getScore());
+    }
+    int first = zs.firstRank(25, true);
+    int last = zs.lastRank(50, false);
+    for (int i = 0; i < expected.size(); i++) {
+      double score = scores.get(expected.get(i));
+      assertEquals(i >= first && i <= last, score >= 25 && score < 50);
+    }
+    List<String> reversed = new ArrayList<String>(expected.subList(first, last + 1));
+    Collections.reverse(reversed);
+    assertEquals(reversed, keys(zs.reverseSubSet(first, last)));
+    ZSet copy = new ZSet(zs);
+    Iterator<ZSetEntry> iterator = copy.iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next().getScore() < 50) {
+        iterator.remove();
+      }
+    }
+    assertEquals(expected.size() - zs.firstRank(50, true), copy.size());
+    assertEquals(0, copy.firstRank(50, true));
+  }
+
+  private static List<String> sorted(final TreeMap<String, Double> scores) {
+    List<String> keys = new ArrayList<String>(scores.keySet());
+    Collections.sort(keys, new Comparator<String>() {
+      @Override
+      public int compare(String o1, String o2) {
+        int diff = Double.compare(scores.get(o1), scores.get(o2));
+        return diff != 0 ? diff : o1.compareTo(o2);
+      }
+    });
+    return keys;
+  }
+
+  private static List<String> keys(Iterable<ZSetEntry> entries) {
+    List<String> keys = new ArrayList<String>();
+    for (ZSetEntry entry : entries) {
+      keys.add(entry.getKey().toString());
+    }
+    return keys;
+  }
+
   private void println(Object o) {
     System.out.println(String.valueOf(o));
   }